@@ -0,0 +1,43 @@
+package com.example.demo.config;
+
+import com.example.demo.util.CorrelazioneLog;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Assegna a ogni richiesta HTTP un identificativo di correlazione per i log.
+ * Per i webhook Twilio il MessageSid sostituisce l'id generato, così i log
+ * dell'elaborazione asincrona del messaggio restano collegati alla richiesta.
+ */
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+public class CorrelazioneFilter extends OncePerRequestFilter {
+
+    static final String HEADER = "X-Request-Id";
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain)
+            throws ServletException, IOException {
+        String idCorrelazione = request.getHeader(HEADER);
+        if (idCorrelazione == null || idCorrelazione.isBlank() || idCorrelazione.length() > 64) {
+            idCorrelazione = UUID.randomUUID().toString();
+        }
+
+        String precedente = CorrelazioneLog.imposta(idCorrelazione);
+        response.setHeader(HEADER, idCorrelazione);
+        try {
+            filterChain.doFilter(request, response);
+        } finally {
+            CorrelazioneLog.ripristina(precedente);
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.example.demo.config;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
@@ -7,7 +9,6 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Primary;
 import org.springframework.context.annotation.Profile;
-import org.springframework.jdbc.datasource.DriverManagerDataSource;
 
 import javax.sql.DataSource;
 
@@ -25,6 +26,27 @@ public class DatabaseConfig {
     @Value("${SPRING_DATASOURCE_PASSWORD:}")
     private String springDatasourcePassword;
 
+    @Value("${db.pool.dimensione-massima:10}")
+    private int dimensioneMassima;
+
+    @Value("${db.pool.minimo-inattive:2}")
+    private int minimoInattive;
+
+    @Value("${db.pool.timeout-connessione-ms:5000}")
+    private long timeoutConnessioneMs;
+
+    @Value("${db.pool.timeout-inattivita-ms:600000}")
+    private long timeoutInattivitaMs;
+
+    @Value("${db.pool.durata-massima-ms:1800000}")
+    private long durataMassimaMs;
+
+    @Value("${db.pool.soglia-leak-ms:30000}")
+    private long sogliaLeakMs;
+
+    @Value("${db.pool.cache-statement:256}")
+    private int cacheStatement;
+
     @Bean
     @Primary
     public DataSource dataSource() {
@@ -43,14 +65,33 @@ public class DatabaseConfig {
             // che causerà un errore più descrittivo
         }
 
-        // Crea il DataSource con le variabili d'ambiente
+        // Crea il pool di connessioni con le variabili d'ambiente
         // Anche in caso di variabili mancanti, questo genererà un errore più chiaro
-        DriverManagerDataSource dataSource = new DriverManagerDataSource();
-        dataSource.setUrl(springDatasourceUrl);
-        dataSource.setUsername(springDatasourceUsername);
-        dataSource.setPassword(springDatasourcePassword);
-        dataSource.setDriverClassName("org.postgresql.Driver");
+        HikariConfig config = new HikariConfig();
+        config.setPoolName("yovendo-db");
+        config.setJdbcUrl(springDatasourceUrl);
+        config.setUsername(springDatasourceUsername);
+        config.setPassword(springDatasourcePassword);
+        config.setDriverClassName("org.postgresql.Driver");
+
+        config.setMaximumPoolSize(dimensioneMassima);
+        config.setMinimumIdle(Math.min(minimoInattive, dimensioneMassima));
+        config.setConnectionTimeout(timeoutConnessioneMs);
+        config.setIdleTimeout(timeoutInattivitaMs);
+        config.setMaxLifetime(durataMassimaMs);
+        config.setLeakDetectionThreshold(sogliaLeakMs);
+
+        // Il driver PostgreSQL prepara lato server le query eseguite più volte sulla stessa connessione
+        config.addDataSourceProperty("prepareThreshold", "3");
+        config.addDataSourceProperty("preparedStatementCacheQueries", String.valueOf(cacheStatement));
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", "5");
+        // Le batchUpdate diventano INSERT/UPDATE multi-riga
+        config.addDataSourceProperty("reWriteBatchedInserts", "true");
+
+        logger.info("Pool connessioni: massimo {} connessioni, minimo {} inattive, leak detection dopo {} ms",
+                dimensioneMassima, config.getMinimumIdle(), sogliaLeakMs);
 
+        HikariDataSource dataSource = new HikariDataSource(config);
         return dataSource;
     }
 }
\ No newline at end of file
@@ -0,0 +1,41 @@
+package com.example.demo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Executor dedicato all'elaborazione dei documenti (estrazione testo, chunking, embedding).
+ *
+ * Il numero di thread limita i documenti elaborati in parallelo da questa istanza.
+ * I documenti in attesa restano nella tabella job_ingestione: DocumentoService reclama
+ * un job solo quando ha un thread libero, quindi la coda in memoria resta vuota.
+ */
+@Configuration
+@EnableScheduling
+public class IngestioneConfig {
+
+    @Value("${ingestione.documenti.thread:2}")
+    private int numeroThread;
+
+    @Value("${ingestione.documenti.coda:100}")
+    private int capacitaCoda;
+
+    @Bean(name = "ingestioneExecutor")
+    public ThreadPoolTaskExecutor ingestioneExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(numeroThread);
+        executor.setMaxPoolSize(numeroThread);
+        executor.setQueueCapacity(capacitaCoda);
+        executor.setThreadNamePrefix("ingestione-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.AbortPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        executor.initialize();
+        return executor;
+    }
+}
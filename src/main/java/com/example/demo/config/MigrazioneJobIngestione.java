@@ -0,0 +1,47 @@
+package com.example.demo.config;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Crea l'indice unico parziale che consente un solo job attivo (in attesa o in corso) per documento.
+ *
+ * Hibernate non genera indici parziali. Prima di crearlo, i job attivi duplicati rimasti
+ * da versioni precedenti vengono chiusi in errore: per ogni documento resta attivo quello
+ * in corso, altrimenti il più vecchio. Le istruzioni sono idempotenti.
+ */
+@Component
+public class MigrazioneJobIngestione {
+    private static final Logger logger = LoggerFactory.getLogger(MigrazioneJobIngestione.class);
+
+    static final String CHIUDI_DUPLICATI =
+            "UPDATE job_ingestione SET stato = 'errore', errore = 'Job duplicato per lo stesso documento' " +
+                    "WHERE id IN (SELECT id FROM (SELECT id, row_number() OVER (PARTITION BY documento_id " +
+                    "ORDER BY (stato = 'in-corso') DESC, id) AS posizione " +
+                    "FROM job_ingestione WHERE stato IN ('in-attesa', 'in-corso')) attivi WHERE posizione > 1)";
+
+    static final String CREA_INDICE =
+            "CREATE UNIQUE INDEX IF NOT EXISTS idx_job_ingestione_documento_attivo " +
+                    "ON job_ingestione (documento_id) WHERE stato IN ('in-attesa', 'in-corso')";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    public MigrazioneJobIngestione(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void eseguiMigrazione() {
+        int chiusi = jdbcTemplate.update(CHIUDI_DUPLICATI);
+        if (chiusi > 0) {
+            logger.warn("Chiusi {} job di ingestione attivi duplicati", chiusi);
+        }
+        jdbcTemplate.execute(CREA_INDICE);
+    }
+}
@@ -0,0 +1,65 @@
+package com.example.demo.config;
+
+import com.example.demo.repository.ChunkDocumentoRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+/**
+ * Prepara il database per la ricerca vettoriale con pgvector.
+ *
+ * Attiva solo con rag.ricerca.motore=database: crea l'estensione, la colonna
+ * chunk_documenti.embedding_vettore con il relativo indice HNSW e copia
+ * gli embedding già salvati nella colonna bytea.
+ * Tutte le istruzioni sono idempotenti, quindi può essere eseguita a ogni avvio.
+ */
+@Component
+@ConditionalOnProperty(name = "rag.ricerca.motore", havingValue = "database")
+public class MigrazionePgvector {
+    private static final Logger logger = LoggerFactory.getLogger(MigrazionePgvector.class);
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ChunkDocumentoRepository chunkDocumentoRepository;
+
+    @Value("${rag.ricerca.pgvector.dimensione:1536}")
+    private int dimensione;
+
+    @Value("${rag.ricerca.pgvector.lotto-migrazione:500}")
+    private int dimensioneLotto;
+
+    @Autowired
+    public MigrazionePgvector(JdbcTemplate jdbcTemplate, ChunkDocumentoRepository chunkDocumentoRepository) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.chunkDocumentoRepository = chunkDocumentoRepository;
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void eseguiMigrazione() {
+        logger.info("=== MIGRAZIONE PGVECTOR ===");
+
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS vector");
+        jdbcTemplate.execute("ALTER TABLE chunk_documenti ADD COLUMN IF NOT EXISTS embedding_vettore vector(" + dimensione + ")");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_chunk_documenti_embedding_vettore " +
+                "ON chunk_documenti USING hnsw (embedding_vettore vector_cosine_ops)");
+        jdbcTemplate.execute("CREATE INDEX IF NOT EXISTS idx_documenti_organizzazione_elaborato " +
+                "ON documenti (organizzazione_id, elaborato)");
+
+        // Back-fill degli embedding esistenti a lotti, per non caricare tutta la tabella in memoria
+        long inizio = System.currentTimeMillis();
+        int totale = 0;
+        int aggiornati;
+        do {
+            aggiornati = chunkDocumentoRepository.popolaEmbeddingVettorialeMancanti(dimensione, dimensioneLotto);
+            totale += aggiornati;
+        } while (aggiornati == dimensioneLotto);
+
+        logger.info("Migrazione pgvector completata: {} chunk copiati nella colonna vettoriale in {} ms",
+                totale, System.currentTimeMillis() - inizio);
+    }
+}
@@ -0,0 +1,59 @@
+package com.example.demo.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * Executor per l'elaborazione dei messaggi WhatsApp in modalità asincrona.
+ *
+ * Ogni messaggio gira su un virtual thread: le attese su OpenAI, Twilio e database
+ * non occupano thread di piattaforma, quindi non serve dimensionare un pool.
+ */
+@Configuration
+public class WebhookConfig {
+
+    @Value("${whatsapp.allegati.download-paralleli:4}")
+    private int downloadParalleli;
+
+    @Value("${whatsapp.allegati.coda:50}")
+    private int capacitaCodaAllegati;
+
+    @Bean(name = "elaborazioneMessaggiExecutor", destroyMethod = "close")
+    public ExecutorService elaborazioneMessaggiExecutor() {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("messaggio-", 0).factory());
+    }
+
+    /**
+     * Download degli allegati: gli allegati di uno stesso messaggio vengono scaricati in parallelo,
+     * ma i download contemporanei dell'istanza restano limitati. A coda piena il download
+     * gira sul thread del messaggio invece di essere rifiutato.
+     */
+    @Bean(name = "allegatiExecutor")
+    public ThreadPoolTaskExecutor allegatiExecutor() {
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(downloadParalleli);
+        executor.setMaxPoolSize(downloadParalleli);
+        executor.setQueueCapacity(capacitaCodaAllegati);
+        executor.setThreadNamePrefix("allegati-");
+        executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        executor.initialize();
+        return executor;
+    }
+
+    /**
+     * Chiude le finestre di accorpamento dei messaggi; il task si limita ad accodare l'elaborazione
+     */
+    @Bean(name = "finestreMessaggiScheduler", destroyMethod = "shutdown")
+    public ScheduledExecutorService finestreMessaggiScheduler() {
+        return Executors.newSingleThreadScheduledExecutor(Thread.ofPlatform().name("finestre-messaggi").daemon().factory());
+    }
+}
@@ -13,7 +13,6 @@ import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import java.time.LocalDateTime;
-import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
 
@@ -123,22 +122,15 @@ public class ConversazioneController {
         response.setOrarioInizio(conversazione.getOrarioInizio());
         response.setOrarioFine(conversazione.getOrarioFine());
 
-        // Conta i messaggi
-        List<Messaggio> messaggi = messaggioRepository.findByConversazioneIdOrderByOrarioInvioAsc(conversazione.getId());
-        response.setNumeroMessaggi((long) messaggi.size());
-
-        // Ottieni ultimo messaggio
-        if (!messaggi.isEmpty()) {
-            Messaggio ultimoMessaggio = messaggi.stream()
-                    .max(Comparator.comparing(Messaggio::getOrarioInvio))
-                    .orElse(null);
-
-            if (ultimoMessaggio != null) {
-                response.setUltimoMessaggioTesto(ultimoMessaggio.getContenuto());
-                response.setUltimoMessaggioData(ultimoMessaggio.getOrarioInvio());
-                response.setUltimoMessaggioDaCliente(ultimoMessaggio.getDaCliente());
-            }
-        }
+        // Conta i messaggi e legge solo l'ultimo, senza caricare tutta la cronologia
+        response.setNumeroMessaggi(messaggioRepository.countByConversazioneId(conversazione.getId()));
+
+        messaggioRepository.findFirstByConversazioneIdOrderByOrarioInvioDesc(conversazione.getId())
+                .ifPresent(ultimoMessaggio -> {
+                    response.setUltimoMessaggioTesto(ultimoMessaggio.getContenuto());
+                    response.setUltimoMessaggioData(ultimoMessaggio.getOrarioInvio());
+                    response.setUltimoMessaggioDaCliente(ultimoMessaggio.getDaCliente());
+                });
 
         return response;
     }
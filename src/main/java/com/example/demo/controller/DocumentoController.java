@@ -6,6 +6,7 @@ import com.example.demo.model.Organizzazione;
 import com.example.demo.payloadDTO.response.DocumentoResponse;
 import com.example.demo.repository.DocumentoRepository;
 import com.example.demo.repository.OrganizzazioneRepository;
+import com.example.demo.service.DocumentoService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -25,11 +26,14 @@ public class DocumentoController {
 
     private final DocumentoRepository documentoRepository;
     private final OrganizzazioneRepository organizzazioneRepository;
+    private final DocumentoService documentoService;
 
     @Autowired
-    public DocumentoController(DocumentoRepository documentoRepository, OrganizzazioneRepository organizzazioneRepository) {
+    public DocumentoController(DocumentoRepository documentoRepository, OrganizzazioneRepository organizzazioneRepository,
+                               DocumentoService documentoService) {
         this.documentoRepository = documentoRepository;
         this.organizzazioneRepository = organizzazioneRepository;
+        this.documentoService = documentoService;
     }
 
     // Ottiene l'elenco di tutti i documenti
@@ -84,8 +88,7 @@ public class DocumentoController {
     // DELETE --> http://localhost:8080/api/documenti/{id}
     @DeleteMapping("/{id}")
     public ResponseEntity<Void> deleteDocumento(@PathVariable Long id) {
-        if (documentoRepository.existsById(id)) {
-            documentoRepository.deleteById(id);
+        if (documentoService.eliminaDocumento(id)) {
             return ResponseEntity.noContent().build();
         }
         return ResponseEntity.notFound().build();
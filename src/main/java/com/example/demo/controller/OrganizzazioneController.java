@@ -4,6 +4,8 @@ import com.example.demo.model.Organizzazione;
 import com.example.demo.payloadDTO.request.OrganizzazioneRequest;
 import com.example.demo.payloadDTO.response.OrganizzazioneResponse;
 import com.example.demo.repository.OrganizzazioneRepository;
+import com.example.demo.service.CacheRisposteService;
+import com.example.demo.service.InstradamentoOrganizzazioniService;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
@@ -16,10 +18,16 @@ import java.util.stream.Collectors;
 public class OrganizzazioneController {
 
     private final OrganizzazioneRepository organizzazioneRepository;
+    private final InstradamentoOrganizzazioniService instradamentoOrganizzazioniService;
+    private final CacheRisposteService cacheRisposteService;
 
     @Autowired
-    public OrganizzazioneController(OrganizzazioneRepository organizzazioneRepository) {
+    public OrganizzazioneController(OrganizzazioneRepository organizzazioneRepository,
+                                    InstradamentoOrganizzazioniService instradamentoOrganizzazioniService,
+                                    CacheRisposteService cacheRisposteService) {
         this.organizzazioneRepository = organizzazioneRepository;
+        this.instradamentoOrganizzazioniService = instradamentoOrganizzazioniService;
+        this.cacheRisposteService = cacheRisposteService;
     }
 
 
@@ -53,6 +61,7 @@ public class OrganizzazioneController {
         organizzazione.setTonoDiVoce(request.getTonoDiVoce());
 
         Organizzazione savedOrganizzazione = organizzazioneRepository.save(organizzazione);
+        instradamentoOrganizzazioniService.aggiorna();
         return ResponseEntity.ok(convertToResponse(savedOrganizzazione));
     }
 
@@ -69,7 +78,11 @@ public class OrganizzazioneController {
                     organizzazione.setNome(request.getNome());
                     organizzazione.setNumeroWhatsapp(request.getNumeroWhatsapp());
                     organizzazione.setTonoDiVoce(request.getTonoDiVoce());
-                    return organizzazioneRepository.save(organizzazione);
+                    Organizzazione aggiornata = organizzazioneRepository.save(organizzazione);
+                    instradamentoOrganizzazioniService.aggiorna();
+                    // Nome e tono di voce fanno parte del prompt: le risposte in cache non valgono più
+                    cacheRisposteService.invalida(id);
+                    return aggiornata;
                 })
                 .map(this::convertToResponse)
                 .map(ResponseEntity::ok)
@@ -83,6 +96,7 @@ public class OrganizzazioneController {
     public ResponseEntity<Void> deleteOrganizzazione(@PathVariable Long id) {
         if (organizzazioneRepository.existsById(id)) {
             organizzazioneRepository.deleteById(id);
+            instradamentoOrganizzazioniService.aggiorna();
             return ResponseEntity.noContent().build();
         }
         return ResponseEntity.notFound().build();
@@ -4,61 +4,93 @@ import com.example.demo.config.TwilioConfig;
 import com.example.demo.model.Conversazione;
 import com.example.demo.model.Messaggio;
 import com.example.demo.model.Organizzazione;
-import com.example.demo.service.AIService;
+import com.example.demo.service.CronologiaConversazioniService;
+import com.example.demo.service.DeduplicaMessaggiService;
 import com.example.demo.service.DocumentoService;
-import com.example.demo.service.RAGService;
+import com.example.demo.service.ElaborazioneMessaggiService;
+import com.example.demo.service.ElaborazioneMessaggiService.AllegatoInArrivo;
+import com.example.demo.service.InstradamentoOrganizzazioniService;
+import com.example.demo.service.RiassuntoConversazioniService;
+import com.example.demo.service.StatiConsegnaService;
 import com.example.demo.service.WhatsAppService;
-import com.example.demo.repository.OrganizzazioneRepository;
 import com.example.demo.repository.ConversazioneRepository;
 import com.example.demo.repository.MessaggioRepository;
+import com.example.demo.util.CorrelazioneLog;
+import com.example.demo.util.LockASegmenti;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
 import jakarta.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.time.LocalDateTime;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantLock;
 
 @RestController
 @RequestMapping("/webhook")
 public class WhatsAppWebhookController {
+    private static final Logger logger = LoggerFactory.getLogger(WhatsAppWebhookController.class);
 
-    private final OrganizzazioneRepository organizzazioneRepository;
+    private final InstradamentoOrganizzazioniService instradamentoOrganizzazioniService;
     private final ConversazioneRepository conversazioneRepository;
     private final MessaggioRepository messaggioRepository;
     private final WhatsAppService whatsAppService;
     private final TwilioConfig twilioConfig;
-    private final AIService aiService;
-    private final RAGService ragService;
     private final DocumentoService documentoService;
+    private final ElaborazioneMessaggiService elaborazioneMessaggiService;
+    private final DeduplicaMessaggiService deduplicaMessaggiService;
+    private final CronologiaConversazioniService cronologiaConversazioniService;
+    private final RiassuntoConversazioniService riassuntoConversazioniService;
+    private final StatiConsegnaService statiConsegnaService;
+
+    private static final String MODALITA_ASINCRONA = "asincrona";
+
+    // Serializza per numero di telefono la creazione delle conversazioni e il salvataggio dei messaggi
+    private final LockASegmenti lockClienti = new LockASegmenti(256);
 
     @Value("${twilio.whatsapp.number}")
     private String whatsappNumber;
 
+    // sincrona: risponde a Twilio dopo aver generato e inviato la risposta
+    // asincrona: salva il messaggio, risponde subito e continua su un virtual thread
+    @Value("${whatsapp.webhook.modalita:sincrona}")
+    private String modalitaWebhook;
+
     @Autowired
     public WhatsAppWebhookController(
-            OrganizzazioneRepository organizzazioneRepository,
+            InstradamentoOrganizzazioniService instradamentoOrganizzazioniService,
             ConversazioneRepository conversazioneRepository,
             MessaggioRepository messaggioRepository,
             WhatsAppService whatsAppService,
             TwilioConfig twilioConfig,
-            AIService aiService,
-            RAGService ragService,
-            DocumentoService documentoService) {
-        this.organizzazioneRepository = organizzazioneRepository;
+            DocumentoService documentoService,
+            ElaborazioneMessaggiService elaborazioneMessaggiService,
+            DeduplicaMessaggiService deduplicaMessaggiService,
+            CronologiaConversazioniService cronologiaConversazioniService,
+            RiassuntoConversazioniService riassuntoConversazioniService,
+            StatiConsegnaService statiConsegnaService) {
+        this.instradamentoOrganizzazioniService = instradamentoOrganizzazioniService;
         this.conversazioneRepository = conversazioneRepository;
         this.messaggioRepository = messaggioRepository;
         this.whatsAppService = whatsAppService;
         this.twilioConfig = twilioConfig;
-        this.aiService = aiService;
-        this.ragService = ragService;
         this.documentoService = documentoService;
+        this.elaborazioneMessaggiService = elaborazioneMessaggiService;
+        this.deduplicaMessaggiService = deduplicaMessaggiService;
+        this.cronologiaConversazioniService = cronologiaConversazioniService;
+        this.riassuntoConversazioniService = riassuntoConversazioniService;
+        this.statiConsegnaService = statiConsegnaService;
     }
 
 
@@ -80,9 +112,8 @@ public class WhatsAppWebhookController {
                 return ResponseEntity.badRequest().body("I parametri 'to' e 'body' sono obbligatori");
             }
 
-            System.out.println("Avvio test invio messaggio WhatsApp...");
-            System.out.println("Numero destinatario: " + to);
-            System.out.println("Messaggio: " + body);
+            logger.info("Test invio messaggio WhatsApp a {}", to);
+            logger.debug("Contenuto del messaggio di test: {}", body);
 
             boolean success = whatsAppService.inviaMessaggioTest(to, body);
 
@@ -93,7 +124,7 @@ public class WhatsAppWebhookController {
                         .body("Test fallito. Controlla i log del server per i dettagli dell'errore.");
             }
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Errore nell'invio del messaggio di test", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Errore nell'invio del messaggio di test: " + e.getMessage());
         }
@@ -117,13 +148,26 @@ public class WhatsAppWebhookController {
                     account.getFriendlyName() + "\nStatus account: " + account.getStatus() +
                     "\n=== TWILIO INIZIALIZZATO CORRETTAMENTE ===");
         } catch (Exception e) {
-            e.printStackTrace();
+            logger.error("Errore nella connessione a Twilio", e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                     .body("Errore nella connessione a Twilio: " + e.getMessage());
         }
     }
 
 
+    // Riceve da Twilio gli aggiornamenti sullo stato di consegna dei messaggi inviati
+    // POST --> http://localhost:8080/webhook/whatsapp/stato
+    // Le notifiche sono molte più dei messaggi: vengono solo registrate in memoria e scritte a lotti
+    @PostMapping("/whatsapp/stato")
+    public ResponseEntity<Void> handleStatusCallback(
+            @RequestParam("MessageSid") String messageSid,
+            @RequestParam("MessageStatus") String messageStatus,
+            @RequestParam(value = "ErrorCode", required = false) String errorCode) {
+        statiConsegnaService.registra(messageSid, messageStatus, errorCode);
+        return ResponseEntity.noContent().build();
+    }
+
+
     // Riceve i messaggi WhatsApp da Twilio
     // POST --> http://localhost:8080/webhook/whatsapp
     @PostMapping(value = "/whatsapp", produces = MediaType.APPLICATION_XML_VALUE)
@@ -139,170 +183,101 @@ public class WhatsAppWebhookController {
         String cleanedFrom = from.replace("whatsapp:", "");
         String cleanedTo = to.replace("whatsapp:", "");
 
-        // Log dei dati ricevuti per debug
-        System.out.println("Messaggio WhatsApp ricevuto:");
-        System.out.println("Da: " + cleanedFrom);
-        System.out.println("A: " + cleanedTo);
-        System.out.println("Corpo: " + body);
-        System.out.println("Numero di allegati: " + numMedia);
+        // Il MessageSid collega i log della richiesta a quelli dell'elaborazione asincrona
+        CorrelazioneLog.imposta(messageSid);
+        logger.info("Messaggio WhatsApp ricevuto da {} per {} ({} allegati)", cleanedFrom, cleanedTo, numMedia);
+        logger.debug("Corpo del messaggio: {}", body);
+
+        // Consegna ripetuta da Twilio: il messaggio è già stato ricevuto, non rielaborarlo
+        if (!deduplicaMessaggiService.registraSeNuovo(messageSid)) {
+            logger.info("Messaggio {} già ricevuto, consegna duplicata ignorata", messageSid);
+            return ResponseEntity.ok("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response></Response>");
+        }
 
         try {
             // 1. Identificare l'organizzazione dal numero WhatsApp
-            Optional<Organizzazione> organizzazioneOpt;
-            if (cleanedTo.equals(whatsappNumber)) {
-                // Se c'è una sola organizzazione, usa quella
-                organizzazioneOpt = organizzazioneRepository.findAll().stream().findFirst();
-            } else {
-                // Altrimenti cerca per numero WhatsApp
-                organizzazioneOpt = organizzazioneRepository.findAll().stream()
-                        .filter(org -> cleanedTo.equals(org.getNumeroWhatsapp()))
-                        .findFirst();
-            }
-
-            Organizzazione organizzazione;
+            Optional<Organizzazione> organizzazioneOpt = instradamentoOrganizzazioniService.trova(cleanedTo);
             if (organizzazioneOpt.isEmpty()) {
-                System.out.println("Creazione di un'organizzazione predefinita per il numero: " + cleanedTo);
-                Organizzazione nuovaOrganizzazione = new Organizzazione();
-                nuovaOrganizzazione.setNome("Yovendo Test");
-                nuovaOrganizzazione.setNumeroWhatsapp(cleanedTo);
-                nuovaOrganizzazione.setDataCreazione(LocalDateTime.now());
-                nuovaOrganizzazione.setTonoDiVoce("Professionale e amichevole");
-                organizzazione = organizzazioneRepository.save(nuovaOrganizzazione);
-                System.out.println("Organizzazione creata con ID: " + organizzazione.getId());
-            } else {
-                organizzazione = organizzazioneOpt.get();
-                System.out.println("Organizzazione trovata con ID: " + organizzazione.getId());
+                logger.warn("Nessuna organizzazione configurata per il numero {}, messaggio ignorato", cleanedTo);
+                return ResponseEntity.ok("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response></Response>");
             }
+            Organizzazione organizzazione = organizzazioneOpt.get();
+            logger.debug("Organizzazione trovata con ID: {}", organizzazione.getId());
 
             // 2. Trovare o creare una conversazione attiva per questo cliente
-            Conversazione conversazione = conversazioneRepository
-                    .findByTelefonoClienteAndStatoOrderByOrarioInizioDesc(cleanedFrom, "attiva")
-                    .orElseGet(() -> {
-                        System.out.println("Creazione di una nuova conversazione per il cliente: " + cleanedFrom);
-                        Conversazione nuovaConversazione = new Conversazione();
-                        nuovaConversazione.setOrganizzazione(organizzazione);
-                        nuovaConversazione.setTelefonoCliente(cleanedFrom);
-                        nuovaConversazione.setStato("attiva");
-                        nuovaConversazione.setOrarioInizio(LocalDateTime.now());
-
-                        // Assicurati che il contesto sia inizializzato come una Map vuota
-                        Map<String, Object> contestoVuoto = new HashMap<>();
-                        nuovaConversazione.setContesto(contestoVuoto);
-
-                        Conversazione conversazioneSalvata = conversazioneRepository.save(nuovaConversazione);
-                        System.out.println("Conversazione creata con ID: " + conversazioneSalvata.getId());
-                        return conversazioneSalvata;
-                    });
-
-            // 3. Controllo per comandi speciali
-            if (body.startsWith("/")) {
-                ResponseEntity<String> commandResponse = handleCommandMessage(cleanedFrom, body, organizzazione, conversazione);
-                if (commandResponse != null) {
-                    return commandResponse;
-                }
+            // Il lock del numero evita che due messaggi ravvicinati creino due conversazioni
+            ReentrantLock lockCliente = lockClienti.lockPer(cleanedFrom);
+            Conversazione conversazione;
+            lockCliente.lock();
+            try {
+                conversazione = trovaOCreaConversazione(cleanedFrom, organizzazione);
+            } finally {
+                lockCliente.unlock();
             }
 
-            // 4. Salvare il messaggio ricevuto
+            // 3. Salvare il messaggio ricevuto, anche se è un comando: il MessageSid salvato
+            // blocca le consegne ripetute su tutte le istanze
             Messaggio messaggio = new Messaggio();
             messaggio.setConversazione(conversazione);
             messaggio.setDaCliente(true);
             messaggio.setContenuto(body);
             messaggio.setOrarioInvio(LocalDateTime.now());
+            messaggio.setTwilioSid(messageSid);
 
             // Inizializza documentiRiferiti
             Map<String, Object> documentiVuoti = new HashMap<>();
             messaggio.setDocumentiRiferiti(documentiVuoti);
 
-            Messaggio messaggioSalvato = messaggioRepository.save(messaggio);
-            System.out.println("Messaggio del cliente salvato con ID: " + messaggioSalvato.getId());
+            // Salvataggio e accodamento sotto lo stesso lock: l'ordine di elaborazione segue quello di arrivo
+            Messaggio messaggioSalvato;
+            List<AllegatoInArrivo> allegati = new ArrayList<>();
+            boolean comando = isComando(body);
+            boolean asincrona = MODALITA_ASINCRONA.equalsIgnoreCase(modalitaWebhook);
+            CompletableFuture<Void> elaborazione = null;
+            lockCliente.lock();
+            try {
+                try {
+                    messaggioSalvato = messaggioRepository.save(messaggio);
+                } catch (DataIntegrityViolationException e) {
+                    // Un'altra istanza ha salvato lo stesso MessageSid nel frattempo
+                    logger.info("Messaggio {} già salvato da un'altra consegna, ignorato", messageSid);
+                    return ResponseEntity.ok("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response></Response>");
+                }
+                logger.debug("Messaggio del cliente salvato con ID: {}", messaggioSalvato.getId());
+                cronologiaConversazioniService.registra(messaggioSalvato);
+                riassuntoConversazioniService.registra(conversazione.getId());
+                // Comandi speciali: la risposta parte sotto il lock, prima dei messaggi successivi del cliente
+                if (comando) {
+                    return handleCommandMessage(cleanedFrom, body, organizzazione, conversazione);
+                }
 
-            // 5. Gestione degli allegati (media)
-            if (numMedia > 0) {
+                // 4. Copia i parametri degli allegati: la richiesta non è più valida dopo la risposta a Twilio
                 for (int i = 0; i < numMedia; i++) {
-                    String mediaUrl = request.getParameter("MediaUrl" + i);
-                    String contentType = request.getParameter("MediaContentType" + i);
-                    String mediaFileName = request.getParameter("MediaFileName" + i);
-
-                    // Nome del file predefinito se non fornito
-                    if (mediaFileName == null || mediaFileName.isEmpty()) {
-                        mediaFileName = "allegato_" + System.currentTimeMillis();
-                    }
-
-                    try {
-                        // Scarica l'allegato
-                        System.out.println("Download allegato: " + mediaUrl + " di tipo " + contentType);
-                        String savedPath = whatsAppService.scaricaAllegato(mediaUrl, contentType, mediaFileName);
-
-                        // Titolo automatico per il documento
-                        String docTitle = "WhatsApp: " + (mediaFileName != null ? mediaFileName : "Documento " + LocalDateTime.now());
-
-                        // Crea documento e avvia elaborazione
-                        documentoService.creaDocumentoDaPath(savedPath, docTitle, contentType, organizzazione.getId(), conversazione.getId());
-
-                        // Invia conferma al cliente
-                        whatsAppService.inviaMessaggioTest(cleanedFrom,
-                                "Ho ricevuto il tuo documento '" + docTitle + "' e lo sto elaborando. Ti avviserò quando sarà pronto per essere utilizzato nelle risposte.");
-
-                    } catch (Exception e) {
-                        System.err.println("Errore nell'elaborazione dell'allegato: " + e.getMessage());
-                        whatsAppService.inviaMessaggioTest(cleanedFrom,
-                                "Mi dispiace, ho riscontrato un problema nell'elaborazione del tuo documento. Riprova più tardi.");
-                    }
+                    allegati.add(new AllegatoInArrivo(
+                            request.getParameter("MediaUrl" + i),
+                            request.getParameter("MediaContentType" + i),
+                            request.getParameter("MediaFileName" + i)));
                 }
 
-                // Se ci sono solo allegati senza testo, possiamo terminare qui
-                if (body.trim().isEmpty()) {
-                    return ResponseEntity.ok("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response></Response>");
+                // 5. L'elaborazione viene accodata dopo i messaggi precedenti dello stesso cliente
+                if (asincrona) {
+                    elaborazioneMessaggiService.accoda(messaggioSalvato, organizzazione, conversazione, cleanedFrom, body, allegati);
+                } else {
+                    elaborazione = elaborazioneMessaggiService.accodaInOrdine(messaggioSalvato, organizzazione,
+                            conversazione, cleanedFrom, body, allegati);
                 }
+            } finally {
+                lockCliente.unlock();
             }
 
-            // 6. Generare una risposta usando il RAGService o AIService
-            String rispostaContenuto;
-            try {
-                // Costruiamo un contesto della conversazione
-                StringBuilder contestoConversazione = new StringBuilder();
-                List<Messaggio> messaggiRecenti = messaggioRepository.findByConversazioneIdOrderByOrarioInvioAsc(conversazione.getId());
-                messaggiRecenti.stream()
-                        .skip(Math.max(0, messaggiRecenti.size() - 5))  // Ultimi 5 messaggi
-                        .forEach(msg -> {
-                            String prefix = msg.getDaCliente() ? "Cliente: " : "Assistente: ";
-                            contestoConversazione.append(prefix).append(msg.getContenuto()).append("\n");
-                        });
-
-                // Usa RAGService per generare una risposta con contesto dei documenti
-                rispostaContenuto = ragService.processaQuery(body, organizzazione.getId(), contestoConversazione.toString());
-                System.out.println("Risposta generata con RAGService: " + rispostaContenuto);
-            } catch (Exception e) {
-                System.out.println("Errore con RAGService, tentativo con AIService diretto: " + e.getMessage());
-
-                // Fallback: usa AIService direttamente se RAG non funziona
-                String prompt = "Sei un assistente WhatsApp per " + organizzazione.getNome() +
-                        ". Rispondi in modo " + organizzazione.getTonoDiVoce() +
-                        " alla seguente domanda: " + body;
-
-                rispostaContenuto = aiService.generaRisposta(prompt);
-                System.out.println("Risposta generata con AIService diretto: " + rispostaContenuto);
+            // In modalità sincrona la risposta a Twilio parte dopo l'invio: si attende fuori dal lock
+            if (elaborazione != null) {
+                elaborazione.join();
             }
 
-            // 7. Salva la risposta generata
-            Messaggio risposta = new Messaggio();
-            risposta.setConversazione(conversazione);
-            risposta.setDaCliente(false);
-            risposta.setContenuto(rispostaContenuto);
-            risposta.setOrarioInvio(LocalDateTime.now());
-            risposta.setDocumentiRiferiti(new HashMap<>());
-
-            Messaggio rispostaSalvata = messaggioRepository.save(risposta);
-            System.out.println("Risposta AI salvata con ID: " + rispostaSalvata.getId());
-
-            // 8. Invia la risposta tramite Twilio
-            System.out.println("Tentativo di invio risposta tramite Twilio...");
-            whatsAppService.inviaRisposta(rispostaSalvata);
-            System.out.println("Richiesta di invio completata.");
-
         } catch (Exception e) {
-            System.err.println("Errore nella gestione del messaggio WhatsApp: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Errore nella gestione del messaggio WhatsApp", e);
+            deduplicaMessaggiService.dimentica(messageSid);
 
             // In caso di errore, invia comunque una risposta di fallback
             try {
@@ -313,7 +288,7 @@ public class WhatsAppWebhookController {
                 // Invia direttamente tramite Twilio senza salvare nel database
                 whatsAppService.inviaMessaggioTest(cleanedFrom, fallbackMessage);
             } catch (Exception ex) {
-                System.err.println("Errore anche nell'invio del messaggio di fallback: " + ex.getMessage());
+                logger.error("Errore anche nell'invio del messaggio di fallback: {}", ex.getMessage());
             }
         }
 
@@ -321,6 +296,32 @@ public class WhatsAppWebhookController {
         return ResponseEntity.ok("<?xml version=\"1.0\" encoding=\"UTF-8\"?><Response></Response>");
     }
 
+    private Conversazione trovaOCreaConversazione(String telefonoCliente, Organizzazione organizzazione) {
+        return conversazioneRepository
+                .findFirstByTelefonoClienteAndStatoOrderByOrarioInizioDesc(telefonoCliente, "attiva")
+                .orElseGet(() -> {
+                    logger.info("Creazione di una nuova conversazione per il cliente {}", telefonoCliente);
+                    Conversazione nuovaConversazione = new Conversazione();
+                    nuovaConversazione.setOrganizzazione(organizzazione);
+                    nuovaConversazione.setTelefonoCliente(telefonoCliente);
+                    nuovaConversazione.setStato("attiva");
+                    nuovaConversazione.setOrarioInizio(LocalDateTime.now());
+
+                    // Assicurati che il contesto sia inizializzato come una Map vuota
+                    Map<String, Object> contestoVuoto = new HashMap<>();
+                    nuovaConversazione.setContesto(contestoVuoto);
+
+                    Conversazione conversazioneSalvata = conversazioneRepository.save(nuovaConversazione);
+                    logger.debug("Conversazione creata con ID: {}", conversazioneSalvata.getId());
+                    return conversazioneSalvata;
+                });
+    }
+
+    private static boolean isComando(String body) {
+        String comando = body.toLowerCase();
+        return comando.equals("/aiuto") || comando.equals("/help") || comando.equals("/documenti");
+    }
+
     // Metodo per gestire i comandi speciali
     private ResponseEntity<String> handleCommandMessage(String from, String body, Organizzazione organizzazione, Conversazione conversazione) {
         String comando = body.toLowerCase();
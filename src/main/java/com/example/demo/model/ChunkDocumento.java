@@ -8,7 +8,9 @@ import lombok.NoArgsConstructor;
 import java.time.LocalDateTime;
 
 @Entity
-@Table(name = "chunk_documenti")
+@Table(name = "chunk_documenti", indexes = {
+        @Index(name = "idx_chunk_documenti_documento_indice", columnList = "documento_id, indice_chunk")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -31,6 +33,13 @@ public class ChunkDocumento {
     @Column(name = "embedding", columnDefinition = "bytea")
     private byte[] embedding;
 
+    // Versioni quantizzate dell'embedding, popolate solo se rag.quantizzazione.tipo le richiede
+    @Column(name = "embedding_int8", columnDefinition = "bytea")
+    private byte[] embeddingInt8;
+
+    @Column(name = "embedding_binario", columnDefinition = "bytea")
+    private byte[] embeddingBinario;
+
     @Column(name = "data_creazione")
     private LocalDateTime dataCreazione;
 
@@ -0,0 +1,41 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Embedding già calcolato, indirizzato dal contenuto.
+ *
+ * La chiave è lo SHA-256 di organizzazione, modello di embedding e testo: lo stesso testo
+ * inviato di nuovo (ad esempio lo stesso PDF ricevuto più volte su WhatsApp) riusa il vettore
+ * senza chiamare l'API, e un cambio di modello non restituisce vettori incompatibili.
+ */
+@Entity
+@Table(name = "cache_embedding", indexes = {
+        @Index(name = "idx_cache_embedding_data", columnList = "data_creazione")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class EmbeddingInCache {
+
+    @Id
+    @Column(name = "chiave", length = 64)
+    private String chiave;
+
+    @Column(name = "organizzazione_id")
+    private Long organizzazioneId;
+
+    @Column(name = "modello", nullable = false)
+    private String modello;
+
+    @Column(name = "embedding", nullable = false, columnDefinition = "bytea")
+    private byte[] embedding;
+
+    @Column(name = "data_creazione")
+    private LocalDateTime dataCreazione;
+}
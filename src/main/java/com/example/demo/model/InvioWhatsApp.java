@@ -0,0 +1,82 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Messaggio WhatsApp in uscita, in attesa di essere inviato tramite Twilio.
+ *
+ * Gli invii vengono reclamati con SELECT ... FOR UPDATE SKIP LOCKED quando
+ * prossimoTentativo è passato. Un invio reclamato passa "in-corso" con prossimoTentativo
+ * spostato in avanti: se l'istanza termina prima di concluderlo, alla scadenza viene
+ * ripreso da un'altra istanza.
+ *
+ * Gli invii allo stesso destinatario partono nell'ordine di creazione: finché uno è
+ * in attesa di un nuovo tentativo, i successivi restano in coda.
+ */
+@Entity
+@Table(name = "invii_whatsapp", indexes = {
+        @Index(name = "idx_invii_whatsapp_stato", columnList = "stato, prossimo_tentativo"),
+        @Index(name = "idx_invii_whatsapp_destinatario", columnList = "destinatario, id")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class InvioWhatsApp {
+
+    public static final String STATO_IN_ATTESA = "in-attesa";
+    public static final String STATO_IN_CORSO = "in-corso";
+    public static final String STATO_INVIATO = "inviato";
+    public static final String STATO_ERRORE = "errore";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    // Numero WhatsApp dell'organizzazione che invia (senza prefisso whatsapp:)
+    @Column(name = "mittente", nullable = false)
+    private String mittente;
+
+    @Column(name = "destinatario", nullable = false)
+    private String destinatario;
+
+    @Column(name = "contenuto", nullable = false, columnDefinition = "TEXT")
+    private String contenuto;
+
+    // Messaggio salvato a cui si riferisce l'invio (null per le notifiche non salvate)
+    @Column(name = "messaggio_id")
+    private Long messaggioId;
+
+    @Column(name = "stato", nullable = false, length = 20)
+    private String stato = STATO_IN_ATTESA;
+
+    @Column(name = "tentativi")
+    private Integer tentativi = 0;
+
+    @Column(name = "prossimo_tentativo", nullable = false)
+    private LocalDateTime prossimoTentativo;
+
+    @Column(name = "twilio_sid")
+    private String twilioSid;
+
+    @Column(name = "errore", columnDefinition = "TEXT")
+    private String errore;
+
+    @Column(name = "data_creazione")
+    private LocalDateTime dataCreazione;
+
+    @Column(name = "data_invio")
+    private LocalDateTime dataInvio;
+
+    @PrePersist
+    protected void onCreate() {
+        dataCreazione = LocalDateTime.now();
+        if (prossimoTentativo == null) {
+            prossimoTentativo = dataCreazione;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Richiesta persistente di elaborazione di un documento.
+ *
+ * I worker di ogni istanza reclamano i job con SELECT ... FOR UPDATE SKIP LOCKED e
+ * aggiornano periodicamente ultimoHeartbeat: un job "in-corso" con heartbeat scaduto
+ * appartiene a un'istanza terminata e viene ripreso da un altro worker.
+ * Un indice unico parziale (MigrazioneJobIngestione) ammette un solo job attivo per documento.
+ */
+@Entity
+@Table(name = "job_ingestione", indexes = {
+        @Index(name = "idx_job_ingestione_stato", columnList = "stato, id"),
+        @Index(name = "idx_job_ingestione_documento", columnList = "documento_id")
+})
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JobIngestione {
+
+    public static final String STATO_IN_ATTESA = "in-attesa";
+    public static final String STATO_IN_CORSO = "in-corso";
+    public static final String STATO_COMPLETATO = "completato";
+    public static final String STATO_ERRORE = "errore";
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @Column(name = "documento_id", nullable = false)
+    private Long documentoId;
+
+    @Column(name = "stato", nullable = false, length = 20)
+    private String stato = STATO_IN_ATTESA;
+
+    @Column(name = "tentativi")
+    private Integer tentativi = 0;
+
+    // Istanza dell'applicazione che sta eseguendo il job
+    @Column(name = "istanza")
+    private String istanza;
+
+    @Column(name = "data_creazione")
+    private LocalDateTime dataCreazione;
+
+    @Column(name = "ultimo_heartbeat")
+    private LocalDateTime ultimoHeartbeat;
+
+    @Column(name = "errore", columnDefinition = "TEXT")
+    private String errore;
+
+    @PrePersist
+    protected void onCreate() {
+        dataCreazione = LocalDateTime.now();
+    }
+}
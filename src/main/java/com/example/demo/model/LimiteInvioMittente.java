@@ -0,0 +1,33 @@
+package com.example.demo.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+/**
+ * Token bucket di un numero mittente, condiviso tra tutte le istanze.
+ *
+ * Viene aggiornato solo da LimiteInviiService con un'unica istruzione SQL: i gettoni
+ * negativi sono invii già prenotati che attendono il proprio turno.
+ */
+@Entity
+@Table(name = "limiti_invio_mittente")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class LimiteInvioMittente {
+
+    // Numero WhatsApp dell'organizzazione che invia (senza prefisso whatsapp:)
+    @Id
+    @Column(name = "mittente")
+    private String mittente;
+
+    @Column(name = "gettoni", nullable = false)
+    private Double gettoni;
+
+    @Column(name = "aggiornato", nullable = false)
+    private LocalDateTime aggiornato;
+}
@@ -12,7 +12,10 @@ import java.util.HashMap;
 import java.util.Map;
 
 @Entity
-@Table(name = "messaggi")
+@Table(name = "messaggi", indexes = {
+        @Index(name = "idx_messaggi_twilio_sid", columnList = "twilio_sid", unique = true),
+        @Index(name = "idx_messaggi_conversazione_orario", columnList = "conversazione_id, orario_invio")
+})
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
@@ -38,6 +41,21 @@ public class Messaggio {
     @Column(name = "elaborato")
     private Boolean elaborato = false;
 
+    // MessageSid di Twilio: per i messaggi ricevuti identifica le consegne ripetute dello stesso webhook,
+    // per le risposte collega le notifiche di stato della consegna
+    @Column(name = "twilio_sid", length = 64)
+    private String twilioSid;
+
+    // Ultimo stato di consegna notificato da Twilio (queued, sent, delivered, read, undelivered, failed)
+    @Column(name = "stato_consegna", length = 20)
+    private String statoConsegna;
+
+    @Column(name = "errore_consegna", length = 20)
+    private String erroreConsegna;
+
+    @Column(name = "data_stato_consegna")
+    private LocalDateTime dataStatoConsegna;
+
     @Column(name = "punteggio_confidenza")
     private Double punteggio_confidenza;
 
@@ -12,7 +12,9 @@ import java.time.LocalDateTime;
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-@Table(name="organizzazioni")
+@Table(name="organizzazioni", indexes = {
+        @Index(name = "idx_organizzazioni_numero_whatsapp", columnList = "numero_whatsapp")
+})
 public class Organizzazione {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -2,11 +2,44 @@ package com.example.demo.repository;
 
 import com.example.demo.model.ChunkDocumento;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
+import java.util.Collection;
 import java.util.List;
 
 @Repository
-public interface ChunkDocumentoRepository extends JpaRepository<ChunkDocumento, Long> {
+public interface ChunkDocumentoRepository extends JpaRepository<ChunkDocumento, Long>, ChunkDocumentoVettorialeRepository {
     List<ChunkDocumento> findByDocumentoId(Long documentoId);
-}
\ No newline at end of file
+
+    /**
+     * Ultimo chunk salvato del documento, usato come checkpoint per riprendere l'ingestione
+     */
+    @Query("SELECT MAX(c.indiceChunk) FROM ChunkDocumento c WHERE c.documento.id = :documentoId")
+    Integer findMaxIndiceChunkByDocumentoId(@Param("documentoId") Long documentoId);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM ChunkDocumento c WHERE c.documento.id = :documentoId")
+    int deleteByDocumentoId(@Param("documentoId") Long documentoId);
+
+    @Query("SELECT c.id AS id, c.documento.id AS documentoId, c.embedding AS embedding FROM ChunkDocumento c " +
+            "WHERE c.documento.organizzazione.id = :organizzazioneId AND c.documento.elaborato = true")
+    List<EmbeddingChunk> findEmbeddingByOrganizzazioneId(@Param("organizzazioneId") Long organizzazioneId);
+
+    @Query("SELECT c.id AS id, c.documento.id AS documentoId, c.embeddingInt8 AS embeddingInt8, " +
+            "c.embeddingBinario AS embeddingBinario FROM ChunkDocumento c " +
+            "WHERE c.documento.organizzazione.id = :organizzazioneId AND c.documento.elaborato = true")
+    List<EmbeddingChunkQuantizzato> findEmbeddingQuantizzatoByOrganizzazioneId(@Param("organizzazioneId") Long organizzazioneId);
+
+    @Query("SELECT c.id AS id, c.documento.id AS documentoId, c.embedding AS embedding FROM ChunkDocumento c " +
+            "WHERE c.id IN :ids")
+    List<EmbeddingChunk> findEmbeddingByIdIn(@Param("ids") Collection<Long> ids);
+
+    @Query("SELECT c.id AS id, c.documento.id AS documentoId, c.embedding AS embedding FROM ChunkDocumento c " +
+            "WHERE c.documento.id IN :documentoIds")
+    List<EmbeddingChunk> findEmbeddingByDocumentoIdIn(@Param("documentoIds") Collection<Long> documentoIds);
+}
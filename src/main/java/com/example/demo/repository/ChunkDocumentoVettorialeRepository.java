@@ -0,0 +1,31 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.service.indice.RisultatoRicerca;
+
+import java.util.List;
+
+/**
+ * Ricerca per similarità eseguita direttamente in PostgreSQL tramite pgvector.
+ * Usa la colonna chunk_documenti.embedding_vettore creata da MigrazionePgvector.
+ */
+public interface ChunkDocumentoVettorialeRepository {
+
+    /**
+     * Restituisce i k chunk dell'organizzazione più vicini alla query (distanza coseno)
+     */
+    List<RisultatoRicerca> trovaPiuSimili(Long organizzazioneId, float[] query, int k);
+
+    /**
+     * Copia l'embedding dei chunk nella colonna vettoriale
+     */
+    void aggiornaEmbeddingVettoriale(List<ChunkDocumento> chunks);
+
+    /**
+     * Popola la colonna vettoriale per un lotto di chunk che ne sono ancora privi.
+     * Vengono considerati solo gli embedding della dimensione indicata.
+     *
+     * @return Numero di chunk aggiornati
+     */
+    int popolaEmbeddingVettorialeMancanti(int dimensione, int dimensioneLotto);
+}
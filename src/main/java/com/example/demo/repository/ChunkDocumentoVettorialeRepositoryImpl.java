@@ -0,0 +1,146 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.service.indice.RisultatoRicerca;
+import com.example.demo.util.EmbeddingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * L'indice HNSW è unico per tutte le organizzazioni e il filtro sull'organizzazione viene
+ * applicato ai candidati che restituisce, al massimo hnsw.ef_search. Per le organizzazioni
+ * piccole tra molte grandi i candidati sarebbero quasi tutti di altre organizzazioni: la
+ * ricerca alza ef_search e, con pgvector 0.8 o successivo, attiva la scansione iterativa,
+ * che continua a leggere l'indice finché il filtro non lascia passare k righe.
+ */
+public class ChunkDocumentoVettorialeRepositoryImpl implements ChunkDocumentoVettorialeRepository {
+    private static final Logger logger = LoggerFactory.getLogger(ChunkDocumentoVettorialeRepositoryImpl.class);
+
+    // Con la scansione iterativa relaxed_order l'ordine può essere leggermente alterato: si riordina fuori dalla CTE
+    private static final String QUERY_PIU_SIMILI =
+            "WITH candidati AS MATERIALIZED (" +
+                    "SELECT c.id, c.documento_id, 1 - (c.embedding_vettore <=> CAST(? AS vector)) AS punteggio " +
+                    "FROM chunk_documenti c JOIN documenti d ON d.id = c.documento_id " +
+                    "WHERE d.organizzazione_id = ? AND d.elaborato = true AND c.embedding_vettore IS NOT NULL " +
+                    "ORDER BY c.embedding_vettore <=> CAST(? AS vector) " +
+                    "LIMIT ?) " +
+                    "SELECT * FROM candidati ORDER BY punteggio DESC";
+
+    // Massimo accettato da pgvector per hnsw.ef_search
+    private static final int EF_SEARCH_MASSIMO = 1000;
+
+    private static final String AGGIORNA_VETTORE =
+            "UPDATE chunk_documenti SET embedding_vettore = CAST(? AS vector) WHERE id = ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transazione;
+    private final int efSearch;
+
+    // Letto alla prima ricerca: hnsw.iterative_scan esiste solo da pgvector 0.8
+    private volatile Boolean scansioneIterativa;
+
+    @Autowired
+    public ChunkDocumentoVettorialeRepositoryImpl(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+                                                  @Value("${rag.ricerca.pgvector.ef-search:200}") int efSearch) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transazione = new TransactionTemplate(transactionManager);
+        this.transazione.setReadOnly(true);
+        this.efSearch = efSearch;
+    }
+
+    @Override
+    public List<RisultatoRicerca> trovaPiuSimili(Long organizzazioneId, float[] query, int k) {
+        String vettore = formatoVettore(query);
+        boolean iterativa = supportaScansioneIterativa();
+        // Le impostazioni SET LOCAL (is_local = true) valgono solo per la transazione della ricerca
+        return transazione.execute(stato -> {
+            jdbcTemplate.queryForObject("SELECT set_config('hnsw.ef_search', ?, true)", String.class,
+                    String.valueOf(Math.min(Math.max(efSearch, k), EF_SEARCH_MASSIMO)));
+            if (iterativa) {
+                jdbcTemplate.queryForObject("SELECT set_config('hnsw.iterative_scan', 'relaxed_order', true)", String.class);
+            }
+            return jdbcTemplate.query(QUERY_PIU_SIMILI,
+                    (rs, rowNum) -> new RisultatoRicerca(rs.getLong("id"), rs.getLong("documento_id"), rs.getFloat("punteggio")),
+                    vettore, organizzazioneId, vettore, k);
+        });
+    }
+
+    private boolean supportaScansioneIterativa() {
+        Boolean supportata = scansioneIterativa;
+        if (supportata == null) {
+            List<String> versioni = jdbcTemplate.queryForList(
+                    "SELECT extversion FROM pg_extension WHERE extname = 'vector'", String.class);
+            supportata = !versioni.isEmpty() && versioneAlmeno(versioni.get(0), 0, 8);
+            if (!supportata) {
+                logger.warn("pgvector {} non supporta la scansione iterativa (richiede 0.8): le organizzazioni " +
+                        "piccole possono ricevere meno di k risultati", versioni.isEmpty() ? "assente" : versioni.get(0));
+            }
+            scansioneIterativa = supportata;
+        }
+        return supportata;
+    }
+
+    static boolean versioneAlmeno(String versione, int major, int minor) {
+        String[] parti = versione.split("\\.");
+        try {
+            int versioneMajor = Integer.parseInt(parti[0]);
+            int versioneMinor = parti.length > 1 ? Integer.parseInt(parti[1]) : 0;
+            return versioneMajor > major || (versioneMajor == major && versioneMinor >= minor);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public void aggiornaEmbeddingVettoriale(List<ChunkDocumento> chunks) {
+        List<Object[]> parametri = new ArrayList<>();
+        for (ChunkDocumento chunk : chunks) {
+            if (chunk.getEmbedding() != null && chunk.getEmbedding().length > 0) {
+                parametri.add(new Object[]{formatoVettore(EmbeddingUtils.byteArrayToFloatArray(chunk.getEmbedding())), chunk.getId()});
+            }
+        }
+        if (!parametri.isEmpty()) {
+            jdbcTemplate.batchUpdate(AGGIORNA_VETTORE, parametri);
+        }
+    }
+
+    @Override
+    public int popolaEmbeddingVettorialeMancanti(int dimensione, int dimensioneLotto) {
+        List<Object[]> parametri = jdbcTemplate.query(
+                "SELECT id, embedding FROM chunk_documenti " +
+                        "WHERE embedding_vettore IS NULL AND length(embedding) = ? " +
+                        "ORDER BY id LIMIT ?",
+                (rs, rowNum) -> new Object[]{
+                        formatoVettore(EmbeddingUtils.byteArrayToFloatArray(rs.getBytes("embedding"))),
+                        rs.getLong("id")},
+                dimensione * 4, dimensioneLotto);
+
+        if (!parametri.isEmpty()) {
+            jdbcTemplate.batchUpdate(AGGIORNA_VETTORE, parametri);
+        }
+        return parametri.size();
+    }
+
+    /**
+     * Rappresentazione testuale accettata da pgvector: [v1,v2,...]
+     */
+    private String formatoVettore(float[] vettore) {
+        StringBuilder sb = new StringBuilder(vettore.length * 12);
+        sb.append('[');
+        for (int i = 0; i < vettore.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append(vettore[i]);
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -2,7 +2,11 @@ package com.example.demo.repository;
 
 import com.example.demo.model.Conversazione;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.Optional;
@@ -11,5 +15,26 @@ import java.util.Optional;
 public interface ConversazioneRepository extends JpaRepository<Conversazione, Long> {
     List<Conversazione> findByOrganizzazioneId(Long organizzazioneId);
     List<Conversazione> findByTelefonoClienteAndStato(String telefonoCliente, String stato);
-    Optional<Conversazione> findByTelefonoClienteAndStatoOrderByOrarioInizioDesc(String telefonoCliente, String stato);
+    Optional<Conversazione> findFirstByTelefonoClienteAndStatoOrderByOrarioInizioDesc(String telefonoCliente, String stato);
+
+    /**
+     * Unisce le chiavi indicate (oggetto JSON) al contesto, senza toccare le altre colonne della conversazione
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE conversazioni SET contesto = COALESCE(contesto, CAST('{}' AS jsonb)) || CAST(:modifiche AS jsonb) " +
+            "WHERE id = :id", nativeQuery = true)
+    int aggiornaContesto(@Param("id") Long id, @Param("modifiche") String modifiche);
+
+    /**
+     * Come aggiornaContesto, ma solo se il riassunto salvato include ancora i messaggi fino a finoAPrecedente:
+     * restituisce 0 se nel frattempo un'altra istanza lo ha aggiornato
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "UPDATE conversazioni SET contesto = COALESCE(contesto, CAST('{}' AS jsonb)) || CAST(:modifiche AS jsonb) " +
+            "WHERE id = :id AND COALESCE(CAST(contesto ->> 'riassuntoFinoAMessaggio' AS bigint), 0) = :finoAPrecedente",
+            nativeQuery = true)
+    int aggiornaRiassunto(@Param("id") Long id, @Param("modifiche") String modifiche,
+                          @Param("finoAPrecedente") long finoAPrecedente);
 }
\ No newline at end of file
@@ -2,6 +2,8 @@ package com.example.demo.repository;
 
 import com.example.demo.model.Documento;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -10,4 +12,15 @@ import java.util.List;
 public interface DocumentoRepository extends JpaRepository<Documento, Long> {
     List<Documento> findByOrganizzazioneId(Long organizzazioneId);
     List<Documento> findByOrganizzazioneIdAndElaborato(Long organizzazioneId, Boolean elaborato);
+
+    @Query("SELECT d.id FROM Documento d WHERE d.organizzazione.id = :organizzazioneId AND d.elaborato = true")
+    List<Long> findIdElaboratiByOrganizzazioneId(@Param("organizzazioneId") Long organizzazioneId);
+
+    /**
+     * Documenti da elaborare (o rimasti a metà) che non hanno un job di ingestione attivo
+     */
+    @Query("SELECT d.id FROM Documento d WHERE d.statoElaborazione IN ('ricevuto', 'in-elaborazione') " +
+            "AND NOT EXISTS (SELECT j.id FROM JobIngestione j WHERE j.documentoId = d.id " +
+            "AND j.stato IN ('in-attesa', 'in-corso')) ORDER BY d.id")
+    List<Long> findIdDaElaborareSenzaJob();
 }
\ No newline at end of file
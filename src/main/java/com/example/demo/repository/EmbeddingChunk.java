@@ -0,0 +1,11 @@
+package com.example.demo.repository;
+
+/**
+ * Proiezione con i soli campi necessari a costruire l'indice vettoriale,
+ * senza idratare il testo del chunk
+ */
+public interface EmbeddingChunk {
+    Long getId();
+    Long getDocumentoId();
+    byte[] getEmbedding();
+}
@@ -0,0 +1,12 @@
+package com.example.demo.repository;
+
+/**
+ * Proiezione con le sole versioni quantizzate dell'embedding, usata per costruire
+ * l'indice quantizzato senza trasferire gli embedding float
+ */
+public interface EmbeddingChunkQuantizzato {
+    Long getId();
+    Long getDocumentoId();
+    byte[] getEmbeddingInt8();
+    byte[] getEmbeddingBinario();
+}
@@ -0,0 +1,39 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.InvioWhatsApp;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+
+@Repository
+public interface InvioWhatsAppRepository extends JpaRepository<InvioWhatsApp, Long> {
+
+    /**
+     * Blocca i prossimi invii pronti: in attesa con tentativo scaduto, oppure in corso
+     * su un'istanza che non li ha conclusi entro la scadenza. Le righe già bloccate
+     * da altre istanze vengono saltate, così come gli invii a un destinatario che ha
+     * un invio precedente in attesa di un nuovo tentativo o in corso altrove.
+     */
+    @Query(value = "SELECT i.* FROM invii_whatsapp i " +
+            "WHERE i.stato IN ('in-attesa', 'in-corso') AND i.prossimo_tentativo <= :adesso " +
+            "AND NOT EXISTS (SELECT 1 FROM invii_whatsapp p WHERE p.destinatario = i.destinatario AND p.id < i.id " +
+            "AND p.stato IN ('in-attesa', 'in-corso') AND p.prossimo_tentativo > :adesso) " +
+            "ORDER BY i.id LIMIT :limite FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<InvioWhatsApp> bloccaProssimiPronti(@Param("adesso") LocalDateTime adesso, @Param("limite") int limite);
+
+    long countByStatoIn(Collection<String> stati);
+
+    boolean existsByDestinatarioAndIdLessThanAndStatoIn(String destinatario, Long id, Collection<String> stati);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM InvioWhatsApp i WHERE i.stato = 'inviato' AND i.dataInvio < :limite")
+    int eliminaInviatiPrimaDi(@Param("limite") LocalDateTime limite);
+}
@@ -0,0 +1,49 @@
+package com.example.demo.repository;
+
+import com.example.demo.model.JobIngestione;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Optional;
+
+@Repository
+public interface JobIngestioneRepository extends JpaRepository<JobIngestione, Long> {
+
+    /**
+     * Blocca il prossimo job eseguibile: in attesa, oppure in corso con heartbeat scaduto.
+     * Le righe già bloccate da altre istanze vengono saltate. L'indice unico sui job attivi
+     * garantisce un solo job attivo per documento, quindi bloccare la riga basta a non
+     * elaborare lo stesso documento su due istanze.
+     */
+    @Query(value = "SELECT j.* FROM job_ingestione j " +
+            "WHERE j.stato = 'in-attesa' OR (j.stato = 'in-corso' AND j.ultimo_heartbeat < :scadenza) " +
+            "ORDER BY j.id LIMIT 1 FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    Optional<JobIngestione> bloccaProssimoEseguibile(@Param("scadenza") LocalDateTime scadenza);
+
+    /**
+     * Inserisce un job in attesa per il documento. Se ne esiste già uno attivo l'indice unico
+     * parziale idx_job_ingestione_documento_attivo fa ignorare l'inserimento, anche quando due
+     * istanze ci provano nello stesso momento. Restituisce il numero di job creati.
+     */
+    @Modifying
+    @Transactional
+    @Query(value = "INSERT INTO job_ingestione (documento_id, stato, tentativi, data_creazione) " +
+            "VALUES (:documentoId, 'in-attesa', 0, :adesso) ON CONFLICT DO NOTHING", nativeQuery = true)
+    int inserisciSeNonAttivo(@Param("documentoId") Long documentoId, @Param("adesso") LocalDateTime adesso);
+
+    @Modifying
+    @Transactional
+    @Query("UPDATE JobIngestione j SET j.ultimoHeartbeat = :adesso WHERE j.id IN :ids AND j.stato = 'in-corso'")
+    int aggiornaHeartbeat(@Param("ids") Collection<Long> ids, @Param("adesso") LocalDateTime adesso);
+
+    @Modifying
+    @Transactional
+    @Query("DELETE FROM JobIngestione j WHERE j.documentoId = :documentoId")
+    int deleteByDocumentoId(@Param("documentoId") Long documentoId);
+}
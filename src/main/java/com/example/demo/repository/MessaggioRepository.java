@@ -1,7 +1,10 @@
 package com.example.demo.repository;
 
 import com.example.demo.model.Messaggio;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
 
 import java.time.LocalDateTime;
@@ -11,8 +14,15 @@ import java.util.Optional;
 @Repository
 public interface MessaggioRepository extends JpaRepository<Messaggio, Long> {
     List<Messaggio> findByConversazioneIdOrderByOrarioInvioAsc(Long conversazioneId);
+    List<Messaggio> findByConversazioneIdOrderByOrarioInvioDesc(Long conversazioneId, Pageable pageable);
+
+    // Solo gli id, dall'indice su conversazione_id, orario_invio
+    @Query("SELECT m.id FROM Messaggio m WHERE m.conversazione.id = :conversazioneId ORDER BY m.orarioInvio DESC")
+    List<Long> findIdRecentiByConversazioneId(@Param("conversazioneId") Long conversazioneId, Pageable pageable);
+    List<Messaggio> findByConversazioneIdAndIdGreaterThanOrderByIdAsc(Long conversazioneId, Long id, Pageable pageable);
     Optional<Messaggio> findFirstByConversazioneIdOrderByOrarioInvioDesc(Long conversazioneId);
     Long countByConversazioneId(Long conversazioneId);
     Long countByOrarioInvioAfter(LocalDateTime dateTime);
     Long countByConversazione_OrganizzazioneId(Long organizzazioneId);
+    boolean existsByTwilioSid(String twilioSid);
 }
\ No newline at end of file
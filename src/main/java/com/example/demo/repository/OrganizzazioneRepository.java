@@ -5,7 +5,9 @@ import com.example.demo.model.Organizzazione;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Optional;
+
 @Repository
 public interface OrganizzazioneRepository extends JpaRepository<Organizzazione, Long> {
-
+    Optional<Organizzazione> findFirstByNumeroWhatsappOrderByIdAsc(String numeroWhatsapp);
 }
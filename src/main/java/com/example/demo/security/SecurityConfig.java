@@ -102,7 +102,7 @@ public class SecurityConfig {
                         .requestMatchers("/api/auth/**").permitAll()
 
                         // Endpoint health check
-                        .requestMatchers("/api/health", "/").permitAll()
+                        .requestMatchers("/api/health", "/", "/actuator/health").permitAll()
 
                         .requestMatchers("/api/public/**").permitAll()
 
@@ -1,28 +1,49 @@
 package com.example.demo.service;
 
+import com.example.demo.util.EmbeddingUtils;
+import com.example.demo.util.InterruttoreCircuito;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.cache.annotation.Cacheable;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.MediaType;
-import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
 import org.springframework.stereotype.Service;
-import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Chiamate ai modelli di chat e di embedding.
+ *
+ * Ogni metodo ha una versione asincrona che non occupa thread durante l'attesa della rete
+ * (vedi ClientOpenAI); le versioni sincrone attendono il risultato di quella asincrona.
+ * I tentativi falliti per 429, 5xx o errori di rete vengono ripetuti con attesa esponenziale.
+ *
+ * Chat ed embedding hanno ciascuno un circuit breaker (vedi InterruttoreCircuito): quando
+ * OpenAI è degradato le chiamate falliscono subito e la chat restituisce una risposta di
+ * riserva, invece di accumulare richieste in attesa. Una richiesta di chat senza risposta
+ * dopo ai.chat.copia-dopo-ms viene duplicata e vale la prima risposta che arriva.
+ */
 @Service
 public class AIService {
     private static final Logger logger = LoggerFactory.getLogger(AIService.class);
 
-    @Value("${ai.api.key}")
-    private String apiKey;
-
-    @Value("${ai.api.url:https://api.openai.com/v1}")
-    private String apiUrl;
+    // Inizio del testo restituito da generaRisposta quando tutti i tentativi falliscono
+    public static final String PREFISSO_ERRORE = "Si è verificato un errore";
 
     @Value("${ai.embedding.model:text-embedding-ada-002}")
     private String embeddingModel;
@@ -33,176 +54,400 @@ public class AIService {
     @Value("${ai.temperature:0.7}")
     private double temperature;
 
-    @Value("${ai.api.timeout:30000}")
-    private int timeout;
-
     @Value("${ai.api.max-retries:3}")
     private int maxRetries;
 
-    private final RestTemplate restTemplate;
+    @Value("${ai.embedding.batch.max-input:96}")
+    private int batchMaxInput;
+
+    @Value("${ai.embedding.batch.max-token:8000}")
+    private int batchMaxToken;
+
+    // Risposta inviata al cliente mentre il circuito della chat è aperto
+    @Value("${ai.circuito.risposta-di-riserva:Al momento non riesco a rispondere. Riprova tra qualche minuto, grazie!}")
+    private String rispostaDiRiserva;
+
+    // 0 = nessuna richiesta duplicata
+    @Value("${ai.chat.copia-dopo-ms:6000}")
+    private long copiaDopoMs;
+
+    /**
+     * Chiamata rifiutata senza contattare l'API perché il circuito è aperto
+     */
+    static class CircuitoAperto extends ClientOpenAI.ErroreOpenAI {
+        CircuitoAperto(String chiamata) {
+            super("Circuito " + chiamata + " aperto: chiamata non eseguita", false);
+        }
+    }
+
+    private final ClientOpenAI clientOpenAI;
     private final ObjectMapper objectMapper = new ObjectMapper();
+    private final InterruttoreCircuito interruttoreChat;
+    private final InterruttoreCircuito interruttoreEmbedding;
+    private final Counter rifiutateChat;
+    private final Counter rifiutateEmbedding;
+    private final Counter copieInviate;
+    private final Counter copieVincenti;
+    private final MeterRegistry meterRegistry;
+
+    @Autowired
+    public AIService(ClientOpenAI clientOpenAI,
+                     MeterRegistry meterRegistry,
+                     @Value("${ai.circuito.finestra:20}") int finestra,
+                     @Value("${ai.circuito.min-chiamate:10}") int minChiamate,
+                     @Value("${ai.circuito.soglia-fallimenti:0.5}") double sogliaFallimenti,
+                     @Value("${ai.circuito.apertura-ms:30000}") long aperturaMs) {
+        this.clientOpenAI = clientOpenAI;
+        this.interruttoreChat = new InterruttoreCircuito(finestra, minChiamate, sogliaFallimenti, aperturaMs);
+        this.interruttoreEmbedding = new InterruttoreCircuito(finestra, minChiamate, sogliaFallimenti, aperturaMs);
+        this.rifiutateChat = registraCircuito(meterRegistry, "chat", interruttoreChat);
+        this.rifiutateEmbedding = registraCircuito(meterRegistry, "embedding", interruttoreEmbedding);
+        this.copieInviate = Counter.builder("ai.chat.copie")
+                .description("Richieste di chat duplicate perché la prima non aveva ancora risposto")
+                .tag("esito", "inviata")
+                .register(meterRegistry);
+        this.copieVincenti = Counter.builder("ai.chat.copie")
+                .description("Richieste di chat duplicate perché la prima non aveva ancora risposto")
+                .tag("esito", "vincente")
+                .register(meterRegistry);
+        this.meterRegistry = meterRegistry;
+    }
 
-    public AIService() {
-        HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory();
-        factory.setConnectTimeout(timeout);
-        factory.setReadTimeout(timeout);
-        this.restTemplate = new RestTemplate(factory);
+    @PostConstruct
+    void registraMetriche() {
+        Gauge.builder("ai.chat.copie.vittorie", this, AIService::getQuotaCopieVincenti)
+                .description("Frazione delle richieste duplicate in cui la copia ha risposto per prima")
+                .register(meterRegistry);
+    }
+
+    public String getEmbeddingModel() {
+        return embeddingModel;
+    }
+
+    /**
+     * Indica se il testo è la risposta di riserva data a circuito aperto, da non salvare né riusare
+     */
+    public boolean isRispostaDiRiserva(String risposta) {
+        return rispostaDiRiserva.equals(risposta);
+    }
+
+    public double getQuotaCopieVincenti() {
+        double inviate = copieInviate.count();
+        return inviate == 0 ? 0.0 : copieVincenti.count() / inviate;
     }
 
     /**
      * Genera una risposta basata sul prompt fornito utilizzando il modello di chat
      */
-    @Cacheable(value = "aiResponses", key = "#prompt.hashCode()", unless = "#result == null || #result.contains('errore')")
     public String generaRisposta(String prompt) {
-        logger.info("Generazione risposta per prompt di {} caratteri", prompt.length());
-        int retries = 0;
-        Exception lastException = null;
-
-        while (retries < maxRetries) {
-            try {
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.setBearerAuth(apiKey);
+        return generaRispostaAsync(prompt).join();
+    }
 
-                ObjectNode requestBody = objectMapper.createObjectNode();
-                requestBody.put("model", chatModel);
+    /**
+     * Come generaRisposta, senza bloccare il thread chiamante. Il future non fallisce:
+     * dopo l'ultimo tentativo si completa con un testo che inizia con PREFISSO_ERRORE,
+     * a circuito aperto subito con la risposta di riserva.
+     */
+    public CompletableFuture<String> generaRispostaAsync(String prompt) {
+        return generaRispostaAsync(null, prompt);
+    }
 
-                ObjectNode message = objectMapper.createObjectNode();
-                message.put("role", "user");
-                message.put("content", prompt);
+    /**
+     * Come generaRispostaAsync(prompt), con le istruzioni in un messaggio di sistema separato.
+     * Un messaggio di sistema identico tra le richieste permette al provider di riusare la cache del prefisso.
+     */
+    public CompletableFuture<String> generaRispostaAsync(String sistema, String prompt) {
+        logger.info("Generazione risposta per prompt di {} caratteri", prompt.length());
 
-                requestBody.putArray("messages").add(message);
-                requestBody.put("temperature", temperature);
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", chatModel);
+        ArrayNode messages = requestBody.putArray("messages");
+        if (sistema != null && !sistema.isEmpty()) {
+            ObjectNode messaggioSistema = messages.addObject();
+            messaggioSistema.put("role", "system");
+            messaggioSistema.put("content", sistema);
+        }
+        ObjectNode message = messages.addObject();
+        message.put("role", "user");
+        message.put("content", prompt);
+        requestBody.put("temperature", temperature);
+
+        return conTentativi("risposta", protetta(interruttoreChat, rifiutateChat, "chat", () -> inviaConCopia(requestBody)))
+                .thenApply(responseJson -> {
+                    String result = responseJson.path("choices").path(0).path("message").path("content").asText();
+                    logger.info("Risposta generata con successo ({} caratteri)", result.length());
+                    return result;
+                })
+                .exceptionally(errore -> {
+                    Throwable causa = causa(errore);
+                    if (causa instanceof CircuitoAperto) {
+                        logger.warn("Circuito della chat aperto, inviata la risposta di riserva");
+                        return rispostaDiRiserva;
+                    }
+                    logger.error("Tutti i tentativi di generazione della risposta falliti", causa);
+                    return PREFISSO_ERRORE + " durante la generazione della risposta dopo " + maxRetries + " tentativi. " +
+                            "Dettaglio: " + causa.getMessage();
+                });
+    }
 
-                HttpEntity<String> request = new HttpEntity<>(objectMapper.writeValueAsString(requestBody), headers);
+    /**
+     * Genera un embedding per il testo fornito. Non usa cache: passare da CacheEmbeddingService
+     */
+    public byte[] generaEmbedding(String testo) {
+        return generaEmbeddingBatchAsync(List.of(testo)).join().get(0);
+    }
 
-                logger.debug("Invio richiesta a OpenAI (tentativo {}): {}", retries + 1, apiUrl + "/chat/completions");
+    /**
+     * Genera gli embedding di più testi con il minor numero di richieste possibile.
+     *
+     * I testi vengono raggruppati in lotti limitati da ai.embedding.batch.max-input e
+     * ai.embedding.batch.max-token; ogni lotto ha i propri tentativi, quindi un errore
+     * ripete solo quel lotto. Il risultato ha la stessa dimensione e lo stesso ordine
+     * dell'input, con un array vuoto per i testi dei lotti falliti.
+     */
+    public List<byte[]> generaEmbeddingBatch(List<String> testi) {
+        return generaEmbeddingBatchAsync(testi).join();
+    }
 
-                String responseBody = restTemplate.postForObject(apiUrl + "/chat/completions", request, String.class);
-                JsonNode responseJson = objectMapper.readTree(responseBody);
+    /**
+     * Come generaEmbeddingBatch, con i lotti inviati in parallelo. Il future non fallisce.
+     */
+    public CompletableFuture<List<byte[]>> generaEmbeddingBatchAsync(List<String> testi) {
+        List<byte[]> risultati = Collections.synchronizedList(new ArrayList<>(Collections.nCopies(testi.size(), new byte[0])));
+        List<List<Integer>> lotti = suddividiInLotti(testi, batchMaxInput, batchMaxToken);
+        logger.info("Generazione embedding per {} testi in {} richieste", testi.size(), lotti.size());
+
+        CompletableFuture<?>[] richieste = new CompletableFuture<?>[lotti.size()];
+        for (int l = 0; l < lotti.size(); l++) {
+            List<Integer> lotto = lotti.get(l);
+            List<String> input = lotto.stream().map(testi::get).toList();
+            richieste[l] = conTentativi("lotto di " + lotto.size() + " embedding",
+                            protetta(interruttoreEmbedding, rifiutateEmbedding, "embedding", () -> richiediEmbedding(input)))
+                    .thenAccept(embeddings -> {
+                        for (int i = 0; i < lotto.size(); i++) {
+                            risultati.set(lotto.get(i), EmbeddingUtils.floatArrayToByteArray(embeddings[i]));
+                        }
+                    })
+                    .exceptionally(errore -> {
+                        logger.error("Lotto di {} embedding fallito dopo {} tentativi", lotto.size(), maxRetries, causa(errore));
+                        return null;
+                    });
+        }
 
-                // Verifica se ci sono errori nella risposta API
-                if (responseJson.has("error")) {
-                    String errorMessage = responseJson.path("error").path("message").asText("Errore sconosciuto");
-                    logger.error("Errore OpenAI: {}", errorMessage);
-                    throw new RuntimeException("Errore API OpenAI: " + errorMessage);
-                }
+        return CompletableFuture.allOf(richieste).thenApply(ignorato -> new ArrayList<>(risultati));
+    }
 
-                String result = responseJson.path("choices").path(0).path("message").path("content").asText();
-                logger.info("Risposta generata con successo ({} caratteri)", result.length());
-                return result;
-
-            } catch (Exception e) {
-                lastException = e;
-                logger.warn("Tentativo {} fallito: {}", retries + 1, e.getMessage());
-                retries++;
-
-                if (retries < maxRetries) {
-                    try {
-                        // Attesa esponenziale tra i tentativi
-                        long backoffTime = (long) Math.pow(2, retries) * 1000;
-                        logger.info("Attesa di {} ms prima del prossimo tentativo", backoffTime);
-                        Thread.sleep(backoffTime);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
-                    }
-                }
+    /**
+     * Raggruppa gli indici dei testi in lotti che rispettano i limiti di input e di token.
+     * I token sono stimati in 4 caratteri per token; un testo che da solo supera il limite
+     * finisce in un lotto a sé.
+     */
+    static List<List<Integer>> suddividiInLotti(List<String> testi, int maxInput, int maxToken) {
+        List<List<Integer>> lotti = new ArrayList<>();
+        List<Integer> corrente = new ArrayList<>();
+        int tokenCorrenti = 0;
+
+        for (int i = 0; i < testi.size(); i++) {
+            int token = stimaToken(testi.get(i));
+            if (!corrente.isEmpty() && (corrente.size() >= maxInput || tokenCorrenti + token > maxToken)) {
+                lotti.add(corrente);
+                corrente = new ArrayList<>();
+                tokenCorrenti = 0;
             }
+            corrente.add(i);
+            tokenCorrenti += token;
         }
 
-        // Se arriviamo qui, tutti i tentativi sono falliti
-        logger.error("Tutti i {} tentativi di chiamata API falliti", maxRetries, lastException);
-        return "Si è verificato un errore durante la generazione della risposta dopo " + maxRetries + " tentativi. " +
-                "Dettaglio: " + (lastException != null ? lastException.getMessage() : "Errore sconosciuto");
+        if (!corrente.isEmpty()) {
+            lotti.add(corrente);
+        }
+        return lotti;
+    }
+
+    private static int stimaToken(String testo) {
+        return (testo.length() + 3) / 4;
     }
 
     /**
-     * Genera un embedding per il testo fornito
+     * Esegue una singola chiamata /embeddings e restituisce i vettori nell'ordine dell'input
      */
-    @Cacheable(value = "aiEmbeddings", key = "#testo.hashCode()")
-    public byte[] generaEmbedding(String testo) {
-        logger.info("Generazione embedding per testo di {} caratteri", testo.length());
-        int retries = 0;
-        Exception lastException = null;
+    private CompletableFuture<float[][]> richiediEmbedding(List<String> testi) {
+        ObjectNode requestBody = objectMapper.createObjectNode();
+        requestBody.put("model", embeddingModel);
+        ArrayNode input = requestBody.putArray("input");
+        testi.forEach(input::add);
+
+        return clientOpenAI.invia("/embeddings", requestBody)
+                .thenApply(responseJson -> leggiEmbedding(responseJson, testi.size()));
+    }
 
-        while (retries < maxRetries) {
-            try {
-                HttpHeaders headers = new HttpHeaders();
-                headers.setContentType(MediaType.APPLICATION_JSON);
-                headers.setBearerAuth(apiKey);
+    private static float[][] leggiEmbedding(JsonNode responseJson, int numeroTesti) {
+        JsonNode data = responseJson.path("data");
+        if (!data.isArray() || data.size() != numeroTesti) {
+            throw new RuntimeException("Formato di risposta embedding non valido");
+        }
 
-                ObjectNode requestBody = objectMapper.createObjectNode();
-                requestBody.put("model", embeddingModel);
-                requestBody.put("input", testo);
+        // L'API indica la posizione di ogni embedding nel campo index, non garantisce l'ordine
+        float[][] risultati = new float[numeroTesti][];
+        for (JsonNode elemento : data) {
+            int indice = elemento.path("index").asInt(-1);
+            JsonNode valori = elemento.path("embedding");
+            if (indice < 0 || indice >= numeroTesti || !valori.isArray()) {
+                throw new RuntimeException("Formato di risposta embedding non valido");
+            }
 
-                HttpEntity<String> request = new HttpEntity<>(objectMapper.writeValueAsString(requestBody), headers);
+            float[] embedding = new float[valori.size()];
+            for (int i = 0; i < valori.size(); i++) {
+                embedding[i] = valori.get(i).floatValue();
+            }
+            risultati[indice] = embedding;
+        }
 
-                logger.debug("Invio richiesta embedding a OpenAI (tentativo {})", retries + 1);
+        for (float[] embedding : risultati) {
+            if (embedding == null) {
+                throw new RuntimeException("Risposta embedding incompleta");
+            }
+        }
+        return risultati;
+    }
 
-                String responseBody = restTemplate.postForObject(apiUrl + "/embeddings", request, String.class);
-                JsonNode responseJson = objectMapper.readTree(responseBody);
+    /**
+     * Invia la richiesta di chat; se dopo ai.chat.copia-dopo-ms non ha ancora risposto ne invia
+     * una seconda identica. Vale il primo successo, lo scambio HTTP dell'altra viene interrotto; il risultato
+     * fallisce solo se falliscono tutte e due. Nessuna copia mentre il circuito non è chiuso.
+     */
+    private CompletableFuture<JsonNode> inviaConCopia(ObjectNode requestBody) {
+        CompletableFuture<JsonNode> originale = clientOpenAI.invia("/chat/completions", requestBody);
+        if (copiaDopoMs <= 0 || interruttoreChat.getStato() != InterruttoreCircuito.Stato.CHIUSO) {
+            return originale;
+        }
 
-                // Verifica se ci sono errori nella risposta API
-                if (responseJson.has("error")) {
-                    String errorMessage = responseJson.path("error").path("message").asText("Errore sconosciuto");
-                    logger.error("Errore OpenAI embedding: {}", errorMessage);
-                    throw new RuntimeException("Errore API OpenAI embedding: " + errorMessage);
-                }
+        RichiestaDuplicata richiesta = new RichiestaDuplicata(originale);
+        originale.whenComplete((valore, errore) -> richiesta.concludi(false, valore, errore));
 
-                // Estrazione dell'embedding
-                JsonNode data = responseJson.path("data").path(0).path("embedding");
+        CompletableFuture.delayedExecutor(copiaDopoMs, TimeUnit.MILLISECONDS).execute(() -> {
+            // Nessuna copia se la prima richiesta è già conclusa
+            if (!richiesta.avviaCopia()) {
+                return;
+            }
+            copieInviate.increment();
+            CompletableFuture<JsonNode> copia = clientOpenAI.invia("/chat/completions", requestBody);
+            richiesta.copia = copia;
+            copia.whenComplete((valore, errore) -> richiesta.concludi(true, valore, errore));
+            if (richiesta.risultato.isDone()) {
+                copia.cancel(true);
+            }
+        });
+        return richiesta.risultato;
+    }
 
-                if (data.isMissingNode() || !data.isArray()) {
-                    throw new RuntimeException("Formato di risposta embedding non valido");
-                }
+    /**
+     * Richiesta di chat con l'eventuale copia: vale il primo successo, fallisce se falliscono entrambe
+     */
+    private final class RichiestaDuplicata {
+        private final CompletableFuture<JsonNode> risultato = new CompletableFuture<>();
+        private final CompletableFuture<JsonNode> originale;
+        private volatile CompletableFuture<JsonNode> copia;
+        private final AtomicInteger inVolo = new AtomicInteger(1);
+        private final AtomicBoolean conclusa = new AtomicBoolean();
+
+        private RichiestaDuplicata(CompletableFuture<JsonNode> originale) {
+            this.originale = originale;
+        }
 
-                float[] embeddings = new float[data.size()];
-                for (int i = 0; i < data.size(); i++) {
-                    embeddings[i] = data.get(i).floatValue();
-                }
+        private boolean avviaCopia() {
+            return !conclusa.get() && inVolo.getAndUpdate(n -> n == 0 ? 0 : n + 1) != 0;
+        }
 
-                byte[] result = floatArrayToByteArray(embeddings);
-                logger.info("Embedding generato con successo (dimensione: {} float / {} byte)", embeddings.length, result.length);
-                return result;
-
-            } catch (Exception e) {
-                lastException = e;
-                logger.warn("Tentativo embedding {} fallito: {}", retries + 1, e.getMessage());
-                retries++;
-
-                if (retries < maxRetries) {
-                    try {
-                        long backoffTime = (long) Math.pow(2, retries) * 1000;
-                        logger.info("Attesa di {} ms prima del prossimo tentativo", backoffTime);
-                        Thread.sleep(backoffTime);
-                    } catch (InterruptedException ie) {
-                        Thread.currentThread().interrupt();
-                        break;
+        private void concludi(boolean daCopia, JsonNode valore, Throwable errore) {
+            if (errore == null) {
+                if (conclusa.compareAndSet(false, true)) {
+                    if (daCopia) {
+                        copieVincenti.increment();
+                    }
+                    risultato.complete(valore);
+                    CompletableFuture<JsonNode> altra = daCopia ? originale : copia;
+                    if (altra != null) {
+                        altra.cancel(true);
                     }
                 }
+            } else if (inVolo.decrementAndGet() == 0 && conclusa.compareAndSet(false, true)) {
+                risultato.completeExceptionally(causa(errore));
             }
         }
+    }
+
+    /**
+     * Fa passare la chiamata dal circuit breaker: a circuito aperto fallisce subito con CircuitoAperto.
+     * Gli errori non ritentabili (richiesta non valida) non indicano un problema del servizio e contano come successi.
+     */
+    private <T> Supplier<CompletableFuture<T>> protetta(InterruttoreCircuito interruttore, Counter rifiutate, String nome,
+                                                        Supplier<CompletableFuture<T>> chiamata) {
+        return () -> {
+            if (!interruttore.permetti()) {
+                rifiutate.increment();
+                return CompletableFuture.failedFuture(new CircuitoAperto(nome));
+            }
+            return chiamata.get().whenComplete((valore, errore) -> {
+                if (errore == null || !ritentabile(causa(errore))) {
+                    interruttore.registraSuccesso();
+                } else {
+                    interruttore.registraFallimento();
+                }
+            });
+        };
+    }
+
+    private static boolean ritentabile(Throwable causa) {
+        return !(causa instanceof ClientOpenAI.ErroreOpenAI erroreOpenAI) || erroreOpenAI.isRitentabile();
+    }
 
-        // Se arriviamo qui, tutti i tentativi sono falliti
-        logger.error("Tutti i {} tentativi di generazione embedding falliti", maxRetries, lastException);
-        return new byte[0]; // Restituisci array vuoto in caso di errore
+    private static Counter registraCircuito(MeterRegistry meterRegistry, String nome, InterruttoreCircuito interruttore) {
+        // 0 = chiuso, 1 = semiaperto, 2 = aperto
+        Gauge.builder("ai.circuito.stato", interruttore, i -> i.getStato().ordinal())
+                .description("Stato del circuit breaker verso OpenAI")
+                .tag("chiamata", nome)
+                .register(meterRegistry);
+        return Counter.builder("ai.circuito.rifiutate")
+                .description("Chiamate a OpenAI rifiutate a circuito aperto")
+                .tag("chiamata", nome)
+                .register(meterRegistry);
     }
 
     /**
-     * Converte un array di float in un array di byte per lo storage
+     * Esegue la chiamata fino a ai.api.max-retries volte, attendendo 2, 4, 8... secondi tra un tentativo e l'altro.
+     * Le attese non occupano thread; gli errori non ritentabili (ad esempio 400 o 401) falliscono subito.
      */
-    private byte[] floatArrayToByteArray(float[] floatArray) {
-        byte[] byteArray = new byte[floatArray.length * 4];
-
-        for (int i = 0; i < floatArray.length; i++) {
-            int intBits = Float.floatToIntBits(floatArray[i]);
-            byteArray[i * 4] = (byte) (intBits & 0xFF);
-            byteArray[i * 4 + 1] = (byte) ((intBits >> 8) & 0xFF);
-            byteArray[i * 4 + 2] = (byte) ((intBits >> 16) & 0xFF);
-            byteArray[i * 4 + 3] = (byte) ((intBits >> 24) & 0xFF);
-        }
+    private <T> CompletableFuture<T> conTentativi(String descrizione, Supplier<CompletableFuture<T>> chiamata) {
+        CompletableFuture<T> risultato = new CompletableFuture<>();
+        tenta(descrizione, chiamata, 1, risultato);
+        return risultato;
+    }
+
+    private <T> void tenta(String descrizione, Supplier<CompletableFuture<T>> chiamata, int tentativo, CompletableFuture<T> risultato) {
+        chiamata.get().whenComplete((valore, errore) -> {
+            if (errore == null) {
+                risultato.complete(valore);
+                return;
+            }
+            Throwable causa = causa(errore);
+            if (causa instanceof CircuitoAperto) {
+                risultato.completeExceptionally(causa);
+                return;
+            }
+            logger.warn("Tentativo {} ({}) fallito: {}", tentativo, descrizione, causa.getMessage());
+            if (!ritentabile(causa) || tentativo >= maxRetries) {
+                risultato.completeExceptionally(causa);
+                return;
+            }
+            long backoffTime = (long) Math.pow(2, tentativo) * 1000;
+            logger.info("Attesa di {} ms prima del prossimo tentativo", backoffTime);
+            CompletableFuture.delayedExecutor(backoffTime, TimeUnit.MILLISECONDS)
+                    .execute(() -> tenta(descrizione, chiamata, tentativo + 1, risultato));
+        });
+    }
 
-        return byteArray;
+    private static Throwable causa(Throwable errore) {
+        return errore instanceof CompletionException && errore.getCause() != null ? errore.getCause() : errore;
     }
 }
\ No newline at end of file
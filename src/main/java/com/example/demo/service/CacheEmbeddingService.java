@@ -0,0 +1,206 @@
+package com.example.demo.service;
+
+import com.example.demo.model.EmbeddingInCache;
+import com.example.demo.repository.EmbeddingInCacheRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Embedding indirizzati dal contenuto, su due livelli: Caffeine in memoria e la tabella
+ * cache_embedding su Postgres, che sopravvive ai deploy ed è condivisa tra le istanze.
+ *
+ * Ingestione e ricerca passano da qui prima di chiamare l'API: solo i testi assenti da
+ * entrambi i livelli vengono inviati, in un'unica richiesta a lotti. La chiave comprende
+ * l'organizzazione, quindi i vettori non vengono condivisi tra clienti diversi.
+ */
+@Service
+public class CacheEmbeddingService {
+    private static final Logger logger = LoggerFactory.getLogger(CacheEmbeddingService.class);
+
+    static final String INSERISCI = "INSERT INTO cache_embedding (chiave, organizzazione_id, modello, embedding, data_creazione) " +
+            "VALUES (?, ?, ?, ?, ?) ON CONFLICT (chiave) DO NOTHING";
+
+    private final AIService aiService;
+    private final EmbeddingInCacheRepository embeddingInCacheRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final Cache<String, byte[]> memoria;
+    private final Counter trovatiInMemoria;
+    private final Counter trovatiInDatabase;
+    private final Counter generati;
+
+    @Value("${ai.embedding.cache.conservazione-giorni:180}")
+    private int giorniConservazione;
+
+    @Autowired
+    public CacheEmbeddingService(AIService aiService,
+                                 EmbeddingInCacheRepository embeddingInCacheRepository,
+                                 JdbcTemplate jdbcTemplate,
+                                 MeterRegistry meterRegistry,
+                                 @Value("${ai.embedding.cache.memoria-mb:64}") long memoriaMb) {
+        this.aiService = aiService;
+        this.embeddingInCacheRepository = embeddingInCacheRepository;
+        this.jdbcTemplate = jdbcTemplate;
+        this.memoria = Caffeine.newBuilder()
+                .maximumWeight(memoriaMb * 1024 * 1024)
+                .weigher((String chiave, byte[] embedding) -> embedding.length + chiave.length())
+                .build();
+        this.trovatiInMemoria = contatore(meterRegistry, "memoria");
+        this.trovatiInDatabase = contatore(meterRegistry, "database");
+        this.generati = contatore(meterRegistry, "api");
+    }
+
+    /**
+     * Embedding di un testo; array vuoto se l'API non risponde
+     */
+    public byte[] embedding(String testo, Long organizzazioneId) {
+        return embeddingAsync(testo, organizzazioneId).join();
+    }
+
+    public CompletableFuture<byte[]> embeddingAsync(String testo, Long organizzazioneId) {
+        return embeddingBatchAsync(List.of(testo), organizzazioneId).thenApply(embeddings -> embeddings.get(0));
+    }
+
+    /**
+     * Embedding di più testi, nello stesso ordine dell'input.
+     * Gli array vuoti (testi dei lotti falliti) non vengono salvati e saranno richiesti di nuovo.
+     */
+    public List<byte[]> embeddingBatch(List<String> testi, Long organizzazioneId) {
+        return embeddingBatchAsync(testi, organizzazioneId).join();
+    }
+
+    /**
+     * Come embeddingBatch: le due cache vengono lette sul thread chiamante, la chiamata all'API non lo blocca
+     */
+    public CompletableFuture<List<byte[]>> embeddingBatchAsync(List<String> testi, Long organizzazioneId) {
+        String modello = aiService.getEmbeddingModel();
+        List<String> chiavi = new ArrayList<>(testi.size());
+        for (String testo : testi) {
+            chiavi.add(chiave(organizzazioneId, modello, testo));
+        }
+
+        Map<String, byte[]> trovati = new HashMap<>(memoria.getAllPresent(chiavi));
+        trovatiInMemoria.increment(trovati.size());
+
+        // Un testo ripetuto nello stesso lotto viene cercato e generato una volta sola
+        Map<String, String> mancanti = new LinkedHashMap<>();
+        for (int i = 0; i < testi.size(); i++) {
+            if (!trovati.containsKey(chiavi.get(i))) {
+                mancanti.putIfAbsent(chiavi.get(i), testi.get(i));
+            }
+        }
+
+        if (!mancanti.isEmpty()) {
+            for (EmbeddingInCache salvato : embeddingInCacheRepository.findAllById(mancanti.keySet())) {
+                trovati.put(salvato.getChiave(), salvato.getEmbedding());
+                memoria.put(salvato.getChiave(), salvato.getEmbedding());
+                mancanti.remove(salvato.getChiave());
+                trovatiInDatabase.increment();
+            }
+        }
+
+        CompletableFuture<Map<String, byte[]>> generazione = mancanti.isEmpty()
+                ? CompletableFuture.completedFuture(Map.of())
+                : genera(mancanti, organizzazioneId, modello);
+
+        return generazione.thenApply(generatiOra -> {
+            List<byte[]> risultati = new ArrayList<>(testi.size());
+            for (String chiave : chiavi) {
+                byte[] embedding = trovati.get(chiave);
+                risultati.add(embedding != null ? embedding : generatiOra.getOrDefault(chiave, new byte[0]));
+            }
+            return risultati;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${ai.embedding.cache.pulizia-ms:86400000}")
+    public void eliminaEmbeddingScaduti() {
+        int eliminati = embeddingInCacheRepository.eliminaCreatiPrimaDi(LocalDateTime.now().minusDays(giorniConservazione));
+        if (eliminati > 0) {
+            logger.info("Eliminati {} embedding in cache da più di {} giorni", eliminati, giorniConservazione);
+        }
+    }
+
+    private CompletableFuture<Map<String, byte[]>> genera(Map<String, String> mancanti, Long organizzazioneId, String modello) {
+        List<String> chiavi = new ArrayList<>(mancanti.keySet());
+        return aiService.generaEmbeddingBatchAsync(new ArrayList<>(mancanti.values()))
+                .thenApply(embeddings -> registra(chiavi, embeddings, organizzazioneId, modello));
+    }
+
+    private Map<String, byte[]> registra(List<String> chiavi, List<byte[]> embeddings, Long organizzazioneId, String modello) {
+        Map<String, byte[]> generatiOra = new HashMap<>();
+        for (int i = 0; i < chiavi.size(); i++) {
+            if (embeddings.get(i).length > 0) {
+                generatiOra.put(chiavi.get(i), embeddings.get(i));
+            }
+        }
+        generati.increment(generatiOra.size());
+        memoria.putAll(generatiOra);
+
+        if (!generatiOra.isEmpty()) {
+            try {
+                salva(generatiOra, organizzazioneId, modello);
+            } catch (RuntimeException e) {
+                // Gli embedding restano validi: verranno salvati alla prossima generazione
+                logger.warn("Salvataggio di {} embedding in cache fallito: {}", generatiOra.size(), e.getMessage());
+            }
+        }
+        return generatiOra;
+    }
+
+    private void salva(Map<String, byte[]> embeddings, Long organizzazioneId, String modello) {
+        Timestamp adesso = Timestamp.valueOf(LocalDateTime.now());
+        jdbcTemplate.batchUpdate(INSERISCI, new ArrayList<>(embeddings.entrySet()), embeddings.size(), (ps, voce) -> {
+            ps.setString(1, voce.getKey());
+            if (organizzazioneId != null) {
+                ps.setLong(2, organizzazioneId);
+            } else {
+                ps.setNull(2, Types.BIGINT);
+            }
+            ps.setString(3, modello);
+            ps.setBytes(4, voce.getValue());
+            ps.setTimestamp(5, adesso);
+        });
+    }
+
+    static String chiave(Long organizzazioneId, String modello, String testo) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            // Il separatore evita che confini diversi tra i campi producano lo stesso input
+            digest.update((organizzazioneId + "\u0000" + modello + "\u0000").getBytes(StandardCharsets.UTF_8));
+            digest.update(testo.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 non disponibile", e);
+        }
+    }
+
+    private static Counter contatore(MeterRegistry meterRegistry, String livello) {
+        return Counter.builder("ai.embedding.cache")
+                .description("Embedding richiesti, per livello che li ha forniti")
+                .tag("livello", livello)
+                .register(meterRegistry);
+    }
+}
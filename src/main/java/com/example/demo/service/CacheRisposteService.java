@@ -0,0 +1,195 @@
+package com.example.demo.service;
+
+import com.example.demo.service.indice.KernelSimilarita;
+import com.example.demo.util.EmbeddingUtils;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache semantica delle risposte, separata per organizzazione.
+ *
+ * Una domanda con embedding abbastanza simile (coseno almeno rag.cache-risposte.soglia)
+ * a una domanda già risposta riceve la stessa risposta senza chiamare il modello di chat.
+ * Le domande molto brevi ("e quanto costa?") dipendono dalla conversazione e non usano la cache;
+ * RAGService la usa solo per le domande senza riassunto né messaggi precedenti, perché una
+ * risposta generata con la conversazione di un cliente non va servita agli altri.
+ * Le risposte di un'organizzazione vengono scartate quando cambiano i suoi documenti;
+ * sulle altre istanze scadono dopo rag.cache-risposte.durata-minuti.
+ */
+@Service
+public class CacheRisposteService {
+
+    private record Voce(float[] vettore, String risposta, long creata) {
+    }
+
+    /**
+     * Risposte di un'organizzazione. Dopo l'invalidazione non accetta nuove risposte,
+     * così una risposta generata con i documenti precedenti non rientra in cache.
+     */
+    private static final class RisposteOrganizzazione {
+        private final Deque<Voce> voci = new ArrayDeque<>();
+        private volatile boolean invalidata;
+    }
+
+    /**
+     * Esito di una ricerca: la risposta trovata, oppure quanto serve per registrare quella nuova
+     */
+    public static final class Ricerca {
+        private final RisposteOrganizzazione risposte;
+        private final float[] vettore;
+        private final String risposta;
+
+        private Ricerca(RisposteOrganizzazione risposte, float[] vettore, String risposta) {
+            this.risposte = risposte;
+            this.vettore = vettore;
+            this.risposta = risposta;
+        }
+
+        public String getRisposta() {
+            return risposta;
+        }
+    }
+
+    private static final Ricerca NON_CACHEABILE = new Ricerca(null, null, null);
+
+    private final Cache<Long, RisposteOrganizzazione> organizzazioni;
+    private final KernelSimilarita kernel = KernelSimilarita.predefinito();
+    private final LongSupplier orologio;
+    private final Counter trovate;
+    private final Counter mancate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${rag.cache-risposte.soglia:0.95}")
+    private float soglia;
+
+    @Value("${rag.cache-risposte.risposte-per-organizzazione:500}")
+    private int rispostePerOrganizzazione;
+
+    @Value("${rag.cache-risposte.durata-minuti:60}")
+    private long durataMinuti;
+
+    @Value("${rag.cache-risposte.min-caratteri:20}")
+    private int minCaratteri;
+
+    @Autowired
+    public CacheRisposteService(MeterRegistry meterRegistry,
+                                @Value("${rag.cache-risposte.organizzazioni:1000}") long organizzazioni) {
+        this(meterRegistry, organizzazioni, System::currentTimeMillis);
+    }
+
+    CacheRisposteService(MeterRegistry meterRegistry, long organizzazioni, LongSupplier orologio) {
+        this.organizzazioni = Caffeine.newBuilder()
+                .maximumSize(organizzazioni)
+                .build();
+        this.orologio = orologio;
+        this.trovate = Counter.builder("rag.cache.risposte")
+                .description("Domande cercate nella cache semantica delle risposte")
+                .tag("esito", "trovata")
+                .register(meterRegistry);
+        this.mancate = Counter.builder("rag.cache.risposte")
+                .description("Domande cercate nella cache semantica delle risposte")
+                .tag("esito", "mancata")
+                .register(meterRegistry);
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    void registraMetriche() {
+        Gauge.builder("rag.cache.risposte.rapporto", this, CacheRisposteService::getRapportoTrovate)
+                .description("Frazione delle domande servite dalla cache semantica")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Cerca una risposta per una domanda simile già posta all'organizzazione
+     */
+    public Ricerca cerca(Long organizzazioneId, String query, byte[] queryEmbedding) {
+        if (organizzazioneId == null || query == null || query.trim().length() < minCaratteri
+                || queryEmbedding == null || queryEmbedding.length == 0) {
+            return NON_CACHEABILE;
+        }
+        float[] vettore = EmbeddingUtils.byteArrayToFloatArray(queryEmbedding);
+        if (!EmbeddingUtils.normalizza(vettore)) {
+            return NON_CACHEABILE;
+        }
+
+        RisposteOrganizzazione risposte = organizzazioni.get(organizzazioneId, id -> new RisposteOrganizzazione());
+        long scadenza = orologio.getAsLong() - Duration.ofMinutes(durataMinuti).toMillis();
+        Voce migliore = null;
+        float similaritaMigliore = soglia;
+        synchronized (risposte) {
+            Iterator<Voce> voci = risposte.voci.iterator();
+            while (voci.hasNext()) {
+                Voce voce = voci.next();
+                if (voce.creata() < scadenza) {
+                    voci.remove();
+                    continue;
+                }
+                // Vettori normalizzati: il prodotto scalare è la similarità coseno
+                float similarita = kernel.prodottoScalare(vettore, voce.vettore());
+                if (similarita >= similaritaMigliore) {
+                    migliore = voce;
+                    similaritaMigliore = similarita;
+                }
+            }
+        }
+
+        if (migliore != null) {
+            trovate.increment();
+            return new Ricerca(risposte, vettore, migliore.risposta());
+        }
+        mancate.increment();
+        return new Ricerca(risposte, vettore, null);
+    }
+
+    /**
+     * Registra la risposta generata per una domanda cercata senza successo.
+     * Le risposte di errore non vanno registrate.
+     */
+    public void registra(Ricerca ricerca, String risposta) {
+        if (ricerca.risposte == null || ricerca.risposta != null || risposta == null || risposta.isBlank()) {
+            return;
+        }
+        RisposteOrganizzazione risposte = ricerca.risposte;
+        synchronized (risposte) {
+            if (risposte.invalidata) {
+                return;
+            }
+            risposte.voci.addLast(new Voce(ricerca.vettore, risposta, orologio.getAsLong()));
+            while (risposte.voci.size() > rispostePerOrganizzazione) {
+                risposte.voci.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * Scarta le risposte dell'organizzazione, da chiamare quando cambiano i suoi documenti
+     */
+    public void invalida(Long organizzazioneId) {
+        RisposteOrganizzazione risposte = organizzazioni.asMap().remove(organizzazioneId);
+        if (risposte != null) {
+            synchronized (risposte) {
+                risposte.invalidata = true;
+                risposte.voci.clear();
+            }
+        }
+    }
+
+    public double getRapportoTrovate() {
+        double totale = trovate.count() + mancate.count();
+        return totale == 0 ? 0.0 : trovate.count() / totale;
+    }
+}
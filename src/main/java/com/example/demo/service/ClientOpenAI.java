@@ -0,0 +1,133 @@
+package com.example.demo.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Client HTTP asincrono per l'API OpenAI.
+ *
+ * Usa un unico java.net.http.HttpClient condiviso: HTTP/2 quando il server lo supporta
+ * (più richieste multiplexate sulla stessa connessione), altrimenti connessioni HTTP/1.1
+ * keep-alive riusate dal pool del client. Nessun thread resta bloccato durante l'attesa
+ * della risposta: i CompletableFuture si completano sui virtual thread del client.
+ */
+@Component
+public class ClientOpenAI {
+
+    /**
+     * Errore restituito dall'API; ritentabile per 429, 5xx ed errori di rete
+     */
+    public static class ErroreOpenAI extends RuntimeException {
+        private final boolean ritentabile;
+
+        public ErroreOpenAI(String messaggio, boolean ritentabile) {
+            super(messaggio);
+            this.ritentabile = ritentabile;
+        }
+
+        public boolean isRitentabile() {
+            return ritentabile;
+        }
+    }
+
+    private final String apiKey;
+    private final String apiUrl;
+    private final Duration timeoutRichiesta;
+    private final ExecutorService executor;
+    private final HttpClient httpClient;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Autowired
+    public ClientOpenAI(@Value("${ai.api.key}") String apiKey,
+                        @Value("${ai.api.url:https://api.openai.com/v1}") String apiUrl,
+                        @Value("${ai.api.timeout-connessione:5000}") long timeoutConnessioneMs,
+                        @Value("${ai.api.timeout:30000}") long timeoutRichiestaMs) {
+        this.apiKey = apiKey;
+        this.apiUrl = apiUrl;
+        this.timeoutRichiesta = Duration.ofMillis(timeoutRichiestaMs);
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofMillis(timeoutConnessioneMs))
+                .executor(executor)
+                .build();
+    }
+
+    /**
+     * Invia il corpo JSON all'endpoint (ad esempio "/chat/completions") e restituisce la risposta JSON.
+     * Il future fallisce con ErroreOpenAI per risposte di errore, timeout ed errori di rete.
+     * Annullare il future interrompe lo scambio HTTP in corso.
+     */
+    public CompletableFuture<JsonNode> invia(String endpoint, ObjectNode corpo) {
+        HttpRequest richiesta;
+        try {
+            richiesta = HttpRequest.newBuilder(URI.create(apiUrl + endpoint))
+                    .timeout(timeoutRichiesta)
+                    .header("Content-Type", "application/json")
+                    .header("Authorization", "Bearer " + apiKey)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(objectMapper.writeValueAsBytes(corpo)))
+                    .build();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(new UncheckedIOException(e));
+        }
+
+        CompletableFuture<HttpResponse<byte[]>> scambio = httpClient.sendAsync(richiesta, HttpResponse.BodyHandlers.ofByteArray());
+        CompletableFuture<JsonNode> risultato = scambio.handle((risposta, errore) -> {
+            if (errore != null) {
+                // Timeout, connessione rifiutata o interrotta
+                Throwable causa = errore.getCause() != null ? errore.getCause() : errore;
+                throw new ErroreOpenAI("Errore di rete verso OpenAI: " + causa, true);
+            }
+            return leggi(risposta);
+        });
+        // Dal JDK 16 l'HttpClient propaga già allo scambio il cancel dei future derivati da sendAsync:
+        // l'annullamento esplicito è solo difensivo, per non dipendere da questo comportamento
+        risultato.whenComplete((risposta, errore) -> {
+            if (errore instanceof CancellationException) {
+                scambio.cancel(true);
+            }
+        });
+        return risultato;
+    }
+
+    private JsonNode leggi(HttpResponse<byte[]> risposta) {
+        JsonNode json;
+        try {
+            json = objectMapper.readTree(risposta.body());
+        } catch (IOException e) {
+            json = null;
+        }
+
+        int stato = risposta.statusCode();
+        if (stato < 200 || stato >= 300 || json == null || json.has("error")) {
+            String messaggio = json != null
+                    ? json.path("error").path("message").asText("Errore sconosciuto")
+                    : "Risposta non valida";
+            throw new ErroreOpenAI("Errore API OpenAI (" + stato + "): " + messaggio, stato == 429 || stato >= 500);
+        }
+        return json;
+    }
+
+    @PreDestroy
+    public void chiudi() {
+        httpClient.shutdown();
+        executor.shutdown();
+    }
+}
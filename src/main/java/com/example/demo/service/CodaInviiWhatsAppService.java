@@ -0,0 +1,159 @@
+package com.example.demo.service;
+
+import com.example.demo.model.InvioWhatsApp;
+import com.example.demo.repository.InvioWhatsAppRepository;
+import com.example.demo.repository.MessaggioRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Coda persistente dei messaggi WhatsApp in uscita, condivisa tra tutte le istanze dell'applicazione
+ */
+@Service
+public class CodaInviiWhatsAppService {
+    private static final Logger logger = LoggerFactory.getLogger(CodaInviiWhatsAppService.class);
+
+    private static final List<String> STATI_DA_INVIARE = List.of(InvioWhatsApp.STATO_IN_ATTESA, InvioWhatsApp.STATO_IN_CORSO);
+
+    private final InvioWhatsAppRepository invioWhatsAppRepository;
+    private final MessaggioRepository messaggioRepository;
+
+    // Tempo concesso a un'istanza per concludere un invio reclamato, prima che un'altra lo riprenda
+    @Value("${whatsapp.invio.timeout-ms:60000}")
+    private long timeoutMs;
+
+    @Value("${whatsapp.invio.max-tentativi:5}")
+    private int maxTentativi;
+
+    @Value("${whatsapp.invio.ritardo-base-ms:1000}")
+    private long ritardoBaseMs;
+
+    @Value("${whatsapp.invio.ritardo-massimo-ms:60000}")
+    private long ritardoMassimoMs;
+
+    @Autowired
+    public CodaInviiWhatsAppService(InvioWhatsAppRepository invioWhatsAppRepository, MessaggioRepository messaggioRepository) {
+        this.invioWhatsAppRepository = invioWhatsAppRepository;
+        this.messaggioRepository = messaggioRepository;
+    }
+
+    public InvioWhatsApp accoda(String mittente, String destinatario, String contenuto, Long messaggioId) {
+        InvioWhatsApp invio = new InvioWhatsApp();
+        invio.setMittente(mittente);
+        invio.setDestinatario(destinatario);
+        invio.setContenuto(contenuto);
+        invio.setMessaggioId(messaggioId);
+        return invioWhatsAppRepository.save(invio);
+    }
+
+    /**
+     * Reclama fino a "limite" invii pronti per questa istanza, nell'ordine di creazione
+     */
+    @Transactional
+    public List<InvioWhatsApp> reclamaPronti(int limite) {
+        LocalDateTime adesso = LocalDateTime.now();
+        List<InvioWhatsApp> pronti = invioWhatsAppRepository.bloccaProssimiPronti(adesso, limite);
+        for (InvioWhatsApp invio : pronti) {
+            if (InvioWhatsApp.STATO_IN_CORSO.equals(invio.getStato())) {
+                logger.warn("Ripresa dell'invio {} non concluso entro il timeout", invio.getId());
+            }
+            invio.setStato(InvioWhatsApp.STATO_IN_CORSO);
+            invio.setTentativi(invio.getTentativi() + 1);
+            invio.setProssimoTentativo(adesso.plusNanos(timeoutMs * 1_000_000));
+        }
+        return invioWhatsAppRepository.saveAll(pronti);
+    }
+
+    /**
+     * Segna l'invio come concluso e riporta il SID di Twilio sul messaggio salvato,
+     * dove lo usano le notifiche di stato della consegna
+     */
+    @Transactional
+    public void segnaInviato(Long invioId, String twilioSid) {
+        invioWhatsAppRepository.findById(invioId).ifPresent(invio -> {
+            invio.setStato(InvioWhatsApp.STATO_INVIATO);
+            invio.setTwilioSid(twilioSid);
+            invio.setDataInvio(LocalDateTime.now());
+            invio.setErrore(null);
+            invioWhatsAppRepository.save(invio);
+
+            if (invio.getMessaggioId() != null) {
+                messaggioRepository.findById(invio.getMessaggioId()).ifPresent(messaggio -> {
+                    messaggio.setTwilioSid(twilioSid);
+                    messaggioRepository.save(messaggio);
+                });
+            }
+        });
+    }
+
+    /**
+     * Indica se allo stesso destinatario resta da inviare un messaggio creato prima di questo
+     */
+    public boolean haInviiPrecedentiDaInviare(InvioWhatsApp invio) {
+        return invioWhatsAppRepository.existsByDestinatarioAndIdLessThanAndStatoIn(
+                invio.getDestinatario(), invio.getId(), STATI_DA_INVIARE);
+    }
+
+    /**
+     * Rimette in attesa un invio reclamato ma non tentato, senza contarlo tra i tentativi
+     */
+    @Transactional
+    public void rilascia(Long invioId) {
+        invioWhatsAppRepository.findById(invioId).ifPresent(invio -> {
+            invio.setStato(InvioWhatsApp.STATO_IN_ATTESA);
+            invio.setTentativi(Math.max(0, invio.getTentativi() - 1));
+            invio.setProssimoTentativo(LocalDateTime.now());
+            invioWhatsAppRepository.save(invio);
+        });
+    }
+
+    /**
+     * Registra il fallimento dell'invio: se l'errore è temporaneo e restano tentativi viene
+     * ripianificato con attesa esponenziale e jitter, altrimenti passa in errore
+     */
+    @Transactional
+    public void fallisci(Long invioId, String errore, boolean ritentabile) {
+        invioWhatsAppRepository.findById(invioId).ifPresent(invio -> {
+            invio.setErrore(errore);
+            if (ritentabile && invio.getTentativi() < maxTentativi) {
+                long attesaMs = attesaPrimaDelTentativo(invio.getTentativi());
+                logger.warn("Invio {} a {} fallito (tentativo {}/{}), nuovo tentativo tra {} ms: {}",
+                        invioId, invio.getDestinatario(), invio.getTentativi(), maxTentativi, attesaMs, errore);
+                invio.setStato(InvioWhatsApp.STATO_IN_ATTESA);
+                invio.setProssimoTentativo(LocalDateTime.now().plusNanos(attesaMs * 1_000_000));
+            } else {
+                logger.error("Invio {} a {} fallito definitivamente dopo {} tentativi: {}",
+                        invioId, invio.getDestinatario(), invio.getTentativi(), errore);
+                invio.setStato(InvioWhatsApp.STATO_ERRORE);
+            }
+            invioWhatsAppRepository.save(invio);
+        });
+    }
+
+    public long contaDaInviare() {
+        return invioWhatsAppRepository.countByStatoIn(STATI_DA_INVIARE);
+    }
+
+    public int eliminaInviatiPrimaDi(LocalDateTime limite) {
+        return invioWhatsAppRepository.eliminaInviatiPrimaDi(limite);
+    }
+
+    /**
+     * Attesa esponenziale con jitter: metà fissa e metà casuale, così i messaggi
+     * falliti insieme (es. per un 429) non ritentano tutti nello stesso istante
+     */
+    long attesaPrimaDelTentativo(int tentativiFatti) {
+        long esponenziale = ritardoBaseMs << Math.min(Math.max(0, tentativiFatti - 1), 20);
+        long massimo = Math.min(ritardoMassimoMs, esponenziale);
+        long meta = massimo / 2;
+        return meta + ThreadLocalRandom.current().nextLong(massimo - meta + 1);
+    }
+}
@@ -0,0 +1,224 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.util.ContatoreToken;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compone il prompt della risposta RAG entro un budget di token contati con il tokenizer del modello.
+ *
+ * Le istruzioni fisse vanno all'inizio del messaggio di sistema, identiche per ogni richiesta
+ * e organizzazione, così il provider può riusarne la cache del prefisso. Nel messaggio utente
+ * entrano, in quest'ordine di priorità: la domanda, gli ultimi messaggi e il riassunto della
+ * conversazione (ciascuno con il proprio tetto) e i documenti, dal più simile, fino a esaurire
+ * il budget. I chunk sotto la similarità minima vengono scartati e quelli consecutivi dello
+ * stesso documento uniti in un unico estratto.
+ */
+@Component
+public class ComposizionePrompt {
+
+    static final String ISTRUZIONI = """
+            Sei un assistente virtuale WhatsApp di un'azienda.
+            Rispondi alla domanda dell'utente basandoti esclusivamente sulle informazioni fornite nei documenti del messaggio dell'utente.
+            Se non sei in grado di rispondere utilizzando solo queste informazioni, indica che le informazioni non sono disponibili.
+
+            LINEE GUIDA PER LA RISPOSTA:
+            1. Sii conciso e diretto
+            2. Rispondi SOLO in base ai documenti forniti
+            3. Se l'informazione non è nei documenti, dillo chiaramente
+            4. Non inventare informazioni
+            5. Formato adatto a WhatsApp: risposte brevi e facilmente leggibili su mobile (preferibilmente sotto i 200 caratteri)
+            6. Usa un linguaggio semplice e accessibile
+            """;
+
+    // Token aggiunti dall'API per ogni messaggio e per l'avvio della risposta
+    private static final int TOKEN_PER_MESSAGGIO = 4;
+    private static final int TOKEN_AVVIO_RISPOSTA = 3;
+
+    // Sotto questa soglia un estratto troncato non è utile e non viene inserito
+    private static final int TOKEN_MINIMI_ESTRATTO = 40;
+
+    /**
+     * Chunk trovato dalla ricerca vettoriale, con la sua similarità alla domanda
+     */
+    public record ChunkRilevante(ChunkDocumento chunk, float punteggio) {
+    }
+
+    /**
+     * Messaggi di sistema e utente da inviare, con il totale dei token stimato
+     */
+    public record Prompt(String sistema, String utente, int token) {
+    }
+
+    /**
+     * Chunk consecutivi dello stesso documento
+     */
+    record Estratto(String titolo, Long documentoId, int primoIndice, int ultimoIndice, String testo, float punteggio) {
+    }
+
+    private final ContatoreToken contatore;
+    private final DistributionSummary tokenPrompt;
+
+    @Value("${rag.prompt.budget-token:3000}")
+    private int budgetToken;
+
+    @Value("${rag.prompt.token-conversazione:600}")
+    private int tokenConversazione;
+
+    @Value("${rag.prompt.token-riassunto:300}")
+    private int tokenRiassunto;
+
+    @Value("${rag.prompt.token-domanda:500}")
+    private int tokenDomanda;
+
+    @Value("${rag.prompt.similarita-minima:0.3}")
+    private float similaritaMinima;
+
+    @Autowired
+    public ComposizionePrompt(@Value("${ai.chat.model:gpt-3.5-turbo}") String chatModel, MeterRegistry meterRegistry) {
+        this.contatore = ContatoreToken.perModello(chatModel);
+        this.tokenPrompt = DistributionSummary.builder("rag.prompt.token")
+                .description("Token dei prompt RAG inviati al modello di chat")
+                .baseUnit("token")
+                .register(meterRegistry);
+    }
+
+    public Prompt componi(String query, List<ChunkRilevante> chunks, String riassuntoConversazione,
+                          String contestoConversazione, Organizzazione organizzazione) {
+        String sistema = ISTRUZIONI + "\n" + descriviOrganizzazione(organizzazione);
+        String domanda = "DOMANDA DELL'UTENTE: " + contatore.tronca(query, tokenDomanda);
+        int disponibili = budgetToken - contatore.conta(sistema) - contatore.conta(domanda)
+                - 2 * TOKEN_PER_MESSAGGIO - TOKEN_AVVIO_RISPOSTA;
+
+        StringBuilder utente = new StringBuilder();
+
+        // Riassunto dei messaggi più vecchi, mantenuto in background in Conversazione.contesto
+        if (riassuntoConversazione != null && !riassuntoConversazione.isBlank()) {
+            String riassunto = contatore.tronca(riassuntoConversazione, Math.min(tokenRiassunto, disponibili));
+            if (!riassunto.isEmpty()) {
+                disponibili -= aggiungi(utente, "RIASSUNTO DELLA CONVERSAZIONE FINORA:\n" + riassunto + "\n\n");
+            }
+        }
+
+        // Ultimi messaggi: se non entrano tutti restano i più recenti
+        if (contestoConversazione != null && !contestoConversazione.isBlank()) {
+            String contesto = ultimeRighe(contestoConversazione, Math.min(tokenConversazione, disponibili));
+            if (!contesto.isEmpty()) {
+                disponibili -= aggiungi(utente, "CONTESTO DELLA CONVERSAZIONE PRECEDENTE:\n" + contesto + "\n");
+            }
+        }
+
+        List<String> documenti = new ArrayList<>();
+        String intestazione = "DOCUMENTI PERTINENTI ALLA DOMANDA:\n";
+        int restanti = disponibili - contatore.conta(intestazione);
+        for (Estratto estratto : estratti(chunks, similaritaMinima)) {
+            String titolo = "--- DOCUMENTO " + (documenti.size() + 1) + ": " + estratto.titolo() + " ---\n";
+            String blocco = titolo + estratto.testo() + "\n\n";
+            int token = contatore.conta(blocco);
+            if (token <= restanti) {
+                documenti.add(blocco);
+                restanti -= token;
+            } else if (restanti - contatore.conta(titolo) >= TOKEN_MINIMI_ESTRATTO) {
+                // L'estratto più simile tra quelli rimasti entra in parte, poi il budget è finito
+                documenti.add(titolo + contatore.tronca(estratto.testo(), restanti - contatore.conta(titolo) - 2) + "\n\n");
+                break;
+            }
+        }
+
+        if (!documenti.isEmpty()) {
+            utente.append(intestazione);
+            documenti.forEach(utente::append);
+        } else {
+            utente.append("Non sono stati trovati documenti pertinenti alla domanda. ");
+            utente.append("Indica che le informazioni non sono disponibili.\n\n");
+        }
+        utente.append(domanda);
+
+        Prompt prompt = new Prompt(sistema, utente.toString(),
+                contatore.conta(sistema) + contatore.conta(utente.toString()) + 2 * TOKEN_PER_MESSAGGIO + TOKEN_AVVIO_RISPOSTA);
+        tokenPrompt.record(prompt.token());
+        return prompt;
+    }
+
+    /**
+     * Scarta i chunk sotto la similarità minima e unisce quelli con indici consecutivi dello
+     * stesso documento; gli estratti sono ordinati per la similarità migliore tra i loro chunk.
+     */
+    static List<Estratto> estratti(List<ChunkRilevante> chunks, float similaritaMinima) {
+        Map<Long, List<ChunkRilevante>> perDocumento = new LinkedHashMap<>();
+        for (ChunkRilevante rilevante : chunks) {
+            if (rilevante.punteggio() >= similaritaMinima) {
+                perDocumento.computeIfAbsent(rilevante.chunk().getDocumento().getId(), id -> new ArrayList<>()).add(rilevante);
+            }
+        }
+
+        List<Estratto> estratti = new ArrayList<>();
+        for (List<ChunkRilevante> delDocumento : perDocumento.values()) {
+            delDocumento.sort(Comparator.comparingInt(rilevante -> rilevante.chunk().getIndiceChunk()));
+            Estratto corrente = null;
+            for (ChunkRilevante rilevante : delDocumento) {
+                ChunkDocumento chunk = rilevante.chunk();
+                if (corrente != null && chunk.getIndiceChunk() == corrente.ultimoIndice() + 1) {
+                    corrente = new Estratto(corrente.titolo(), corrente.documentoId(), corrente.primoIndice(), chunk.getIndiceChunk(),
+                            corrente.testo() + "\n" + chunk.getTestoChunk(), Math.max(corrente.punteggio(), rilevante.punteggio()));
+                } else {
+                    if (corrente != null) {
+                        estratti.add(corrente);
+                    }
+                    corrente = new Estratto(chunk.getDocumento().getTitolo(), chunk.getDocumento().getId(), chunk.getIndiceChunk(),
+                            chunk.getIndiceChunk(), chunk.getTestoChunk(), rilevante.punteggio());
+                }
+            }
+            estratti.add(corrente);
+        }
+
+        estratti.sort(Comparator.comparingDouble(Estratto::punteggio).reversed());
+        return estratti;
+    }
+
+    private String ultimeRighe(String testo, int maxToken) {
+        Deque<String> righe = new ArrayDeque<>();
+        int token = 0;
+        String[] tutte = testo.split("\n");
+        for (int i = tutte.length - 1; i >= 0; i--) {
+            int tokenRiga = contatore.conta(tutte[i] + "\n");
+            if (token + tokenRiga > maxToken) {
+                break;
+            }
+            righe.addFirst(tutte[i]);
+            token += tokenRiga;
+        }
+        return righe.isEmpty() ? "" : String.join("\n", righe) + "\n";
+    }
+
+    private int aggiungi(StringBuilder destinazione, String sezione) {
+        destinazione.append(sezione);
+        return contatore.conta(sezione);
+    }
+
+    private static String descriviOrganizzazione(Organizzazione organizzazione) {
+        if (organizzazione == null) {
+            return "Utilizza un tono professionale ma amichevole.";
+        }
+        StringBuilder descrizione = new StringBuilder("L'azienda è ").append(organizzazione.getNome()).append(".");
+        if (organizzazione.getTonoDiVoce() != null && !organizzazione.getTonoDiVoce().isEmpty()) {
+            descrizione.append(" Utilizza un tono ").append(organizzazione.getTonoDiVoce()).append(".");
+        } else {
+            descrizione.append(" Utilizza un tono professionale ma amichevole.");
+        }
+        return descrizione.toString();
+    }
+}
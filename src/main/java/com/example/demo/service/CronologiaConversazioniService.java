@@ -0,0 +1,122 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Messaggio;
+import com.example.demo.repository.MessaggioRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Ultimi messaggi di ogni conversazione, usati come contesto per la risposta.
+ *
+ * Per ogni conversazione attiva viene tenuto in memoria un buffer circolare degli ultimi
+ * N messaggi, aggiornato a ogni salvataggio su questa istanza; il database viene letto (solo
+ * gli ultimi N, tramite l'indice su conversazione_id, orario_invio) quando il buffer non è
+ * presente, ad esempio dopo un riavvio o per conversazioni inattive da tempo.
+ *
+ * I messaggi di una conversazione possono essere salvati da istanze diverse: prima di usare
+ * il buffer si legge l'id dell'ultimo messaggio nel database e, se è diverso dall'ultimo del
+ * buffer, il buffer viene ricaricato.
+ */
+@Service
+public class CronologiaConversazioniService {
+
+    /**
+     * Copia dei soli campi che servono al contesto, per non tenere in memoria le entità
+     */
+    public record VoceCronologia(Long id, boolean daCliente, String contenuto) {
+    }
+
+    private final MessaggioRepository messaggioRepository;
+    private final int messaggiPerConversazione;
+    private final Cache<Long, Deque<VoceCronologia>> buffer;
+
+    @Autowired
+    public CronologiaConversazioniService(
+            MessaggioRepository messaggioRepository,
+            @Value("${whatsapp.contesto.messaggi:5}") int messaggiPerConversazione,
+            @Value("${whatsapp.contesto.conversazioni:10000}") long conversazioni,
+            @Value("${whatsapp.contesto.durata-minuti:60}") long durataMinuti) {
+        this.messaggioRepository = messaggioRepository;
+        this.messaggiPerConversazione = Math.max(1, messaggiPerConversazione);
+        this.buffer = Caffeine.newBuilder()
+                .maximumSize(conversazioni)
+                .expireAfterAccess(Duration.ofMinutes(durataMinuti))
+                .build();
+    }
+
+    /**
+     * Aggiunge un messaggio appena salvato al buffer della sua conversazione, se presente.
+     * Se il buffer è in caricamento l'aggiunta attende la fine della lettura dal database,
+     * e un messaggio già letto non viene aggiunto due volte.
+     */
+    public void registra(Messaggio messaggio) {
+        if (messaggio == null || messaggio.getId() == null || messaggio.getConversazione() == null) {
+            return;
+        }
+        VoceCronologia voce = comeVoce(messaggio);
+        buffer.asMap().computeIfPresent(messaggio.getConversazione().getId(), (id, voci) -> {
+            synchronized (voci) {
+                aggiungi(voci, voce);
+            }
+            return voci;
+        });
+    }
+
+    /**
+     * Ultimi messaggi della conversazione, dal più vecchio al più recente
+     */
+    public List<VoceCronologia> ultimiMessaggi(Long conversazioneId) {
+        Deque<VoceCronologia> voci = buffer.getIfPresent(conversazioneId);
+        if (voci == null || !aggiornato(conversazioneId, voci)) {
+            voci = buffer.asMap().compute(conversazioneId, (id, precedenti) -> carica(id));
+        }
+        synchronized (voci) {
+            return new ArrayList<>(voci);
+        }
+    }
+
+    private boolean aggiornato(Long conversazioneId, Deque<VoceCronologia> voci) {
+        List<Long> ultimo = messaggioRepository.findIdRecentiByConversazioneId(conversazioneId, PageRequest.of(0, 1));
+        synchronized (voci) {
+            Long ultimoInBuffer = voci.isEmpty() ? null : voci.peekLast().id();
+            return ultimo.isEmpty() ? ultimoInBuffer == null : ultimo.get(0).equals(ultimoInBuffer);
+        }
+    }
+
+    private Deque<VoceCronologia> carica(Long conversazioneId) {
+        List<Messaggio> recenti = messaggioRepository.findByConversazioneIdOrderByOrarioInvioDesc(
+                conversazioneId, PageRequest.of(0, messaggiPerConversazione));
+
+        Deque<VoceCronologia> voci = new ArrayDeque<>(messaggiPerConversazione + 1);
+        for (Messaggio messaggio : recenti) {
+            voci.addFirst(comeVoce(messaggio));
+        }
+        return voci;
+    }
+
+    private void aggiungi(Deque<VoceCronologia> voci, VoceCronologia voce) {
+        for (VoceCronologia presente : voci) {
+            if (presente.id().equals(voce.id())) {
+                return;
+            }
+        }
+        voci.addLast(voce);
+        while (voci.size() > messaggiPerConversazione) {
+            voci.removeFirst();
+        }
+    }
+
+    private static VoceCronologia comeVoce(Messaggio messaggio) {
+        return new VoceCronologia(messaggio.getId(), Boolean.TRUE.equals(messaggio.getDaCliente()), messaggio.getContenuto());
+    }
+}
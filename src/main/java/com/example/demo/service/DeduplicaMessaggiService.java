@@ -0,0 +1,59 @@
+package com.example.demo.service;
+
+import com.example.demo.repository.MessaggioRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+
+/**
+ * Riconosce le consegne ripetute dello stesso webhook Twilio tramite il MessageSid.
+ *
+ * I SID recenti sono tenuti in una cache limitata, quindi un retry viene riconosciuto
+ * senza accedere al database; dopo un riavvio o su un'altra istanza il controllo
+ * ricade sull'indice univoco messaggi.twilio_sid.
+ */
+@Service
+public class DeduplicaMessaggiService {
+
+    private final MessaggioRepository messaggioRepository;
+    private final Cache<String, Boolean> sidRecenti;
+
+    @Autowired
+    public DeduplicaMessaggiService(
+            MessaggioRepository messaggioRepository,
+            @Value("${whatsapp.deduplica.dimensione:10000}") long dimensione,
+            @Value("${whatsapp.deduplica.durata-minuti:60}") long durataMinuti) {
+        this.messaggioRepository = messaggioRepository;
+        this.sidRecenti = Caffeine.newBuilder()
+                .maximumSize(dimensione)
+                .expireAfterWrite(Duration.ofMinutes(durataMinuti))
+                .build();
+    }
+
+    /**
+     * Registra il SID e restituisce true solo alla prima consegna del messaggio.
+     * I messaggi senza SID sono sempre considerati nuovi.
+     */
+    public boolean registraSeNuovo(String messageSid) {
+        if (messageSid == null || messageSid.isEmpty()) {
+            return true;
+        }
+        if (sidRecenti.asMap().putIfAbsent(messageSid, Boolean.TRUE) != null) {
+            return false;
+        }
+        return !messaggioRepository.existsByTwilioSid(messageSid);
+    }
+
+    /**
+     * Dimentica un SID il cui messaggio non è stato salvato, così che il retry di Twilio venga elaborato
+     */
+    public void dimentica(String messageSid) {
+        if (messageSid != null) {
+            sidRecenti.invalidate(messageSid);
+        }
+    }
+}
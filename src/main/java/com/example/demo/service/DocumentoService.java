@@ -3,6 +3,7 @@ package com.example.demo.service;
 import com.example.demo.exception.ResourceNotFoundException;
 import com.example.demo.model.Documento;
 import com.example.demo.model.ChunkDocumento;
+import com.example.demo.model.JobIngestione;
 import com.example.demo.model.Organizzazione;
 import com.example.demo.repository.ChunkDocumentoRepository;
 import com.example.demo.repository.ConversazioneRepository;
@@ -10,9 +11,14 @@ import com.example.demo.repository.DocumentoRepository;
 import com.example.demo.repository.OrganizzazioneRepository;
 import org.apache.pdfbox.pdmodel.PDDocument;
 import org.apache.pdfbox.text.PDFTextStripper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.scheduling.annotation.Async;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
@@ -25,34 +31,63 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 
 @Service
 public class DocumentoService {
+    private static final Logger logger = LoggerFactory.getLogger(DocumentoService.class);
 
     @Value("${file.upload-dir}")
     private String uploadDir;
 
+    @Value("${rag.ricerca.motore:jvm}")
+    private String motoreRicerca;
+
     private final ConversazioneRepository conversazioneRepository;
     private final DocumentoRepository documentoRepository;
     private final ChunkDocumentoRepository chunkDocumentoRepository;
     private final OrganizzazioneRepository organizzazioneRepository;
-    private final AIService aiService;
+    private final CacheEmbeddingService cacheEmbeddingService;
     private final WhatsAppService whatsAppService;
+    private final IndiceVettorialeService indiceVettorialeService;
+    private final CacheRisposteService cacheRisposteService;
+    private final JobIngestioneService jobIngestioneService;
+    private final ThreadPoolTaskExecutor ingestioneExecutor;
+
+    // Un permesso per ogni thread di ingestione: si reclama un job solo se c'è un worker libero
+    private final Semaphore workerLiberi;
+
+    // Job reclamati da questa istanza, per l'heartbeat
+    private final Set<Long> jobInEsecuzione = ConcurrentHashMap.newKeySet();
+
+    @Value("${ingestione.documenti.chunk-per-checkpoint:64}")
+    private int chunkPerCheckpoint;
 
     @Autowired
     public DocumentoService(
             ConversazioneRepository conversazioneRepository, DocumentoRepository documentoRepository,
             ChunkDocumentoRepository chunkDocumentoRepository,
             OrganizzazioneRepository organizzazioneRepository,
-            AIService aiService,
-            WhatsAppService whatsAppService) {
+            CacheEmbeddingService cacheEmbeddingService,
+            WhatsAppService whatsAppService,
+            IndiceVettorialeService indiceVettorialeService,
+            CacheRisposteService cacheRisposteService,
+            JobIngestioneService jobIngestioneService,
+            @Qualifier("ingestioneExecutor") ThreadPoolTaskExecutor ingestioneExecutor) {
         this.conversazioneRepository = conversazioneRepository;
         this.documentoRepository = documentoRepository;
         this.chunkDocumentoRepository = chunkDocumentoRepository;
         this.organizzazioneRepository = organizzazioneRepository;
-        this.aiService = aiService;
+        this.cacheEmbeddingService = cacheEmbeddingService;
         this.whatsAppService = whatsAppService;
+        this.indiceVettorialeService = indiceVettorialeService;
+        this.cacheRisposteService = cacheRisposteService;
+        this.jobIngestioneService = jobIngestioneService;
+        this.ingestioneExecutor = ingestioneExecutor;
+        this.workerLiberi = new Semaphore(ingestioneExecutor.getMaxPoolSize());
     }
 
     /**
@@ -93,7 +128,7 @@ public class DocumentoService {
         Documento documentoSalvato = documentoRepository.save(documento);
 
         // Avvia elaborazione asincrona
-        elaboraDocumento(documentoSalvato.getId());
+        accodaElaborazione(documentoSalvato.getId());
 
         return documentoSalvato;
     }
@@ -102,7 +137,7 @@ public class DocumentoService {
      * Crea un documento a partire da un file già presente sul disco
      */
     public Documento creaDocumentoDaPath(String percorsoFile, String titolo, String tipoContenuto,
-                                         Long organizzazioneId, Long conversazioneId) throws IOException {
+                                         Long organizzazioneId, Long conversazioneId, String sha256) throws IOException {
         try {
             Organizzazione organizzazione = organizzazioneRepository.findById(organizzazioneId)
                     .orElseThrow(() -> new ResourceNotFoundException("Organizzazione", "id", organizzazioneId));
@@ -121,6 +156,9 @@ public class DocumentoService {
                 metadati.put("conversazioneId", conversazioneId.toString());
                 metadati.put("fonte", "whatsapp");
             }
+            if (sha256 != null) {
+                metadati.put("sha256", sha256);
+            }
 
             // Imposta i metadati direttamente come mappa
             documento.setMetadati(metadati);
@@ -129,11 +167,11 @@ public class DocumentoService {
             Documento documentoSalvato = documentoRepository.save(documento);
 
             // Avvia elaborazione asincrona
-            elaboraDocumento(documentoSalvato.getId());
+            accodaElaborazione(documentoSalvato.getId());
 
             return documentoSalvato;
         } catch (Exception e) {
-            System.err.println("Errore nell'elaborazione dell'allegato: " + e.getMessage());
+            logger.error("Errore nell'elaborazione dell'allegato: {}", e.getMessage());
             throw e;
         }
     }
@@ -149,86 +187,212 @@ public class DocumentoService {
         }
     }
 
-    @Async
-    public void elaboraDocumento(Long documentoId) {
-        try {
-            Documento documento = documentoRepository.findById(documentoId)
-                    .orElseThrow(() -> new ResourceNotFoundException("Documento", "id", documentoId));
+    /**
+     * Elimina un documento con i suoi chunk e lo rimuove dall'indice vettoriale
+     *
+     * @return false se il documento non esiste
+     */
+    public boolean eliminaDocumento(Long documentoId) {
+        Documento documento = documentoRepository.findById(documentoId).orElse(null);
+        if (documento == null) {
+            return false;
+        }
 
-            // Aggiorna stato
-            documento.setStatoElaborazione("in-elaborazione");
-            documentoRepository.save(documento);
+        jobIngestioneService.eliminaJobDocumento(documentoId);
+        chunkDocumentoRepository.deleteByDocumentoId(documentoId);
+        documentoRepository.delete(documento);
+        indiceVettorialeService.documentoRimosso(documento.getOrganizzazione().getId(), documentoId);
+        cacheRisposteService.invalida(documento.getOrganizzazione().getId());
+        return true;
+    }
 
-            // Estrai testo in base al tipo di documento
-            String testoCompleto = "";
-            String tipoContenuto = documento.getTipoContenuto().toLowerCase();
-
-            if (tipoContenuto.contains("pdf")) {
-                testoCompleto = estraiTestoDaPdf(documento.getPercorsoFile());
-            } else if (tipoContenuto.contains("plain")) {
-                testoCompleto = new String(Files.readAllBytes(Paths.get(documento.getPercorsoFile())));
-            } else if (tipoContenuto.contains("word") ||
-                    documento.getPercorsoFile().endsWith(".doc") ||
-                    documento.getPercorsoFile().endsWith(".docx")) {
-                testoCompleto = estraiTestoDaWord(documento.getPercorsoFile());
-            } else if (tipoContenuto.contains("excel") ||
-                    documento.getPercorsoFile().endsWith(".xls") ||
-                    documento.getPercorsoFile().endsWith(".xlsx")) {
-                testoCompleto = estraiTestoDaExcel(documento.getPercorsoFile());
-            } else {
-                // Altri formati di documento
-                documento.setStatoElaborazione("formato-non-supportato");
-                documentoRepository.save(documento);
+    /**
+     * Registra un job di ingestione persistente per il documento e ritorna subito.
+     * Il job viene eseguito da un worker di questa o di un'altra istanza.
+     */
+    public void accodaElaborazione(Long documentoId) {
+        jobIngestioneService.creaJob(documentoId);
+        avviaJobDisponibili();
+    }
+
+    /**
+     * Reclama job dalla coda persistente finché ci sono worker liberi
+     */
+    @Scheduled(fixedDelayString = "${ingestione.job.polling-ms:5000}")
+    public void avviaJobDisponibili() {
+        while (workerLiberi.tryAcquire()) {
+            JobIngestione job;
+            try {
+                job = jobIngestioneService.reclamaProssimo().orElse(null);
+            } catch (Exception e) {
+                workerLiberi.release();
+                logger.error("Errore nel reclamare un job di ingestione: {}", e.getMessage());
+                return;
+            }
+            if (job == null) {
+                workerLiberi.release();
                 return;
             }
 
-            // Suddividi in chunk
-            List<String> chunks = suddividiInChunkSemantici(testoCompleto, 1000);
+            jobInEsecuzione.add(job.getId());
+            try {
+                ingestioneExecutor.execute(() -> {
+                    try {
+                        eseguiJob(job);
+                    } finally {
+                        jobInEsecuzione.remove(job.getId());
+                        workerLiberi.release();
+                    }
+                });
+            } catch (TaskRejectedException e) {
+                // Il job resta "in-corso" senza heartbeat e verrà ripreso alla scadenza
+                jobInEsecuzione.remove(job.getId());
+                workerLiberi.release();
+                logger.warn("Executor di ingestione non disponibile per il job {}", job.getId());
+                return;
+            }
+        }
+    }
 
-            // Genera e salva embedding per ogni chunk
-            for (int i = 0; i < chunks.size(); i++) {
-                String chunk = chunks.get(i);
-                byte[] embedding = aiService.generaEmbedding(chunk);
+    /**
+     * Segnala che i job in esecuzione su questa istanza sono ancora vivi
+     */
+    @Scheduled(fixedDelayString = "${ingestione.job.heartbeat-ms:15000}")
+    public void aggiornaHeartbeatJob() {
+        jobIngestioneService.aggiornaHeartbeat(List.copyOf(jobInEsecuzione));
+    }
 
-                ChunkDocumento chunkDocumento = new ChunkDocumento();
-                chunkDocumento.setDocumento(documento);
-                chunkDocumento.setIndiceChunk(i);
-                chunkDocumento.setTestoChunk(chunk);
-                chunkDocumento.setEmbedding(embedding);
+    /**
+     * Crea i job per i documenti rimasti senza, ad esempio quelli caricati prima
+     * dell'introduzione della coda persistente
+     */
+    @Scheduled(fixedDelayString = "${ingestione.documenti.ripresa-ms:60000}")
+    public void riprendiDocumentiSenzaJob() {
+        for (Long documentoId : documentoRepository.findIdDaElaborareSenzaJob()) {
+            logger.info("Creazione job di ingestione per il documento {} in sospeso", documentoId);
+            jobIngestioneService.creaJob(documentoId);
+        }
+    }
 
-                chunkDocumentoRepository.save(chunkDocumento);
-            }
+    private void eseguiJob(JobIngestione job) {
+        try {
+            elaboraDocumento(job.getDocumentoId());
+            jobIngestioneService.completa(job.getId());
+        } catch (Exception e) {
+            logger.error("Errore nell'elaborazione del documento {}", job.getDocumentoId(), e);
+            jobIngestioneService.fallisci(job.getId(), e.getMessage());
+        }
+    }
 
-            // Aggiorna stato documento
-            documento.setElaborato(true);
-            documento.setStatoElaborazione("completato");
+    /**
+     * Estrae il testo, lo suddivide in chunk e genera gli embedding.
+     *
+     * I chunk vengono salvati a lotti: se l'elaborazione si interrompe, la successiva
+     * riprende dal primo indiceChunk non ancora salvato. La suddivisione è deterministica,
+     * quindi gli indici restano coerenti tra un tentativo e l'altro.
+     */
+    void elaboraDocumento(Long documentoId) throws IOException {
+        Documento documento = documentoRepository.findById(documentoId)
+                .orElseThrow(() -> new ResourceNotFoundException("Documento", "id", documentoId));
+
+        // Un job duplicato può trovare il documento già elaborato
+        if ("completato".equals(documento.getStatoElaborazione())
+                || "formato-non-supportato".equals(documento.getStatoElaborazione())) {
+            logger.debug("Documento {} già nello stato {}, elaborazione saltata", documentoId, documento.getStatoElaborazione());
+            return;
+        }
+
+        // Aggiorna stato
+        documento.setStatoElaborazione("in-elaborazione");
+        documentoRepository.save(documento);
+
+        // Estrai testo in base al tipo di documento
+        String testoCompleto = "";
+        String tipoContenuto = documento.getTipoContenuto().toLowerCase();
+
+        if (tipoContenuto.contains("pdf")) {
+            testoCompleto = estraiTestoDaPdf(documento.getPercorsoFile());
+        } else if (tipoContenuto.contains("plain")) {
+            testoCompleto = new String(Files.readAllBytes(Paths.get(documento.getPercorsoFile())));
+        } else if (tipoContenuto.contains("word") ||
+                documento.getPercorsoFile().endsWith(".doc") ||
+                documento.getPercorsoFile().endsWith(".docx")) {
+            testoCompleto = estraiTestoDaWord(documento.getPercorsoFile());
+        } else if (tipoContenuto.contains("excel") ||
+                documento.getPercorsoFile().endsWith(".xls") ||
+                documento.getPercorsoFile().endsWith(".xlsx")) {
+            testoCompleto = estraiTestoDaExcel(documento.getPercorsoFile());
+        } else {
+            // Altri formati di documento
+            documento.setStatoElaborazione("formato-non-supportato");
             documentoRepository.save(documento);
+            return;
+        }
 
-            // Controlla se c'è una conversazione associata per notificare l'utente
-            try {
-                Map<String, Object> metadati = documento.getMetadati();  // Ora getMetadati() restituisce direttamente una Map
-                if (metadati != null && metadati.containsKey("conversazioneId") && metadati.containsKey("fonte")) {
-                    if ("whatsapp".equals(metadati.get("fonte"))) {
-                        String conversazioneId = (String) metadati.get("conversazioneId");
-                        conversazioneRepository.findById(Long.parseLong(conversazioneId)).ifPresent(conversazione -> {
-                            String numeroCliente = conversazione.getTelefonoCliente();
-                            whatsAppService.inviaMessaggioTest(numeroCliente,
-                                    "✅ Il tuo documento '" + documento.getTitolo() + "' è stato elaborato con successo! " +
-                                            "Ora puoi farmi domande specifiche su questo documento.");
-                        });
-                    }
+        // Suddividi in chunk
+        List<String> chunks = suddividiInChunkSemantici(testoCompleto, 1000);
+
+        // Riprendi dal checkpoint lasciato da un tentativo precedente
+        Integer ultimoIndice = chunkDocumentoRepository.findMaxIndiceChunkByDocumentoId(documentoId);
+        int primoChunk = ultimoIndice == null ? 0 : ultimoIndice + 1;
+        if (primoChunk > 0) {
+            logger.info("Ripresa elaborazione del documento {} dal chunk {} di {}", documentoId, primoChunk, chunks.size());
+        }
+
+        // Genera gli embedding e salva i chunk un lotto alla volta
+        for (int inizio = primoChunk; inizio < chunks.size(); inizio += chunkPerCheckpoint) {
+            List<String> lotto = chunks.subList(inizio, Math.min(inizio + chunkPerCheckpoint, chunks.size()));
+            List<byte[]> embeddings = cacheEmbeddingService.embeddingBatch(lotto, documento.getOrganizzazione().getId());
+
+            List<ChunkDocumento> nuoviChunk = new ArrayList<>(lotto.size());
+            for (int i = 0; i < lotto.size(); i++) {
+                if (embeddings.get(i).length == 0) {
+                    // Non salvare il lotto: il prossimo tentativo riparte da qui
+                    throw new IllegalStateException("Embedding non generato per il chunk " + (inizio + i));
                 }
-            } catch (Exception e) {
-                System.err.println("Errore nell'invio della notifica di completamento: " + e.getMessage());
+                ChunkDocumento chunkDocumento = new ChunkDocumento();
+                chunkDocumento.setDocumento(documento);
+                chunkDocumento.setIndiceChunk(inizio + i);
+                chunkDocumento.setTestoChunk(lotto.get(i));
+                chunkDocumento.setEmbedding(embeddings.get(i));
+                indiceVettorialeService.quantizza(chunkDocumento);
+                nuoviChunk.add(chunkDocumento);
             }
+            chunkDocumentoRepository.saveAll(nuoviChunk);
+        }
 
-        } catch (Exception e) {
-            Documento documento = documentoRepository.findById(documentoId).orElse(null);
-            if (documento != null) {
-                documento.setStatoElaborazione("errore");
-                documentoRepository.save(documento);
+        // Colonna vettoriale scritta prima di "completato": se fallisce il job viene riprovato
+        // e riscrive anche i chunk dei tentativi precedenti
+        List<ChunkDocumento> chunkSalvati = chunkDocumentoRepository.findByDocumentoId(documentoId);
+        if (RAGService.MOTORE_DATABASE.equalsIgnoreCase(motoreRicerca)) {
+            chunkDocumentoRepository.aggiornaEmbeddingVettoriale(chunkSalvati);
+        }
+
+        // Aggiorna stato documento
+        documento.setElaborato(true);
+        documento.setStatoElaborazione("completato");
+        documentoRepository.save(documento);
+
+        // Rendi subito disponibili i nuovi chunk per la ricerca in memoria
+        indiceVettorialeService.documentoElaborato(documento, chunkSalvati);
+        cacheRisposteService.invalida(documento.getOrganizzazione().getId());
+
+        // Controlla se c'è una conversazione associata per notificare l'utente
+        try {
+            Map<String, Object> metadati = documento.getMetadati();  // Ora getMetadati() restituisce direttamente una Map
+            if (metadati != null && metadati.containsKey("conversazioneId") && metadati.containsKey("fonte")) {
+                if ("whatsapp".equals(metadati.get("fonte"))) {
+                    String conversazioneId = (String) metadati.get("conversazioneId");
+                    conversazioneRepository.findById(Long.parseLong(conversazioneId)).ifPresent(conversazione -> {
+                        String numeroCliente = conversazione.getTelefonoCliente();
+                        whatsAppService.inviaMessaggioTest(numeroCliente,
+                                "✅ Il tuo documento '" + documento.getTitolo() + "' è stato elaborato con successo! " +
+                                        "Ora puoi farmi domande specifiche su questo documento.");
+                    });
+                }
             }
-            e.printStackTrace();
+        } catch (Exception e) {
+            logger.error("Errore nell'invio della notifica di completamento: {}", e.getMessage());
         }
     }
 
@@ -0,0 +1,369 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Conversazione;
+import com.example.demo.model.Messaggio;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.MessaggioRepository;
+import com.example.demo.util.CorrelazioneLog;
+import com.example.demo.util.EsecutoreSerialePerChiave;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Elabora un messaggio WhatsApp già salvato: allegati, risposta RAG e invio tramite Twilio.
+ *
+ * In modalità asincrona il webhook salva il messaggio, accoda l'elaborazione e
+ * risponde subito a Twilio; il tempo passato in coda (compresa l'attesa dei messaggi
+ * precedenti dello stesso cliente) è misurato dal timer whatsapp.webhook.coda.ritardo.
+ *
+ * Con whatsapp.webhook.finestra-ms > 0 i messaggi della stessa conversazione arrivati
+ * a breve distanza vengono uniti in una sola richiesta: ogni messaggio sposta in avanti
+ * la chiusura della finestra, fino a whatsapp.webhook.finestra-massima-ms dal primo.
+ */
+@Service
+public class ElaborazioneMessaggiService {
+    private static final Logger logger = LoggerFactory.getLogger(ElaborazioneMessaggiService.class);
+
+    private static final String MESSAGGIO_FALLBACK = "Mi dispiace, sto avendo qualche difficoltà a elaborare la tua richiesta. " +
+            "Potresti riprovare più tardi?";
+
+    /**
+     * Parametri di un allegato copiati dalla richiesta HTTP, che non è più valida dopo la risposta al webhook
+     */
+    public record AllegatoInArrivo(String url, String contentType, String nomeFile) {
+    }
+
+    private record MessaggioInArrivo(Messaggio messaggio, String testo, List<AllegatoInArrivo> allegati) {
+    }
+
+    /**
+     * Messaggi di una conversazione in attesa della chiusura della finestra
+     */
+    private static final class Raffica {
+        private final long ricevuto = System.nanoTime();
+        private final long primoArrivoMs = System.currentTimeMillis();
+        private final Organizzazione organizzazione;
+        private final Conversazione conversazione;
+        private final String numeroCliente;
+        private final List<MessaggioInArrivo> messaggi = new ArrayList<>();
+        private ScheduledFuture<?> chiusura;
+
+        private Raffica(Organizzazione organizzazione, Conversazione conversazione, String numeroCliente) {
+            this.organizzazione = organizzazione;
+            this.conversazione = conversazione;
+            this.numeroCliente = numeroCliente;
+        }
+    }
+
+    private final MessaggioRepository messaggioRepository;
+    private final CronologiaConversazioniService cronologiaConversazioniService;
+    private final RiassuntoConversazioniService riassuntoConversazioniService;
+    private final WhatsAppService whatsAppService;
+    private final AIService aiService;
+    private final RAGService ragService;
+    private final DocumentoService documentoService;
+    private final EsecutoreSerialePerChiave<String> esecutorePerCliente;
+    private final Timer ritardoCoda;
+    private final Timer durataElaborazione;
+    private final Counter messaggiUniti;
+    private final ScheduledExecutorService schedulerFinestre;
+    private final Executor allegatiExecutor;
+    private final Map<Long, Raffica> raffiche = new ConcurrentHashMap<>();
+
+    @Value("${whatsapp.webhook.finestra-ms:0}")
+    private long finestraMs;
+
+    @Value("${whatsapp.webhook.finestra-massima-ms:10000}")
+    private long finestraMassimaMs;
+
+    @Autowired
+    public ElaborazioneMessaggiService(
+            MessaggioRepository messaggioRepository,
+            CronologiaConversazioniService cronologiaConversazioniService,
+            RiassuntoConversazioniService riassuntoConversazioniService,
+            WhatsAppService whatsAppService,
+            AIService aiService,
+            RAGService ragService,
+            DocumentoService documentoService,
+            @Qualifier("elaborazioneMessaggiExecutor") ExecutorService executor,
+            @Qualifier("finestreMessaggiScheduler") ScheduledExecutorService schedulerFinestre,
+            @Qualifier("allegatiExecutor") Executor allegatiExecutor,
+            MeterRegistry meterRegistry) {
+        this.messaggioRepository = messaggioRepository;
+        this.cronologiaConversazioniService = cronologiaConversazioniService;
+        this.riassuntoConversazioniService = riassuntoConversazioniService;
+        this.whatsAppService = whatsAppService;
+        this.aiService = aiService;
+        this.ragService = ragService;
+        this.documentoService = documentoService;
+        this.esecutorePerCliente = new EsecutoreSerialePerChiave<>(executor);
+        this.schedulerFinestre = schedulerFinestre;
+        this.allegatiExecutor = allegatiExecutor;
+        this.ritardoCoda = Timer.builder("whatsapp.webhook.coda.ritardo")
+                .description("Tempo tra la ricezione del webhook e l'inizio dell'elaborazione")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.durataElaborazione = Timer.builder("whatsapp.webhook.elaborazione")
+                .description("Durata dell'elaborazione di un messaggio (allegati, RAG e invio)")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.messaggiUniti = Counter.builder("whatsapp.webhook.messaggi.uniti")
+                .description("Messaggi accorpati al precedente della stessa conversazione, senza una risposta dedicata")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Accoda l'elaborazione su un virtual thread e ritorna subito.
+     * I messaggi dello stesso cliente vengono elaborati uno alla volta, nell'ordine di arrivo,
+     * così che ognuno veda nella cronologia la risposta al precedente.
+     */
+    public void accoda(Messaggio messaggioCliente, Organizzazione organizzazione, Conversazione conversazione,
+                       String numeroCliente, String testo, List<AllegatoInArrivo> allegati) {
+        if (finestraMs <= 0) {
+            long ricevuto = System.nanoTime();
+            esecutorePerCliente.esegui(numeroCliente, () -> {
+                ritardoCoda.record(System.nanoTime() - ricevuto, TimeUnit.NANOSECONDS);
+                elabora(messaggioCliente, organizzazione, conversazione, numeroCliente, testo, allegati);
+            });
+            return;
+        }
+
+        raffiche.compute(conversazione.getId(), (conversazioneId, raffica) -> {
+            if (raffica == null) {
+                raffica = new Raffica(organizzazione, conversazione, numeroCliente);
+            } else {
+                raffica.chiusura.cancel(false);
+            }
+            raffica.messaggi.add(new MessaggioInArrivo(messaggioCliente, testo, allegati));
+
+            // La finestra si sposta a ogni messaggio, ma non oltre la durata massima dal primo
+            long residuoMassimo = raffica.primoArrivoMs + finestraMassimaMs - System.currentTimeMillis();
+            long attesa = Math.max(0, Math.min(finestraMs, residuoMassimo));
+            Raffica corrente = raffica;
+            raffica.chiusura = schedulerFinestre.schedule(() -> chiudiRaffica(conversazioneId, corrente),
+                    attesa, TimeUnit.MILLISECONDS);
+            return raffica;
+        });
+    }
+
+    /**
+     * Accoda l'elaborazione dopo quella dei messaggi precedenti dello stesso cliente, senza
+     * finestra di raccolta. Usato dalla modalità sincrona, che attende il future fuori dal lock del cliente.
+     */
+    public CompletableFuture<Void> accodaInOrdine(Messaggio messaggioCliente, Organizzazione organizzazione,
+                                                  Conversazione conversazione, String numeroCliente, String testo,
+                                                  List<AllegatoInArrivo> allegati) {
+        return esecutorePerCliente.esegui(numeroCliente,
+                () -> elabora(messaggioCliente, organizzazione, conversazione, numeroCliente, testo, allegati));
+    }
+
+    /**
+     * Invia all'elaborazione le finestre ancora aperte, per non lasciare messaggi senza risposta allo spegnimento
+     */
+    @PreDestroy
+    public void chiudiFinestreAperte() {
+        raffiche.forEach(this::chiudiRaffica);
+    }
+
+    private void chiudiRaffica(Long conversazioneId, Raffica raffica) {
+        // Solo chi rimuove la raffica la elabora: una chiusura già annullata o già eseguita non fa nulla
+        if (!raffiche.remove(conversazioneId, raffica)) {
+            return;
+        }
+
+        String testoUnito = raffica.messaggi.stream()
+                .map(MessaggioInArrivo::testo)
+                .filter(testo -> !testo.trim().isEmpty())
+                .collect(Collectors.joining("\n"));
+        List<AllegatoInArrivo> allegati = raffica.messaggi.stream()
+                .flatMap(messaggio -> messaggio.allegati().stream())
+                .toList();
+        Messaggio primo = raffica.messaggi.get(0).messaggio();
+        Messaggio ultimo = raffica.messaggi.get(raffica.messaggi.size() - 1).messaggio();
+
+        if (raffica.messaggi.size() > 1) {
+            messaggiUniti.increment(raffica.messaggi.size() - 1);
+            logger.info("Uniti {} messaggi della conversazione {} in una sola richiesta",
+                    raffica.messaggi.size(), conversazioneId);
+        }
+
+        esecutorePerCliente.esegui(raffica.numeroCliente, () -> {
+            ritardoCoda.record(System.nanoTime() - raffica.ricevuto, TimeUnit.NANOSECONDS);
+            elabora(ultimo, primo.getId(), raffica.organizzazione, raffica.conversazione, raffica.numeroCliente,
+                    testoUnito, allegati);
+        });
+    }
+
+    /**
+     * Elabora il messaggio sul thread corrente. In caso di errore invia al cliente un messaggio di fallback.
+     */
+    public void elabora(Messaggio messaggioCliente, Organizzazione organizzazione, Conversazione conversazione,
+                        String numeroCliente, String testo, List<AllegatoInArrivo> allegati) {
+        elabora(messaggioCliente, messaggioCliente.getId(), organizzazione, conversazione, numeroCliente, testo, allegati);
+    }
+
+    /**
+     * Come elabora, per una domanda formata dai messaggi salvati a partire da primoMessaggioId:
+     * quei messaggi restano fuori dal contesto della conversazione, perché sono già la domanda
+     */
+    private void elabora(Messaggio messaggioCliente, Long primoMessaggioId, Organizzazione organizzazione,
+                         Conversazione conversazione, String numeroCliente, String testo, List<AllegatoInArrivo> allegati) {
+        // Sui thread dell'elaborazione i log riportano il MessageSid, come quelli del webhook
+        String idCorrelazione = messaggioCliente.getTwilioSid() != null
+                ? messaggioCliente.getTwilioSid() : "messaggio-" + messaggioCliente.getId();
+        String precedente = CorrelazioneLog.imposta(idCorrelazione);
+        try {
+            elaboraConCorrelazione(messaggioCliente, primoMessaggioId, organizzazione, conversazione, numeroCliente, testo, allegati);
+        } finally {
+            CorrelazioneLog.ripristina(precedente);
+        }
+    }
+
+    private void elaboraConCorrelazione(Messaggio messaggioCliente, Long primoMessaggioId, Organizzazione organizzazione,
+                                        Conversazione conversazione, String numeroCliente, String testo,
+                                        List<AllegatoInArrivo> allegati) {
+        durataElaborazione.record(() -> {
+            try {
+                gestisciAllegati(organizzazione, conversazione, numeroCliente, allegati);
+
+                // Se ci sono solo allegati senza testo non c'è nulla a cui rispondere
+                if (!allegati.isEmpty() && testo.trim().isEmpty()) {
+                    return;
+                }
+
+                rispondi(organizzazione, conversazione, testo, primoMessaggioId);
+            } catch (Exception e) {
+                logger.error("Errore nell'elaborazione del messaggio {}: {}", messaggioCliente.getId(), e.getMessage(), e);
+
+                // Invia direttamente tramite Twilio senza salvare nel database
+                try {
+                    whatsAppService.inviaMessaggioTest(numeroCliente, MESSAGGIO_FALLBACK);
+                } catch (Exception ex) {
+                    logger.error("Errore anche nell'invio del messaggio di fallback: {}", ex.getMessage());
+                }
+            }
+        });
+    }
+
+    private void gestisciAllegati(Organizzazione organizzazione, Conversazione conversazione,
+                                  String numeroCliente, List<AllegatoInArrivo> allegati) {
+        // Gli allegati partono tutti insieme sul pool dei download, poi vengono registrati nell'ordine di arrivo
+        List<String> nomiFile = new ArrayList<>(allegati.size());
+        List<CompletableFuture<WhatsAppService.AllegatoScaricato>> download = new ArrayList<>(allegati.size());
+        for (AllegatoInArrivo allegato : allegati) {
+            // Nome del file predefinito se non fornito
+            String nomeFile = allegato.nomeFile();
+            if (nomeFile == null || nomeFile.isEmpty()) {
+                nomeFile = "allegato_" + System.currentTimeMillis();
+            }
+            nomiFile.add(nomeFile);
+
+            String nome = nomeFile;
+            logger.info("Download allegato: {} di tipo {}", allegato.url(), allegato.contentType());
+            download.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return whatsAppService.scaricaAllegato(allegato.url(), allegato.contentType(), nome);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, allegatiExecutor));
+        }
+
+        for (int i = 0; i < allegati.size(); i++) {
+            AllegatoInArrivo allegato = allegati.get(i);
+            String nomeFile = nomiFile.get(i);
+            try {
+                WhatsAppService.AllegatoScaricato scaricato = download.get(i).join();
+
+                // Titolo automatico per il documento
+                String titolo = "WhatsApp: " + nomeFile;
+
+                // Crea documento e avvia elaborazione
+                documentoService.creaDocumentoDaPath(scaricato.percorso(), titolo, allegato.contentType(),
+                        organizzazione.getId(), conversazione.getId(), scaricato.sha256());
+
+                // Invia conferma al cliente
+                whatsAppService.inviaMessaggioTest(numeroCliente,
+                        "Ho ricevuto il tuo documento '" + titolo + "' e lo sto elaborando. Ti avviserò quando sarà pronto per essere utilizzato nelle risposte.");
+
+            } catch (Exception e) {
+                Throwable causa = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                logger.error("Errore nell'elaborazione dell'allegato: {}", causa.getMessage());
+                whatsAppService.inviaMessaggioTest(numeroCliente,
+                        "Mi dispiace, ho riscontrato un problema nell'elaborazione del tuo documento. Riprova più tardi.");
+            }
+        }
+    }
+
+    private void rispondi(Organizzazione organizzazione, Conversazione conversazione, String testo, Long primoMessaggioId) {
+        // Generare una risposta usando il RAGService o AIService
+        String rispostaContenuto;
+        try {
+            // Costruiamo un contesto della conversazione, senza i messaggi che formano la domanda
+            StringBuilder contestoConversazione = new StringBuilder();
+            for (CronologiaConversazioniService.VoceCronologia msg : cronologiaConversazioniService.ultimiMessaggi(conversazione.getId())) {
+                if (primoMessaggioId != null && msg.id() >= primoMessaggioId) {
+                    continue;
+                }
+                String prefix = msg.daCliente() ? "Cliente: " : "Assistente: ";
+                contestoConversazione.append(prefix).append(msg.contenuto()).append("\n");
+            }
+
+            // Usa RAGService per generare una risposta con contesto dei documenti
+            String riassunto = riassuntoConversazioniService.riassunto(conversazione.getId());
+            rispostaContenuto = ragService.processaQuery(testo, organizzazione.getId(), riassunto, contestoConversazione.toString());
+            logger.info("Risposta generata con RAGService ({} caratteri)", rispostaContenuto.length());
+        } catch (Exception e) {
+            logger.warn("Errore con RAGService, tentativo con AIService diretto: {}", e.getMessage());
+
+            // Fallback: usa AIService direttamente se RAG non funziona
+            String prompt = "Sei un assistente WhatsApp per " + organizzazione.getNome() +
+                    ". Rispondi in modo " + organizzazione.getTonoDiVoce() +
+                    " alla seguente domanda: " + testo;
+
+            rispostaContenuto = aiService.generaRisposta(prompt);
+            logger.info("Risposta generata con AIService diretto ({} caratteri)", rispostaContenuto.length());
+        }
+
+        // Salva la risposta generata
+        Messaggio risposta = new Messaggio();
+        risposta.setConversazione(conversazione);
+        risposta.setDaCliente(false);
+        risposta.setContenuto(rispostaContenuto);
+        risposta.setOrarioInvio(LocalDateTime.now());
+        risposta.setDocumentiRiferiti(new HashMap<>());
+
+        Messaggio rispostaSalvata = messaggioRepository.save(risposta);
+        cronologiaConversazioniService.registra(rispostaSalvata);
+        riassuntoConversazioniService.registra(conversazione.getId());
+        logger.info("Risposta AI salvata con ID: {}", rispostaSalvata.getId());
+
+        // Invia la risposta tramite Twilio
+        whatsAppService.inviaRisposta(rispostaSalvata);
+    }
+}
@@ -0,0 +1,441 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.model.Documento;
+import com.example.demo.repository.ChunkDocumentoRepository;
+import com.example.demo.repository.DocumentoRepository;
+import com.example.demo.repository.EmbeddingChunk;
+import com.example.demo.repository.EmbeddingChunkQuantizzato;
+import com.example.demo.service.indice.IndiceHnsw;
+import com.example.demo.service.indice.IndiceVettoriale;
+import com.example.demo.service.indice.IndiceVettorialeEsatto;
+import com.example.demo.service.indice.IndiceVettorialeQuantizzato;
+import com.example.demo.service.indice.QuantizzazioneEmbedding;
+import com.example.demo.service.indice.RisultatoRicerca;
+import com.example.demo.util.EmbeddingUtils;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Gestisce un indice vettoriale residente per ogni organizzazione.
+ *
+ * L'indice viene costruito dal database alla prima ricerca e poi mantenuto
+ * aggiornato in modo incrementale quando un documento termina l'elaborazione
+ * o viene eliminato su questa istanza. I documenti elaborati o eliminati da altre
+ * istanze vengono recepiti dal riallineamento periodico con il database
+ * (rag.indice.riallineamento-ms).
+ *
+ * Il tipo di indice si sceglie per organizzazione: "esatto" (scansione completa)
+ * oppure "hnsw" (ricerca approssimata). Gli indici HNSW vengono salvati su disco
+ * e ricaricati al riavvio senza rileggere gli embedding dal database: il salvataggio
+ * avviene in differita (rag.indice.hnsw.salvataggio-ms), una volta per organizzazione
+ * modificata, e non blocca l'elaborazione dei documenti.
+ *
+ * Con rag.quantizzazione.tipo=int8|binaria l'indice esatto tiene in memoria solo gli
+ * embedding quantizzati: la scansione produce una lista di candidati che viene poi
+ * riordinata con gli embedding float letti dal database.
+ */
+@Service
+public class IndiceVettorialeService {
+    private static final Logger logger = LoggerFactory.getLogger(IndiceVettorialeService.class);
+
+    private static final String TIPO_HNSW = "hnsw";
+    private static final String QUANTIZZAZIONE_NESSUNA = "nessuna";
+
+    private final ChunkDocumentoRepository chunkDocumentoRepository;
+    private final DocumentoRepository documentoRepository;
+    private final Map<Long, IndiceOrganizzazione> indici = new ConcurrentHashMap<>();
+    private final Set<Long> daSalvare = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Indice di un'organizzazione con i documenti elaborati che contiene.
+     * I documenti vengono letti dal database prima dei chunk: un documento completato
+     * durante la costruzione manca da entrambi e viene aggiunto dal riallineamento.
+     */
+    private record IndiceOrganizzazione(IndiceVettoriale indice, Set<Long> documenti) {
+    }
+
+    @Value("${rag.indice.tipo:esatto}")
+    private String tipoPredefinito;
+
+    @Value("${rag.indice.hnsw.organizzazioni:}")
+    private Set<Long> organizzazioniHnsw = new HashSet<>();
+
+    @Value("${rag.indice.hnsw.m:16}")
+    private int hnswM;
+
+    @Value("${rag.indice.hnsw.ef-construction:200}")
+    private int hnswEfConstruction;
+
+    @Value("${rag.indice.hnsw.ef-search:64}")
+    private int hnswEfSearch;
+
+    @Value("${rag.indice.hnsw.directory:indici}")
+    private String directoryIndici;
+
+    @Value("${rag.quantizzazione.tipo:nessuna}")
+    private String tipoQuantizzazione;
+
+    @Value("${rag.quantizzazione.fattore-candidati:10}")
+    private int fattoreCandidati;
+
+    @Autowired
+    public IndiceVettorialeService(ChunkDocumentoRepository chunkDocumentoRepository,
+                                   DocumentoRepository documentoRepository) {
+        this.chunkDocumentoRepository = chunkDocumentoRepository;
+        this.documentoRepository = documentoRepository;
+    }
+
+    /**
+     * Trova i k chunk più simili all'embedding della query per l'organizzazione
+     */
+    public List<RisultatoRicerca> cerca(Long organizzazioneId, byte[] queryEmbedding, int k) {
+        if (queryEmbedding == null || queryEmbedding.length == 0) {
+            return new ArrayList<>();
+        }
+
+        float[] query = EmbeddingUtils.byteArrayToFloatArray(queryEmbedding);
+        if (!EmbeddingUtils.normalizza(query)) {
+            return new ArrayList<>();
+        }
+
+        IndiceVettoriale indice = indici.computeIfAbsent(organizzazioneId, this::caricaIndice).indice();
+        if (!(indice instanceof IndiceVettorialeQuantizzato)) {
+            return indice.cerca(query, k);
+        }
+
+        // Prima selezione sui codici quantizzati, poi riordino sui vettori a precisione piena
+        List<RisultatoRicerca> candidati = indice.cerca(query, k * Math.max(fattoreCandidati, 1));
+        if (candidati.isEmpty()) {
+            return candidati;
+        }
+        List<Long> idCandidati = candidati.stream().map(RisultatoRicerca::chunkId).toList();
+        Map<Long, float[]> vettoriCompleti = new HashMap<>();
+        for (EmbeddingChunk chunk : chunkDocumentoRepository.findEmbeddingByIdIn(idCandidati)) {
+            float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+            if (vettore != null) {
+                vettoriCompleti.put(chunk.getId(), vettore);
+            }
+        }
+        return IndiceVettorialeQuantizzato.riordina(candidati, vettoriCompleti, query, k);
+    }
+
+    /**
+     * Aggiunge al chunk le versioni quantizzate dell'embedding richieste dalla configurazione.
+     * Va chiamato prima del salvataggio del chunk.
+     */
+    public void quantizza(ChunkDocumento chunk) {
+        if (!quantizzazioneAttiva()) {
+            return;
+        }
+        float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+        if (vettore == null) {
+            return;
+        }
+        if (QuantizzazioneEmbedding.TIPO_BINARIA.equalsIgnoreCase(tipoQuantizzazione)) {
+            chunk.setEmbeddingBinario(QuantizzazioneEmbedding.quantizzaBinario(vettore));
+        } else {
+            chunk.setEmbeddingInt8(QuantizzazioneEmbedding.quantizzaInt8(vettore));
+        }
+    }
+
+    /**
+     * Aggiorna l'indice con i chunk di un documento appena elaborato.
+     * Se l'indice dell'organizzazione non è ancora stato caricato non fa nulla:
+     * verrà costruito dal database alla prima ricerca. Se è in costruzione,
+     * l'aggiornamento viene applicato al termine.
+     */
+    public void documentoElaborato(Documento documento, List<ChunkDocumento> chunks) {
+        Long organizzazioneId = documento.getOrganizzazione().getId();
+        List<Long> chunkIds = new ArrayList<>();
+        List<float[]> vettori = new ArrayList<>();
+        for (ChunkDocumento chunk : chunks) {
+            float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+            if (vettore != null) {
+                chunkIds.add(chunk.getId());
+                vettori.add(vettore);
+            }
+        }
+
+        IndiceOrganizzazione aggiornato = indici.computeIfPresent(organizzazioneId, (id, corrente) -> {
+            corrente.indice().sostituisciDocumento(documento.getId(), chunkIds.stream().mapToLong(Long::longValue).toArray(), vettori);
+            corrente.documenti().add(documento.getId());
+            return corrente;
+        });
+        if (aggiornato != null) {
+            segnaDaSalvare(organizzazioneId, aggiornato.indice());
+            logger.info("Indice organizzazione {} aggiornato con {} chunk del documento {} (totale {})",
+                    organizzazioneId, vettori.size(), documento.getId(), aggiornato.indice().getNumeroVettori());
+        }
+    }
+
+    /**
+     * Rimuove dall'indice i chunk di un documento eliminato
+     */
+    public void documentoRimosso(Long organizzazioneId, Long documentoId) {
+        int[] rimossi = new int[1];
+        IndiceOrganizzazione aggiornato = indici.computeIfPresent(organizzazioneId, (id, corrente) -> {
+            rimossi[0] = corrente.indice().rimuoviDocumento(documentoId);
+            corrente.documenti().remove(documentoId);
+            return corrente;
+        });
+        if (aggiornato != null) {
+            segnaDaSalvare(organizzazioneId, aggiornato.indice());
+            logger.info("Rimossi {} chunk del documento {} dall'indice dell'organizzazione {}",
+                    rimossi[0], documentoId, organizzazioneId);
+        }
+    }
+
+    /**
+     * Allinea gli indici caricati ai documenti elaborati nel database, per recepire
+     * i documenti elaborati o eliminati dalle altre istanze
+     */
+    @Scheduled(fixedDelayString = "${rag.indice.riallineamento-ms:30000}")
+    public void riallinea() {
+        for (Long organizzazioneId : List.copyOf(indici.keySet())) {
+            try {
+                riallinea(organizzazioneId);
+            } catch (Exception e) {
+                logger.warn("Riallineamento dell'indice dell'organizzazione {} fallito: {}", organizzazioneId, e.getMessage());
+            }
+        }
+    }
+
+    void riallinea(Long organizzazioneId) {
+        IndiceOrganizzazione letto = indici.get(organizzazioneId);
+        if (letto == null) {
+            return;
+        }
+        Set<Long> attesi = new HashSet<>(documentoRepository.findIdElaboratiByOrganizzazioneId(organizzazioneId));
+        List<Long> aggiunti = attesi.stream().filter(id -> !letto.documenti().contains(id)).toList();
+        List<Long> rimossi = letto.documenti().stream().filter(id -> !attesi.contains(id)).toList();
+        if (aggiunti.isEmpty() && rimossi.isEmpty()) {
+            return;
+        }
+
+        Map<Long, List<EmbeddingChunk>> chunkAggiunti = aggiunti.isEmpty() ? Map.of()
+                : chunkDocumentoRepository.findEmbeddingByDocumentoIdIn(aggiunti).stream()
+                .collect(Collectors.groupingBy(EmbeddingChunk::getDocumentoId));
+
+        IndiceOrganizzazione aggiornato = indici.computeIfPresent(organizzazioneId, (id, corrente) -> {
+            for (Long documentoId : rimossi) {
+                corrente.indice().rimuoviDocumento(documentoId);
+                corrente.documenti().remove(documentoId);
+            }
+            for (Long documentoId : aggiunti) {
+                List<Long> chunkIds = new ArrayList<>();
+                List<float[]> vettori = new ArrayList<>();
+                for (EmbeddingChunk chunk : chunkAggiunti.getOrDefault(documentoId, List.of())) {
+                    float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+                    if (vettore != null) {
+                        chunkIds.add(chunk.getId());
+                        vettori.add(vettore);
+                    }
+                }
+                corrente.indice().sostituisciDocumento(documentoId, chunkIds.stream().mapToLong(Long::longValue).toArray(), vettori);
+                corrente.documenti().add(documentoId);
+            }
+            return corrente;
+        });
+        if (aggiornato != null) {
+            segnaDaSalvare(organizzazioneId, aggiornato.indice());
+            logger.info("Indice dell'organizzazione {} riallineato: {} documenti aggiunti, {} rimossi",
+                    organizzazioneId, aggiunti.size(), rimossi.size());
+        }
+    }
+
+    /**
+     * Salva su disco gli indici HNSW modificati dall'ultimo salvataggio
+     */
+    @Scheduled(fixedDelayString = "${rag.indice.hnsw.salvataggio-ms:10000}")
+    public synchronized void salvaIndiciModificati() {
+        for (Long organizzazioneId : List.copyOf(daSalvare)) {
+            // Assente se l'indice è ancora in costruzione: resta segnato per il prossimo giro
+            IndiceOrganizzazione corrente = indici.get(organizzazioneId);
+            if (corrente != null) {
+                daSalvare.remove(organizzazioneId);
+                salvaSeHnsw(organizzazioneId, corrente.indice());
+            }
+        }
+    }
+
+    @PreDestroy
+    public void salvaPrimaDellaChiusura() {
+        salvaIndiciModificati();
+    }
+
+    /**
+     * Scarta l'indice di un'organizzazione, che verrà ricostruito alla prossima ricerca
+     */
+    public synchronized void invalida(Long organizzazioneId) {
+        indici.remove(organizzazioneId);
+        daSalvare.remove(organizzazioneId);
+        try {
+            Files.deleteIfExists(percorsoIndice(organizzazioneId));
+        } catch (IOException e) {
+            logger.warn("Impossibile eliminare il file indice dell'organizzazione {}: {}", organizzazioneId, e.getMessage());
+        }
+    }
+
+    /**
+     * Indica se l'organizzazione usa la ricerca approssimata HNSW
+     */
+    public boolean usaHnsw(Long organizzazioneId) {
+        return organizzazioniHnsw.contains(organizzazioneId) || TIPO_HNSW.equalsIgnoreCase(tipoPredefinito);
+    }
+
+    private IndiceOrganizzazione caricaIndice(Long organizzazioneId) {
+        Set<Long> documenti = ConcurrentHashMap.newKeySet();
+        documenti.addAll(documentoRepository.findIdElaboratiByOrganizzazioneId(organizzazioneId));
+        return new IndiceOrganizzazione(caricaIndice(organizzazioneId, documenti), documenti);
+    }
+
+    private IndiceVettoriale caricaIndice(Long organizzazioneId, Set<Long> documentiAttesi) {
+        if (!usaHnsw(organizzazioneId)) {
+            if (quantizzazioneAttiva()) {
+                return costruisciIndiceQuantizzato(organizzazioneId);
+            }
+            return costruisciIndice(organizzazioneId, new IndiceVettorialeEsatto());
+        }
+
+        Path percorso = percorsoIndice(organizzazioneId);
+        if (Files.exists(percorso)) {
+            try {
+                long inizio = System.currentTimeMillis();
+                IndiceHnsw indice = IndiceHnsw.carica(percorso, hnswEfSearch);
+
+                // Il file è valido solo se contiene esattamente i documenti elaborati presenti nel database
+                if (documentiAttesi.equals(indice.getDocumentiIndicizzati())) {
+                    logger.info("Indice HNSW dell'organizzazione {} caricato da disco: {} chunk in {} ms",
+                            organizzazioneId, indice.getNumeroVettori(), System.currentTimeMillis() - inizio);
+                    return indice;
+                }
+                logger.info("Indice HNSW su disco dell'organizzazione {} non allineato al database, ricostruzione",
+                        organizzazioneId);
+            } catch (IOException e) {
+                logger.warn("Impossibile caricare l'indice HNSW dell'organizzazione {}: {}", organizzazioneId, e.getMessage());
+            }
+        }
+
+        IndiceVettoriale indice = costruisciIndice(organizzazioneId, new IndiceHnsw(hnswM, hnswEfConstruction, hnswEfSearch));
+        segnaDaSalvare(organizzazioneId, indice);
+        return indice;
+    }
+
+    private IndiceVettoriale costruisciIndice(Long organizzazioneId, IndiceVettoriale indice) {
+        long inizio = System.currentTimeMillis();
+
+        for (EmbeddingChunk chunk : chunkDocumentoRepository.findEmbeddingByOrganizzazioneId(organizzazioneId)) {
+            float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+            if (vettore != null) {
+                indice.aggiungi(chunk.getId(), chunk.getDocumentoId(), vettore);
+            }
+        }
+
+        logger.info("Indice vettoriale {} dell'organizzazione {} costruito: {} chunk in {} ms",
+                indice.getClass().getSimpleName(), organizzazioneId, indice.getNumeroVettori(),
+                System.currentTimeMillis() - inizio);
+        return indice;
+    }
+
+    private IndiceVettoriale costruisciIndiceQuantizzato(Long organizzazioneId) {
+        long inizio = System.currentTimeMillis();
+        IndiceVettorialeQuantizzato indice = new IndiceVettorialeQuantizzato(tipoQuantizzazione);
+
+        // I chunk salvati prima dell'attivazione non hanno il codice: si quantizzano dagli embedding float
+        List<Long> senzaCodice = new ArrayList<>();
+        Integer dimensioneBinaria = null;
+        for (EmbeddingChunkQuantizzato chunk : chunkDocumentoRepository.findEmbeddingQuantizzatoByOrganizzazioneId(organizzazioneId)) {
+            byte[] codice = indice.isBinario() ? chunk.getEmbeddingBinario() : chunk.getEmbeddingInt8();
+            int dimensione = 0;
+            if (codice != null && indice.isBinario()) {
+                // Il codice binario arrotonda la dimensione al byte: quella reale si legge dal primo embedding float
+                if (dimensioneBinaria == null) {
+                    dimensioneBinaria = dimensioneEmbedding(chunk.getId());
+                }
+                dimensione = dimensioneBinaria;
+            } else if (codice != null) {
+                dimensione = QuantizzazioneEmbedding.dimensioneInt8(codice);
+            }
+            if (dimensione == 0 || !indice.aggiungiCodificato(chunk.getId(), chunk.getDocumentoId(), dimensione, codice)) {
+                senzaCodice.add(chunk.getId());
+            }
+        }
+
+        for (int i = 0; i < senzaCodice.size(); i += 1000) {
+            List<Long> lotto = senzaCodice.subList(i, Math.min(i + 1000, senzaCodice.size()));
+            for (EmbeddingChunk chunk : chunkDocumentoRepository.findEmbeddingByIdIn(lotto)) {
+                float[] vettore = decodificaNormalizzato(chunk.getEmbedding());
+                if (vettore != null) {
+                    indice.aggiungi(chunk.getId(), chunk.getDocumentoId(), vettore);
+                }
+            }
+        }
+
+        logger.info("Indice quantizzato ({}) dell'organizzazione {} costruito: {} chunk ({} quantizzati al volo) in {} ms",
+                tipoQuantizzazione, organizzazioneId, indice.getNumeroVettori(), senzaCodice.size(),
+                System.currentTimeMillis() - inizio);
+        return indice;
+    }
+
+    private int dimensioneEmbedding(Long chunkId) {
+        return chunkDocumentoRepository.findEmbeddingByIdIn(List.of(chunkId)).stream()
+                .map(EmbeddingChunk::getEmbedding)
+                .filter(Objects::nonNull)
+                .mapToInt(embedding -> embedding.length / 4)
+                .findFirst()
+                .orElse(0);
+    }
+
+    private boolean quantizzazioneAttiva() {
+        return tipoQuantizzazione != null && !QUANTIZZAZIONE_NESSUNA.equalsIgnoreCase(tipoQuantizzazione);
+    }
+
+    private void segnaDaSalvare(Long organizzazioneId, IndiceVettoriale indice) {
+        if (indice instanceof IndiceHnsw) {
+            daSalvare.add(organizzazioneId);
+        }
+    }
+
+    private void salvaSeHnsw(Long organizzazioneId, IndiceVettoriale indice) {
+        if (!(indice instanceof IndiceHnsw hnsw)) {
+            return;
+        }
+        try {
+            hnsw.salva(percorsoIndice(organizzazioneId));
+        } catch (IOException e) {
+            logger.warn("Impossibile salvare l'indice HNSW dell'organizzazione {}: {}", organizzazioneId, e.getMessage());
+        }
+    }
+
+    private Path percorsoIndice(Long organizzazioneId) {
+        return Paths.get(directoryIndici, "organizzazione_" + organizzazioneId + ".hnsw");
+    }
+
+    private float[] decodificaNormalizzato(byte[] embedding) {
+        if (embedding == null || embedding.length == 0) {
+            return null;
+        }
+        float[] vettore = EmbeddingUtils.byteArrayToFloatArray(embedding);
+        return EmbeddingUtils.normalizza(vettore) ? vettore : null;
+    }
+}
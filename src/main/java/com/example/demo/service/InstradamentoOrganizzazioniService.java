@@ -0,0 +1,122 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.OrganizzazioneRepository;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Tabella di instradamento dal numero WhatsApp di destinazione all'organizzazione.
+ *
+ * La mappa è immutabile e viene sostituita per intero a ogni aggiornamento, quindi la
+ * ricerca sul percorso del webhook è una sola lettura di mappa senza lock.
+ * OrganizzazioneController la aggiorna a ogni modifica; l'aggiornamento periodico
+ * allinea le altre istanze. I numeri trovati solo sul database vengono aggiunti alla mappa,
+ * quelli sconosciuti restano per poco in una cache negativa.
+ */
+@Service
+public class InstradamentoOrganizzazioniService {
+    private static final Logger logger = LoggerFactory.getLogger(InstradamentoOrganizzazioniService.class);
+
+    private final OrganizzazioneRepository organizzazioneRepository;
+
+    // Numero Twilio condiviso (sandbox): se nessuna organizzazione lo usa, i messaggi vanno alla prima
+    @Value("${twilio.whatsapp.number:}")
+    private String numeroCondiviso;
+
+    private volatile Map<String, Organizzazione> perNumero = Map.of();
+    private volatile Organizzazione predefinita;
+
+    // Numeri senza organizzazione: evita una query a ogni messaggio da mittenti sconosciuti
+    private final Cache<String, Boolean> sconosciuti;
+
+    @Autowired
+    public InstradamentoOrganizzazioniService(
+            OrganizzazioneRepository organizzazioneRepository,
+            @Value("${whatsapp.instradamento.sconosciuti-dimensione:10000}") long dimensioneSconosciuti,
+            @Value("${whatsapp.instradamento.sconosciuti-secondi:60}") long secondiSconosciuti) {
+        this.organizzazioneRepository = organizzazioneRepository;
+        this.sconosciuti = Caffeine.newBuilder()
+                .maximumSize(dimensioneSconosciuti)
+                .expireAfterWrite(Duration.ofSeconds(secondiSconosciuti))
+                .build();
+    }
+
+    /**
+     * Organizzazione che riceve i messaggi inviati al numero indicato.
+     * Un numero assente dalla tabella viene cercato sull'indice del database,
+     * nel caso l'organizzazione sia stata creata da un'altra istanza.
+     */
+    public Optional<Organizzazione> trova(String numeroDestinatario) {
+        Organizzazione organizzazione = perNumero.get(numeroDestinatario);
+        if (organizzazione != null) {
+            return Optional.of(organizzazione);
+        }
+        if (numeroDestinatario.equals(numeroCondiviso) && predefinita != null) {
+            return Optional.of(predefinita);
+        }
+        if (sconosciuti.getIfPresent(numeroDestinatario) != null) {
+            return Optional.empty();
+        }
+        Optional<Organizzazione> trovata = organizzazioneRepository.findFirstByNumeroWhatsappOrderByIdAsc(numeroDestinatario);
+        if (trovata.isPresent()) {
+            aggiungi(numeroDestinatario, trovata.get());
+        } else {
+            sconosciuti.put(numeroDestinatario, Boolean.TRUE);
+        }
+        return trovata;
+    }
+
+    /**
+     * Aggiunge un numero alla tabella copiando la mappa: succede solo per numeri nuovi
+     */
+    private synchronized void aggiungi(String numero, Organizzazione organizzazione) {
+        Map<String, Organizzazione> nuovaMappa = new HashMap<>(perNumero);
+        nuovaMappa.putIfAbsent(numero, organizzazione);
+        perNumero = Map.copyOf(nuovaMappa);
+    }
+
+    /**
+     * Ricostruisce la tabella dal database
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    @Scheduled(fixedDelayString = "${whatsapp.instradamento.aggiornamento-ms:300000}",
+            initialDelayString = "${whatsapp.instradamento.aggiornamento-ms:300000}")
+    public synchronized void aggiorna() {
+        List<Organizzazione> organizzazioni = organizzazioneRepository.findAll();
+
+        Map<String, Organizzazione> nuovaMappa = new HashMap<>();
+        Organizzazione prima = null;
+        for (Organizzazione organizzazione : organizzazioni) {
+            if (prima == null || organizzazione.getId() < prima.getId()) {
+                prima = organizzazione;
+            }
+            String numero = organizzazione.getNumeroWhatsapp();
+            if (numero == null || numero.isEmpty()) {
+                continue;
+            }
+            // Con numeri duplicati vince l'organizzazione creata per prima
+            nuovaMappa.merge(numero, organizzazione, (esistente, nuova) -> esistente.getId() < nuova.getId() ? esistente : nuova);
+        }
+
+        perNumero = Map.copyOf(nuovaMappa);
+        predefinita = prima;
+        sconosciuti.invalidateAll();
+        logger.info("Tabella di instradamento aggiornata: {} numeri WhatsApp, {} organizzazioni",
+                nuovaMappa.size(), organizzazioni.size());
+    }
+}
@@ -0,0 +1,136 @@
+package com.example.demo.service;
+
+import com.example.demo.model.JobIngestione;
+import com.example.demo.repository.DocumentoRepository;
+import com.example.demo.repository.JobIngestioneRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.lang.management.ManagementFactory;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.Optional;
+
+/**
+ * Coda persistente dei job di ingestione, condivisa tra tutte le istanze dell'applicazione
+ */
+@Service
+public class JobIngestioneService {
+    private static final Logger logger = LoggerFactory.getLogger(JobIngestioneService.class);
+
+    private final JobIngestioneRepository jobIngestioneRepository;
+    private final DocumentoRepository documentoRepository;
+
+    // Identifica l'istanza nei job reclamati (pid@host)
+    private final String istanza = ManagementFactory.getRuntimeMXBean().getName();
+
+    @Value("${ingestione.job.timeout-ms:120000}")
+    private long timeoutMs;
+
+    @Value("${ingestione.job.max-tentativi:3}")
+    private int maxTentativi;
+
+    @Autowired
+    public JobIngestioneService(JobIngestioneRepository jobIngestioneRepository, DocumentoRepository documentoRepository) {
+        this.jobIngestioneRepository = jobIngestioneRepository;
+        this.documentoRepository = documentoRepository;
+    }
+
+    /**
+     * Crea un job in attesa per il documento, se non ne esiste già uno attivo.
+     * Il controllo è fatto dal database, quindi vale anche tra istanze diverse.
+     */
+    public boolean creaJob(Long documentoId) {
+        if (jobIngestioneRepository.inserisciSeNonAttivo(documentoId, LocalDateTime.now()) == 0) {
+            logger.debug("Il documento {} ha già un job di ingestione attivo", documentoId);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reclama il prossimo job eseguibile per questa istanza.
+     * I job che hanno esaurito i tentativi vengono chiusi in errore insieme al documento.
+     */
+    @Transactional
+    public Optional<JobIngestione> reclamaProssimo() {
+        LocalDateTime adesso = LocalDateTime.now();
+        LocalDateTime scadenza = adesso.minusNanos(timeoutMs * 1_000_000);
+
+        Optional<JobIngestione> trovato;
+        while ((trovato = jobIngestioneRepository.bloccaProssimoEseguibile(scadenza)).isPresent()) {
+            JobIngestione job = trovato.get();
+            if (job.getTentativi() >= maxTentativi) {
+                logger.error("Job {} del documento {} abbandonato dopo {} tentativi",
+                        job.getId(), job.getDocumentoId(), job.getTentativi());
+                chiudiInErrore(job, job.getErrore() != null ? job.getErrore() : "Numero massimo di tentativi raggiunto");
+                continue;
+            }
+
+            if (JobIngestione.STATO_IN_CORSO.equals(job.getStato())) {
+                logger.warn("Ripresa del job {} del documento {} abbandonato dall'istanza {}",
+                        job.getId(), job.getDocumentoId(), job.getIstanza());
+            }
+            job.setStato(JobIngestione.STATO_IN_CORSO);
+            job.setIstanza(istanza);
+            job.setTentativi(job.getTentativi() + 1);
+            job.setUltimoHeartbeat(adesso);
+            return Optional.of(jobIngestioneRepository.save(job));
+        }
+        return Optional.empty();
+    }
+
+    @Transactional
+    public void completa(Long jobId) {
+        jobIngestioneRepository.findById(jobId).ifPresent(job -> {
+            job.setStato(JobIngestione.STATO_COMPLETATO);
+            job.setErrore(null);
+            jobIngestioneRepository.save(job);
+        });
+    }
+
+    /**
+     * Registra il fallimento del job: torna in attesa finché restano tentativi,
+     * altrimenti il job e il documento passano in errore
+     */
+    @Transactional
+    public void fallisci(Long jobId, String errore) {
+        jobIngestioneRepository.findById(jobId).ifPresent(job -> {
+            if (job.getTentativi() < maxTentativi) {
+                logger.warn("Job {} del documento {} fallito (tentativo {}/{}): {}",
+                        jobId, job.getDocumentoId(), job.getTentativi(), maxTentativi, errore);
+                job.setStato(JobIngestione.STATO_IN_ATTESA);
+                job.setErrore(errore);
+                jobIngestioneRepository.save(job);
+            } else {
+                logger.error("Job {} del documento {} fallito definitivamente: {}", jobId, job.getDocumentoId(), errore);
+                chiudiInErrore(job, errore);
+            }
+        });
+    }
+
+    public void eliminaJobDocumento(Long documentoId) {
+        jobIngestioneRepository.deleteByDocumentoId(documentoId);
+    }
+
+    public void aggiornaHeartbeat(Collection<Long> jobIds) {
+        if (!jobIds.isEmpty()) {
+            jobIngestioneRepository.aggiornaHeartbeat(jobIds, LocalDateTime.now());
+        }
+    }
+
+    private void chiudiInErrore(JobIngestione job, String errore) {
+        job.setStato(JobIngestione.STATO_ERRORE);
+        job.setErrore(errore);
+        jobIngestioneRepository.save(job);
+
+        documentoRepository.findById(job.getDocumentoId()).ifPresent(documento -> {
+            documento.setStatoElaborazione("errore");
+            documentoRepository.save(documento);
+        });
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.demo.service;
+
+import com.example.demo.util.LimitatoreDiFrequenza;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limite di frequenza di Twilio per numero mittente, condiviso tra tutte le istanze.
+ *
+ * Il token bucket di ogni mittente è una riga di limiti_invio_mittente: ogni prenotazione
+ * ricarica i gettoni in base al tempo trascorso (orologio del database) e ne toglie uno,
+ * con un unico upsert che blocca la riga. Come in LimitatoreDiFrequenza le prenotazioni si
+ * mettono in coda, quindi le istanze che attendono il tempo indicato rispettano insieme la
+ * frequenza. Se il database non risponde si ricade su un limitatore locale.
+ */
+@Service
+public class LimiteInviiService {
+    private static final Logger logger = LoggerFactory.getLogger(LimiteInviiService.class);
+
+    static final String RISERVA = "INSERT INTO limiti_invio_mittente AS l (mittente, gettoni, aggiornato) " +
+            "VALUES (?, CAST(? AS double precision) - 1, clock_timestamp()) " +
+            "ON CONFLICT (mittente) DO UPDATE SET " +
+            "gettoni = LEAST(CAST(? AS double precision), " +
+            "l.gettoni + EXTRACT(EPOCH FROM clock_timestamp() - l.aggiornato) * CAST(? AS double precision)) - 1, " +
+            "aggiornato = clock_timestamp() " +
+            "RETURNING gettoni";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Map<String, LimitatoreDiFrequenza> limitatoriLocali = new ConcurrentHashMap<>();
+
+    // Limite di Twilio per numero mittente, su tutte le istanze insieme
+    @Value("${whatsapp.invio.messaggi-al-secondo:10}")
+    private double messaggiAlSecondo;
+
+    @Value("${whatsapp.invio.raffica:10}")
+    private int raffica;
+
+    @Autowired
+    public LimiteInviiService(JdbcTemplate jdbcTemplate) {
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    /**
+     * Prenota un invio per il mittente e restituisce i nanosecondi da attendere prima di eseguirlo
+     */
+    public long riserva(String mittente) {
+        Double gettoni;
+        try {
+            gettoni = jdbcTemplate.queryForObject(RISERVA, Double.class, mittente, raffica, raffica, messaggiAlSecondo);
+        } catch (DataAccessException e) {
+            logger.warn("Limite di invio condiviso non disponibile per {}, uso del limite locale: {}", mittente, e.getMessage());
+            return limitatoriLocali.computeIfAbsent(mittente, m -> new LimitatoreDiFrequenza(messaggiAlSecondo, raffica)).riserva();
+        }
+        return attesa(gettoni, messaggiAlSecondo);
+    }
+
+    static long attesa(Double gettoni, double messaggiAlSecondo) {
+        if (gettoni == null || gettoni >= 0) {
+            return 0;
+        }
+        return (long) Math.ceil(-gettoni * 1_000_000_000.0 / messaggiAlSecondo);
+    }
+}
@@ -1,200 +1,163 @@
 package com.example.demo.service;
 
 import com.example.demo.model.ChunkDocumento;
-import com.example.demo.model.Documento;
 import com.example.demo.model.Organizzazione;
 import com.example.demo.repository.ChunkDocumentoRepository;
-import com.example.demo.repository.DocumentoRepository;
 import com.example.demo.repository.OrganizzazioneRepository;
+import com.example.demo.service.indice.RisultatoRicerca;
+import com.example.demo.util.EmbeddingUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Service
 public class RAGService {
+    private static final Logger logger = LoggerFactory.getLogger(RAGService.class);
+
+    static final String MOTORE_DATABASE = "database";
 
     private final ChunkDocumentoRepository chunkDocumentoRepository;
-    private final DocumentoRepository documentoRepository;
     private final OrganizzazioneRepository organizzazioneRepository;
     private final AIService aiService;
+    private final CacheEmbeddingService cacheEmbeddingService;
+    private final CacheRisposteService cacheRisposteService;
+    private final IndiceVettorialeService indiceVettorialeService;
+    private final ComposizionePrompt composizionePrompt;
+
+    // jvm = indice residente in memoria, database = ricerca pgvector in PostgreSQL
+    @Value("${rag.ricerca.motore:jvm}")
+    private String motoreRicerca;
+
+    // Chunk cercati per ogni domanda; quanti entrano nel prompt dipende da similarità e budget di token
+    @Value("${rag.prompt.chunk-candidati:8}")
+    private int chunkCandidati;
 
     @Autowired
     public RAGService(
             ChunkDocumentoRepository chunkDocumentoRepository,
-            DocumentoRepository documentoRepository,
             OrganizzazioneRepository organizzazioneRepository,
-            AIService aiService) {
+            AIService aiService,
+            CacheEmbeddingService cacheEmbeddingService,
+            CacheRisposteService cacheRisposteService,
+            IndiceVettorialeService indiceVettorialeService,
+            ComposizionePrompt composizionePrompt) {
         this.chunkDocumentoRepository = chunkDocumentoRepository;
-        this.documentoRepository = documentoRepository;
         this.organizzazioneRepository = organizzazioneRepository;
         this.aiService = aiService;
+        this.cacheEmbeddingService = cacheEmbeddingService;
+        this.cacheRisposteService = cacheRisposteService;
+        this.indiceVettorialeService = indiceVettorialeService;
+        this.composizionePrompt = composizionePrompt;
     }
 
-    public String processaQuery(String query, Long organizzazioneId, String contestoConversazione) {
+    /**
+     * Genera la risposta a una domanda usando i documenti dell'organizzazione.
+     * riassuntoConversazione copre i messaggi più vecchi, contestoConversazione gli ultimi messaggi così come sono.
+     */
+    public String processaQuery(String query, Long organizzazioneId, String riassuntoConversazione, String contestoConversazione) {
+        return processaQueryAsync(query, organizzazioneId, riassuntoConversazione, contestoConversazione).join();
+    }
+
+    /**
+     * Come processaQuery, senza tenere occupato il thread chiamante durante le chiamate all'API:
+     * l'organizzazione viene letta mentre l'embedding della domanda è in corso. Il future non fallisce.
+     */
+    public CompletableFuture<String> processaQueryAsync(String query, Long organizzazioneId,
+                                                        String riassuntoConversazione, String contestoConversazione) {
         try {
+            // 1. Genera embedding per la query
+            CompletableFuture<byte[]> embedding = cacheEmbeddingService.embeddingAsync(query, organizzazioneId);
+
             // Ottieni informazioni sull'organizzazione
             Organizzazione organizzazione = organizzazioneRepository.findById(organizzazioneId)
                     .orElse(null);
 
-            // 1. Genera embedding per la query
-            byte[] queryEmbedding = aiService.generaEmbedding(query);
-
-            // 2. Trova documenti rilevanti
-            List<ChunkDocumento> documentiRilevanti = trovaDocumentiRilevanti(queryEmbedding, organizzazioneId, 5);
-
-            // 3. Costruisci il prompt per l'IA
-            String prompt = costruisciPrompt(query, documentiRilevanti, contestoConversazione, organizzazione);
-
-            // 4. Genera risposta
-            return aiService.generaRisposta(prompt);
-
+            // Una risposta generata con la conversazione di un cliente può contenerne i dati e vale solo
+            // per quella conversazione: la cache delle risposte si usa solo per le domande senza conversazione
+            boolean senzaConversazione = isVuoto(riassuntoConversazione) && isVuoto(contestoConversazione);
+
+            return embedding.thenCompose(queryEmbedding -> {
+                        // Una domanda simile già risposta per l'organizzazione non richiede il modello di chat
+                        CacheRisposteService.Ricerca ricerca = senzaConversazione
+                                ? cacheRisposteService.cerca(organizzazioneId, query, queryEmbedding)
+                                : null;
+                        if (ricerca != null && ricerca.getRisposta() != null) {
+                            return CompletableFuture.completedFuture(ricerca.getRisposta());
+                        }
+
+                        // 2. Trova documenti rilevanti
+                        List<ComposizionePrompt.ChunkRilevante> documentiRilevanti =
+                                trovaDocumentiRilevanti(queryEmbedding, organizzazioneId, chunkCandidati);
+
+                        // 3. Costruisci il prompt per l'IA entro il budget di token
+                        ComposizionePrompt.Prompt prompt = composizionePrompt.componi(query, documentiRilevanti,
+                                riassuntoConversazione, contestoConversazione, organizzazione);
+
+                        // 4. Genera risposta
+                        return aiService.generaRispostaAsync(prompt.sistema(), prompt.utente()).thenApply(risposta -> {
+                            if (ricerca != null && !risposta.startsWith(AIService.PREFISSO_ERRORE)
+                                    && !aiService.isRispostaDiRiserva(risposta)) {
+                                cacheRisposteService.registra(ricerca, risposta);
+                            }
+                            return risposta;
+                        });
+                    })
+                    .exceptionally(this::rispostaDiErrore);
         } catch (Exception e) {
-            e.printStackTrace();
-            return "Mi dispiace, non sono in grado di rispondere a questa domanda al momento.";
+            return CompletableFuture.completedFuture(rispostaDiErrore(e));
         }
     }
 
-    private List<ChunkDocumento> trovaDocumentiRilevanti(byte[] queryEmbedding, Long organizzazioneId, int limite) {
-        // Ottieni tutti i chunk dei documenti dell'organizzazione
-        List<ChunkDocumento> tuttiChunks = new ArrayList<>();
-
-        // Ottieni tutti i documenti dell'organizzazione
-        List<Documento> documenti = documentoRepository.findByOrganizzazioneIdAndElaborato(organizzazioneId, true);
-
-        // Per ogni documento, ottieni i chunk
-        for (Documento documento : documenti) {
-            tuttiChunks.addAll(chunkDocumentoRepository.findByDocumentoId(documento.getId()));
-        }
-
-        // Calcola similarità coseno per ogni chunk
-        List<ChunkConPunteggio> chunksConPunteggio = tuttiChunks.stream()
-                .map(chunk -> new ChunkConPunteggio(chunk, calcolaSimilaritaCoseno(queryEmbedding, chunk.getEmbedding())))
-                .sorted(Comparator.comparing(ChunkConPunteggio::getPunteggio).reversed())
-                .limit(limite)
-                .collect(Collectors.toList());
-
-        // Estrai solo i chunk
-        return chunksConPunteggio.stream()
-                .map(ChunkConPunteggio::getChunk)
-                .collect(Collectors.toList());
+    private static boolean isVuoto(String testo) {
+        return testo == null || testo.isBlank();
     }
 
-    private float calcolaSimilaritaCoseno(byte[] embedding1, byte[] embedding2) {
-        float[] floatArray1 = byteArrayToFloatArray(embedding1);
-        float[] floatArray2 = byteArrayToFloatArray(embedding2);
-
-        float prodottoPuntato = 0.0f;
-        float norma1 = 0.0f;
-        float norma2 = 0.0f;
-
-        for (int i = 0; i < floatArray1.length; i++) {
-            prodottoPuntato += floatArray1[i] * floatArray2[i];
-            norma1 += floatArray1[i] * floatArray1[i];
-            norma2 += floatArray2[i] * floatArray2[i];
-        }
-
-        norma1 = (float) Math.sqrt(norma1);
-        norma2 = (float) Math.sqrt(norma2);
-
-        if (norma1 == 0 || norma2 == 0) {
-            return 0.0f;
-        }
-
-        return prodottoPuntato / (norma1 * norma2);
+    private String rispostaDiErrore(Throwable e) {
+        logger.error("Errore nell'elaborazione della query RAG", e);
+        return "Mi dispiace, non sono in grado di rispondere a questa domanda al momento.";
     }
 
-    private float[] byteArrayToFloatArray(byte[] byteArray) {
-        float[] floatArray = new float[byteArray.length / 4];
-
-        for (int i = 0; i < floatArray.length; i++) {
-            int intBits =
-                    (byteArray[i * 4] & 0xFF) |
-                            ((byteArray[i * 4 + 1] & 0xFF) << 8) |
-                            ((byteArray[i * 4 + 2] & 0xFF) << 16) |
-                            ((byteArray[i * 4 + 3] & 0xFF) << 24);
-
-            floatArray[i] = Float.intBitsToFloat(intBits);
+    private List<ComposizionePrompt.ChunkRilevante> trovaDocumentiRilevanti(byte[] queryEmbedding, Long organizzazioneId, int limite) {
+        if (queryEmbedding == null || queryEmbedding.length == 0) {
+            return new ArrayList<>();
         }
 
-        return floatArray;
-    }
-
-    private String costruisciPrompt(String query, List<ChunkDocumento> documentiRilevanti,
-                                    String contestoConversazione, Organizzazione organizzazione) {
-        StringBuilder promptBuilder = new StringBuilder();
-
-        // Istruzioni di base
-        promptBuilder.append("Sei un assistente virtuale WhatsApp per ");
-        if (organizzazione != null) {
-            promptBuilder.append("l'azienda " + organizzazione.getNome() + ". ");
-
-            if (organizzazione.getTonoDiVoce() != null && !organizzazione.getTonoDiVoce().isEmpty()) {
-                promptBuilder.append("Utilizza un tono " + organizzazione.getTonoDiVoce() + ". ");
-            }
+        // Cerca i chunk più simili nel database (pgvector) o nell'indice residente dell'organizzazione
+        List<RisultatoRicerca> risultati;
+        if (MOTORE_DATABASE.equalsIgnoreCase(motoreRicerca)) {
+            risultati = chunkDocumentoRepository.trovaPiuSimili(
+                    organizzazioneId, EmbeddingUtils.byteArrayToFloatArray(queryEmbedding), limite);
         } else {
-            promptBuilder.append("un'azienda. Utilizza un tono professionale ma amichevole. ");
+            risultati = indiceVettorialeService.cerca(organizzazioneId, queryEmbedding, limite);
         }
 
-        promptBuilder.append("Rispondi alla domanda dell'utente basandoti esclusivamente sulle informazioni fornite nei documenti sottostanti. ");
-        promptBuilder.append("Se non sei in grado di rispondere utilizzando solo queste informazioni, indica che le informazioni non sono disponibili. ");
-        promptBuilder.append("Le risposte devono essere concise e dirette, ideali per la lettura su WhatsApp (preferibilmente sotto i 200 caratteri).\n\n");
-
-        // Aggiungi contesto della conversazione se disponibile
-        if (contestoConversazione != null && !contestoConversazione.isEmpty()) {
-            promptBuilder.append("CONTESTO DELLA CONVERSAZIONE PRECEDENTE:\n");
-            promptBuilder.append(contestoConversazione).append("\n\n");
+        if (risultati.isEmpty()) {
+            return new ArrayList<>();
         }
 
-        // Aggiungi documenti rilevanti con punteggio di similarità
-        if (!documentiRilevanti.isEmpty()) {
-            promptBuilder.append("DOCUMENTI PERTINENTI ALLA DOMANDA:\n");
-
-            for (int i = 0; i < documentiRilevanti.size(); i++) {
-                ChunkDocumento chunk = documentiRilevanti.get(i);
-                promptBuilder.append("--- DOCUMENTO ").append(i + 1).append(": ");
-                promptBuilder.append(chunk.getDocumento().getTitolo()).append(" ---\n");
-                promptBuilder.append(chunk.getTestoChunk()).append("\n\n");
+        // Carica solo i chunk selezionati, mantenendo l'ordine e il punteggio della ricerca
+        List<Long> chunkIds = risultati.stream()
+                .map(RisultatoRicerca::chunkId)
+                .collect(Collectors.toList());
+        Map<Long, ChunkDocumento> chunkPerId = chunkDocumentoRepository.findAllById(chunkIds).stream()
+                .collect(Collectors.toMap(ChunkDocumento::getId, Function.identity()));
+
+        List<ComposizionePrompt.ChunkRilevante> rilevanti = new ArrayList<>(risultati.size());
+        for (RisultatoRicerca risultato : risultati) {
+            ChunkDocumento chunk = chunkPerId.get(risultato.chunkId());
+            if (chunk != null) {
+                rilevanti.add(new ComposizionePrompt.ChunkRilevante(chunk, risultato.punteggio()));
             }
-        } else {
-            promptBuilder.append("Non sono stati trovati documenti pertinenti alla tua domanda nel nostro database. ");
-            promptBuilder.append("Risponderò in base alle mie conoscenze generali, ma potrei non avere informazioni specifiche sull'argomento.\n\n");
-        }
-
-        // Aggiungi la query dell'utente
-        promptBuilder.append("DOMANDA DELL'UTENTE: ").append(query).append("\n\n");
-
-        // Linee guida per la risposta
-        promptBuilder.append("LINEE GUIDA PER LA RISPOSTA:\n");
-        promptBuilder.append("1. Sii conciso e diretto\n");
-        promptBuilder.append("2. Rispondi SOLO in base ai documenti forniti\n");
-        promptBuilder.append("3. Se l'informazione non è nei documenti, dillo chiaramente\n");
-        promptBuilder.append("4. Non inventare informazioni\n");
-        promptBuilder.append("5. Formato adatto a WhatsApp: risposte brevi e facilmente leggibili su mobile\n");
-        promptBuilder.append("6. Usa un linguaggio semplice e accessibile\n");
-
-        return promptBuilder.toString();
-    }
-
-    // Classe interna per la gestione dei punteggi
-    private static class ChunkConPunteggio {
-        private final ChunkDocumento chunk;
-        private final float punteggio;
-
-        public ChunkConPunteggio(ChunkDocumento chunk, float punteggio) {
-            this.chunk = chunk;
-            this.punteggio = punteggio;
-        }
-
-        public ChunkDocumento getChunk() {
-            return chunk;
-        }
-
-        public float getPunteggio() {
-            return punteggio;
         }
+        return rilevanti;
     }
-}
\ No newline at end of file
+}
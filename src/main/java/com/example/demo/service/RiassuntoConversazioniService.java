@@ -0,0 +1,227 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Messaggio;
+import com.example.demo.repository.ConversazioneRepository;
+import com.example.demo.repository.MessaggioRepository;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Riassunto progressivo delle conversazioni, salvato in Conversazione.contesto.
+ *
+ * Ogni whatsapp.riassunto.ogni-messaggi messaggi salvati, in background, i messaggi
+ * usciti dalla finestra dei più recenti vengono fusi nel riassunto esistente: il
+ * modello riceve solo il riassunto precedente e i messaggi nuovi, mai l'intera
+ * cronologia. Il prompt della risposta contiene così riassunto più ultimi messaggi,
+ * con una lunghezza che non cresce con la conversazione.
+ *
+ * Il riassunto può essere aggiornato da qualunque istanza: la copia in memoria scade
+ * dopo whatsapp.riassunto.cache-secondi dalla lettura, l'aggiornamento riparte sempre
+ * dallo stato salvato e viene scritto solo se nel frattempo nessuno lo ha cambiato.
+ */
+@Service
+public class RiassuntoConversazioniService {
+    private static final Logger logger = LoggerFactory.getLogger(RiassuntoConversazioniService.class);
+
+    static final String CHIAVE_RIASSUNTO = "riassunto";
+    static final String CHIAVE_FINO_A = "riassuntoFinoAMessaggio";
+    static final String CHIAVE_AGGIORNATO = "riassuntoAggiornato";
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * Riassunto salvato e id dell'ultimo messaggio che include (0 se nessuno)
+     */
+    record StatoRiassunto(String testo, long finoAMessaggioId) {
+        static final StatoRiassunto VUOTO = new StatoRiassunto(null, 0L);
+    }
+
+    private final ConversazioneRepository conversazioneRepository;
+    private final MessaggioRepository messaggioRepository;
+    private final CronologiaConversazioniService cronologiaConversazioniService;
+    private final AIService aiService;
+    private final ExecutorService executor;
+    private final Cache<Long, StatoRiassunto> riassunti;
+    private final Cache<Long, AtomicInteger> messaggiDaRiassumere;
+    private final Set<Long> aggiornamentiInCorso = ConcurrentHashMap.newKeySet();
+
+    // 0 = riassunto disattivato
+    @Value("${whatsapp.riassunto.ogni-messaggi:10}")
+    private int ogniMessaggi;
+
+    @Value("${whatsapp.riassunto.messaggi-per-aggiornamento:50}")
+    private int messaggiPerAggiornamento;
+
+    @Value("${whatsapp.riassunto.lunghezza-massima:1000}")
+    private int lunghezzaMassima;
+
+    @Autowired
+    public RiassuntoConversazioniService(
+            ConversazioneRepository conversazioneRepository,
+            MessaggioRepository messaggioRepository,
+            CronologiaConversazioniService cronologiaConversazioniService,
+            AIService aiService,
+            @Qualifier("elaborazioneMessaggiExecutor") ExecutorService executor,
+            @Value("${whatsapp.contesto.conversazioni:10000}") long conversazioni,
+            @Value("${whatsapp.contesto.durata-minuti:60}") long durataMinuti,
+            @Value("${whatsapp.riassunto.cache-secondi:30}") long cacheSecondi) {
+        this.conversazioneRepository = conversazioneRepository;
+        this.messaggioRepository = messaggioRepository;
+        this.cronologiaConversazioniService = cronologiaConversazioniService;
+        this.aiService = aiService;
+        this.executor = executor;
+        this.riassunti = Caffeine.newBuilder()
+                .maximumSize(conversazioni)
+                .expireAfterWrite(Duration.ofSeconds(cacheSecondi))
+                .build();
+        this.messaggiDaRiassumere = Caffeine.newBuilder()
+                .maximumSize(conversazioni)
+                .expireAfterAccess(Duration.ofMinutes(durataMinuti))
+                .build();
+    }
+
+    /**
+     * Conta un messaggio salvato nella conversazione e, ogni ogniMessaggi, avvia l'aggiornamento in background
+     */
+    public void registra(Long conversazioneId) {
+        if (ogniMessaggi <= 0 || conversazioneId == null) {
+            return;
+        }
+        AtomicInteger contatore = messaggiDaRiassumere.get(conversazioneId, id -> new AtomicInteger());
+        if (contatore.incrementAndGet() < ogniMessaggi || !aggiornamentiInCorso.add(conversazioneId)) {
+            return;
+        }
+
+        contatore.set(0);
+        try {
+            executor.execute(() -> {
+                try {
+                    aggiorna(conversazioneId);
+                } catch (Exception e) {
+                    logger.warn("Aggiornamento del riassunto della conversazione {} fallito: {}", conversazioneId, e.getMessage());
+                } finally {
+                    aggiornamentiInCorso.remove(conversazioneId);
+                }
+            });
+        } catch (RuntimeException e) {
+            aggiornamentiInCorso.remove(conversazioneId);
+            throw e;
+        }
+    }
+
+    /**
+     * Riassunto dei messaggi precedenti a quelli recenti, o null se la conversazione non ne ha ancora uno
+     */
+    public String riassunto(Long conversazioneId) {
+        return riassunti.get(conversazioneId, this::carica).testo();
+    }
+
+    /**
+     * Fonde nel riassunto i messaggi non ancora riassunti che sono già usciti dalla finestra dei recenti.
+     * Restituisce false se non c'era nulla da riassumere o la generazione è fallita.
+     */
+    boolean aggiorna(Long conversazioneId) {
+        // Lo stato in memoria può essere superato da un aggiornamento fatto da un'altra istanza
+        StatoRiassunto stato = carica(conversazioneId);
+
+        // I messaggi ancora nella finestra dei recenti vanno già nel prompt così come sono
+        List<CronologiaConversazioniService.VoceCronologia> recenti = cronologiaConversazioniService.ultimiMessaggi(conversazioneId);
+        if (recenti.isEmpty()) {
+            return false;
+        }
+        long primoRecente = recenti.get(0).id();
+
+        List<Messaggio> daRiassumere = messaggioRepository.findByConversazioneIdAndIdGreaterThanOrderByIdAsc(
+                        conversazioneId, stato.finoAMessaggioId(), PageRequest.of(0, messaggiPerAggiornamento))
+                .stream()
+                .filter(messaggio -> messaggio.getId() < primoRecente)
+                .toList();
+        if (daRiassumere.isEmpty()) {
+            return false;
+        }
+
+        String testo = aiService.generaRisposta(costruisciPrompt(stato.testo(), daRiassumere)).trim();
+        if (testo.isEmpty() || testo.startsWith(AIService.PREFISSO_ERRORE) || aiService.isRispostaDiRiserva(testo)) {
+            return false;
+        }
+        if (testo.length() > lunghezzaMassima) {
+            testo = testo.substring(0, lunghezzaMassima);
+        }
+
+        long finoA = daRiassumere.get(daRiassumere.size() - 1).getId();
+        Map<String, Object> modifiche = new HashMap<>();
+        modifiche.put(CHIAVE_RIASSUNTO, testo);
+        modifiche.put(CHIAVE_FINO_A, finoA);
+        modifiche.put(CHIAVE_AGGIORNATO, LocalDateTime.now().toString());
+        int aggiornate;
+        try {
+            aggiornate = conversazioneRepository.aggiornaRiassunto(conversazioneId,
+                    objectMapper.writeValueAsString(modifiche), stato.finoAMessaggioId());
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException(e);
+        }
+        if (aggiornate == 0) {
+            riassunti.invalidate(conversazioneId);
+            logger.info("Riassunto della conversazione {} aggiornato nel frattempo da un'altra istanza, scartato",
+                    conversazioneId);
+            return false;
+        }
+
+        riassunti.put(conversazioneId, new StatoRiassunto(testo, finoA));
+        logger.info("Riassunto della conversazione {} aggiornato con {} messaggi (fino al messaggio {})",
+                conversazioneId, daRiassumere.size(), finoA);
+        return true;
+    }
+
+    private String costruisciPrompt(String riassuntoPrecedente, List<Messaggio> messaggi) {
+        StringBuilder promptBuilder = new StringBuilder();
+        promptBuilder.append("Aggiorna il riassunto di una conversazione WhatsApp tra un cliente e l'assistente virtuale di un'azienda. ");
+        promptBuilder.append("Conserva solo i fatti utili per le risposte successive: richieste del cliente, dati che ha fornito, ");
+        promptBuilder.append("problemi ancora aperti e informazioni già date. Ometti saluti e ripetizioni. ");
+        promptBuilder.append("Massimo ").append(lunghezzaMassima).append(" caratteri.\n\n");
+
+        promptBuilder.append("RIASSUNTO ATTUALE:\n");
+        promptBuilder.append(riassuntoPrecedente != null ? riassuntoPrecedente : "(nessuno)").append("\n\n");
+
+        promptBuilder.append("NUOVI MESSAGGI:\n");
+        for (Messaggio messaggio : messaggi) {
+            String prefix = Boolean.TRUE.equals(messaggio.getDaCliente()) ? "Cliente: " : "Assistente: ";
+            promptBuilder.append(prefix).append(messaggio.getContenuto()).append("\n");
+        }
+
+        promptBuilder.append("\nRispondi solo con il riassunto aggiornato.");
+        return promptBuilder.toString();
+    }
+
+    private StatoRiassunto carica(Long conversazioneId) {
+        return conversazioneRepository.findById(conversazioneId)
+                .map(conversazione -> {
+                    Map<String, Object> contesto = conversazione.getContesto();
+                    Object testo = contesto.get(CHIAVE_RIASSUNTO);
+                    Object finoA = contesto.get(CHIAVE_FINO_A);
+                    return new StatoRiassunto(
+                            testo instanceof String s && !s.isEmpty() ? s : null,
+                            finoA instanceof Number n ? n.longValue() : 0L);
+                })
+                .orElse(StatoRiassunto.VUOTO);
+    }
+}
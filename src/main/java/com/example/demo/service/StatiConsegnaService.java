@@ -0,0 +1,233 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stati di consegna notificati da Twilio (status callback) per i messaggi inviati.
+ *
+ * Le notifiche vengono solo registrate in memoria, tenendo per ogni SID lo stato più
+ * avanzato, e scritte periodicamente con batch JDBC che cercano i messaggi
+ * tramite l'indice su messaggi.twilio_sid. Una notifica che arriva prima che il SID
+ * sia stato salvato sul messaggio viene riprovata alle scritture successive; una notifica
+ * superata da uno stato più avanzato già scritto viene semplicemente ignorata.
+ */
+@Service
+public class StatiConsegnaService {
+    private static final Logger logger = LoggerFactory.getLogger(StatiConsegnaService.class);
+
+    private static final Map<String, Integer> ORDINE_STATI = Map.of(
+            "accepted", 0, "scheduled", 0, "queued", 0,
+            "sending", 1,
+            "sent", 2,
+            "delivered", 3,
+            "read", 4,
+            "undelivered", 5, "failed", 5, "canceled", 5);
+
+    // Lo stato scritto non torna mai indietro: una notifica "sent" arrivata dopo "delivered" non ha effetto
+    static final String AGGIORNA_STATO = "UPDATE messaggi SET stato_consegna = ?, errore_consegna = ?, data_stato_consegna = ? " +
+            "WHERE twilio_sid = ? AND " + ordineSql("stato_consegna") + " <= ?";
+
+    private static final String SID_ESISTENTI = "SELECT twilio_sid FROM messaggi WHERE twilio_sid IN (%s)";
+
+    record Aggiornamento(String stato, int ordine, String codiceErrore, LocalDateTime ricevuto, int tentativi) {
+
+        Aggiornamento piuRecente(Aggiornamento altro) {
+            return altro.ordine >= ordine ? altro : this;
+        }
+    }
+
+    private final JdbcTemplate jdbcTemplate;
+    private final ExecutorService executor;
+    private final Map<String, Aggiornamento> inAttesa = new ConcurrentHashMap<>();
+    private final ReentrantLock scrittura = new ReentrantLock();
+    private final Counter notificheRicevute;
+    private final Counter aggiornamentiScritti;
+    private final Counter aggiornamentiScartati;
+
+    @Value("${whatsapp.stato.lotto:500}")
+    private int lotto;
+
+    // Scritture dopo le quali una notifica senza messaggio corrispondente viene scartata
+    @Value("${whatsapp.stato.tentativi:5}")
+    private int maxTentativi;
+
+    @Autowired
+    public StatiConsegnaService(JdbcTemplate jdbcTemplate,
+                                @Qualifier("elaborazioneMessaggiExecutor") ExecutorService executor,
+                                MeterRegistry meterRegistry) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.executor = executor;
+        this.notificheRicevute = Counter.builder("whatsapp.stato.notifiche")
+                .description("Notifiche di stato della consegna ricevute da Twilio")
+                .register(meterRegistry);
+        this.aggiornamentiScritti = Counter.builder("whatsapp.stato.aggiornamenti")
+                .description("Stati di consegna scritti sui messaggi")
+                .tag("esito", "scritto")
+                .register(meterRegistry);
+        this.aggiornamentiScartati = Counter.builder("whatsapp.stato.aggiornamenti")
+                .description("Stati di consegna scritti sui messaggi")
+                .tag("esito", "scartato")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Registra una notifica di stato; restituisce false se lo stato non riguarda un messaggio in uscita
+     */
+    public boolean registra(String messageSid, String stato, String codiceErrore) {
+        if (messageSid == null || messageSid.isEmpty() || stato == null) {
+            return false;
+        }
+        String statoNormalizzato = stato.toLowerCase();
+        Integer ordine = ORDINE_STATI.get(statoNormalizzato);
+        if (ordine == null) {
+            return false;
+        }
+
+        notificheRicevute.increment();
+        inAttesa.merge(messageSid, new Aggiornamento(statoNormalizzato, ordine, codiceErrore, LocalDateTime.now(), 0),
+                Aggiornamento::piuRecente);
+
+        // Con molte notifiche in arrivo la scrittura parte subito, senza attendere il prossimo intervallo
+        if (inAttesa.size() >= lotto && !scrittura.isLocked()) {
+            executor.execute(this::scriviAggiornamenti);
+        }
+        return true;
+    }
+
+    /**
+     * Scrive gli stati in attesa in batch JDBC di whatsapp.stato.lotto righe.
+     * Le notifiche rimesse in attesa vengono riprovate solo alla scrittura successiva.
+     */
+    @Scheduled(fixedDelayString = "${whatsapp.stato.scrittura-ms:1000}")
+    public void scriviAggiornamenti() {
+        if (!scrittura.tryLock()) {
+            return;
+        }
+        try {
+            List<Map.Entry<String, Aggiornamento>> daScrivere = preleva();
+            if (!daScrivere.isEmpty()) {
+                scrivi(daScrivere);
+            }
+        } catch (Exception e) {
+            logger.error("Errore nella scrittura degli stati di consegna: {}", e.getMessage());
+        } finally {
+            scrittura.unlock();
+        }
+    }
+
+    @PreDestroy
+    public void scriviPrimaDellaChiusura() {
+        scriviAggiornamenti();
+    }
+
+    int getInAttesa() {
+        return inAttesa.size();
+    }
+
+    private List<Map.Entry<String, Aggiornamento>> preleva() {
+        List<Map.Entry<String, Aggiornamento>> prelevati = new ArrayList<>(inAttesa.size());
+        for (String sid : inAttesa.keySet()) {
+            Aggiornamento aggiornamento = inAttesa.remove(sid);
+            if (aggiornamento != null) {
+                prelevati.add(Map.entry(sid, aggiornamento));
+            }
+        }
+        return prelevati;
+    }
+
+    private void scrivi(List<Map.Entry<String, Aggiornamento>> daScrivere) {
+        int[][] risultati;
+        try {
+            risultati = jdbcTemplate.batchUpdate(AGGIORNA_STATO, daScrivere, lotto, (ps, voce) -> {
+                Aggiornamento aggiornamento = voce.getValue();
+                ps.setString(1, aggiornamento.stato());
+                ps.setString(2, aggiornamento.codiceErrore());
+                ps.setTimestamp(3, Timestamp.valueOf(aggiornamento.ricevuto()));
+                ps.setString(4, voce.getKey());
+                ps.setInt(5, aggiornamento.ordine());
+            });
+        } catch (RuntimeException e) {
+            // Il lotto torna in attesa e verrà riscritto al prossimo giro
+            daScrivere.forEach(voce -> rimettiInAttesa(voce.getKey(), voce.getValue()));
+            throw e;
+        }
+
+        int scritti = 0;
+        int indice = 0;
+        List<Map.Entry<String, Aggiornamento>> senzaRighe = new ArrayList<>();
+        for (int[] batch : risultati) {
+            for (int righe : batch) {
+                Map.Entry<String, Aggiornamento> voce = daScrivere.get(indice++);
+                if (righe != 0) {
+                    scritti++;
+                } else {
+                    senzaRighe.add(voce);
+                }
+            }
+        }
+
+        // Nessuna riga: si riprova solo se il SID non è ancora salvato sul messaggio,
+        // non se il messaggio ha già uno stato più avanzato
+        Set<String> esistenti = sidEsistenti(senzaRighe);
+        for (Map.Entry<String, Aggiornamento> voce : senzaRighe) {
+            if (!esistenti.contains(voce.getKey())) {
+                rimettiInAttesa(voce.getKey(), voce.getValue());
+            }
+        }
+        aggiornamentiScritti.increment(scritti);
+        logger.debug("Scritti {} stati di consegna su {}", scritti, daScrivere.size());
+    }
+
+    private Set<String> sidEsistenti(List<Map.Entry<String, Aggiornamento>> voci) {
+        Set<String> esistenti = new HashSet<>();
+        for (int i = 0; i < voci.size(); i += lotto) {
+            List<String> sid = voci.subList(i, Math.min(i + lotto, voci.size())).stream().map(Map.Entry::getKey).toList();
+            String sql = String.format(SID_ESISTENTI, String.join(",", Collections.nCopies(sid.size(), "?")));
+            esistenti.addAll(jdbcTemplate.queryForList(sql, String.class, sid.toArray()));
+        }
+        return esistenti;
+    }
+
+    /**
+     * Espressione SQL che assegna a una colonna di stato il suo ordine, generata da ORDINE_STATI
+     */
+    private static String ordineSql(String colonna) {
+        StringBuilder sql = new StringBuilder("(CASE ").append(colonna);
+        ORDINE_STATI.entrySet().stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                .forEach(stato -> sql.append(" WHEN '").append(stato.getKey()).append("' THEN ").append(stato.getValue()));
+        return sql.append(" ELSE -1 END)").toString();
+    }
+
+    private void rimettiInAttesa(String sid, Aggiornamento aggiornamento) {
+        if (aggiornamento.tentativi() + 1 >= maxTentativi) {
+            aggiornamentiScartati.increment();
+            return;
+        }
+        Aggiornamento riprova = new Aggiornamento(aggiornamento.stato(), aggiornamento.ordine(),
+                aggiornamento.codiceErrore(), aggiornamento.ricevuto(), aggiornamento.tentativi() + 1);
+        inAttesa.merge(sid, riprova, Aggiornamento::piuRecente);
+    }
+}
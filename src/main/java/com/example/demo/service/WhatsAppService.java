@@ -1,31 +1,65 @@
 package com.example.demo.service;
 
 import com.example.demo.config.TwilioConfig;
+import com.example.demo.model.InvioWhatsApp;
 import com.example.demo.model.Messaggio;
 import com.example.demo.repository.ConversazioneRepository;
 import com.example.demo.repository.MessaggioRepository;
 import com.example.demo.repository.OrganizzazioneRepository;
+import com.example.demo.util.EsecutoreSerialePerChiave;
 import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.rest.api.v2010.account.MessageCreator;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.http.HttpEntity;
-import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Base64;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Service
 public class WhatsAppService {
+    private static final Logger logger = LoggerFactory.getLogger(WhatsAppService.class);
+
+    private static final int DIMENSIONE_BUFFER = 64 * 1024;
+
+    /**
+     * Allegato salvato su disco: percorso, dimensione in byte e SHA-256 esadecimale del contenuto
+     */
+    public record AllegatoScaricato(String percorso, long dimensione, String sha256) {
+    }
 
     private final ConversazioneRepository conversazioneRepository;
     private final MessaggioRepository messaggioRepository;
@@ -33,6 +67,18 @@ public class WhatsAppService {
     private final RAGService ragService;
     private final TwilioConfig twilioConfig;
     private final RestTemplate restTemplate;
+    private final CodaInviiWhatsAppService codaInviiWhatsAppService;
+    private final LimiteInviiService limiteInviiService;
+    private final ExecutorService executor;
+    private final EsecutoreSerialePerChiave<String> esecutorePerDestinatario;
+    private final AtomicBoolean svuotamentoInCorso = new AtomicBoolean();
+    private final AtomicLong profonditaCoda = new AtomicLong();
+    private final MeterRegistry meterRegistry;
+    private final DistributionSummary dimensioneAllegati;
+    private final Timer attesaInvio;
+    private final Semaphore inviiContemporanei;
+    // Invii accettati da Twilio ma non ancora registrati come inviati (id invio -> SID): non vanno rispediti
+    private final Map<Long, String> inviatiDaRegistrare = new ConcurrentHashMap<>();
 
     @Value("${twilio.whatsapp.number}")
     private String twilioPhoneNumber;
@@ -46,155 +92,332 @@ public class WhatsAppService {
     @Value("${file.upload-dir:uploads}")
     private String uploadDir;
 
+    @Value("${whatsapp.allegati.dimensione-massima-mb:16}")
+    private long dimensioneMassimaMb;
+
+    @Value("${whatsapp.invio.lotto:50}")
+    private int lottoInvii;
+
+    @Value("${whatsapp.invio.conservazione-giorni:7}")
+    private long giorniConservazione;
+
+    // URL pubblico di /webhook/whatsapp/stato; vuoto = Twilio non invia le notifiche di stato
+    @Value("${whatsapp.stato.callback-url:}")
+    private String urlNotificheStato;
+
     @Autowired
     public WhatsAppService(
             ConversazioneRepository conversazioneRepository,
             MessaggioRepository messaggioRepository,
             OrganizzazioneRepository organizzazioneRepository,
             RAGService ragService,
-            TwilioConfig twilioConfig) {
+            TwilioConfig twilioConfig,
+            CodaInviiWhatsAppService codaInviiWhatsAppService,
+            LimiteInviiService limiteInviiService,
+            @Qualifier("elaborazioneMessaggiExecutor") ExecutorService executor,
+            @Value("${whatsapp.invio.paralleli:8}") int inviiParalleli,
+            MeterRegistry meterRegistry,
+            @Value("${whatsapp.allegati.timeout-connessione-ms:5000}") int timeoutConnessioneMs,
+            @Value("${whatsapp.allegati.timeout-lettura-ms:30000}") int timeoutLetturaMs) {
         this.conversazioneRepository = conversazioneRepository;
         this.messaggioRepository = messaggioRepository;
         this.organizzazioneRepository = organizzazioneRepository;
         this.ragService = ragService;
         this.twilioConfig = twilioConfig;
-        this.restTemplate = new RestTemplate();
+        // Timeout espliciti: senza, un download bloccato terrebbe occupato per sempre un thread degli allegati
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(timeoutConnessioneMs);
+        requestFactory.setReadTimeout(timeoutLetturaMs);
+        this.restTemplate = new RestTemplate(requestFactory);
+        this.codaInviiWhatsAppService = codaInviiWhatsAppService;
+        this.limiteInviiService = limiteInviiService;
+        this.executor = executor;
+        this.esecutorePerDestinatario = new EsecutoreSerialePerChiave<>(executor);
+        this.inviiContemporanei = new Semaphore(Math.max(1, inviiParalleli));
+        this.meterRegistry = meterRegistry;
+        this.attesaInvio = Timer.builder("whatsapp.invio.attesa")
+                .description("Tempo tra l'accodamento di un messaggio e il suo invio a Twilio, compresi i tentativi")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        Gauge.builder("whatsapp.invio.coda", profonditaCoda, AtomicLong::get)
+                .description("Messaggi in attesa di invio o in corso su tutte le istanze")
+                .register(meterRegistry);
+        this.dimensioneAllegati = DistributionSummary.builder("whatsapp.allegati.dimensione")
+                .description("Dimensione degli allegati WhatsApp scaricati")
+                .baseUnit("bytes")
+                .register(meterRegistry);
     }
 
-    // Metodo di test per inviare un messaggio direttamente
+    /**
+     * Accoda un messaggio per il numero indicato, senza salvarlo nella conversazione.
+     * Restituisce false solo se non è stato possibile registrarlo nella coda di invio.
+     */
     public boolean inviaMessaggioTest(String numeroDestinatario, String contenuto) {
         try {
-            System.out.println("Test invio messaggio WhatsApp...");
-            System.out.println("Da: whatsapp:" + twilioPhoneNumber);
-            System.out.println("A: whatsapp:" + numeroDestinatario);
-            System.out.println("Contenuto: " + contenuto);
-
-            // Formatta i numeri di telefono
-            String whatsappFrom = "whatsapp:" + twilioPhoneNumber;
-            String whatsappTo = "whatsapp:" + numeroDestinatario;
-
-            // Stampa credenziali Twilio (parziali per sicurezza)
-            try {
-                String accountSid = com.twilio.Twilio.getRestClient().getAccountSid();
-                System.out.println("Account SID configurato: " +
-                        (accountSid != null ? accountSid.substring(0, 5) + "..." : "NULL"));
-            } catch (Exception e) {
-                System.err.println("Impossibile ottenere informazioni sul client Twilio: " + e.getMessage());
-            }
-
-            // Invia il messaggio tramite Twilio
-            Message message = Message.creator(
-                    new com.twilio.type.PhoneNumber(whatsappTo),
-                    new com.twilio.type.PhoneNumber(whatsappFrom),
-                    contenuto
-            ).create();
-
-            System.out.println("Messaggio di test inviato con successo! SID: " + message.getSid());
+            InvioWhatsApp invio = codaInviiWhatsAppService.accoda(twilioPhoneNumber, numeroDestinatario, contenuto, null);
+            logger.debug("Messaggio per {} accodato per l'invio (id {})", numeroDestinatario, invio.getId());
+            avviaInvii();
             return true;
         } catch (Exception e) {
-            System.err.println("Errore nell'invio del messaggio di test: " + e.getMessage());
-            e.printStackTrace();
+            logger.error("Errore nell'accodamento del messaggio WhatsApp: {}", e.getMessage());
             return false;
         }
     }
 
+    /**
+     * Accoda l'invio di un messaggio salvato; il SID di Twilio viene registrato sul messaggio dopo l'invio
+     */
     public void inviaRisposta(Messaggio messaggio) {
         try {
-            System.out.println("Preparazione invio risposta WhatsApp...");
-
-            // Prepara il numero di telefono completo del cliente
             String numeroCliente = messaggio.getConversazione().getTelefonoCliente();
+            InvioWhatsApp invio = codaInviiWhatsAppService.accoda(twilioPhoneNumber, numeroCliente,
+                    messaggio.getContenuto(), messaggio.getId());
+            logger.debug("Risposta {} accodata per l'invio (id {})", messaggio.getId(), invio.getId());
+            avviaInvii();
+        } catch (Exception e) {
+            logger.error("Errore nell'accodamento della risposta WhatsApp", e);
+        }
+    }
+
+    /**
+     * Avvia lo svuotamento della coda di invio, se non è già in corso su questa istanza.
+     * Lo svuotamento gira su un virtual thread: le attese del limitatore non bloccano lo scheduler.
+     */
+    @Scheduled(fixedDelayString = "${whatsapp.invio.polling-ms:1000}")
+    public void avviaInvii() {
+        if (!svuotamentoInCorso.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    svuotaCoda();
+                } catch (Exception e) {
+                    logger.error("Errore nello svuotamento della coda di invio: {}", e.getMessage());
+                } finally {
+                    svuotamentoInCorso.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            svuotamentoInCorso.set(false);
+            throw e;
+        }
+    }
 
-            // Per il sandbox WhatsApp, usiamo il formato "whatsapp:+numero"
-            String whatsappFrom = "whatsapp:" + twilioPhoneNumber;
-            String whatsappTo = "whatsapp:" + numeroCliente;
+    @Scheduled(fixedDelayString = "${whatsapp.invio.metriche-ms:10000}")
+    public void aggiornaProfonditaCoda() {
+        profonditaCoda.set(codaInviiWhatsAppService.contaDaInviare());
+    }
 
-            System.out.println("Invio da: " + whatsappFrom + " a: " + whatsappTo);
-            System.out.println("Contenuto: " + messaggio.getContenuto());
+    @Scheduled(fixedDelayString = "${whatsapp.invio.pulizia-ms:3600000}")
+    public void eliminaInviiConclusi() {
+        int eliminati = codaInviiWhatsAppService.eliminaInviatiPrimaDi(LocalDateTime.now().minusDays(giorniConservazione));
+        if (eliminati > 0) {
+            logger.info("Eliminati {} invii WhatsApp conclusi da più di {} giorni", eliminati, giorniConservazione);
+        }
+    }
 
-            // Invia il messaggio tramite Twilio
-            Message message = Message.creator(
-                    new com.twilio.type.PhoneNumber(whatsappTo),
-                    new com.twilio.type.PhoneNumber(whatsappFrom),
-                    messaggio.getContenuto()
-            ).create();
+    /**
+     * Reclama gli invii pronti a lotti e li passa all'invio rispettando la frequenza del mittente,
+     * condivisa con le altre istanze.
+     * Gli invii allo stesso destinatario partono uno dopo l'altro, nell'ordine di creazione:
+     * se un invio precedente è fallito e attende un nuovo tentativo, i successivi vengono
+     * rimessi in coda senza inviarli.
+     */
+    private void svuotaCoda() throws InterruptedException {
+        inviatiDaRegistrare.forEach(this::registraInviato);
+
+        List<InvioWhatsApp> pronti;
+        do {
+            pronti = codaInviiWhatsAppService.reclamaPronti(lottoInvii);
+            for (InvioWhatsApp invio : pronti) {
+                long attesa = limiteInviiService.riserva(invio.getMittente());
+                if (attesa > 0) {
+                    TimeUnit.NANOSECONDS.sleep(attesa);
+                }
+
+                inviiContemporanei.acquire();
+                esecutorePerDestinatario.esegui(invio.getDestinatario(), () -> {
+                    try {
+                        inviaNellOrdine(invio);
+                    } catch (Exception e) {
+                        // Resta in corso: verrà ripreso alla scadenza del timeout
+                        logger.error("Errore nell'invio {}: {}", invio.getId(), e.getMessage());
+                    } finally {
+                        inviiContemporanei.release();
+                    }
+                });
+            }
+        } while (pronti.size() == lottoInvii);
+    }
 
-            System.out.println("Messaggio inviato con successo, SID: " + message.getSid());
+    void inviaNellOrdine(InvioWhatsApp invio) {
+        if (!inviatiDaRegistrare.containsKey(invio.getId()) && codaInviiWhatsAppService.haInviiPrecedentiDaInviare(invio)) {
+            codaInviiWhatsAppService.rilascia(invio.getId());
+            logger.debug("Invio {} rimandato: a {} resta da inviare un messaggio precedente", invio.getId(), invio.getDestinatario());
+            return;
+        }
+        invia(invio);
+    }
 
-            // Aggiorna il messaggio con l'ID di Twilio
-            Map<String, Object> metadati = new HashMap<>();
-            metadati.put("twilioMessageSid", message.getSid());
+    void invia(InvioWhatsApp invio) {
+        // Già accettato da Twilio su questa istanza: manca solo la registrazione
+        String sidGiaInviato = inviatiDaRegistrare.get(invio.getId());
+        if (sidGiaInviato != null) {
+            registraInviato(invio.getId(), sidGiaInviato);
+            return;
+        }
 
-            // Impostare il campo documentiRiferiti come Map, non come stringa
-            messaggio.setDocumentiRiferiti(metadati);
-            messaggioRepository.save(messaggio);
+        long inizio = System.nanoTime();
+        String esito = "errore";
+        Message message;
+        try {
+            // Per WhatsApp i numeri vanno nel formato "whatsapp:+numero"
+            MessageCreator creator = Message.creator(
+                    new com.twilio.type.PhoneNumber("whatsapp:" + invio.getDestinatario()),
+                    new com.twilio.type.PhoneNumber("whatsapp:" + invio.getMittente()),
+                    invio.getContenuto());
+            // Twilio notifica sent/delivered/read/failed a questo indirizzo (vedi StatiConsegnaService)
+            if (urlNotificheStato != null && !urlNotificheStato.isEmpty()) {
+                creator.setStatusCallback(URI.create(urlNotificheStato));
+            }
+            message = creator.create();
+            esito = "ok";
+        } catch (com.twilio.exception.ApiException e) {
+            // 429 e 5xx sono temporanei; gli altri 4xx (numero non valido, contenuto rifiutato...) non cambiano ritentando
+            Integer stato = e.getStatusCode();
+            boolean ritentabile = stato == null || stato == 429 || stato >= 500;
+            codaInviiWhatsAppService.fallisci(invio.getId(),
+                    "Twilio " + stato + " (codice " + e.getCode() + "): " + e.getMessage(), ritentabile);
+            return;
+        } catch (Exception e) {
+            codaInviiWhatsAppService.fallisci(invio.getId(), e.getMessage(), true);
+            return;
+        } finally {
+            Timer.builder("whatsapp.invio.latenza")
+                    .description("Durata della chiamata a Twilio per l'invio di un messaggio")
+                    .tag("esito", esito)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
 
-            System.out.println("Messaggio aggiornato con metadati Twilio");
+        // Da qui il messaggio è partito: un errore nella registrazione non deve provocare un secondo invio
+        attesaInvio.record(Duration.between(invio.getDataCreazione(), LocalDateTime.now()));
+        logger.info("Messaggio {} inviato a {}, SID: {}", invio.getId(), invio.getDestinatario(), message.getSid());
+        registraInviato(invio.getId(), message.getSid());
+    }
 
+    /**
+     * Segna l'invio come concluso; se il database non risponde la registrazione
+     * viene riprovata al prossimo svuotamento della coda
+     */
+    private void registraInviato(Long invioId, String twilioSid) {
+        try {
+            codaInviiWhatsAppService.segnaInviato(invioId, twilioSid);
+            inviatiDaRegistrare.remove(invioId);
         } catch (Exception e) {
-            System.err.println("Errore nell'invio del messaggio WhatsApp: " + e.getMessage());
-            e.printStackTrace();
-
-            // Aggiungi dettagli sulla causa dell'errore
-            if (e instanceof com.twilio.exception.ApiException) {
-                com.twilio.exception.ApiException apiEx = (com.twilio.exception.ApiException) e;
-                System.err.println("Twilio API Error Code: " + apiEx.getCode());
-                System.err.println("Twilio API Error Message: " + apiEx.getMessage());
-            }
+            inviatiDaRegistrare.put(invioId, twilioSid);
+            logger.error("Invio {} accettato da Twilio (SID {}) ma non registrato, nuovo tentativo al prossimo svuotamento: {}",
+                    invioId, twilioSid, e.getMessage());
         }
     }
 
     /**
-     * Scarica un allegato multimediale da Twilio e lo salva sul disco
+     * Scarica un allegato multimediale da Twilio e lo salva sul disco.
+     *
+     * Il contenuto passa a blocchi dalla risposta HTTP al file, calcolando lo SHA-256 durante
+     * la copia: in memoria resta solo il buffer. Il file viene scritto con estensione .part
+     * e rinominato solo a download completato; oltre whatsapp.allegati.dimensione-massima-mb
+     * il download si interrompe e il file parziale viene eliminato.
      *
      * @param mediaUrl URL dell'allegato da Twilio
      * @param contentType Tipo di contenuto dell'allegato
      * @param originalFilename Nome del file originale (se disponibile)
-     * @return Percorso del file salvato
+     * @return Percorso, dimensione e SHA-256 del file salvato
      * @throws IOException In caso di problemi con il download o il salvataggio
      */
-    public String scaricaAllegato(String mediaUrl, String contentType, String originalFilename) throws IOException {
-        System.out.println("Avvio download dell'allegato: " + mediaUrl);
-
-        // Configura autenticazione Twilio
-        HttpHeaders headers = new HttpHeaders();
-        String auth = accountSid + ":" + authToken;
-        String authHeader = "Basic " + Base64.getEncoder().encodeToString(auth.getBytes());
-        headers.set("Authorization", authHeader);
-
-        // Esegui la richiesta per scaricare il file
-        HttpEntity<String> entity = new HttpEntity<>(headers);
-        ResponseEntity<byte[]> response = restTemplate.exchange(
-                mediaUrl, HttpMethod.GET, entity, byte[].class);
-
-        if (response.getStatusCode().is2xxSuccessful() && response.getBody() != null) {
-            // Determina estensione file in base al content type
-            String extension = getFileExtension(contentType, originalFilename);
-
-            // Crea directory se non esiste
-            String dirPath = uploadDir + "/whatsapp_media";
-            Files.createDirectories(Paths.get(dirPath));
-
-            // Genera un nome file univoco
-            String fileName = UUID.randomUUID().toString();
-            if (originalFilename != null && !originalFilename.isEmpty()) {
-                // Mantieni il nome originale del file ma con UUID come prefisso
-                fileName += "_" + originalFilename;
-            } else {
-                fileName += extension;
-            }
+    public AllegatoScaricato scaricaAllegato(String mediaUrl, String contentType, String originalFilename) throws IOException {
+        logger.debug("Avvio download dell'allegato: {}", mediaUrl);
 
-            // Salva il file
-            String filePath = dirPath + "/" + fileName;
-            Path path = Paths.get(filePath);
-            Files.write(path, response.getBody());
+        // Determina estensione file in base al content type
+        String extension = getFileExtension(contentType, originalFilename);
 
-            System.out.println("Allegato salvato con successo: " + filePath);
-            return filePath;
+        // Crea directory se non esiste
+        String dirPath = uploadDir + "/whatsapp_media";
+        Files.createDirectories(Paths.get(dirPath));
+
+        // Genera un nome file univoco
+        String fileName = UUID.randomUUID().toString();
+        if (originalFilename != null && !originalFilename.isEmpty()) {
+            // Mantieni il nome originale del file ma con UUID come prefisso
+            fileName += "_" + originalFilename;
         } else {
-            throw new IOException("Download del media fallito: " +
-                    response.getStatusCode() + " " + response.getStatusCodeValue());
+            fileName += extension;
+        }
+
+        String filePath = dirPath + "/" + fileName;
+        Path destinazione = Paths.get(filePath);
+        Path parziale = Paths.get(filePath + ".part");
+
+        long inizio = System.nanoTime();
+        String esito = "errore";
+        try {
+            AllegatoScaricato allegato = restTemplate.execute(mediaUrl, HttpMethod.GET,
+                    // Autenticazione Twilio
+                    request -> request.getHeaders().setBasicAuth(accountSid, authToken),
+                    response -> salvaInStreaming(response, parziale, destinazione));
+
+            esito = "ok";
+            dimensioneAllegati.record(allegato.dimensione());
+            logger.info("Allegato salvato: {} ({} byte)", filePath, allegato.dimensione());
+            return allegato;
+        } catch (RestClientException e) {
+            // Gli errori di I/O di salvaInStreaming arrivano avvolti da RestTemplate
+            if (e.getCause() instanceof IOException causa) {
+                throw causa;
+            }
+            throw new IOException("Download del media fallito: " + e.getMessage(), e);
+        } finally {
+            Files.deleteIfExists(parziale);
+            Timer.builder("whatsapp.allegati.download")
+                    .description("Durata del download di un allegato WhatsApp da Twilio")
+                    .tag("esito", esito)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - inizio, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private AllegatoScaricato salvaInStreaming(ClientHttpResponse response, Path parziale, Path destinazione) throws IOException {
+        long dimensioneMassima = dimensioneMassimaMb * 1024 * 1024;
+        long dichiarata = response.getHeaders().getContentLength();
+        if (dichiarata > dimensioneMassima) {
+            throw new IOException("Allegato troppo grande: " + dichiarata + " byte (massimo " + dimensioneMassima + ")");
+        }
+
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
         }
+
+        long scritti = 0;
+        byte[] buffer = new byte[DIMENSIONE_BUFFER];
+        try (InputStream in = response.getBody(); OutputStream out = Files.newOutputStream(parziale)) {
+            int letti;
+            while ((letti = in.read(buffer)) != -1) {
+                scritti += letti;
+                if (scritti > dimensioneMassima) {
+                    throw new IOException("Allegato troppo grande: oltre " + dimensioneMassima + " byte");
+                }
+                sha256.update(buffer, 0, letti);
+                out.write(buffer, 0, letti);
+            }
+        }
+
+        Files.move(parziale, destinazione, StandardCopyOption.ATOMIC_MOVE);
+        return new AllegatoScaricato(destinazione.toString(), scritti, HexFormat.of().formatHex(sha256.digest()));
     }
 
     /**
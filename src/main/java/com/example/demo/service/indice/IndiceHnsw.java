@@ -0,0 +1,521 @@
+package com.example.demo.service.indice;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice approssimato basato su un grafo HNSW (Hierarchical Navigable Small World).
+ *
+ * Parametri:
+ * - m: numero di vicini per nodo nei livelli superiori (2 * m al livello 0)
+ * - efConstruction: ampiezza della ricerca durante l'inserimento
+ * - efSearch: ampiezza della ricerca durante le query (più alto = recall migliore, latenza maggiore)
+ *
+ * Le rimozioni marcano i nodi come eliminati: restano attraversabili ma non vengono
+ * restituiti. Quando i nodi eliminati superano metà del grafo l'indice viene ricostruito.
+ */
+public class IndiceHnsw implements IndiceVettoriale {
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSIONE_FORMATO = 1;
+    private static final int CAPACITA_INIZIALE = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final KernelSimilarita kernel = KernelSimilarita.predefinito();
+    private final int m;
+    private final int mMax0;
+    private final int efConstruction;
+    private final double moltiplicatoreLivello;
+    private final Random random;
+    private volatile int efSearch;
+
+    private int dimensione;
+    private int numeroNodi;
+    private int numeroEliminati;
+    private float[] vettori = new float[0];
+    private long[] idChunk = new long[0];
+    private long[] idDocumento = new long[0];
+    private int[] livelli = new int[0];
+    // vicini[nodo][livello] = id dei nodi collegati
+    private int[][][] vicini = new int[0][][];
+    private final BitSet eliminati = new BitSet();
+    private int puntoIngresso = -1;
+    private int livelloMassimo = -1;
+
+    public IndiceHnsw(int m, int efConstruction, int efSearch) {
+        this(m, efConstruction, efSearch, 42L);
+    }
+
+    public IndiceHnsw(int m, int efConstruction, int efSearch, long seme) {
+        if (m < 2) {
+            throw new IllegalArgumentException("Il parametro m deve essere almeno 2");
+        }
+        this.m = m;
+        this.mMax0 = m * 2;
+        this.efConstruction = Math.max(efConstruction, m);
+        this.efSearch = Math.max(efSearch, 1);
+        this.moltiplicatoreLivello = 1.0 / Math.log(m);
+        this.random = new Random(seme);
+    }
+
+    @Override
+    public boolean aggiungi(long chunkId, long documentoId, float[] vettoreNormalizzato) {
+        lock.writeLock().lock();
+        try {
+            return inserisci(chunkId, documentoId, vettoreNormalizzato);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void sostituisciDocumento(long documentoId, long[] chunkIds, List<float[]> vettoriNormalizzati) {
+        lock.writeLock().lock();
+        try {
+            marcaEliminatiDocumento(documentoId);
+            for (int i = 0; i < chunkIds.length; i++) {
+                inserisci(chunkIds[i], documentoId, vettoriNormalizzati.get(i));
+            }
+            compattaSeNecessario();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int rimuoviDocumento(long documentoId) {
+        lock.writeLock().lock();
+        try {
+            int rimossi = marcaEliminatiDocumento(documentoId);
+            compattaSeNecessario();
+            return rimossi;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<RisultatoRicerca> cerca(float[] queryNormalizzata, int k) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || puntoIngresso < 0 || queryNormalizzata.length != dimensione) {
+                return new ArrayList<>();
+            }
+
+            int corrente = puntoIngresso;
+            for (int livello = livelloMassimo; livello > 0; livello--) {
+                corrente = ricercaGreedy(queryNormalizzata, corrente, livello);
+            }
+
+            int ef = Math.max(efSearch, k);
+            List<Candidato> trovati = ricercaLivello(queryNormalizzata, corrente, ef, 0, true);
+
+            List<RisultatoRicerca> risultati = new ArrayList<>(Math.min(k, trovati.size()));
+            for (Candidato candidato : trovati) {
+                if (risultati.size() == k) {
+                    break;
+                }
+                risultati.add(new RisultatoRicerca(idChunk[candidato.nodo], idDocumento[candidato.nodo],
+                        candidato.similarita));
+            }
+            return risultati;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumeroVettori() {
+        lock.readLock().lock();
+        try {
+            return numeroNodi - numeroEliminati;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getDimensione() {
+        lock.readLock().lock();
+        try {
+            return dimensione;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int getEfSearch() {
+        return efSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = Math.max(efSearch, 1);
+    }
+
+    /**
+     * Restituisce gli id dei documenti presenti nell'indice (esclusi quelli eliminati)
+     */
+    public Set<Long> getDocumentiIndicizzati() {
+        lock.readLock().lock();
+        try {
+            Set<Long> documenti = new HashSet<>();
+            for (int nodo = 0; nodo < numeroNodi; nodo++) {
+                if (!eliminati.get(nodo)) {
+                    documenti.add(idDocumento[nodo]);
+                }
+            }
+            return documenti;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Salva l'indice su disco. La scrittura avviene su un file temporaneo che
+     * sostituisce quello esistente solo a scrittura completata.
+     */
+    public void salva(Path percorso) throws IOException {
+        lock.readLock().lock();
+        try {
+            Files.createDirectories(percorso.toAbsolutePath().getParent());
+            Path temporaneo = percorso.resolveSibling(percorso.getFileName() + ".tmp");
+
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(temporaneo), 1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSIONE_FORMATO);
+                out.writeInt(m);
+                out.writeInt(efConstruction);
+                out.writeInt(dimensione);
+                out.writeInt(numeroNodi);
+                out.writeInt(puntoIngresso);
+                out.writeInt(livelloMassimo);
+
+                for (int nodo = 0; nodo < numeroNodi; nodo++) {
+                    out.writeLong(idChunk[nodo]);
+                    out.writeLong(idDocumento[nodo]);
+                    out.writeBoolean(eliminati.get(nodo));
+                    out.writeInt(livelli[nodo]);
+
+                    int offset = nodo * dimensione;
+                    for (int i = 0; i < dimensione; i++) {
+                        out.writeFloat(vettori[offset + i]);
+                    }
+
+                    for (int livello = 0; livello <= livelli[nodo]; livello++) {
+                        int[] collegati = vicini[nodo][livello];
+                        out.writeInt(collegati.length);
+                        for (int vicino : collegati) {
+                            out.writeInt(vicino);
+                        }
+                    }
+                }
+            }
+
+            Files.move(temporaneo, percorso, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Carica un indice salvato con {@link #salva(Path)}
+     */
+    public static IndiceHnsw carica(Path percorso, int efSearch) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(percorso), 1 << 16))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("File indice HNSW non valido: " + percorso);
+            }
+            int versione = in.readInt();
+            if (versione != VERSIONE_FORMATO) {
+                throw new IOException("Versione del file indice HNSW non supportata: " + versione);
+            }
+
+            IndiceHnsw indice = new IndiceHnsw(in.readInt(), in.readInt(), efSearch);
+            indice.dimensione = in.readInt();
+            int nodi = in.readInt();
+            indice.puntoIngresso = in.readInt();
+            indice.livelloMassimo = in.readInt();
+            indice.garantisciCapacita(nodi);
+
+            for (int nodo = 0; nodo < nodi; nodo++) {
+                indice.idChunk[nodo] = in.readLong();
+                indice.idDocumento[nodo] = in.readLong();
+                if (in.readBoolean()) {
+                    indice.eliminati.set(nodo);
+                    indice.numeroEliminati++;
+                }
+                int livelloNodo = in.readInt();
+                indice.livelli[nodo] = livelloNodo;
+
+                int offset = nodo * indice.dimensione;
+                for (int i = 0; i < indice.dimensione; i++) {
+                    indice.vettori[offset + i] = in.readFloat();
+                }
+
+                indice.vicini[nodo] = new int[livelloNodo + 1][];
+                for (int livello = 0; livello <= livelloNodo; livello++) {
+                    int[] collegati = new int[in.readInt()];
+                    for (int i = 0; i < collegati.length; i++) {
+                        collegati[i] = in.readInt();
+                    }
+                    indice.vicini[nodo][livello] = collegati;
+                }
+            }
+            indice.numeroNodi = nodi;
+            return indice;
+        }
+    }
+
+    private boolean inserisci(long chunkId, long documentoId, float[] vettore) {
+        if (vettore == null || vettore.length == 0) {
+            return false;
+        }
+        if (dimensione == 0) {
+            dimensione = vettore.length;
+        } else if (vettore.length != dimensione) {
+            return false;
+        }
+
+        int nodo = numeroNodi;
+        garantisciCapacita(nodo + 1);
+        System.arraycopy(vettore, 0, vettori, nodo * dimensione, dimensione);
+        idChunk[nodo] = chunkId;
+        idDocumento[nodo] = documentoId;
+
+        int livelloNodo = (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * moltiplicatoreLivello);
+        livelli[nodo] = livelloNodo;
+        vicini[nodo] = new int[livelloNodo + 1][];
+        for (int livello = 0; livello <= livelloNodo; livello++) {
+            vicini[nodo][livello] = new int[0];
+        }
+        numeroNodi++;
+
+        if (puntoIngresso < 0) {
+            puntoIngresso = nodo;
+            livelloMassimo = livelloNodo;
+            return true;
+        }
+
+        int corrente = puntoIngresso;
+        for (int livello = livelloMassimo; livello > livelloNodo; livello--) {
+            corrente = ricercaGreedy(vettore, corrente, livello);
+        }
+
+        for (int livello = Math.min(livelloNodo, livelloMassimo); livello >= 0; livello--) {
+            List<Candidato> candidati = ricercaLivello(vettore, corrente, efConstruction, livello, false);
+            int[] selezionati = selezionaVicini(candidati, m);
+            vicini[nodo][livello] = selezionati;
+
+            int capacita = livello == 0 ? mMax0 : m;
+            for (int vicino : selezionati) {
+                collega(vicino, nodo, livello, capacita);
+            }
+            corrente = candidati.get(0).nodo;
+        }
+
+        if (livelloNodo > livelloMassimo) {
+            livelloMassimo = livelloNodo;
+            puntoIngresso = nodo;
+        }
+        return true;
+    }
+
+    /**
+     * Aggiunge il collegamento origine -> destinazione; se la lista supera la capacità
+     * mantiene solo i vicini più simili a origine
+     */
+    private void collega(int origine, int destinazione, int livello, int capacita) {
+        int[] attuali = vicini[origine][livello];
+        int[] estesi = Arrays.copyOf(attuali, attuali.length + 1);
+        estesi[attuali.length] = destinazione;
+
+        if (estesi.length <= capacita) {
+            vicini[origine][livello] = estesi;
+            return;
+        }
+
+        int offsetOrigine = origine * dimensione;
+        List<Candidato> candidati = new ArrayList<>(estesi.length);
+        for (int vicino : estesi) {
+            candidati.add(new Candidato(vicino, similarita(vettori, offsetOrigine, vicino * dimensione)));
+        }
+        candidati.sort(Candidato.PER_SIMILARITA_DECRESCENTE);
+        vicini[origine][livello] = selezionaVicini(candidati, capacita);
+    }
+
+    private int[] selezionaVicini(List<Candidato> candidatiOrdinati, int quanti) {
+        int n = Math.min(quanti, candidatiOrdinati.size());
+        int[] selezionati = new int[n];
+        for (int i = 0; i < n; i++) {
+            selezionati[i] = candidatiOrdinati.get(i).nodo;
+        }
+        return selezionati;
+    }
+
+    private int ricercaGreedy(float[] query, int ingresso, int livello) {
+        int corrente = ingresso;
+        float migliore = similarita(query, corrente * dimensione);
+        boolean migliorato = true;
+
+        while (migliorato) {
+            migliorato = false;
+            for (int vicino : vicini[corrente][livello]) {
+                float s = similarita(query, vicino * dimensione);
+                if (s > migliore) {
+                    migliore = s;
+                    corrente = vicino;
+                    migliorato = true;
+                }
+            }
+        }
+        return corrente;
+    }
+
+    /**
+     * Ricerca best-first su un livello del grafo.
+     * Restituisce fino a ef candidati ordinati per similarità decrescente.
+     */
+    private List<Candidato> ricercaLivello(float[] query, int ingresso, int ef, int livello, boolean escludiEliminati) {
+        BitSet visitati = new BitSet(numeroNodi);
+        visitati.set(ingresso);
+
+        Candidato iniziale = new Candidato(ingresso, similarita(query, ingresso * dimensione));
+        PriorityQueue<Candidato> daEsplorare = new PriorityQueue<>(Candidato.PER_SIMILARITA_DECRESCENTE);
+        PriorityQueue<Candidato> migliori = new PriorityQueue<>(Candidato.PER_SIMILARITA_CRESCENTE);
+        daEsplorare.add(iniziale);
+        if (!escludiEliminati || !eliminati.get(ingresso)) {
+            migliori.add(iniziale);
+        }
+
+        while (!daEsplorare.isEmpty()) {
+            Candidato candidato = daEsplorare.poll();
+            if (migliori.size() >= ef && candidato.similarita < migliori.peek().similarita) {
+                break;
+            }
+
+            for (int vicino : vicini[candidato.nodo][livello]) {
+                if (visitati.get(vicino)) {
+                    continue;
+                }
+                visitati.set(vicino);
+
+                float s = similarita(query, vicino * dimensione);
+                if (migliori.size() < ef || s > migliori.peek().similarita) {
+                    Candidato nuovo = new Candidato(vicino, s);
+                    daEsplorare.add(nuovo);
+                    if (!escludiEliminati || !eliminati.get(vicino)) {
+                        migliori.add(nuovo);
+                        if (migliori.size() > ef) {
+                            migliori.poll();
+                        }
+                    }
+                }
+            }
+        }
+
+        List<Candidato> risultati = new ArrayList<>(migliori);
+        // Vuoto solo se tutti i nodi raggiunti sono eliminati: nessun risultato da restituire
+        risultati.sort(Candidato.PER_SIMILARITA_DECRESCENTE);
+        return risultati;
+    }
+
+    private int marcaEliminatiDocumento(long documentoId) {
+        int rimossi = 0;
+        for (int nodo = 0; nodo < numeroNodi; nodo++) {
+            if (idDocumento[nodo] == documentoId && !eliminati.get(nodo)) {
+                eliminati.set(nodo);
+                rimossi++;
+            }
+        }
+        numeroEliminati += rimossi;
+        return rimossi;
+    }
+
+    /**
+     * Ricostruisce il grafo con i soli nodi attivi quando quelli eliminati sono la maggioranza
+     */
+    private void compattaSeNecessario() {
+        if (numeroEliminati == 0 || numeroEliminati * 2 < numeroNodi) {
+            return;
+        }
+
+        float[] vecchiVettori = vettori;
+        long[] vecchiChunk = idChunk;
+        long[] vecchiDocumenti = idDocumento;
+        int vecchiNodi = numeroNodi;
+        BitSet vecchiEliminati = (BitSet) eliminati.clone();
+
+        numeroNodi = 0;
+        numeroEliminati = 0;
+        eliminati.clear();
+        puntoIngresso = -1;
+        livelloMassimo = -1;
+        vettori = new float[0];
+        idChunk = new long[0];
+        idDocumento = new long[0];
+        livelli = new int[0];
+        vicini = new int[0][][];
+
+        for (int nodo = 0; nodo < vecchiNodi; nodo++) {
+            if (!vecchiEliminati.get(nodo)) {
+                float[] vettore = Arrays.copyOfRange(vecchiVettori, nodo * dimensione, (nodo + 1) * dimensione);
+                inserisci(vecchiChunk[nodo], vecchiDocumenti[nodo], vettore);
+            }
+        }
+    }
+
+    private float similarita(float[] query, int offset) {
+        return kernel.prodottoScalare(query, 0, vettori, offset, dimensione);
+    }
+
+    private float similarita(float[] sorgente, int offsetSorgente, int offset) {
+        return kernel.prodottoScalare(sorgente, offsetSorgente, vettori, offset, dimensione);
+    }
+
+    private void garantisciCapacita(int nodiRichiesti) {
+        if (nodiRichiesti <= idChunk.length) {
+            return;
+        }
+        int nuovaCapacita = Math.max(CAPACITA_INIZIALE, idChunk.length * 2);
+        while (nuovaCapacita < nodiRichiesti) {
+            nuovaCapacita *= 2;
+        }
+        vettori = Arrays.copyOf(vettori, nuovaCapacita * dimensione);
+        idChunk = Arrays.copyOf(idChunk, nuovaCapacita);
+        idDocumento = Arrays.copyOf(idDocumento, nuovaCapacita);
+        livelli = Arrays.copyOf(livelli, nuovaCapacita);
+        vicini = Arrays.copyOf(vicini, nuovaCapacita);
+    }
+
+    private static final class Candidato {
+        static final Comparator<Candidato> PER_SIMILARITA_CRESCENTE =
+                (a, b) -> Float.compare(a.similarita, b.similarita);
+        static final Comparator<Candidato> PER_SIMILARITA_DECRESCENTE = PER_SIMILARITA_CRESCENTE.reversed();
+
+        final int nodo;
+        final float similarita;
+
+        Candidato(int nodo, float similarita) {
+            this.nodo = nodo;
+            this.similarita = similarita;
+        }
+    }
+}
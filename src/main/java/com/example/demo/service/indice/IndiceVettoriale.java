@@ -0,0 +1,37 @@
+package com.example.demo.service.indice;
+
+import java.util.List;
+
+/**
+ * Indice di ricerca vettoriale di un'organizzazione.
+ * Tutti i vettori (indicizzati e di query) devono essere già normalizzati,
+ * quindi il punteggio restituito corrisponde alla similarità coseno.
+ */
+public interface IndiceVettoriale {
+
+    /**
+     * Aggiunge un vettore. Restituisce false se il vettore è vuoto o ha una dimensione diversa da quella dell'indice.
+     */
+    boolean aggiungi(long chunkId, long documentoId, float[] vettoreNormalizzato);
+
+    /**
+     * Sostituisce tutti i vettori di un documento con quelli forniti
+     */
+    void sostituisciDocumento(long documentoId, long[] chunkIds, List<float[]> vettoriNormalizzati);
+
+    /**
+     * Rimuove tutti i vettori di un documento
+     *
+     * @return Numero di vettori rimossi
+     */
+    int rimuoviDocumento(long documentoId);
+
+    /**
+     * Restituisce i k vettori più simili alla query, ordinati per punteggio decrescente
+     */
+    List<RisultatoRicerca> cerca(float[] queryNormalizzata, int k);
+
+    int getNumeroVettori();
+
+    int getDimensione();
+}
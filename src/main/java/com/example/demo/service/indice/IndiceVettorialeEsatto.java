@@ -0,0 +1,163 @@
+package com.example.demo.service.indice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice vettoriale residente in memoria per una singola organizzazione.
+ *
+ * I vettori sono salvati già normalizzati in un unico buffer float contiguo
+ * (riga i = elementi [i * dimensione, (i + 1) * dimensione)), così la similarità
+ * coseno si riduce a un prodotto scalare. La ricerca top-k usa un min-heap
+ * limitato a k elementi invece di ordinare tutti i punteggi.
+ */
+public class IndiceVettorialeEsatto implements IndiceVettoriale {
+
+    private static final int CAPACITA_INIZIALE = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final KernelSimilarita kernel = KernelSimilarita.predefinito();
+
+    private int dimensione;
+    private int numeroVettori;
+    private float[] vettori = new float[0];
+    private long[] idChunk = new long[0];
+    private long[] idDocumento = new long[0];
+
+    @Override
+    public boolean aggiungi(long chunkId, long documentoId, float[] vettoreNormalizzato) {
+        lock.writeLock().lock();
+        try {
+            return aggiungiSenzaLock(chunkId, documentoId, vettoreNormalizzato);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void sostituisciDocumento(long documentoId, long[] chunkIds, List<float[]> vettoriNormalizzati) {
+        lock.writeLock().lock();
+        try {
+            rimuoviDocumentoSenzaLock(documentoId);
+            for (int i = 0; i < chunkIds.length; i++) {
+                aggiungiSenzaLock(chunkIds[i], documentoId, vettoriNormalizzati.get(i));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int rimuoviDocumento(long documentoId) {
+        lock.writeLock().lock();
+        try {
+            return rimuoviDocumentoSenzaLock(documentoId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<RisultatoRicerca> cerca(float[] queryNormalizzata, int k) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || numeroVettori == 0 || queryNormalizzata.length != dimensione) {
+                return new ArrayList<>();
+            }
+
+            PriorityQueue<RisultatoRicerca> heap = new PriorityQueue<>(k + 1,
+                    Comparator.comparingDouble(RisultatoRicerca::punteggio));
+
+            for (int riga = 0; riga < numeroVettori; riga++) {
+                float punteggio = kernel.prodottoScalare(queryNormalizzata, 0, vettori, riga * dimensione, dimensione);
+
+                if (heap.size() < k) {
+                    heap.add(new RisultatoRicerca(idChunk[riga], idDocumento[riga], punteggio));
+                } else if (punteggio > heap.peek().punteggio()) {
+                    heap.poll();
+                    heap.add(new RisultatoRicerca(idChunk[riga], idDocumento[riga], punteggio));
+                }
+            }
+
+            List<RisultatoRicerca> risultati = new ArrayList<>(heap);
+            risultati.sort(Comparator.comparingDouble(RisultatoRicerca::punteggio).reversed());
+            return risultati;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumeroVettori() {
+        lock.readLock().lock();
+        try {
+            return numeroVettori;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getDimensione() {
+        lock.readLock().lock();
+        try {
+            return dimensione;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private boolean aggiungiSenzaLock(long chunkId, long documentoId, float[] vettore) {
+        if (vettore == null || vettore.length == 0) {
+            return false;
+        }
+        if (dimensione == 0) {
+            dimensione = vettore.length;
+        } else if (vettore.length != dimensione) {
+            return false;
+        }
+
+        garantisciCapacita(numeroVettori + 1);
+        System.arraycopy(vettore, 0, vettori, numeroVettori * dimensione, dimensione);
+        idChunk[numeroVettori] = chunkId;
+        idDocumento[numeroVettori] = documentoId;
+        numeroVettori++;
+        return true;
+    }
+
+    private int rimuoviDocumentoSenzaLock(long documentoId) {
+        int scrittura = 0;
+        for (int lettura = 0; lettura < numeroVettori; lettura++) {
+            if (idDocumento[lettura] == documentoId) {
+                continue;
+            }
+            if (scrittura != lettura) {
+                System.arraycopy(vettori, lettura * dimensione, vettori, scrittura * dimensione, dimensione);
+                idChunk[scrittura] = idChunk[lettura];
+                idDocumento[scrittura] = idDocumento[lettura];
+            }
+            scrittura++;
+        }
+
+        int rimossi = numeroVettori - scrittura;
+        numeroVettori = scrittura;
+        return rimossi;
+    }
+
+    private void garantisciCapacita(int righeRichieste) {
+        if (righeRichieste <= idChunk.length) {
+            return;
+        }
+        int nuovaCapacita = Math.max(CAPACITA_INIZIALE, idChunk.length * 2);
+        while (nuovaCapacita < righeRichieste) {
+            nuovaCapacita *= 2;
+        }
+        vettori = Arrays.copyOf(vettori, nuovaCapacita * dimensione);
+        idChunk = Arrays.copyOf(idChunk, nuovaCapacita);
+        idDocumento = Arrays.copyOf(idDocumento, nuovaCapacita);
+    }
+}
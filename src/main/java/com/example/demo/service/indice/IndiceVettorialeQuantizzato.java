@@ -0,0 +1,265 @@
+package com.example.demo.service.indice;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Indice a scansione completa su embedding quantizzati (int8 oppure binari).
+ *
+ * Occupa da 4 (int8) a 32 (binario) volte meno memoria dell'indice esatto, ma i
+ * punteggi sono approssimati: la ricerca va usata per ottenere una lista di candidati
+ * più ampia di k, da riordinare con {@link #riordina} sui vettori a precisione piena.
+ */
+public class IndiceVettorialeQuantizzato implements IndiceVettoriale {
+
+    private static final int CAPACITA_INIZIALE = 64;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final boolean binario;
+
+    private int dimensione;
+    // int8: byte per riga = dimensione, binario: long per riga = parole
+    private int parole;
+    private int numeroVettori;
+    private byte[] codiciInt8 = new byte[0];
+    private float[] scale = new float[0];
+    private long[] bit = new long[0];
+    private long[] idChunk = new long[0];
+    private long[] idDocumento = new long[0];
+
+    public IndiceVettorialeQuantizzato(String tipo) {
+        if (QuantizzazioneEmbedding.TIPO_BINARIA.equalsIgnoreCase(tipo)) {
+            this.binario = true;
+        } else if (QuantizzazioneEmbedding.TIPO_INT8.equalsIgnoreCase(tipo)) {
+            this.binario = false;
+        } else {
+            throw new IllegalArgumentException("Tipo di quantizzazione non supportato: " + tipo);
+        }
+    }
+
+    @Override
+    public boolean aggiungi(long chunkId, long documentoId, float[] vettoreNormalizzato) {
+        if (vettoreNormalizzato == null || vettoreNormalizzato.length == 0) {
+            return false;
+        }
+        return aggiungiCodificato(chunkId, documentoId, vettoreNormalizzato.length, quantizza(vettoreNormalizzato));
+    }
+
+    /**
+     * Aggiunge un embedding già quantizzato (come salvato in ChunkDocumento),
+     * senza bisogno del vettore float
+     */
+    public boolean aggiungiCodificato(long chunkId, long documentoId, int dimensioneVettore, byte[] codice) {
+        lock.writeLock().lock();
+        try {
+            return aggiungiSenzaLock(chunkId, documentoId, dimensioneVettore, codice);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void sostituisciDocumento(long documentoId, long[] chunkIds, List<float[]> vettoriNormalizzati) {
+        lock.writeLock().lock();
+        try {
+            rimuoviDocumentoSenzaLock(documentoId);
+            for (int i = 0; i < chunkIds.length; i++) {
+                float[] vettore = vettoriNormalizzati.get(i);
+                if (vettore != null && vettore.length > 0) {
+                    aggiungiSenzaLock(chunkIds[i], documentoId, vettore.length, quantizza(vettore));
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int rimuoviDocumento(long documentoId) {
+        lock.writeLock().lock();
+        try {
+            return rimuoviDocumentoSenzaLock(documentoId);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<RisultatoRicerca> cerca(float[] queryNormalizzata, int k) {
+        lock.readLock().lock();
+        try {
+            if (k <= 0 || numeroVettori == 0 || queryNormalizzata.length != dimensione) {
+                return new ArrayList<>();
+            }
+
+            long[] queryBit = binario
+                    ? QuantizzazioneEmbedding.comeLong(QuantizzazioneEmbedding.quantizzaBinario(queryNormalizzata), parole)
+                    : null;
+
+            PriorityQueue<RisultatoRicerca> heap = new PriorityQueue<>(k + 1,
+                    Comparator.comparingDouble(RisultatoRicerca::punteggio));
+
+            for (int riga = 0; riga < numeroVettori; riga++) {
+                float punteggio = binario ? punteggioBinario(queryBit, riga) : punteggioInt8(queryNormalizzata, riga);
+
+                if (heap.size() < k) {
+                    heap.add(new RisultatoRicerca(idChunk[riga], idDocumento[riga], punteggio));
+                } else if (punteggio > heap.peek().punteggio()) {
+                    heap.poll();
+                    heap.add(new RisultatoRicerca(idChunk[riga], idDocumento[riga], punteggio));
+                }
+            }
+
+            List<RisultatoRicerca> risultati = new ArrayList<>(heap);
+            risultati.sort(Comparator.comparingDouble(RisultatoRicerca::punteggio).reversed());
+            return risultati;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getNumeroVettori() {
+        lock.readLock().lock();
+        try {
+            return numeroVettori;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int getDimensione() {
+        lock.readLock().lock();
+        try {
+            return dimensione;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean isBinario() {
+        return binario;
+    }
+
+    /**
+     * Quantizza un vettore normalizzato nel formato usato da questo indice
+     */
+    public byte[] quantizza(float[] vettoreNormalizzato) {
+        return binario
+                ? QuantizzazioneEmbedding.quantizzaBinario(vettoreNormalizzato)
+                : QuantizzazioneEmbedding.quantizzaInt8(vettoreNormalizzato);
+    }
+
+    /**
+     * Ricalcola il punteggio dei candidati con i vettori a precisione piena e tiene i migliori k.
+     * I candidati senza vettore completo vengono scartati.
+     */
+    public static List<RisultatoRicerca> riordina(List<RisultatoRicerca> candidati, Map<Long, float[]> vettoriCompleti,
+                                                  float[] queryNormalizzata, int k) {
+        KernelSimilarita kernel = KernelSimilarita.predefinito();
+        List<RisultatoRicerca> riordinati = new ArrayList<>(candidati.size());
+        for (RisultatoRicerca candidato : candidati) {
+            float[] vettore = vettoriCompleti.get(candidato.chunkId());
+            if (vettore != null && vettore.length == queryNormalizzata.length) {
+                riordinati.add(new RisultatoRicerca(candidato.chunkId(), candidato.documentoId(),
+                        kernel.prodottoScalare(queryNormalizzata, vettore)));
+            }
+        }
+        riordinati.sort(Comparator.comparingDouble(RisultatoRicerca::punteggio).reversed());
+        return riordinati.size() > k ? new ArrayList<>(riordinati.subList(0, k)) : riordinati;
+    }
+
+    private float punteggioInt8(float[] query, int riga) {
+        int offset = riga * dimensione;
+        float somma = 0.0f;
+        for (int i = 0; i < dimensione; i++) {
+            somma += query[i] * codiciInt8[offset + i];
+        }
+        return somma * scale[riga];
+    }
+
+    /**
+     * Per vettori normalizzati la similarità coseno è stimata da 1 - 2 * hamming / dimensione
+     */
+    private float punteggioBinario(long[] query, int riga) {
+        int offset = riga * parole;
+        int hamming = 0;
+        for (int i = 0; i < parole; i++) {
+            hamming += Long.bitCount(query[i] ^ bit[offset + i]);
+        }
+        return 1.0f - 2.0f * hamming / dimensione;
+    }
+
+    private boolean aggiungiSenzaLock(long chunkId, long documentoId, int dimensioneVettore, byte[] codice) {
+        int byteAttesi = binario ? (dimensioneVettore + 7) / 8 : dimensioneVettore + 4;
+        if (codice == null || dimensioneVettore == 0 || codice.length != byteAttesi) {
+            return false;
+        }
+        if (dimensione == 0) {
+            dimensione = dimensioneVettore;
+            parole = (dimensioneVettore + 63) / 64;
+        } else if (dimensioneVettore != dimensione) {
+            return false;
+        }
+
+        garantisciCapacita(numeroVettori + 1);
+        if (binario) {
+            System.arraycopy(QuantizzazioneEmbedding.comeLong(codice, parole), 0, bit, numeroVettori * parole, parole);
+        } else {
+            scale[numeroVettori] = QuantizzazioneEmbedding.scalaInt8(codice);
+            System.arraycopy(codice, 4, codiciInt8, numeroVettori * dimensione, dimensione);
+        }
+        idChunk[numeroVettori] = chunkId;
+        idDocumento[numeroVettori] = documentoId;
+        numeroVettori++;
+        return true;
+    }
+
+    private int rimuoviDocumentoSenzaLock(long documentoId) {
+        int scrittura = 0;
+        for (int lettura = 0; lettura < numeroVettori; lettura++) {
+            if (idDocumento[lettura] == documentoId) {
+                continue;
+            }
+            if (scrittura != lettura) {
+                if (binario) {
+                    System.arraycopy(bit, lettura * parole, bit, scrittura * parole, parole);
+                } else {
+                    System.arraycopy(codiciInt8, lettura * dimensione, codiciInt8, scrittura * dimensione, dimensione);
+                    scale[scrittura] = scale[lettura];
+                }
+                idChunk[scrittura] = idChunk[lettura];
+                idDocumento[scrittura] = idDocumento[lettura];
+            }
+            scrittura++;
+        }
+
+        int rimossi = numeroVettori - scrittura;
+        numeroVettori = scrittura;
+        return rimossi;
+    }
+
+    private void garantisciCapacita(int righeRichieste) {
+        if (righeRichieste <= idChunk.length) {
+            return;
+        }
+        int nuovaCapacita = Math.max(CAPACITA_INIZIALE, idChunk.length * 2);
+        while (nuovaCapacita < righeRichieste) {
+            nuovaCapacita *= 2;
+        }
+        if (binario) {
+            bit = Arrays.copyOf(bit, nuovaCapacita * parole);
+        } else {
+            codiciInt8 = Arrays.copyOf(codiciInt8, nuovaCapacita * dimensione);
+            scale = Arrays.copyOf(scale, nuovaCapacita);
+        }
+        idChunk = Arrays.copyOf(idChunk, nuovaCapacita);
+        idDocumento = Arrays.copyOf(idDocumento, nuovaCapacita);
+    }
+}
@@ -0,0 +1,30 @@
+package com.example.demo.service.indice;
+
+/**
+ * Implementazione scalare, usata quando la Vector API non è disponibile.
+ * Quattro accumulatori indipendenti permettono alla CPU di sovrapporre le somme.
+ */
+public class KernelScalare implements KernelSimilarita {
+
+    @Override
+    public float prodottoScalare(float[] a, int offsetA, float[] b, int offsetB, int lunghezza) {
+        float s0 = 0.0f, s1 = 0.0f, s2 = 0.0f, s3 = 0.0f;
+        int i = 0;
+        int limite = lunghezza - (lunghezza % 4);
+        for (; i < limite; i += 4) {
+            s0 += a[offsetA + i] * b[offsetB + i];
+            s1 += a[offsetA + i + 1] * b[offsetB + i + 1];
+            s2 += a[offsetA + i + 2] * b[offsetB + i + 2];
+            s3 += a[offsetA + i + 3] * b[offsetB + i + 3];
+        }
+        for (; i < lunghezza; i++) {
+            s0 += a[offsetA + i] * b[offsetB + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public String getNome() {
+        return "scalare";
+    }
+}
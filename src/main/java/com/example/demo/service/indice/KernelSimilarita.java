@@ -0,0 +1,40 @@
+package com.example.demo.service.indice;
+
+/**
+ * Kernel di calcolo per i prodotti scalari tra embedding.
+ *
+ * L'implementazione predefinita usa la Vector API (jdk.incubator.vector) quando il modulo
+ * è abilitato con --add-modules jdk.incubator.vector, altrimenti un ciclo scalare.
+ * Per forzare la versione scalare: -Dyovendo.simd=false
+ */
+public interface KernelSimilarita {
+
+    /**
+     * Prodotto scalare tra a[offsetA, offsetA + lunghezza) e b[offsetB, offsetB + lunghezza)
+     */
+    float prodottoScalare(float[] a, int offsetA, float[] b, int offsetB, int lunghezza);
+
+    default float prodottoScalare(float[] a, float[] b) {
+        return prodottoScalare(a, 0, b, 0, Math.min(a.length, b.length));
+    }
+
+    /**
+     * Similarità coseno con norme già calcolate
+     */
+    default float similaritaCoseno(float[] a, float normaA, float[] b, float normaB) {
+        if (normaA == 0 || normaB == 0) {
+            return 0.0f;
+        }
+        return prodottoScalare(a, b) / (normaA * normaB);
+    }
+
+    default float norma(float[] vettore) {
+        return (float) Math.sqrt(prodottoScalare(vettore, vettore));
+    }
+
+    String getNome();
+
+    static KernelSimilarita predefinito() {
+        return SelezioneKernel.ISTANZA;
+    }
+}
@@ -0,0 +1,47 @@
+package com.example.demo.service.indice;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Implementazione SIMD basata su jdk.incubator.vector.
+ * Richiede --add-modules jdk.incubator.vector sia in compilazione che a runtime:
+ * non va istanziata direttamente ma tramite {@link KernelSimilarita#predefinito()}.
+ */
+class KernelVettoriale implements KernelSimilarita {
+
+    private static final VectorSpecies<Float> SPECIE = FloatVector.SPECIES_PREFERRED;
+
+    @Override
+    public float prodottoScalare(float[] a, int offsetA, float[] b, int offsetB, int lunghezza) {
+        int passo = SPECIE.length();
+        int limite = SPECIE.loopBound(lunghezza);
+
+        // Due accumulatori per nascondere la latenza delle fma
+        FloatVector somma1 = FloatVector.zero(SPECIE);
+        FloatVector somma2 = FloatVector.zero(SPECIE);
+        int i = 0;
+        for (; i + passo < limite; i += 2 * passo) {
+            somma1 = FloatVector.fromArray(SPECIE, a, offsetA + i)
+                    .fma(FloatVector.fromArray(SPECIE, b, offsetB + i), somma1);
+            somma2 = FloatVector.fromArray(SPECIE, a, offsetA + i + passo)
+                    .fma(FloatVector.fromArray(SPECIE, b, offsetB + i + passo), somma2);
+        }
+        for (; i < limite; i += passo) {
+            somma1 = FloatVector.fromArray(SPECIE, a, offsetA + i)
+                    .fma(FloatVector.fromArray(SPECIE, b, offsetB + i), somma1);
+        }
+
+        float risultato = somma1.add(somma2).reduceLanes(VectorOperators.ADD);
+        for (; i < lunghezza; i++) {
+            risultato += a[offsetA + i] * b[offsetB + i];
+        }
+        return risultato;
+    }
+
+    @Override
+    public String getNome() {
+        return "simd-" + SPECIE.vectorBitSize() + "bit";
+    }
+}
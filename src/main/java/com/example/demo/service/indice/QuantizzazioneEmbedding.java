@@ -0,0 +1,64 @@
+package com.example.demo.service.indice;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Rappresentazioni compatte degli embedding normalizzati.
+ *
+ * - int8: 4 byte con la scala (float little-endian) seguiti da un byte con segno per componente,
+ *   valore ≈ codice * scala. Un embedding ada-002 passa da 6 KB a circa 1.5 KB.
+ * - binaria: un bit per componente (1 se la componente è >= 0), 192 byte per ada-002.
+ */
+public final class QuantizzazioneEmbedding {
+
+    public static final String TIPO_INT8 = "int8";
+    public static final String TIPO_BINARIA = "binaria";
+
+    private QuantizzazioneEmbedding() {
+    }
+
+    public static byte[] quantizzaInt8(float[] vettore) {
+        float massimo = 0.0f;
+        for (float valore : vettore) {
+            massimo = Math.max(massimo, Math.abs(valore));
+        }
+        float scala = massimo == 0 ? 1.0f : massimo / 127.0f;
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + vettore.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putFloat(scala);
+        for (float valore : vettore) {
+            buffer.put((byte) Math.round(valore / scala));
+        }
+        return buffer.array();
+    }
+
+    public static float scalaInt8(byte[] codificato) {
+        return ByteBuffer.wrap(codificato, 0, 4).order(ByteOrder.LITTLE_ENDIAN).getFloat();
+    }
+
+    public static int dimensioneInt8(byte[] codificato) {
+        return codificato.length - 4;
+    }
+
+    public static byte[] quantizzaBinario(float[] vettore) {
+        byte[] bit = new byte[(vettore.length + 7) / 8];
+        for (int i = 0; i < vettore.length; i++) {
+            if (vettore[i] >= 0) {
+                bit[i >> 3] |= (byte) (1 << (i & 7));
+            }
+        }
+        return bit;
+    }
+
+    /**
+     * Raggruppa i bit in long per il calcolo della distanza di Hamming con Long.bitCount
+     */
+    public static long[] comeLong(byte[] bit, int parole) {
+        long[] risultato = new long[parole];
+        for (int i = 0; i < bit.length; i++) {
+            risultato[i >> 3] |= (bit[i] & 0xFFL) << ((i & 7) * 8);
+        }
+        return risultato;
+    }
+}
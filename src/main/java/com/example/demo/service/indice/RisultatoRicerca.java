@@ -0,0 +1,7 @@
+package com.example.demo.service.indice;
+
+/**
+ * Chunk restituito da una ricerca vettoriale con il relativo punteggio di similarità
+ */
+public record RisultatoRicerca(long chunkId, long documentoId, float punteggio) {
+}
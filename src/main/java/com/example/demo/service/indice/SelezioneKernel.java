@@ -0,0 +1,37 @@
+package com.example.demo.service.indice;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sceglie una sola volta il kernel da usare in base ai moduli disponibili a runtime
+ */
+final class SelezioneKernel {
+    private static final Logger logger = LoggerFactory.getLogger(SelezioneKernel.class);
+
+    static final KernelSimilarita ISTANZA = seleziona();
+
+    private SelezioneKernel() {
+    }
+
+    private static KernelSimilarita seleziona() {
+        boolean simdRichiesto = Boolean.parseBoolean(System.getProperty("yovendo.simd", "true"));
+        boolean moduloPresente = ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+
+        if (simdRichiesto && moduloPresente) {
+            try {
+                // Caricata per nome così la classe non viene collegata se il modulo manca
+                KernelSimilarita kernel = (KernelSimilarita) Class.forName("com.example.demo.service.indice.KernelVettoriale")
+                        .getDeclaredConstructor()
+                        .newInstance();
+                logger.info("Kernel di similarità: {}", kernel.getNome());
+                return kernel;
+            } catch (ReflectiveOperationException | LinkageError e) {
+                logger.warn("Vector API non utilizzabile, uso il kernel scalare: {}", e.getMessage());
+            }
+        } else if (simdRichiesto) {
+            logger.info("Modulo jdk.incubator.vector non abilitato, uso il kernel scalare");
+        }
+        return new KernelScalare();
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.demo.util;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.turbo.TurboFilter;
+import ch.qos.logback.core.spi.FilterReply;
+import org.slf4j.MDC;
+import org.slf4j.Marker;
+
+/**
+ * Abilita i log DEBUG dell'applicazione per una percentuale dei messaggi.
+ *
+ * La scelta dipende solo dall'identificativo di correlazione: per un messaggio campionato
+ * passano tutte le righe DEBUG, su qualunque thread e istanza, mentre per gli altri il
+ * livello resta quello configurato e i log dettagliati non costano nulla.
+ * Configurato in logback-spring.xml.
+ */
+public class CampionamentoLogFilter extends TurboFilter {
+
+    private String pacchetto = "com.example.demo";
+    private int percentuale;
+
+    @Override
+    public FilterReply decide(Marker marker, Logger logger, Level level, String format, Object[] params, Throwable t) {
+        if (percentuale <= 0 || level != Level.DEBUG || !logger.getName().startsWith(pacchetto)) {
+            return FilterReply.NEUTRAL;
+        }
+        String idCorrelazione = MDC.get(CorrelazioneLog.CHIAVE);
+        if (idCorrelazione == null) {
+            return FilterReply.NEUTRAL;
+        }
+        return campionato(idCorrelazione, percentuale) ? FilterReply.ACCEPT : FilterReply.NEUTRAL;
+    }
+
+    static boolean campionato(String idCorrelazione, int percentuale) {
+        int hash = idCorrelazione.hashCode();
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, 100) < percentuale;
+    }
+
+    public void setPacchetto(String pacchetto) {
+        this.pacchetto = pacchetto;
+    }
+
+    public void setPercentuale(int percentuale) {
+        this.percentuale = Math.max(0, Math.min(100, percentuale));
+    }
+}
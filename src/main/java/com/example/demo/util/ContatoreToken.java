@@ -0,0 +1,49 @@
+package com.example.demo.util;
+
+import com.knuddels.jtokkit.Encodings;
+import com.knuddels.jtokkit.api.Encoding;
+import com.knuddels.jtokkit.api.EncodingRegistry;
+import com.knuddels.jtokkit.api.EncodingResult;
+import com.knuddels.jtokkit.api.EncodingType;
+
+/**
+ * Conteggio locale dei token con lo stesso tokenizer BPE del modello OpenAI (jtokkit).
+ * Per i modelli non riconosciuti usa cl100k_base.
+ */
+public final class ContatoreToken {
+
+    private static final EncodingRegistry REGISTRO = Encodings.newLazyEncodingRegistry();
+
+    private final Encoding encoding;
+
+    private ContatoreToken(Encoding encoding) {
+        this.encoding = encoding;
+    }
+
+    public static ContatoreToken perModello(String modello) {
+        return new ContatoreToken(REGISTRO.getEncodingForModel(modello)
+                .orElseGet(() -> REGISTRO.getEncoding(EncodingType.CL100K_BASE)));
+    }
+
+    public int conta(String testo) {
+        return testo == null || testo.isEmpty() ? 0 : encoding.countTokensOrdinary(testo);
+    }
+
+    /**
+     * Inizio del testo entro maxToken token, senza spezzare caratteri
+     */
+    public String tronca(String testo, int maxToken) {
+        if (testo == null || maxToken <= 0) {
+            return "";
+        }
+        EncodingResult risultato = encoding.encodeOrdinary(testo, maxToken);
+        if (!risultato.isTruncated()) {
+            return testo;
+        }
+        return testo.substring(0, risultato.getLastProcessedCharacterIndex() + 1);
+    }
+
+    public String getNome() {
+        return encoding.getName();
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.demo.util;
+
+import org.slf4j.MDC;
+
+/**
+ * Identificativo di correlazione dei log, tenuto nell'MDC di SLF4J.
+ *
+ * Per i messaggi WhatsApp è il MessageSid di Twilio, per le altre richieste HTTP
+ * l'header X-Request-Id o un id generato: tutte le righe di log di uno stesso messaggio,
+ * anche quelle scritte sui thread dell'elaborazione asincrona, riportano lo stesso valore.
+ */
+public final class CorrelazioneLog {
+
+    public static final String CHIAVE = "idCorrelazione";
+
+    private CorrelazioneLog() {
+    }
+
+    public static String corrente() {
+        return MDC.get(CHIAVE);
+    }
+
+    /**
+     * Imposta l'identificativo e restituisce quello precedente, da ripristinare con {@link #ripristina}
+     */
+    public static String imposta(String idCorrelazione) {
+        String precedente = MDC.get(CHIAVE);
+        if (idCorrelazione != null) {
+            MDC.put(CHIAVE, idCorrelazione);
+        }
+        return precedente;
+    }
+
+    public static void ripristina(String precedente) {
+        if (precedente != null) {
+            MDC.put(CHIAVE, precedente);
+        } else {
+            MDC.remove(CHIAVE);
+        }
+    }
+}
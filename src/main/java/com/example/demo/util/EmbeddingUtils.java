@@ -0,0 +1,95 @@
+package com.example.demo.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Funzioni di supporto per la conversione e il confronto degli embedding.
+ * Gli embedding sono salvati come float32 little-endian in un array di byte.
+ */
+public final class EmbeddingUtils {
+
+    private EmbeddingUtils() {
+    }
+
+    /**
+     * Converte un array di byte (float32 little-endian) in un array di float
+     */
+    public static float[] byteArrayToFloatArray(byte[] byteArray) {
+        float[] floatArray = new float[byteArray.length / 4];
+
+        // Copia in blocco: la JVM la traduce in una copia di memoria invece di un ciclo byte per byte
+        ByteBuffer.wrap(byteArray, 0, floatArray.length * 4)
+                .order(ByteOrder.LITTLE_ENDIAN)
+                .asFloatBuffer()
+                .get(floatArray);
+
+        return floatArray;
+    }
+
+    /**
+     * Converte un array di float in un array di byte per lo storage
+     */
+    public static byte[] floatArrayToByteArray(float[] floatArray) {
+        byte[] byteArray = new byte[floatArray.length * 4];
+
+        for (int i = 0; i < floatArray.length; i++) {
+            int intBits = Float.floatToIntBits(floatArray[i]);
+            byteArray[i * 4] = (byte) (intBits & 0xFF);
+            byteArray[i * 4 + 1] = (byte) ((intBits >> 8) & 0xFF);
+            byteArray[i * 4 + 2] = (byte) ((intBits >> 16) & 0xFF);
+            byteArray[i * 4 + 3] = (byte) ((intBits >> 24) & 0xFF);
+        }
+
+        return byteArray;
+    }
+
+    /**
+     * Normalizza il vettore sul posto (norma euclidea = 1).
+     * Restituisce false se il vettore è nullo e non può essere normalizzato.
+     */
+    public static boolean normalizza(float[] vettore) {
+        float norma = 0.0f;
+        for (float valore : vettore) {
+            norma += valore * valore;
+        }
+
+        if (norma == 0) {
+            return false;
+        }
+
+        float inverso = (float) (1.0 / Math.sqrt(norma));
+        for (int i = 0; i < vettore.length; i++) {
+            vettore[i] *= inverso;
+        }
+        return true;
+    }
+
+    /**
+     * Similarità coseno tra due embedding serializzati
+     */
+    public static float calcolaSimilaritaCoseno(byte[] embedding1, byte[] embedding2) {
+        return calcolaSimilaritaCoseno(byteArrayToFloatArray(embedding1), byteArrayToFloatArray(embedding2));
+    }
+
+    public static float calcolaSimilaritaCoseno(float[] floatArray1, float[] floatArray2) {
+        float prodottoPuntato = 0.0f;
+        float norma1 = 0.0f;
+        float norma2 = 0.0f;
+
+        for (int i = 0; i < floatArray1.length; i++) {
+            prodottoPuntato += floatArray1[i] * floatArray2[i];
+            norma1 += floatArray1[i] * floatArray1[i];
+            norma2 += floatArray2[i] * floatArray2[i];
+        }
+
+        norma1 = (float) Math.sqrt(norma1);
+        norma2 = (float) Math.sqrt(norma2);
+
+        if (norma1 == 0 || norma2 == 0) {
+            return 0.0f;
+        }
+
+        return prodottoPuntato / (norma1 * norma2);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.demo.util;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Esegue i task con la stessa chiave uno dopo l'altro, nell'ordine di invio,
+ * e quelli con chiavi diverse in parallelo sull'executor sottostante.
+ *
+ * Nessun thread resta bloccato in attesa: ogni task viene concatenato al precedente
+ * della stessa chiave e la coda di una chiave sparisce quando si svuota.
+ */
+public class EsecutoreSerialePerChiave<K> {
+
+    private final Executor executor;
+    private final Map<K, CompletableFuture<Void>> code = new ConcurrentHashMap<>();
+
+    public EsecutoreSerialePerChiave(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Accoda il task dopo quelli già inviati con la stessa chiave.
+     * Un'eccezione del task non interrompe i successivi.
+     */
+    public CompletableFuture<Void> esegui(K chiave, Runnable task) {
+        CompletableFuture<Void> coda = code.compute(chiave, (k, precedente) ->
+                (precedente == null ? CompletableFuture.<Void>completedFuture(null) : precedente)
+                        .handle((risultato, errore) -> null)
+                        .thenRunAsync(task, executor));
+        coda.whenComplete((risultato, errore) -> code.remove(chiave, coda));
+        return coda;
+    }
+
+    /**
+     * Numero di chiavi con task in coda o in esecuzione
+     */
+    public int getChiaviAttive() {
+        return code.size();
+    }
+}
@@ -0,0 +1,112 @@
+package com.example.demo.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker sugli esiti delle ultime chiamate a un servizio esterno.
+ *
+ * Da chiuso si apre quando, su almeno "minChiamate" delle ultime "finestra" chiamate, la quota
+ * di fallimenti raggiunge "sogliaFallimenti". Da aperto rifiuta le chiamate per "durataApertura";
+ * poi passa a semiaperto e lascia passare una sola chiamata di prova: se riesce il circuito si
+ * richiude, altrimenti si riapre. Ogni chiamata permessa deve registrare un esito.
+ */
+public final class InterruttoreCircuito {
+
+    public enum Stato {
+        CHIUSO, SEMI_APERTO, APERTO
+    }
+
+    private final boolean[] esiti;
+    private final int minChiamate;
+    private final double sogliaFallimenti;
+    private final long nanosApertura;
+    private final LongSupplier orologio;
+
+    private Stato stato = Stato.CHIUSO;
+    private int prossimo;
+    private int chiamate;
+    private int fallimenti;
+    private long apertoFino;
+
+    public InterruttoreCircuito(int finestra, int minChiamate, double sogliaFallimenti, long millisApertura) {
+        this(finestra, minChiamate, sogliaFallimenti, millisApertura, System::nanoTime);
+    }
+
+    InterruttoreCircuito(int finestra, int minChiamate, double sogliaFallimenti, long millisApertura, LongSupplier orologio) {
+        this.esiti = new boolean[Math.max(1, finestra)];
+        this.minChiamate = Math.max(1, Math.min(minChiamate, esiti.length));
+        this.sogliaFallimenti = sogliaFallimenti;
+        this.nanosApertura = millisApertura * 1_000_000L;
+        this.orologio = orologio;
+    }
+
+    /**
+     * Indica se la chiamata può partire. Da semiaperto lo permette a un solo chiamante, la prova.
+     */
+    public synchronized boolean permetti() {
+        switch (stato) {
+            case CHIUSO:
+                return true;
+            case APERTO:
+                if (orologio.getAsLong() - apertoFino >= 0) {
+                    stato = Stato.SEMI_APERTO;
+                    return true;
+                }
+                return false;
+            default:
+                // Prova già in corso
+                return false;
+        }
+    }
+
+    public synchronized void registraSuccesso() {
+        if (stato == Stato.SEMI_APERTO) {
+            chiudi();
+        } else if (stato == Stato.CHIUSO) {
+            aggiungi(false);
+        }
+    }
+
+    public synchronized void registraFallimento() {
+        if (stato == Stato.SEMI_APERTO) {
+            apri();
+        } else if (stato == Stato.CHIUSO) {
+            aggiungi(true);
+            if (chiamate >= minChiamate && fallimenti >= sogliaFallimenti * chiamate) {
+                apri();
+            }
+        }
+    }
+
+    public synchronized Stato getStato() {
+        return stato;
+    }
+
+    private void aggiungi(boolean fallimento) {
+        if (chiamate == esiti.length) {
+            // Finestra piena: l'esito più vecchio esce
+            if (esiti[prossimo]) {
+                fallimenti--;
+            }
+        } else {
+            chiamate++;
+        }
+        esiti[prossimo] = fallimento;
+        if (fallimento) {
+            fallimenti++;
+        }
+        prossimo = (prossimo + 1) % esiti.length;
+    }
+
+    private void apri() {
+        stato = Stato.APERTO;
+        apertoFino = orologio.getAsLong() + nanosApertura;
+    }
+
+    private void chiudi() {
+        stato = Stato.CHIUSO;
+        prossimo = 0;
+        chiamate = 0;
+        fallimenti = 0;
+    }
+}
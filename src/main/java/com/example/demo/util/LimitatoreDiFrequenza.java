@@ -0,0 +1,47 @@
+package com.example.demo.util;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket: al massimo "capacita" operazioni di fila, poi "perSecondo" operazioni al secondo.
+ *
+ * {@link #riserva()} prenota sempre un gettone e restituisce quanto attendere prima di
+ * usarlo; le prenotazioni successive si mettono in coda dietro alle precedenti, quindi
+ * più thread che attendono il tempo indicato rispettano insieme la frequenza.
+ */
+public final class LimitatoreDiFrequenza {
+
+    private final double capacita;
+    private final double nanosPerGettone;
+    private final LongSupplier orologio;
+
+    private double gettoni;
+    private long ultimoAggiornamento;
+
+    public LimitatoreDiFrequenza(double perSecondo, int capacita) {
+        this(perSecondo, capacita, System::nanoTime);
+    }
+
+    LimitatoreDiFrequenza(double perSecondo, int capacita, LongSupplier orologio) {
+        if (perSecondo <= 0) {
+            throw new IllegalArgumentException("La frequenza deve essere positiva: " + perSecondo);
+        }
+        this.capacita = Math.max(1, capacita);
+        this.nanosPerGettone = 1_000_000_000.0 / perSecondo;
+        this.orologio = orologio;
+        this.gettoni = this.capacita;
+        this.ultimoAggiornamento = orologio.getAsLong();
+    }
+
+    /**
+     * Prenota un gettone e restituisce i nanosecondi da attendere prima di usarlo (0 se disponibile subito)
+     */
+    public synchronized long riserva() {
+        long adesso = orologio.getAsLong();
+        gettoni = Math.min(capacita, gettoni + (adesso - ultimoAggiornamento) / nanosPerGettone);
+        ultimoAggiornamento = adesso;
+
+        gettoni -= 1;
+        return gettoni >= 0 ? 0 : (long) Math.ceil(-gettoni * nanosPerGettone);
+    }
+}
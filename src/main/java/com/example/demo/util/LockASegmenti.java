@@ -0,0 +1,30 @@
+package com.example.demo.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Insieme fisso di lock indicizzati per hash della chiave.
+ *
+ * Chiavi uguali usano sempre lo stesso lock; chiavi diverse finiscono quasi sempre
+ * su lock diversi, quindi i clienti diversi restano paralleli senza tenere un lock
+ * per ogni chiave mai vista.
+ */
+public final class LockASegmenti {
+
+    private final ReentrantLock[] segmenti;
+
+    public LockASegmenti(int numeroSegmenti) {
+        // Potenza di due per ricavare il segmento con una maschera
+        int dimensione = Integer.highestOneBit(Math.max(1, numeroSegmenti - 1)) << 1;
+        segmenti = new ReentrantLock[dimensione];
+        for (int i = 0; i < dimensione; i++) {
+            segmenti[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock lockPer(Object chiave) {
+        int hash = chiave.hashCode();
+        hash ^= (hash >>> 16);
+        return segmenti[hash & (segmenti.length - 1)];
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.demo.repository;
+
+import com.example.demo.service.indice.RisultatoRicerca;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.datasource.SingleConnectionDataSource;
+import org.testcontainers.containers.PostgreSQLContainer;
+import org.testcontainers.junit.jupiter.Container;
+import org.testcontainers.junit.jupiter.Testcontainers;
+import org.testcontainers.utility.DockerImageName;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Ricerca pgvector su un database reale: richiede Docker e viene saltato se non è disponibile
+ */
+@Testcontainers(disabledWithoutDocker = true)
+class ChunkDocumentoVettorialeRepositoryImplTest {
+
+    private static final int DIMENSIONE = 16;
+    private static final long ORGANIZZAZIONE_PICCOLA = 99L;
+
+    @Container
+    private static final PostgreSQLContainer<?> POSTGRES = new PostgreSQLContainer<>(
+            DockerImageName.parse("pgvector/pgvector:pg16").asCompatibleSubstituteFor("postgres"));
+
+    private static SingleConnectionDataSource dataSource;
+    private static ChunkDocumentoVettorialeRepositoryImpl repository;
+
+    @BeforeAll
+    static void prepara() {
+        dataSource = new SingleConnectionDataSource(POSTGRES.getJdbcUrl(), POSTGRES.getUsername(), POSTGRES.getPassword(), true);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE EXTENSION IF NOT EXISTS vector");
+        jdbcTemplate.execute("CREATE TABLE documenti (id BIGINT PRIMARY KEY, organizzazione_id BIGINT, elaborato BOOLEAN)");
+        jdbcTemplate.execute("CREATE TABLE chunk_documenti (id BIGSERIAL PRIMARY KEY, documento_id BIGINT, " +
+                "embedding_vettore vector(" + DIMENSIONE + "))");
+
+        // Dieci organizzazioni grandi da 500 chunk e una piccola da 5
+        Random random = new Random(42);
+        List<Object[]> chunks = new ArrayList<>();
+        for (long organizzazione = 1; organizzazione <= 10; organizzazione++) {
+            jdbcTemplate.update("INSERT INTO documenti VALUES (?, ?, true)", organizzazione, organizzazione);
+            for (int i = 0; i < 500; i++) {
+                chunks.add(new Object[]{organizzazione, vettoreCasuale(random)});
+            }
+        }
+        jdbcTemplate.update("INSERT INTO documenti VALUES (?, ?, true)", ORGANIZZAZIONE_PICCOLA, ORGANIZZAZIONE_PICCOLA);
+        for (int i = 0; i < 5; i++) {
+            chunks.add(new Object[]{ORGANIZZAZIONE_PICCOLA, vettoreCasuale(random)});
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO chunk_documenti (documento_id, embedding_vettore) VALUES (?, CAST(? AS vector))", chunks);
+        jdbcTemplate.execute("CREATE INDEX ON chunk_documenti USING hnsw (embedding_vettore vector_cosine_ops)");
+        jdbcTemplate.execute("ANALYZE");
+        // Come in produzione su tabelle grandi: la ricerca passa dall'indice HNSW
+        jdbcTemplate.execute("SET enable_seqscan = off");
+
+        repository = new ChunkDocumentoVettorialeRepositoryImpl(jdbcTemplate, new DataSourceTransactionManager(dataSource), 40);
+    }
+
+    @AfterAll
+    static void chiudi() {
+        dataSource.destroy();
+    }
+
+    @Test
+    void unaOrganizzazionePiccolaRiceveTuttiISuoiChunk() {
+        float[] query = new float[DIMENSIONE];
+        query[0] = 1f;
+
+        List<RisultatoRicerca> risultati = repository.trovaPiuSimili(ORGANIZZAZIONE_PICCOLA, query, 5);
+
+        assertThat(risultati).hasSize(5).allMatch(risultato -> risultato.documentoId() == ORGANIZZAZIONE_PICCOLA);
+        assertThat(risultati).extracting(RisultatoRicerca::punteggio).isSortedAccordingTo((a, b) -> Float.compare(b, a));
+    }
+
+    @Test
+    void riconosceLeVersioniConScansioneIterativa() {
+        assertThat(ChunkDocumentoVettorialeRepositoryImpl.versioneAlmeno("0.8.0", 0, 8)).isTrue();
+        assertThat(ChunkDocumentoVettorialeRepositoryImpl.versioneAlmeno("1.0", 0, 8)).isTrue();
+        assertThat(ChunkDocumentoVettorialeRepositoryImpl.versioneAlmeno("0.7.4", 0, 8)).isFalse();
+    }
+
+    private static String vettoreCasuale(Random random) {
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < DIMENSIONE; i++) {
+            sb.append(i > 0 ? "," : "").append(random.nextFloat() * 2 - 1);
+        }
+        return sb.append(']').toString();
+    }
+}
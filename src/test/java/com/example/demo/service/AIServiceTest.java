@@ -0,0 +1,179 @@
+package com.example.demo.service;
+
+import com.example.demo.util.EmbeddingUtils;
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AIServiceTest {
+
+    private static final String RISERVA = "Riprova tra qualche minuto";
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private HttpServer server;
+    private ClientOpenAI client;
+
+    @AfterEach
+    void ferma() {
+        if (server != null) {
+            server.stop(0);
+            client.chiudi();
+        }
+    }
+
+    @Test
+    void lottiLimitatiDalNumeroDiTesti() {
+        List<String> testi = List.of("a", "b", "c", "d", "e");
+
+        List<List<Integer>> lotti = AIService.suddividiInLotti(testi, 2, 1000);
+
+        assertThat(lotti).containsExactly(List.of(0, 1), List.of(2, 3), List.of(4));
+    }
+
+    @Test
+    void lottiLimitatiDaiToken() {
+        // 400 caratteri sono stimati in 100 token
+        String testo = "x".repeat(400);
+        List<String> testi = List.of(testo, testo, testo);
+
+        List<List<Integer>> lotti = AIService.suddividiInLotti(testi, 96, 250);
+
+        assertThat(lotti).containsExactly(List.of(0, 1), List.of(2));
+    }
+
+    @Test
+    void testoOltreIlLimiteFinisceInUnLottoASe() {
+        List<String> testi = List.of("breve", "x".repeat(4000), "breve");
+
+        List<List<Integer>> lotti = AIService.suddividiInLotti(testi, 96, 100);
+
+        assertThat(lotti).containsExactly(List.of(0), List.of(1), List.of(2));
+    }
+
+    @Test
+    void ripeteLeRichiesteDopoUnErroreDelServer() throws IOException {
+        AtomicInteger richieste = new AtomicInteger();
+        AIService servizio = avvia(503, richieste, "{\"choices\":[{\"message\":{\"content\":\"Ciao!\"}}]}");
+
+        assertThat(servizio.generaRispostaAsync("Buongiorno").join()).isEqualTo("Ciao!");
+        assertThat(richieste).hasValue(2);
+    }
+
+    @Test
+    void nonRipeteGliErroriDelClient() throws IOException {
+        AtomicInteger richieste = new AtomicInteger();
+        AIService servizio = avvia(401, richieste, "{}");
+
+        assertThat(servizio.generaRisposta("Buongiorno")).startsWith(AIService.PREFISSO_ERRORE).contains("401");
+        assertThat(richieste).hasValue(1);
+    }
+
+    @Test
+    void riordinaGliEmbeddingSecondoIlCampoIndex() throws IOException {
+        AIService servizio = avvia(0, new AtomicInteger(),
+                "{\"data\":[{\"index\":1,\"embedding\":[2.0]},{\"index\":0,\"embedding\":[1.0]}]}");
+
+        List<byte[]> embeddings = servizio.generaEmbeddingBatchAsync(List.of("primo", "secondo")).join();
+
+        assertThat(EmbeddingUtils.byteArrayToFloatArray(embeddings.get(0))).containsExactly(1.0f);
+        assertThat(EmbeddingUtils.byteArrayToFloatArray(embeddings.get(1))).containsExactly(2.0f);
+    }
+
+    @Test
+    void aCircuitoApertoRispondeSubitoConLaRispostaDiRiserva() throws IOException {
+        AtomicInteger richieste = new AtomicInteger();
+        AIService servizio = avvia(0, richieste, "{\"error\":{\"message\":\"sovraccarico\"}}", 500);
+
+        // Due tentativi falliti su due chiamate: il circuito si apre
+        assertThat(servizio.generaRisposta("Buongiorno")).startsWith(AIService.PREFISSO_ERRORE);
+        assertThat(servizio.generaRisposta("Buongiorno")).isEqualTo(RISERVA);
+        assertThat(richieste).hasValue(2);
+        assertThat(servizio.isRispostaDiRiserva(RISERVA)).isTrue();
+        assertThat(meterRegistry.get("ai.circuito.stato").tag("chiamata", "chat").gauge().value()).isEqualTo(2.0);
+    }
+
+    @Test
+    void duplicaLaRichiestaDiChatLenta() throws IOException, InterruptedException {
+        AtomicInteger richieste = new AtomicInteger();
+        CountDownLatch perdenteInterrotta = new CountDownLatch(1);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", scambio -> {
+            scambio.getRequestBody().readAllBytes();
+            int numero = richieste.incrementAndGet();
+            byte[] risposta = ("{\"choices\":[{\"message\":{\"content\":\"risposta " + numero + "\"}}]}")
+                    .getBytes(StandardCharsets.UTF_8);
+            // La prima richiesta invia spazi per 3 secondi prima del JSON, la copia risponde subito:
+            // le scritture falliscono appena il client interrompe lo scambio. Verifica che AIService
+            // annulli la richiesta perdente; su JDK 21 passa anche senza il cancel esplicito in ClientOpenAI
+            scambio.sendResponseHeaders(200, numero == 1 ? 0 : risposta.length);
+            try (OutputStream out = scambio.getResponseBody()) {
+                for (int i = 0; numero == 1 && i < 60; i++) {
+                    out.write(' ');
+                    out.flush();
+                    Thread.sleep(50);
+                }
+                out.write(risposta);
+            } catch (IOException e) {
+                perdenteInterrotta.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        server.start();
+        client = new ClientOpenAI("sk-test", "http://127.0.0.1:" + server.getAddress().getPort(), 1000, 5000);
+        AIService servizio = new AIService(client, meterRegistry, 4, 2, 0.5, 60_000);
+        servizio.registraMetriche();
+        ReflectionTestUtils.setField(servizio, "maxRetries", 1);
+        ReflectionTestUtils.setField(servizio, "copiaDopoMs", 200L);
+
+        assertThat(servizio.generaRispostaAsync("Buongiorno").join()).isEqualTo("risposta 2");
+        assertThat(servizio.getQuotaCopieVincenti()).isEqualTo(1.0);
+        assertThat(meterRegistry.get("ai.chat.copie.vittorie").gauge().value()).isEqualTo(1.0);
+        assertThat(perdenteInterrotta.await(2, TimeUnit.SECONDS)).isTrue();
+    }
+
+    private AIService avvia(int statoPrimaRichiesta, AtomicInteger richieste, String corpo) throws IOException {
+        return avvia(statoPrimaRichiesta, richieste, corpo, 200);
+    }
+
+    /**
+     * Server che risponde con statoPrimaRichiesta alla prima richiesta (0 = nessun errore), poi con stato e corpo
+     */
+    private AIService avvia(int statoPrimaRichiesta, AtomicInteger richieste, String corpo, int stato) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", scambio -> {
+            scambio.getRequestBody().readAllBytes();
+            boolean errore = richieste.incrementAndGet() == 1 && statoPrimaRichiesta != 0;
+            byte[] risposta = (errore ? "{\"error\":{\"message\":\"errore di prova\"}}" : corpo).getBytes(StandardCharsets.UTF_8);
+            scambio.sendResponseHeaders(errore ? statoPrimaRichiesta : stato, risposta.length);
+            try (OutputStream out = scambio.getResponseBody()) {
+                out.write(risposta);
+            }
+        });
+        server.start();
+
+        client = new ClientOpenAI("sk-test", "http://127.0.0.1:" + server.getAddress().getPort(), 1000, 5000);
+        AIService servizio = new AIService(client, meterRegistry, 4, 2, 0.5, 60_000);
+        ReflectionTestUtils.setField(servizio, "maxRetries", 2);
+        ReflectionTestUtils.setField(servizio, "rispostaDiRiserva", RISERVA);
+        ReflectionTestUtils.setField(servizio, "copiaDopoMs", 0L);
+        ReflectionTestUtils.setField(servizio, "batchMaxInput", 96);
+        ReflectionTestUtils.setField(servizio, "batchMaxToken", 8000);
+        return servizio;
+    }
+}
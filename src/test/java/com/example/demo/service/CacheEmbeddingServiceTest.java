@@ -0,0 +1,87 @@
+package com.example.demo.service;
+
+import com.example.demo.model.EmbeddingInCache;
+import com.example.demo.repository.EmbeddingInCacheRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyIterable;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CacheEmbeddingServiceTest {
+
+    private final List<List<String>> richiesteApi = new ArrayList<>();
+    private AIService aiService;
+    private EmbeddingInCacheRepository repository;
+    private CacheEmbeddingService servizio;
+
+    @BeforeEach
+    void prepara() {
+        aiService = mock(AIService.class);
+        when(aiService.getEmbeddingModel()).thenReturn("text-embedding-3-small");
+        when(aiService.generaEmbeddingBatchAsync(anyList())).thenAnswer(invocazione -> {
+            List<String> testi = invocazione.getArgument(0);
+            richiesteApi.add(testi);
+            return CompletableFuture.completedFuture(
+                    testi.stream().map(testo -> testo.startsWith("errore") ? new byte[0] : testo.getBytes()).toList());
+        });
+        repository = mock(EmbeddingInCacheRepository.class);
+        when(repository.findAllById(anyIterable())).thenReturn(List.of());
+
+        servizio = new CacheEmbeddingService(aiService, repository, mock(JdbcTemplate.class), new SimpleMeterRegistry(), 16);
+    }
+
+    @Test
+    void generaUnaVoltaSolaITestiRipetuti() {
+        List<byte[]> primi = servizio.embeddingBatch(List.of("a", "b", "a"), 1L);
+        List<byte[]> secondi = servizio.embeddingBatch(List.of("b", "c"), 1L);
+
+        assertThat(primi).extracting(String::new).containsExactly("a", "b", "a");
+        assertThat(secondi).extracting(String::new).containsExactly("b", "c");
+        assertThat(richiesteApi).containsExactly(List.of("a", "b"), List.of("c"));
+    }
+
+    @Test
+    void usaGliEmbeddingSalvatiSenzaChiamareLApi() {
+        String chiave = CacheEmbeddingService.chiave(1L, "text-embedding-3-small", "orari");
+        when(repository.findAllById(anyIterable())).thenReturn(
+                List.of(new EmbeddingInCache(chiave, 1L, "text-embedding-3-small", new byte[]{7}, LocalDateTime.now())));
+
+        assertThat(servizio.embedding("orari", 1L)).containsExactly(7);
+        assertThat(servizio.embedding("orari", 1L)).containsExactly(7);
+
+        verify(aiService, never()).generaEmbeddingBatchAsync(anyList());
+        verify(repository, times(1)).findAllById(anyIterable());
+    }
+
+    @Test
+    void nonSalvaGliEmbeddingFallitiENonCondivideTraOrganizzazioni() {
+        assertThat(servizio.embedding("errore", 1L)).isEmpty();
+        assertThat(servizio.embedding("errore", 1L)).isEmpty();
+        servizio.embedding("listino", 1L);
+        servizio.embedding("listino", 2L);
+
+        assertThat(richiesteApi).containsExactly(List.of("errore"), List.of("errore"), List.of("listino"), List.of("listino"));
+    }
+
+    @Test
+    void laChiaveDipendeDaModelloETesto() {
+        assertThat(CacheEmbeddingService.chiave(1L, "m1", "testo")).hasSize(64)
+                .isEqualTo(CacheEmbeddingService.chiave(1L, "m1", "testo"))
+                .isNotEqualTo(CacheEmbeddingService.chiave(1L, "m2", "testo"))
+                .isNotEqualTo(CacheEmbeddingService.chiave(1L, "m1", "testo "));
+    }
+}
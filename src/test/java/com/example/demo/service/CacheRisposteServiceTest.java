@@ -0,0 +1,75 @@
+package com.example.demo.service;
+
+import com.example.demo.util.EmbeddingUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CacheRisposteServiceTest {
+
+    private static final String DOMANDA = "Quali sono gli orari di apertura del negozio?";
+
+    private final AtomicLong orologio = new AtomicLong();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private CacheRisposteService cache;
+
+    @BeforeEach
+    void prepara() {
+        cache = new CacheRisposteService(meterRegistry, 100, orologio::get);
+        cache.registraMetriche();
+        ReflectionTestUtils.setField(cache, "soglia", 0.95f);
+        ReflectionTestUtils.setField(cache, "rispostePerOrganizzazione", 10);
+        ReflectionTestUtils.setField(cache, "durataMinuti", 60L);
+        ReflectionTestUtils.setField(cache, "minCaratteri", 20);
+    }
+
+    @Test
+    void rispondeADomandeSimiliDellaStessaOrganizzazione() {
+        CacheRisposteService.Ricerca prima = cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f));
+        assertThat(prima.getRisposta()).isNull();
+        cache.registra(prima, "Dalle 9 alle 19");
+
+        // Coseno circa 0.995 con la domanda registrata
+        assertThat(cache.cerca(1L, DOMANDA, embedding(1f, 0.1f, 0f)).getRisposta()).isEqualTo("Dalle 9 alle 19");
+        // Coseno circa 0.89: sotto la soglia
+        assertThat(cache.cerca(1L, DOMANDA, embedding(1f, 0.5f, 0f)).getRisposta()).isNull();
+        assertThat(cache.cerca(2L, DOMANDA, embedding(1f, 0f, 0f)).getRisposta()).isNull();
+        assertThat(cache.getRapportoTrovate()).isEqualTo(0.25);
+        assertThat(meterRegistry.get("rag.cache.risposte.rapporto").gauge().value()).isEqualTo(0.25);
+    }
+
+    @Test
+    void nonUsaLaCachePerLeDomandeBrevi() {
+        CacheRisposteService.Ricerca ricerca = cache.cerca(1L, "e quanto costa?", embedding(1f, 0f, 0f));
+        cache.registra(ricerca, "10 euro");
+
+        assertThat(cache.cerca(1L, "e quanto costa?", embedding(1f, 0f, 0f)).getRisposta()).isNull();
+        assertThat(cache.getRapportoTrovate()).isZero();
+    }
+
+    @Test
+    void scartaLeRisposteDopoLInvalidazioneOLaScadenza() {
+        CacheRisposteService.Ricerca inCorso = cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f));
+        cache.invalida(1L);
+        // Risposta generata con i documenti precedenti: non entra in cache
+        cache.registra(inCorso, "Vecchia risposta");
+        assertThat(cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f)).getRisposta()).isNull();
+
+        CacheRisposteService.Ricerca nuova = cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f));
+        cache.registra(nuova, "Nuova risposta");
+        assertThat(cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f)).getRisposta()).isEqualTo("Nuova risposta");
+
+        orologio.addAndGet(TimeUnit.MINUTES.toMillis(61));
+        assertThat(cache.cerca(1L, DOMANDA, embedding(1f, 0f, 0f)).getRisposta()).isNull();
+    }
+
+    private static byte[] embedding(float... valori) {
+        return EmbeddingUtils.floatArrayToByteArray(valori);
+    }
+}
@@ -0,0 +1,146 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.model.Documento;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.util.ContatoreToken;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class ComposizionePromptTest {
+
+    private final ContatoreToken contatore = ContatoreToken.perModello("gpt-3.5-turbo");
+    private ComposizionePrompt composizione;
+
+    @BeforeEach
+    void prepara() {
+        composizione = new ComposizionePrompt("gpt-3.5-turbo", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(composizione, "budgetToken", 3000);
+        ReflectionTestUtils.setField(composizione, "tokenConversazione", 600);
+        ReflectionTestUtils.setField(composizione, "tokenRiassunto", 300);
+        ReflectionTestUtils.setField(composizione, "tokenDomanda", 500);
+        ReflectionTestUtils.setField(composizione, "similaritaMinima", 0.3f);
+    }
+
+    @Test
+    void unisceChunkConsecutiviDelloStessoDocumento() {
+        Documento listino = documento(1L, "Listino");
+        Documento orari = documento(2L, "Orari");
+
+        List<ComposizionePrompt.Estratto> estratti = ComposizionePrompt.estratti(List.of(
+                rilevante(listino, 3, "terzo", 0.6f),
+                rilevante(orari, 0, "orari", 0.7f),
+                rilevante(listino, 2, "secondo", 0.8f),
+                rilevante(listino, 7, "settimo", 0.5f)), 0.3f);
+
+        assertThat(estratti).hasSize(3);
+        assertThat(estratti.get(0).titolo()).isEqualTo("Listino");
+        assertThat(estratti.get(0).testo()).isEqualTo("secondo\nterzo");
+        assertThat(estratti.get(0).primoIndice()).isEqualTo(2);
+        assertThat(estratti.get(0).ultimoIndice()).isEqualTo(3);
+        assertThat(estratti.get(1).titolo()).isEqualTo("Orari");
+        assertThat(estratti.get(2).testo()).isEqualTo("settimo");
+    }
+
+    @Test
+    void scartaIChunkSottoLaSimilaritaMinima() {
+        Documento documento = documento(1L, "Listino");
+
+        ComposizionePrompt.Prompt prompt = composizione.componi("Quanto costa?", List.of(
+                rilevante(documento, 0, "Il prezzo è 10 euro", 0.8f),
+                rilevante(documento, 5, "Informazione non pertinente", 0.1f)), null, null, null);
+
+        assertThat(prompt.utente()).contains("Il prezzo è 10 euro").doesNotContain("Informazione non pertinente");
+    }
+
+    @Test
+    void senzaDocumentiPertinentiLoDichiara() {
+        ComposizionePrompt.Prompt prompt = composizione.componi("Quanto costa?", List.of(
+                rilevante(documento(1L, "Listino"), 0, "Testo", 0.1f)), null, null, null);
+
+        assertThat(prompt.utente()).contains("Non sono stati trovati documenti pertinenti")
+                .endsWith("DOMANDA DELL'UTENTE: Quanto costa?");
+    }
+
+    @Test
+    void rispettaIlBudgetDiToken() {
+        ReflectionTestUtils.setField(composizione, "budgetToken", 800);
+        Documento documento = documento(1L, "Manuale");
+        List<ComposizionePrompt.ChunkRilevante> chunks = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            // Indici non consecutivi: otto estratti distinti da circa 200 token ciascuno
+            chunks.add(rilevante(documento, i * 2, ("Paragrafo " + i + " del manuale di istruzioni. ").repeat(25), 0.9f - i * 0.05f));
+        }
+
+        ComposizionePrompt.Prompt prompt = composizione.componi("Come si installa?", chunks,
+                "Il cliente ha chiesto informazioni sull'installazione.", "Utente: Buongiorno\nAssistente: Salve!\n", null);
+
+        assertThat(prompt.token()).isLessThanOrEqualTo(800);
+        assertThat(contatore.conta(prompt.sistema()) + contatore.conta(prompt.utente())).isLessThanOrEqualTo(800);
+        // Entrano gli estratti più simili, gli ultimi restano fuori
+        assertThat(prompt.utente()).contains("Paragrafo 0").doesNotContain("Paragrafo 7");
+        assertThat(prompt.utente()).contains("RIASSUNTO DELLA CONVERSAZIONE", "Utente: Buongiorno")
+                .endsWith("DOMANDA DELL'UTENTE: Come si installa?");
+    }
+
+    @Test
+    void mantieneGliUltimiMessaggiDellaConversazione() {
+        ReflectionTestUtils.setField(composizione, "tokenConversazione", 30);
+        StringBuilder contesto = new StringBuilder();
+        for (int i = 1; i <= 20; i++) {
+            contesto.append("Utente: messaggio numero ").append(i).append("\n");
+        }
+
+        ComposizionePrompt.Prompt prompt = composizione.componi("E poi?", List.of(), null, contesto.toString(), null);
+
+        assertThat(prompt.utente()).contains("messaggio numero 20\n").doesNotContain("messaggio numero 1\n");
+    }
+
+    @Test
+    void ilPrefissoDiSistemaNonDipendeDallaDomanda() {
+        Organizzazione organizzazione = new Organizzazione();
+        organizzazione.setNome("Pizzeria Da Mario");
+
+        ComposizionePrompt.Prompt prima = composizione.componi("Siete aperti?", List.of(), null, null, organizzazione);
+        ComposizionePrompt.Prompt seconda = composizione.componi("Fate consegne?",
+                List.of(rilevante(documento(1L, "Servizi"), 0, "Consegniamo a domicilio", 0.9f)), "Riassunto", null, organizzazione);
+        ComposizionePrompt.Prompt altraOrganizzazione = composizione.componi("Siete aperti?", List.of(), null, null, null);
+
+        assertThat(prima.sistema()).isEqualTo(seconda.sistema()).startsWith(ComposizionePrompt.ISTRUZIONI).contains("Pizzeria Da Mario");
+        assertThat(altraOrganizzazione.sistema()).startsWith(ComposizionePrompt.ISTRUZIONI);
+    }
+
+    @Test
+    void troncaSenzaSuperareIToken() {
+        String testo = "Il nostro negozio è aperto dal lunedì al sabato, dalle nove alle diciannove. ".repeat(10);
+
+        String troncato = contatore.tronca(testo, 25);
+
+        assertThat(testo).startsWith(troncato);
+        assertThat(contatore.conta(troncato)).isBetween(20, 25);
+        assertThat(contatore.tronca("Breve", 25)).isEqualTo("Breve");
+        assertThat(contatore.tronca(testo, 0)).isEmpty();
+    }
+
+    private static Documento documento(Long id, String titolo) {
+        Documento documento = new Documento();
+        documento.setId(id);
+        documento.setTitolo(titolo);
+        return documento;
+    }
+
+    private static ComposizionePrompt.ChunkRilevante rilevante(Documento documento, int indice, String testo, float punteggio) {
+        ChunkDocumento chunk = new ChunkDocumento();
+        chunk.setDocumento(documento);
+        chunk.setIndiceChunk(indice);
+        chunk.setTestoChunk(testo);
+        return new ComposizionePrompt.ChunkRilevante(chunk, punteggio);
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Conversazione;
+import com.example.demo.model.Messaggio;
+import com.example.demo.repository.MessaggioRepository;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.domain.Pageable;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class CronologiaConversazioniServiceTest {
+
+    @Test
+    void caricaGliUltimiMessaggiUnaSolaVoltaEPoiUsaIlBuffer() {
+        MessaggioRepository repository = mock(MessaggioRepository.class);
+        Conversazione conversazione = conversazione(1L);
+        // Il repository restituisce i messaggi dal più recente
+        when(repository.findByConversazioneIdOrderByOrarioInvioDesc(eq(1L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(conversazione, 3L, "c"), messaggio(conversazione, 2L, "b"),
+                        messaggio(conversazione, 1L, "a")));
+        when(repository.findIdRecentiByConversazioneId(eq(1L), any(Pageable.class))).thenReturn(List.of(4L));
+        CronologiaConversazioniService servizio = new CronologiaConversazioniService(repository, 3, 100, 60);
+
+        assertThat(contenuti(servizio.ultimiMessaggi(1L))).containsExactly("a", "b", "c");
+
+        servizio.registra(messaggio(conversazione, 4L, "d"));
+        servizio.registra(messaggio(conversazione, 4L, "d"));
+
+        assertThat(contenuti(servizio.ultimiMessaggi(1L))).containsExactly("b", "c", "d");
+        verify(repository, times(1)).findByConversazioneIdOrderByOrarioInvioDesc(eq(1L), any(Pageable.class));
+    }
+
+    @Test
+    void registraNonCreaIlBufferDiConversazioniNonCaricate() {
+        MessaggioRepository repository = mock(MessaggioRepository.class);
+        Conversazione conversazione = conversazione(2L);
+        when(repository.findByConversazioneIdOrderByOrarioInvioDesc(eq(2L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(conversazione, 10L, "dal database")));
+        when(repository.findIdRecentiByConversazioneId(eq(2L), any(Pageable.class))).thenReturn(List.of(10L));
+        CronologiaConversazioniService servizio = new CronologiaConversazioniService(repository, 5, 100, 60);
+
+        servizio.registra(messaggio(conversazione, 9L, "solo in memoria"));
+
+        assertThat(contenuti(servizio.ultimiMessaggi(2L))).containsExactly("dal database");
+    }
+
+    @Test
+    void ricaricaIlBufferSeUnAltraIstanzaHaSalvatoMessaggi() {
+        MessaggioRepository repository = mock(MessaggioRepository.class);
+        Conversazione conversazione = conversazione(3L);
+        when(repository.findByConversazioneIdOrderByOrarioInvioDesc(eq(3L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(conversazione, 1L, "a")))
+                .thenReturn(List.of(messaggio(conversazione, 2L, "da un'altra istanza"), messaggio(conversazione, 1L, "a")));
+        when(repository.findIdRecentiByConversazioneId(eq(3L), any(Pageable.class)))
+                .thenReturn(List.of(1L), List.of(2L));
+        CronologiaConversazioniService servizio = new CronologiaConversazioniService(repository, 5, 100, 60);
+
+        assertThat(contenuti(servizio.ultimiMessaggi(3L))).containsExactly("a");
+        assertThat(contenuti(servizio.ultimiMessaggi(3L))).containsExactly("a");
+        assertThat(contenuti(servizio.ultimiMessaggi(3L))).containsExactly("a", "da un'altra istanza");
+        verify(repository, times(2)).findByConversazioneIdOrderByOrarioInvioDesc(eq(3L), any(Pageable.class));
+    }
+
+    private static List<String> contenuti(List<CronologiaConversazioniService.VoceCronologia> voci) {
+        return voci.stream().map(CronologiaConversazioniService.VoceCronologia::contenuto).toList();
+    }
+
+    private static Conversazione conversazione(Long id) {
+        Conversazione conversazione = new Conversazione();
+        conversazione.setId(id);
+        return conversazione;
+    }
+
+    private static Messaggio messaggio(Conversazione conversazione, Long id, String contenuto) {
+        Messaggio messaggio = new Messaggio();
+        messaggio.setId(id);
+        messaggio.setConversazione(conversazione);
+        messaggio.setContenuto(contenuto);
+        return messaggio;
+    }
+}
@@ -0,0 +1,125 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Documento;
+import com.example.demo.model.JobIngestione;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.ChunkDocumentoRepository;
+import com.example.demo.repository.ConversazioneRepository;
+import com.example.demo.repository.DocumentoRepository;
+import com.example.demo.repository.OrganizzazioneRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.anyList;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class DocumentoServiceTest {
+
+    private DocumentoRepository documentoRepository;
+    private ChunkDocumentoRepository chunkDocumentoRepository;
+    private CacheEmbeddingService cacheEmbeddingService;
+    private JobIngestioneService jobIngestioneService;
+    private ThreadPoolTaskExecutor executor;
+    private DocumentoService servizio;
+
+    @BeforeEach
+    void prepara() {
+        documentoRepository = mock(DocumentoRepository.class);
+        chunkDocumentoRepository = mock(ChunkDocumentoRepository.class);
+        cacheEmbeddingService = mock(CacheEmbeddingService.class);
+        jobIngestioneService = mock(JobIngestioneService.class);
+        executor = mock(ThreadPoolTaskExecutor.class);
+        when(executor.getMaxPoolSize()).thenReturn(2);
+        servizio = new DocumentoService(mock(ConversazioneRepository.class), documentoRepository,
+                chunkDocumentoRepository, mock(OrganizzazioneRepository.class),
+                cacheEmbeddingService, mock(WhatsAppService.class), mock(IndiceVettorialeService.class),
+                mock(CacheRisposteService.class), jobIngestioneService, executor);
+    }
+
+    @Test
+    void creaIJobDeiDocumentiRimastiSenza() {
+        when(documentoRepository.findIdDaElaborareSenzaJob()).thenReturn(List.of(3L, 4L));
+
+        servizio.riprendiDocumentiSenzaJob();
+
+        verify(jobIngestioneService).creaJob(3L);
+        verify(jobIngestioneService).creaJob(4L);
+    }
+
+    @Test
+    void aggiornaLHeartbeatSoloDeiJobInEsecuzione() {
+        when(jobIngestioneService.reclamaProssimo()).thenReturn(Optional.of(job(1L)), Optional.of(job(2L)));
+        servizio.avviaJobDisponibili();
+        ArgumentCaptor<Runnable> esecuzioni = ArgumentCaptor.forClass(Runnable.class);
+        verify(executor, times(2)).execute(esecuzioni.capture());
+
+        servizio.aggiornaHeartbeatJob();
+        ArgumentCaptor<List<Long>> inEsecuzione = listaCaptor();
+        verify(jobIngestioneService).aggiornaHeartbeat(inEsecuzione.capture());
+        assertThat(inEsecuzione.getValue()).containsExactlyInAnyOrder(1L, 2L);
+
+        // Il primo job termina (il documento non esiste più e il job fallisce): non è più vivo
+        when(documentoRepository.findById(10L)).thenReturn(Optional.empty());
+        esecuzioni.getAllValues().get(0).run();
+        verify(jobIngestioneService).fallisci(eq(1L), anyString());
+
+        servizio.aggiornaHeartbeatJob();
+        verify(jobIngestioneService, times(2)).aggiornaHeartbeat(inEsecuzione.capture());
+        assertThat(inEsecuzione.getValue()).containsExactly(2L);
+    }
+
+    @Test
+    void nonCompletaIlDocumentoSenzaLaColonnaVettoriale(@TempDir Path directory) throws Exception {
+        ReflectionTestUtils.setField(servizio, "motoreRicerca", RAGService.MOTORE_DATABASE);
+        ReflectionTestUtils.setField(servizio, "chunkPerCheckpoint", 50);
+        Path file = Files.writeString(directory.resolve("orari.txt"), "Siamo aperti dal lunedì al sabato.");
+        Organizzazione organizzazione = new Organizzazione();
+        organizzazione.setId(1L);
+        Documento documento = new Documento();
+        documento.setId(10L);
+        documento.setOrganizzazione(organizzazione);
+        documento.setTipoContenuto("text/plain");
+        documento.setPercorsoFile(file.toString());
+        when(documentoRepository.findById(10L)).thenReturn(Optional.of(documento));
+        when(cacheEmbeddingService.embeddingBatch(anyList(), eq(1L))).thenReturn(List.of(new byte[]{1, 2, 3, 4}));
+        doThrow(new DataAccessResourceFailureException("connessione persa"))
+                .when(chunkDocumentoRepository).aggiornaEmbeddingVettoriale(anyList());
+
+        assertThatThrownBy(() -> servizio.elaboraDocumento(10L)).isInstanceOf(DataAccessResourceFailureException.class);
+
+        // Il job verrà riprovato: il documento non risulta completato
+        assertThat(documento.getStatoElaborazione()).isEqualTo("in-elaborazione");
+        assertThat(documento.getElaborato()).isFalse();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static ArgumentCaptor<List<Long>> listaCaptor() {
+        return ArgumentCaptor.forClass(List.class);
+    }
+
+    private static JobIngestione job(Long id) {
+        JobIngestione job = new JobIngestione();
+        job.setId(id);
+        job.setDocumentoId(id * 10);
+        job.setStato(JobIngestione.STATO_IN_CORSO);
+        return job;
+    }
+}
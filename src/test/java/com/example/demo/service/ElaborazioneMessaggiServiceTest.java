@@ -0,0 +1,119 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Conversazione;
+import com.example.demo.model.Messaggio;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.MessaggioRepository;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class ElaborazioneMessaggiServiceTest {
+
+    // Due thread: l'ordine tra i messaggi dello stesso cliente non dipende dall'executor
+    private final ExecutorService executor = Executors.newFixedThreadPool(2);
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private CronologiaConversazioniService cronologia;
+    private RAGService ragService;
+    private ElaborazioneMessaggiService servizio;
+    private Organizzazione organizzazione;
+    private Conversazione conversazione;
+
+    @BeforeEach
+    void prepara() {
+        MessaggioRepository messaggioRepository = mock(MessaggioRepository.class);
+        when(messaggioRepository.save(any(Messaggio.class))).thenAnswer(invocazione -> invocazione.getArgument(0));
+        cronologia = mock(CronologiaConversazioniService.class);
+        ragService = mock(RAGService.class);
+        when(ragService.processaQuery(any(), anyLong(), any(), any())).thenReturn("risposta");
+        servizio = new ElaborazioneMessaggiService(messaggioRepository, cronologia, mock(RiassuntoConversazioniService.class),
+                mock(WhatsAppService.class), mock(AIService.class), ragService, mock(DocumentoService.class),
+                executor, scheduler, Runnable::run, new SimpleMeterRegistry());
+
+        organizzazione = new Organizzazione();
+        organizzazione.setId(1L);
+        conversazione = new Conversazione();
+        conversazione.setId(5L);
+        when(cronologia.ultimiMessaggi(5L)).thenReturn(List.of(
+                new CronologiaConversazioniService.VoceCronologia(1L, true, "Avete la pizza senza glutine?"),
+                new CronologiaConversazioniService.VoceCronologia(2L, false, "Sì, su ordinazione"),
+                new CronologiaConversazioniService.VoceCronologia(3L, true, "Vorrei ordinarne due"),
+                new CronologiaConversazioniService.VoceCronologia(4L, true, "per stasera alle 20")));
+    }
+
+    @AfterEach
+    void ferma() {
+        executor.shutdownNow();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    void iMessaggiDellaRafficaNonCompaionoNelContesto() {
+        ReflectionTestUtils.setField(servizio, "finestraMs", 50L);
+        ReflectionTestUtils.setField(servizio, "finestraMassimaMs", 1000L);
+
+        servizio.accoda(messaggio(3L), organizzazione, conversazione, "+39300", "Vorrei ordinarne due", List.of());
+        servizio.accoda(messaggio(4L), organizzazione, conversazione, "+39300", "per stasera alle 20", List.of());
+
+        verify(ragService, timeout(2000)).processaQuery(eq("Vorrei ordinarne due\nper stasera alle 20"), eq(1L), any(),
+                eq("Cliente: Avete la pizza senza glutine?\nAssistente: Sì, su ordinazione\n"));
+    }
+
+    @Test
+    void ilMessaggioSingoloNonCompareNelContesto() {
+        servizio.elabora(messaggio(4L), organizzazione, conversazione, "+39300", "per stasera alle 20", List.of());
+
+        verify(ragService).processaQuery(eq("per stasera alle 20"), eq(1L), any(),
+                eq("Cliente: Avete la pizza senza glutine?\nAssistente: Sì, su ordinazione\nCliente: Vorrei ordinarne due\n"));
+    }
+
+    @Test
+    void inModalitaSincronaIlSecondoMessaggioAttendeIlPrimo() throws Exception {
+        CountDownLatch primaInCorso = new CountDownLatch(1);
+        CountDownLatch sbloccaPrima = new CountDownLatch(1);
+        when(ragService.processaQuery(eq("prima"), anyLong(), any(), any())).thenAnswer(invocazione -> {
+            primaInCorso.countDown();
+            sbloccaPrima.await();
+            return "risposta";
+        });
+
+        CompletableFuture<Void> prima = servizio.accodaInOrdine(messaggio(3L), organizzazione, conversazione, "+39300", "prima", List.of());
+        CompletableFuture<Void> seconda = servizio.accodaInOrdine(messaggio(4L), organizzazione, conversazione, "+39300", "seconda", List.of());
+        assertThat(primaInCorso.await(2, TimeUnit.SECONDS)).isTrue();
+        Thread.sleep(200);
+        verify(ragService, never()).processaQuery(eq("seconda"), anyLong(), any(), any());
+
+        sbloccaPrima.countDown();
+        seconda.get(2, TimeUnit.SECONDS);
+        assertThat(prima).isDone();
+        verify(ragService).processaQuery(eq("seconda"), eq(1L), any(), any());
+    }
+
+    private Messaggio messaggio(Long id) {
+        Messaggio messaggio = new Messaggio();
+        messaggio.setId(id);
+        messaggio.setConversazione(conversazione);
+        messaggio.setDaCliente(true);
+        return messaggio;
+    }
+}
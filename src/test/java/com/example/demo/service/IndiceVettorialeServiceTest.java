@@ -0,0 +1,187 @@
+package com.example.demo.service;
+
+import com.example.demo.model.ChunkDocumento;
+import com.example.demo.model.Documento;
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.ChunkDocumentoRepository;
+import com.example.demo.repository.DocumentoRepository;
+import com.example.demo.repository.EmbeddingChunk;
+import com.example.demo.repository.EmbeddingChunkQuantizzato;
+import com.example.demo.service.indice.QuantizzazioneEmbedding;
+import com.example.demo.service.indice.RisultatoRicerca;
+import com.example.demo.util.EmbeddingUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class IndiceVettorialeServiceTest {
+
+    private static final Long ORGANIZZAZIONE = 1L;
+
+    private ChunkDocumentoRepository chunkDocumentoRepository;
+    private DocumentoRepository documentoRepository;
+    private IndiceVettorialeService servizio;
+
+    @BeforeEach
+    void prepara() {
+        chunkDocumentoRepository = mock(ChunkDocumentoRepository.class);
+        documentoRepository = mock(DocumentoRepository.class);
+        servizio = new IndiceVettorialeService(chunkDocumentoRepository, documentoRepository);
+        ReflectionTestUtils.setField(servizio, "tipoPredefinito", "esatto");
+        ReflectionTestUtils.setField(servizio, "tipoQuantizzazione", "nessuna");
+
+        when(documentoRepository.findIdElaboratiByOrganizzazioneId(ORGANIZZAZIONE)).thenReturn(List.of(10L));
+        when(chunkDocumentoRepository.findEmbeddingByOrganizzazioneId(ORGANIZZAZIONE))
+                .thenReturn(List.of(chunk(100L, 10L, 1f, 0f)));
+    }
+
+    @Test
+    void recepisceIDocumentiElaboratiEdEliminatiDaAltreIstanze() {
+        assertThat(cerca(0f, 1f)).containsExactly(100L);
+
+        // Un'altra istanza elabora il documento 20 ed elimina il 10
+        when(documentoRepository.findIdElaboratiByOrganizzazioneId(ORGANIZZAZIONE)).thenReturn(List.of(20L));
+        when(chunkDocumentoRepository.findEmbeddingByDocumentoIdIn(List.of(20L)))
+                .thenReturn(List.of(chunk(200L, 20L, 0f, 1f)));
+        servizio.riallinea();
+
+        assertThat(cerca(0f, 1f)).containsExactly(200L);
+    }
+
+    @Test
+    void gliAggiornamentiLocaliNonVengonoRipetutiDalRiallineamento() {
+        cerca(1f, 0f);
+        Documento documento = new Documento();
+        documento.setId(20L);
+        Organizzazione organizzazione = new Organizzazione();
+        organizzazione.setId(ORGANIZZAZIONE);
+        documento.setOrganizzazione(organizzazione);
+        ChunkDocumento chunk = new ChunkDocumento();
+        chunk.setId(200L);
+        chunk.setEmbedding(EmbeddingUtils.floatArrayToByteArray(new float[]{0f, 1f}));
+
+        servizio.documentoElaborato(documento, List.of(chunk));
+        when(documentoRepository.findIdElaboratiByOrganizzazioneId(ORGANIZZAZIONE)).thenReturn(List.of(10L, 20L));
+        servizio.riallinea();
+
+        // Il riallineamento non ha nulla da caricare: senza stub findEmbeddingByDocumentoIdIn il documento sparirebbe
+        assertThat(cerca(0f, 1f)).containsExactly(200L, 100L);
+    }
+
+    @Test
+    void senzaIndiceCaricatoGliAggiornamentiVengonoIgnorati() {
+        servizio.documentoRimosso(ORGANIZZAZIONE, 10L);
+        servizio.riallinea();
+
+        assertThat(cerca(1f, 0f)).containsExactly(100L);
+    }
+
+    @Test
+    void gliIndiciHnswVengonoSalvatiInDifferita(@TempDir Path directory) {
+        ReflectionTestUtils.setField(servizio, "tipoPredefinito", "hnsw");
+        ReflectionTestUtils.setField(servizio, "directoryIndici", directory.toString());
+        ReflectionTestUtils.setField(servizio, "hnswM", 16);
+        ReflectionTestUtils.setField(servizio, "hnswEfConstruction", 200);
+        ReflectionTestUtils.setField(servizio, "hnswEfSearch", 64);
+        Path file = directory.resolve("organizzazione_" + ORGANIZZAZIONE + ".hnsw");
+
+        cerca(1f, 0f);
+        servizio.documentoRimosso(ORGANIZZAZIONE, 10L);
+        assertThat(file).doesNotExist();
+
+        servizio.salvaIndiciModificati();
+        assertThat(file).exists();
+
+        // Senza nuove modifiche il file non viene riscritto
+        assertThat(file.toFile().setLastModified(0)).isTrue();
+        servizio.salvaIndiciModificati();
+        assertThat(file.toFile().lastModified()).isZero();
+    }
+
+    @Test
+    void lIndiceBinarioUsaLaDimensioneRealeDegliEmbedding() {
+        ReflectionTestUtils.setField(servizio, "tipoQuantizzazione", QuantizzazioneEmbedding.TIPO_BINARIA);
+        // Dieci componenti: il codice binario occupa 2 byte, che corrisponderebbero a 16 componenti
+        float[] salvato = {1f, 1f, 1f, 1f, 1f, -1f, -1f, -1f, -1f, -1f};
+        EmbeddingChunk esistente = chunk(100L, 10L, salvato);
+        when(chunkDocumentoRepository.findEmbeddingQuantizzatoByOrganizzazioneId(ORGANIZZAZIONE))
+                .thenReturn(List.of(quantizzato(100L, 10L, QuantizzazioneEmbedding.quantizzaBinario(salvato))));
+        when(chunkDocumentoRepository.findEmbeddingByIdIn(anyCollection())).thenReturn(List.of(esistente));
+
+        Documento documento = new Documento();
+        documento.setId(20L);
+        Organizzazione organizzazione = new Organizzazione();
+        organizzazione.setId(ORGANIZZAZIONE);
+        documento.setOrganizzazione(organizzazione);
+        ChunkDocumento nuovo = new ChunkDocumento();
+        nuovo.setId(200L);
+        nuovo.setEmbedding(EmbeddingUtils.floatArrayToByteArray(new float[]{-1f, -1f, -1f, -1f, -1f, 1f, 1f, 1f, 1f, 1f}));
+
+        assertThat(servizio.cerca(ORGANIZZAZIONE, esistente.getEmbedding(), 5)).hasSize(1);
+        servizio.documentoElaborato(documento, List.of(nuovo));
+
+        when(chunkDocumentoRepository.findEmbeddingByIdIn(anyCollection()))
+                .thenReturn(List.of(esistente, chunk(200L, 20L, -1f, -1f, -1f, -1f, -1f, 1f, 1f, 1f, 1f, 1f)));
+        assertThat(servizio.cerca(ORGANIZZAZIONE, nuovo.getEmbedding(), 5).stream().map(RisultatoRicerca::chunkId))
+                .containsExactly(200L, 100L);
+    }
+
+    private List<Long> cerca(float... query) {
+        return servizio.cerca(ORGANIZZAZIONE, EmbeddingUtils.floatArrayToByteArray(query), 5).stream()
+                .map(RisultatoRicerca::chunkId)
+                .toList();
+    }
+
+    private static EmbeddingChunk chunk(Long id, Long documentoId, float... vettore) {
+        byte[] embedding = EmbeddingUtils.floatArrayToByteArray(vettore);
+        return new EmbeddingChunk() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public Long getDocumentoId() {
+                return documentoId;
+            }
+
+            @Override
+            public byte[] getEmbedding() {
+                return embedding;
+            }
+        };
+    }
+
+    private static EmbeddingChunkQuantizzato quantizzato(Long id, Long documentoId, byte[] binario) {
+        return new EmbeddingChunkQuantizzato() {
+            @Override
+            public Long getId() {
+                return id;
+            }
+
+            @Override
+            public Long getDocumentoId() {
+                return documentoId;
+            }
+
+            @Override
+            public byte[] getEmbeddingInt8() {
+                return null;
+            }
+
+            @Override
+            public byte[] getEmbeddingBinario() {
+                return binario;
+            }
+        };
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Organizzazione;
+import com.example.demo.repository.OrganizzazioneRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InstradamentoOrganizzazioniServiceTest {
+
+    private OrganizzazioneRepository organizzazioneRepository;
+    private InstradamentoOrganizzazioniService servizio;
+
+    @BeforeEach
+    void prepara() {
+        organizzazioneRepository = mock(OrganizzazioneRepository.class);
+        servizio = new InstradamentoOrganizzazioniService(organizzazioneRepository, 100, 60);
+        when(organizzazioneRepository.findAll()).thenReturn(List.of());
+        servizio.aggiorna();
+    }
+
+    @Test
+    void unNumeroTrovatoSulDatabaseEntraNellaTabella() {
+        Organizzazione organizzazione = new Organizzazione();
+        organizzazione.setId(7L);
+        organizzazione.setNumeroWhatsapp("whatsapp:+390000001");
+        when(organizzazioneRepository.findFirstByNumeroWhatsappOrderByIdAsc("whatsapp:+390000001"))
+                .thenReturn(Optional.of(organizzazione));
+
+        assertThat(servizio.trova("whatsapp:+390000001")).contains(organizzazione);
+        assertThat(servizio.trova("whatsapp:+390000001")).contains(organizzazione);
+
+        verify(organizzazioneRepository, times(1)).findFirstByNumeroWhatsappOrderByIdAsc("whatsapp:+390000001");
+    }
+
+    @Test
+    void unNumeroSconosciutoNonInterrogaIlDatabaseAOgniMessaggio() {
+        when(organizzazioneRepository.findFirstByNumeroWhatsappOrderByIdAsc("whatsapp:+390000002"))
+                .thenReturn(Optional.empty());
+
+        assertThat(servizio.trova("whatsapp:+390000002")).isEmpty();
+        assertThat(servizio.trova("whatsapp:+390000002")).isEmpty();
+        verify(organizzazioneRepository, times(1)).findFirstByNumeroWhatsappOrderByIdAsc("whatsapp:+390000002");
+
+        // Dopo una modifica delle organizzazioni il numero viene cercato di nuovo
+        servizio.aggiorna();
+        assertThat(servizio.trova("whatsapp:+390000002")).isEmpty();
+        verify(organizzazioneRepository, times(2)).findFirstByNumeroWhatsappOrderByIdAsc("whatsapp:+390000002");
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Documento;
+import com.example.demo.model.JobIngestione;
+import com.example.demo.repository.DocumentoRepository;
+import com.example.demo.repository.JobIngestioneRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.time.LocalDateTime;
+import java.util.Optional;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class JobIngestioneServiceTest {
+
+    private JobIngestioneRepository jobIngestioneRepository;
+    private DocumentoRepository documentoRepository;
+    private JobIngestioneService servizio;
+
+    @BeforeEach
+    void prepara() {
+        jobIngestioneRepository = mock(JobIngestioneRepository.class);
+        documentoRepository = mock(DocumentoRepository.class);
+        when(jobIngestioneRepository.save(any(JobIngestione.class))).thenAnswer(invocazione -> invocazione.getArgument(0));
+        servizio = new JobIngestioneService(jobIngestioneRepository, documentoRepository);
+        ReflectionTestUtils.setField(servizio, "timeoutMs", 120_000L);
+        ReflectionTestUtils.setField(servizio, "maxTentativi", 3);
+    }
+
+    @Test
+    void nonCreaUnSecondoJobAttivoPerLoStessoDocumento() {
+        when(jobIngestioneRepository.inserisciSeNonAttivo(eq(7L), any(LocalDateTime.class))).thenReturn(1, 0);
+
+        assertThat(servizio.creaJob(7L)).isTrue();
+        assertThat(servizio.creaJob(7L)).isFalse();
+    }
+
+    @Test
+    void reclamaUnJobInAttesa() {
+        JobIngestione job = job(1L, JobIngestione.STATO_IN_ATTESA, 0, null);
+        when(jobIngestioneRepository.bloccaProssimoEseguibile(any(LocalDateTime.class))).thenReturn(Optional.of(job));
+
+        JobIngestione reclamato = servizio.reclamaProssimo().orElseThrow();
+
+        assertThat(reclamato.getStato()).isEqualTo(JobIngestione.STATO_IN_CORSO);
+        assertThat(reclamato.getTentativi()).isEqualTo(1);
+        assertThat(reclamato.getIstanza()).isNotBlank();
+        assertThat(reclamato.getUltimoHeartbeat()).isNotNull();
+    }
+
+    @Test
+    void riprendeUnJobConHeartbeatScaduto() {
+        JobIngestione abbandonato = job(2L, JobIngestione.STATO_IN_CORSO, 1, "999@istanza-terminata");
+        abbandonato.setUltimoHeartbeat(LocalDateTime.now().minusMinutes(10));
+        when(jobIngestioneRepository.bloccaProssimoEseguibile(any(LocalDateTime.class))).thenReturn(Optional.of(abbandonato));
+
+        JobIngestione reclamato = servizio.reclamaProssimo().orElseThrow();
+
+        assertThat(reclamato.getIstanza()).isNotEqualTo("999@istanza-terminata");
+        assertThat(reclamato.getTentativi()).isEqualTo(2);
+        assertThat(reclamato.getUltimoHeartbeat()).isAfter(LocalDateTime.now().minusMinutes(1));
+    }
+
+    @Test
+    void chiudeInErroreIJobCheHannoEsauritoITentativi() {
+        JobIngestione esaurito = job(3L, JobIngestione.STATO_IN_CORSO, 3, "999@istanza-terminata");
+        JobIngestione successivo = job(4L, JobIngestione.STATO_IN_ATTESA, 0, null);
+        when(jobIngestioneRepository.bloccaProssimoEseguibile(any(LocalDateTime.class)))
+                .thenReturn(Optional.of(esaurito), Optional.of(successivo));
+        Documento documento = new Documento();
+        documento.setId(esaurito.getDocumentoId());
+        when(documentoRepository.findById(esaurito.getDocumentoId())).thenReturn(Optional.of(documento));
+
+        JobIngestione reclamato = servizio.reclamaProssimo().orElseThrow();
+
+        assertThat(reclamato.getId()).isEqualTo(4L);
+        assertThat(esaurito.getStato()).isEqualTo(JobIngestione.STATO_ERRORE);
+        assertThat(documento.getStatoElaborazione()).isEqualTo("errore");
+        verify(documentoRepository).save(documento);
+    }
+
+    @Test
+    void unFallimentoRimetteIlJobInAttesaFinoAlMassimoDeiTentativi() {
+        JobIngestione job = job(5L, JobIngestione.STATO_IN_CORSO, 1, "1@istanza");
+        when(jobIngestioneRepository.findById(5L)).thenReturn(Optional.of(job));
+
+        servizio.fallisci(5L, "timeout");
+
+        assertThat(job.getStato()).isEqualTo(JobIngestione.STATO_IN_ATTESA);
+        assertThat(job.getErrore()).isEqualTo("timeout");
+    }
+
+    private static JobIngestione job(Long id, String stato, int tentativi, String istanza) {
+        JobIngestione job = new JobIngestione();
+        job.setId(id);
+        job.setDocumentoId(id * 10);
+        job.setStato(stato);
+        job.setTentativi(tentativi);
+        job.setIstanza(istanza);
+        return job;
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.demo.service;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class LimiteInviiServiceTest {
+
+    private JdbcTemplate jdbcTemplate;
+    private LimiteInviiService servizio;
+
+    @BeforeEach
+    void prepara() {
+        jdbcTemplate = mock(JdbcTemplate.class);
+        servizio = new LimiteInviiService(jdbcTemplate);
+        ReflectionTestUtils.setField(servizio, "messaggiAlSecondo", 10.0);
+        ReflectionTestUtils.setField(servizio, "raffica", 2);
+    }
+
+    @Test
+    void attendeInBaseAiGettoniPrenotatiDalleAltreIstanze() {
+        when(jdbcTemplate.queryForObject(eq(LimiteInviiService.RISERVA), eq(Double.class), any(Object[].class)))
+                .thenReturn(1.0, -0.5, -3.0);
+
+        assertThat(servizio.riserva("+390000000")).isZero();
+        assertThat(servizio.riserva("+390000000")).isEqualTo(50_000_000L);
+        assertThat(servizio.riserva("+390000000")).isEqualTo(300_000_000L);
+    }
+
+    @Test
+    void senzaDatabaseUsaIlLimiteLocale() {
+        when(jdbcTemplate.queryForObject(eq(LimiteInviiService.RISERVA), eq(Double.class), any(Object[].class)))
+                .thenThrow(new DataAccessResourceFailureException("database non raggiungibile"));
+
+        assertThat(servizio.riserva("+390000000")).isZero();
+        assertThat(servizio.riserva("+390000000")).isZero();
+        // Raffica esaurita: il terzo invio attende circa un decimo di secondo
+        assertThat(servizio.riserva("+390000000")).isBetween(50_000_000L, 100_000_000L);
+    }
+}
@@ -0,0 +1,88 @@
+package com.example.demo.service;
+
+import com.example.demo.repository.ChunkDocumentoRepository;
+import com.example.demo.repository.OrganizzazioneRepository;
+import com.example.demo.util.EmbeddingUtils;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RAGServiceTest {
+
+    private static final String DOMANDA = "Quando arriva il mio ordine a domicilio?";
+
+    private AIService aiService;
+    private RAGService servizio;
+
+    @BeforeEach
+    void prepara() {
+        aiService = mock(AIService.class);
+        CacheEmbeddingService cacheEmbedding = mock(CacheEmbeddingService.class);
+        when(cacheEmbedding.embeddingAsync(anyString(), anyLong()))
+                .thenReturn(CompletableFuture.completedFuture(EmbeddingUtils.floatArrayToByteArray(new float[]{1f, 0f, 0f})));
+        OrganizzazioneRepository organizzazioneRepository = mock(OrganizzazioneRepository.class);
+        when(organizzazioneRepository.findById(anyLong())).thenReturn(Optional.empty());
+        IndiceVettorialeService indice = mock(IndiceVettorialeService.class);
+        when(indice.cerca(anyLong(), any(byte[].class), anyInt())).thenReturn(List.of());
+
+        CacheRisposteService cacheRisposte = new CacheRisposteService(new SimpleMeterRegistry(), 100);
+        ReflectionTestUtils.setField(cacheRisposte, "soglia", 0.95f);
+        ReflectionTestUtils.setField(cacheRisposte, "rispostePerOrganizzazione", 10);
+        ReflectionTestUtils.setField(cacheRisposte, "durataMinuti", 60L);
+        ReflectionTestUtils.setField(cacheRisposte, "minCaratteri", 20);
+
+        ComposizionePrompt composizione = new ComposizionePrompt("gpt-3.5-turbo", new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(composizione, "budgetToken", 3000);
+        ReflectionTestUtils.setField(composizione, "tokenConversazione", 600);
+        ReflectionTestUtils.setField(composizione, "tokenRiassunto", 300);
+        ReflectionTestUtils.setField(composizione, "tokenDomanda", 500);
+
+        servizio = new RAGService(mock(ChunkDocumentoRepository.class), organizzazioneRepository, aiService,
+                cacheEmbedding, cacheRisposte, indice, composizione);
+        ReflectionTestUtils.setField(servizio, "chunkCandidati", 8);
+    }
+
+    @Test
+    void laRispostaGenerataConLaConversazioneNonVieneServitaAdAltri() {
+        when(aiService.generaRispostaAsync(anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("Mario, l'ordine 4512 arriva domani in via Roma"))
+                .thenReturn(CompletableFuture.completedFuture("Indica il numero d'ordine per verificarlo"));
+
+        String prima = servizio.processaQuery(DOMANDA, 1L, "Mario Rossi ha ordinato il 4512 per via Roma.",
+                "Utente: ho pagato con la carta\n");
+        String seconda = servizio.processaQuery(DOMANDA, 1L, null, null);
+
+        assertThat(prima).contains("Mario");
+        assertThat(seconda).isEqualTo("Indica il numero d'ordine per verificarlo");
+        verify(aiService, times(2)).generaRispostaAsync(anyString(), anyString());
+    }
+
+    @Test
+    void leDomandeSenzaConversazioneUsanoLaCache() {
+        when(aiService.generaRispostaAsync(anyString(), anyString()))
+                .thenReturn(CompletableFuture.completedFuture("Le consegne arrivano in 48 ore"));
+
+        servizio.processaQuery(DOMANDA, 1L, null, "");
+        String seconda = servizio.processaQuery(DOMANDA, 1L, "  ", null);
+        // Una conversazione in corso non riceve la risposta in cache
+        servizio.processaQuery(DOMANDA, 1L, null, "Utente: buongiorno\n");
+
+        assertThat(seconda).isEqualTo("Le consegne arrivano in 48 ore");
+        verify(aiService, times(2)).generaRispostaAsync(anyString(), anyString());
+    }
+}
@@ -0,0 +1,140 @@
+package com.example.demo.service;
+
+import com.example.demo.model.Conversazione;
+import com.example.demo.model.Messaggio;
+import com.example.demo.repository.ConversazioneRepository;
+import com.example.demo.repository.MessaggioRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.data.domain.Pageable;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class RiassuntoConversazioniServiceTest {
+
+    private ConversazioneRepository conversazioneRepository;
+    private MessaggioRepository messaggioRepository;
+    private CronologiaConversazioniService cronologia;
+    private AIService aiService;
+    private RiassuntoConversazioniService servizio;
+
+    @BeforeEach
+    void prepara() {
+        conversazioneRepository = mock(ConversazioneRepository.class);
+        messaggioRepository = mock(MessaggioRepository.class);
+        cronologia = mock(CronologiaConversazioniService.class);
+        aiService = mock(AIService.class);
+        servizio = new RiassuntoConversazioniService(conversazioneRepository, messaggioRepository, cronologia,
+                aiService, mock(ExecutorService.class), 100, 60, 30);
+        ReflectionTestUtils.setField(servizio, "ogniMessaggi", 4);
+        ReflectionTestUtils.setField(servizio, "messaggiPerAggiornamento", 50);
+        ReflectionTestUtils.setField(servizio, "lunghezzaMassima", 1000);
+
+        Conversazione conversazione = new Conversazione();
+        conversazione.setId(1L);
+        conversazione.setContesto(Map.of(
+                RiassuntoConversazioniService.CHIAVE_RIASSUNTO, "Il cliente chiede degli orari.",
+                RiassuntoConversazioniService.CHIAVE_FINO_A, 2));
+        when(conversazioneRepository.findById(1L)).thenReturn(Optional.of(conversazione));
+        when(conversazioneRepository.aggiornaRiassunto(eq(1L), anyString(), anyLong())).thenReturn(1);
+    }
+
+    @Test
+    void riassumeSoloIMessaggiUscitiDallaFinestraDeiRecenti() {
+        when(messaggioRepository.findByConversazioneIdAndIdGreaterThanOrderByIdAsc(eq(1L), eq(2L), any(Pageable.class)))
+                .thenReturn(LongStream.rangeClosed(3, 8).mapToObj(id -> messaggio(id, "messaggio " + id)).toList());
+        when(cronologia.ultimiMessaggi(1L)).thenReturn(List.of(
+                new CronologiaConversazioniService.VoceCronologia(7L, true, "messaggio 7"),
+                new CronologiaConversazioniService.VoceCronologia(8L, false, "messaggio 8")));
+        when(aiService.generaRisposta(anyString())).thenReturn("Il cliente chiede orari e prezzi.");
+
+        assertThat(servizio.aggiorna(1L)).isTrue();
+
+        ArgumentCaptor<String> prompt = ArgumentCaptor.forClass(String.class);
+        verify(aiService).generaRisposta(prompt.capture());
+        assertThat(prompt.getValue())
+                .contains("Il cliente chiede degli orari.", "messaggio 3", "messaggio 6")
+                .doesNotContain("messaggio 7", "messaggio 8");
+
+        ArgumentCaptor<String> modifiche = ArgumentCaptor.forClass(String.class);
+        verify(conversazioneRepository).aggiornaRiassunto(eq(1L), modifiche.capture(), eq(2L));
+        assertThat(modifiche.getValue()).contains("\"riassuntoFinoAMessaggio\":6");
+        assertThat(servizio.riassunto(1L)).isEqualTo("Il cliente chiede orari e prezzi.");
+    }
+
+    @Test
+    void nonSalvaIlRiassuntoSeLaGenerazioneFallisce() {
+        when(messaggioRepository.findByConversazioneIdAndIdGreaterThanOrderByIdAsc(eq(1L), eq(2L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(3L, "messaggio 3")));
+        when(cronologia.ultimiMessaggi(1L)).thenReturn(List.of(
+                new CronologiaConversazioniService.VoceCronologia(4L, true, "messaggio 4")));
+        when(aiService.generaRisposta(anyString())).thenReturn(AIService.PREFISSO_ERRORE + " durante la generazione");
+
+        assertThat(servizio.aggiorna(1L)).isFalse();
+
+        verify(conversazioneRepository, never()).aggiornaRiassunto(any(), anyString(), anyLong());
+        assertThat(servizio.riassunto(1L)).isEqualTo("Il cliente chiede degli orari.");
+    }
+
+    @Test
+    void riparteDalRiassuntoSalvatoDaUnAltraIstanza() {
+        assertThat(servizio.riassunto(1L)).isEqualTo("Il cliente chiede degli orari.");
+
+        // Un'altra istanza ha già fuso i messaggi fino al 6
+        Conversazione aggiornata = new Conversazione();
+        aggiornata.setId(1L);
+        aggiornata.setContesto(Map.of(
+                RiassuntoConversazioniService.CHIAVE_RIASSUNTO, "Il cliente chiede orari e prezzi.",
+                RiassuntoConversazioniService.CHIAVE_FINO_A, 6));
+        when(conversazioneRepository.findById(1L)).thenReturn(Optional.of(aggiornata));
+        when(messaggioRepository.findByConversazioneIdAndIdGreaterThanOrderByIdAsc(eq(1L), eq(6L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(7L, "messaggio 7")));
+        when(cronologia.ultimiMessaggi(1L)).thenReturn(List.of(
+                new CronologiaConversazioniService.VoceCronologia(8L, false, "messaggio 8")));
+        when(aiService.generaRisposta(anyString())).thenReturn("Il cliente chiede orari, prezzi e consegne.");
+
+        assertThat(servizio.aggiorna(1L)).isTrue();
+
+        ArgumentCaptor<String> prompt = ArgumentCaptor.forClass(String.class);
+        verify(aiService).generaRisposta(prompt.capture());
+        assertThat(prompt.getValue()).contains("Il cliente chiede orari e prezzi.", "messaggio 7").doesNotContain("messaggio 3");
+        verify(conversazioneRepository).aggiornaRiassunto(eq(1L), anyString(), eq(6L));
+    }
+
+    @Test
+    void scartaIlRiassuntoSeNelFrattempoEStatoAggiornato() {
+        when(messaggioRepository.findByConversazioneIdAndIdGreaterThanOrderByIdAsc(eq(1L), eq(2L), any(Pageable.class)))
+                .thenReturn(List.of(messaggio(3L, "messaggio 3")));
+        when(cronologia.ultimiMessaggi(1L)).thenReturn(List.of(
+                new CronologiaConversazioniService.VoceCronologia(4L, true, "messaggio 4")));
+        when(aiService.generaRisposta(anyString())).thenReturn("Riassunto generato su uno stato superato.");
+        when(conversazioneRepository.aggiornaRiassunto(eq(1L), anyString(), eq(2L))).thenReturn(0);
+
+        assertThat(servizio.aggiorna(1L)).isFalse();
+        assertThat(servizio.riassunto(1L)).isEqualTo("Il cliente chiede degli orari.");
+    }
+
+    private static Messaggio messaggio(Long id, String contenuto) {
+        Messaggio messaggio = new Messaggio();
+        messaggio.setId(id);
+        messaggio.setDaCliente(id % 2 == 1);
+        messaggio.setContenuto(contenuto);
+        return messaggio;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.demo.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ParameterizedPreparedStatementSetter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class StatiConsegnaServiceTest {
+
+    private final List<List<String>> scritture = new ArrayList<>();
+    private Set<String> sidSalvati;
+    // Messaggi salvati che hanno già uno stato più avanzato di quello notificato
+    private Set<String> sidAvanzati = Set.of();
+    private StatiConsegnaService servizio;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    void prepara() {
+        JdbcTemplate jdbcTemplate = mock(JdbcTemplate.class);
+        when(jdbcTemplate.batchUpdate(eq(StatiConsegnaService.AGGIORNA_STATO), any(Collection.class), anyInt(),
+                any(ParameterizedPreparedStatementSetter.class))).thenAnswer(invocazione -> {
+            Collection<Map.Entry<String, StatiConsegnaService.Aggiornamento>> voci = invocazione.getArgument(1);
+            List<String> scritti = new ArrayList<>();
+            int[] righe = new int[voci.size()];
+            int i = 0;
+            for (Map.Entry<String, StatiConsegnaService.Aggiornamento> voce : voci) {
+                scritti.add(voce.getKey() + "=" + voce.getValue().stato());
+                righe[i++] = sidSalvati.contains(voce.getKey()) ? 1 : 0;
+            }
+            scritture.add(scritti);
+            return new int[][]{righe};
+        });
+        when(jdbcTemplate.queryForList(anyString(), eq(String.class), any(Object[].class))).thenAnswer(invocazione -> {
+            Object[] sid = (Object[]) invocazione.getRawArguments()[2];
+            return Arrays.stream(sid).map(String.class::cast)
+                    .filter(voce -> sidSalvati.contains(voce) || sidAvanzati.contains(voce))
+                    .toList();
+        });
+
+        servizio = new StatiConsegnaService(jdbcTemplate, mock(ExecutorService.class), new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(servizio, "lotto", 500);
+        ReflectionTestUtils.setField(servizio, "maxTentativi", 3);
+    }
+
+    @Test
+    void tieneSoloLoStatoPiuAvanzatoPerOgniSid() {
+        sidSalvati = Set.of("SM1");
+
+        servizio.registra("SM1", "sent", null);
+        servizio.registra("SM1", "read", null);
+        servizio.registra("SM1", "delivered", null);
+        assertThat(servizio.registra("SM1", "received", null)).isFalse();
+
+        servizio.scriviAggiornamenti();
+
+        assertThat(scritture).containsExactly(List.of("SM1=read"));
+        assertThat(servizio.getInAttesa()).isZero();
+    }
+
+    @Test
+    void riprovaISidNonAncoraSalvatiFinoAlNumeroMassimoDiTentativi() {
+        sidSalvati = Set.of();
+        servizio.registra("SM2", "delivered", null);
+
+        servizio.scriviAggiornamenti();
+        assertThat(servizio.getInAttesa()).isEqualTo(1);
+
+        sidSalvati = Set.of("SM2");
+        servizio.scriviAggiornamenti();
+        assertThat(servizio.getInAttesa()).isZero();
+
+        sidSalvati = Set.of();
+        servizio.registra("SM3", "failed", "63016");
+        for (int i = 0; i < 3; i++) {
+            servizio.scriviAggiornamenti();
+        }
+        assertThat(servizio.getInAttesa()).isZero();
+        assertThat(scritture).hasSize(5);
+    }
+
+    @Test
+    void nonRiprovaGliStatiSuperatiDaUnoPiuAvanzato() {
+        sidSalvati = Set.of();
+        sidAvanzati = Set.of("SM4");
+        servizio.registra("SM4", "sent", null);
+
+        servizio.scriviAggiornamenti();
+
+        assertThat(servizio.getInAttesa()).isZero();
+        assertThat(scritture).hasSize(1);
+    }
+
+    @Test
+    void ilConfrontoDegliStatiComprendeTuttiGliStatiNoti() {
+        assertThat(StatiConsegnaService.AGGIORNA_STATO)
+                .contains("WHEN 'accepted' THEN 0", "WHEN 'scheduled' THEN 0", "WHEN 'canceled' THEN 5", "WHEN 'read' THEN 4");
+    }
+}
@@ -0,0 +1,154 @@
+package com.example.demo.service;
+
+import com.example.demo.model.InvioWhatsApp;
+import com.sun.net.httpserver.HttpServer;
+import com.twilio.rest.api.v2010.account.Message;
+import com.twilio.rest.api.v2010.account.MessageCreator;
+import com.twilio.type.PhoneNumber;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.MockedStatic;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.LocalDateTime;
+import java.util.HexFormat;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockStatic;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class WhatsAppServiceTest {
+
+    @TempDir
+    Path cartella;
+
+    private HttpServer server;
+    private SimpleMeterRegistry meterRegistry;
+    private WhatsAppService servizio;
+    private byte[] contenuto;
+
+    @BeforeEach
+    void avvia() throws IOException {
+        contenuto = new byte[3 * 1024 * 1024 + 17];
+        new Random(1).nextBytes(contenuto);
+
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/media", scambio -> {
+            // Senza Content-Length (chunked): il limite deve valere anche durante la copia
+            scambio.sendResponseHeaders(200, 0);
+            try (OutputStream out = scambio.getResponseBody()) {
+                out.write(contenuto);
+            }
+        });
+        server.start();
+
+        meterRegistry = new SimpleMeterRegistry();
+        servizio = new WhatsAppService(null, null, null, null, null, null, null, null, 1, meterRegistry, 1000, 5000);
+        ReflectionTestUtils.setField(servizio, "uploadDir", cartella.toString());
+        ReflectionTestUtils.setField(servizio, "accountSid", "AC-test");
+        ReflectionTestUtils.setField(servizio, "authToken", "token");
+    }
+
+    @AfterEach
+    void ferma() {
+        server.stop(0);
+    }
+
+    @Test
+    void salvaLAllegatoECalcolaLoSha256() throws Exception {
+        ReflectionTestUtils.setField(servizio, "dimensioneMassimaMb", 16L);
+
+        WhatsAppService.AllegatoScaricato allegato = servizio.scaricaAllegato(url(), "application/pdf", "listino.pdf");
+
+        assertThat(allegato.dimensione()).isEqualTo(contenuto.length);
+        assertThat(Files.readAllBytes(Path.of(allegato.percorso()))).isEqualTo(contenuto);
+        assertThat(allegato.sha256()).isEqualTo(HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(contenuto)));
+        assertThat(meterRegistry.get("whatsapp.allegati.download").tag("esito", "ok").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void interrompeIlDownloadOltreLaDimensioneMassima() throws IOException {
+        ReflectionTestUtils.setField(servizio, "dimensioneMassimaMb", 1L);
+
+        assertThatThrownBy(() -> servizio.scaricaAllegato(url(), "application/pdf", "listino.pdf"))
+                .isInstanceOf(IOException.class)
+                .hasMessageContaining("troppo grande");
+
+        try (var file = Files.list(cartella.resolve("whatsapp_media"))) {
+            assertThat(file).isEmpty();
+        }
+        assertThat(meterRegistry.get("whatsapp.allegati.download").tag("esito", "errore").timer().count()).isEqualTo(1);
+    }
+
+    @Test
+    void nonRispedisceIlMessaggioSeFallisceSoloLaRegistrazione() {
+        CodaInviiWhatsAppService coda = mock(CodaInviiWhatsAppService.class);
+        WhatsAppService conCoda = new WhatsAppService(null, null, null, null, null, coda, null, null, 1, meterRegistry, 1000, 5000);
+        InvioWhatsApp invio = new InvioWhatsApp();
+        invio.setId(7L);
+        invio.setMittente("+390000000000");
+        invio.setDestinatario("+391111111111");
+        invio.setContenuto("Buongiorno");
+        invio.setDataCreazione(LocalDateTime.now());
+        doThrow(new DataAccessResourceFailureException("connessione persa")).doNothing()
+                .when(coda).segnaInviato(7L, "SM1");
+
+        MessageCreator creator = mock(MessageCreator.class);
+        Message messaggio = mock(Message.class);
+        when(messaggio.getSid()).thenReturn("SM1");
+        when(creator.create()).thenReturn(messaggio);
+        try (MockedStatic<Message> twilio = mockStatic(Message.class)) {
+            twilio.when(() -> Message.creator(any(PhoneNumber.class), any(PhoneNumber.class), anyString())).thenReturn(creator);
+
+            conCoda.invia(invio);
+            // L'invio ripreso dopo il timeout viene solo registrato, senza una seconda chiamata a Twilio
+            conCoda.invia(invio);
+        }
+
+        verify(creator, times(1)).create();
+        verify(coda, never()).fallisci(any(), any(), anyBoolean());
+        verify(coda, times(2)).segnaInviato(7L, "SM1");
+    }
+
+    @Test
+    void rimandaGliInviiDopoUnoPrecedenteDaRitentare() {
+        CodaInviiWhatsAppService coda = mock(CodaInviiWhatsAppService.class);
+        WhatsAppService conCoda = new WhatsAppService(null, null, null, null, null, coda, null, null, 1, meterRegistry, 1000, 5000);
+        InvioWhatsApp invio = new InvioWhatsApp();
+        invio.setId(8L);
+        invio.setDestinatario("+391111111111");
+        when(coda.haInviiPrecedentiDaInviare(invio)).thenReturn(true);
+
+        try (MockedStatic<Message> twilio = mockStatic(Message.class)) {
+            conCoda.inviaNellOrdine(invio);
+            twilio.verifyNoInteractions();
+        }
+
+        verify(coda).rilascia(8L);
+        verify(coda, never()).fallisci(any(), any(), anyBoolean());
+    }
+
+    private String url() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/media";
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.demo.service.indice;
+
+import com.example.demo.util.EmbeddingUtils;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IndiceHnswTest {
+
+    private static final int DIMENSIONE = 64;
+    private static final int NUMERO_CHUNK = 3000;
+    private static final int NUMERO_QUERY = 100;
+    private static final int K = 5;
+
+    @Test
+    void recallRispettoAllaScansioneEsatta() {
+        Random random = new Random(7);
+        List<byte[]> embedding = generaEmbedding(random, NUMERO_CHUNK);
+        IndiceHnsw indice = costruisci(embedding);
+
+        double recall = misuraRecall(indice, embedding, new Random(11));
+
+        assertThat(recall).isGreaterThanOrEqualTo(0.95);
+    }
+
+    @Test
+    void efSearchPiuAltoNonPeggioraLaRecall() {
+        Random random = new Random(3);
+        List<byte[]> embedding = generaEmbedding(random, NUMERO_CHUNK);
+        IndiceHnsw indice = costruisci(embedding);
+
+        indice.setEfSearch(8);
+        double recallBassa = misuraRecall(indice, embedding, new Random(5));
+        indice.setEfSearch(128);
+        double recallAlta = misuraRecall(indice, embedding, new Random(5));
+
+        assertThat(recallAlta).isGreaterThanOrEqualTo(recallBassa);
+    }
+
+    @Test
+    void salvataggioECaricamentoMantengonoIRisultati(@TempDir Path directory) throws Exception {
+        List<byte[]> embedding = generaEmbedding(new Random(13), 500);
+        IndiceHnsw indice = costruisci(embedding);
+        Path file = directory.resolve("organizzazione_1.hnsw");
+
+        indice.salva(file);
+        IndiceHnsw caricato = IndiceHnsw.carica(file, indice.getEfSearch());
+
+        float[] query = normalizzato(embedding.get(42));
+        assertThat(caricato.getNumeroVettori()).isEqualTo(indice.getNumeroVettori());
+        assertThat(caricato.cerca(query, K)).isEqualTo(indice.cerca(query, K));
+    }
+
+    @Test
+    void documentiRimossiNonVengonoRestituiti() {
+        List<byte[]> embedding = generaEmbedding(new Random(17), 1000);
+        IndiceHnsw indice = costruisci(embedding);
+
+        indice.rimuoviDocumento(0L);
+
+        for (int i = 0; i < 20; i++) {
+            List<RisultatoRicerca> risultati = indice.cerca(normalizzato(embedding.get(i * 50)), K);
+            assertThat(risultati).hasSize(K).allMatch(r -> r.documentoId() != 0L);
+        }
+        assertThat(indice.getDocumentiIndicizzati()).doesNotContain(0L);
+    }
+
+    /**
+     * Confronta i risultati HNSW con la scansione completa basata su calcolaSimilaritaCoseno
+     */
+    private double misuraRecall(IndiceHnsw indice, List<byte[]> embedding, Random random) {
+        int trovati = 0;
+        for (int q = 0; q < NUMERO_QUERY; q++) {
+            byte[] query = EmbeddingUtils.floatArrayToByteArray(vettoreVicino(random, embedding.get(random.nextInt(embedding.size()))));
+
+            double[] punteggi = embedding.stream()
+                    .mapToDouble(chunk -> EmbeddingUtils.calcolaSimilaritaCoseno(query, chunk))
+                    .toArray();
+            Set<Long> esatti = IntStream.range(0, embedding.size()).boxed()
+                    .sorted(Comparator.comparingDouble((Integer i) -> punteggi[i]).reversed())
+                    .limit(K)
+                    .map(Integer::longValue)
+                    .collect(Collectors.toSet());
+
+            Set<Long> approssimati = indice.cerca(normalizzato(query), K).stream()
+                    .map(RisultatoRicerca::chunkId)
+                    .collect(Collectors.toCollection(HashSet::new));
+
+            approssimati.retainAll(esatti);
+            trovati += approssimati.size();
+        }
+        return (double) trovati / (NUMERO_QUERY * K);
+    }
+
+    private IndiceHnsw costruisci(List<byte[]> embedding) {
+        IndiceHnsw indice = new IndiceHnsw(16, 200, 64);
+        for (int i = 0; i < embedding.size(); i++) {
+            indice.aggiungi(i, i % 10, normalizzato(embedding.get(i)));
+        }
+        return indice;
+    }
+
+    /**
+     * Embedding raggruppati attorno ad alcuni centroidi, come i chunk di documenti simili
+     */
+    private List<byte[]> generaEmbedding(Random random, int quanti) {
+        List<float[]> centroidi = new ArrayList<>();
+        for (int c = 0; c < 20; c++) {
+            float[] centroide = new float[DIMENSIONE];
+            for (int i = 0; i < DIMENSIONE; i++) {
+                centroide[i] = (float) random.nextGaussian();
+            }
+            centroidi.add(centroide);
+        }
+
+        List<byte[]> embedding = new ArrayList<>(quanti);
+        for (int n = 0; n < quanti; n++) {
+            float[] centroide = centroidi.get(random.nextInt(centroidi.size()));
+            embedding.add(EmbeddingUtils.floatArrayToByteArray(vettoreVicino(random, centroide)));
+        }
+        return embedding;
+    }
+
+    private float[] vettoreVicino(Random random, byte[] embedding) {
+        return vettoreVicino(random, EmbeddingUtils.byteArrayToFloatArray(embedding));
+    }
+
+    private float[] vettoreVicino(Random random, float[] base) {
+        float[] vettore = new float[base.length];
+        for (int i = 0; i < base.length; i++) {
+            vettore[i] = base[i] + (float) random.nextGaussian() * 0.5f;
+        }
+        return vettore;
+    }
+
+    private float[] normalizzato(byte[] embedding) {
+        float[] vettore = EmbeddingUtils.byteArrayToFloatArray(embedding);
+        EmbeddingUtils.normalizza(vettore);
+        return vettore;
+    }
+}
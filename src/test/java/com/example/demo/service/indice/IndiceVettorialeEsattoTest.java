@@ -0,0 +1,61 @@
+package com.example.demo.service.indice;
+
+import com.example.demo.util.EmbeddingUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.offset;
+
+class IndiceVettorialeEsattoTest {
+
+    @Test
+    void restituisceITopKInOrdineDiPunteggio() {
+        IndiceVettorialeEsatto indice = new IndiceVettorialeEsatto();
+        indice.aggiungi(1, 10, vettore(1f, 0f, 0f));
+        indice.aggiungi(2, 10, vettore(0.9f, 0.1f, 0f));
+        indice.aggiungi(3, 20, vettore(0f, 1f, 0f));
+        indice.aggiungi(4, 20, vettore(0.5f, 0.5f, 0f));
+
+        List<RisultatoRicerca> risultati = indice.cerca(vettore(1f, 0f, 0f), 3);
+
+        assertThat(risultati).extracting(RisultatoRicerca::chunkId).containsExactly(1L, 2L, 4L);
+        assertThat(risultati.get(0).punteggio()).isCloseTo(1f, offset(1e-5f));
+        assertThat(indice.cerca(vettore(1f, 0f, 0f), 10)).hasSize(4);
+        assertThat(indice.cerca(vettore(1f, 0f, 0f), 0)).isEmpty();
+    }
+
+    @Test
+    void scartaIVettoriDiDimensioneDiversa() {
+        IndiceVettorialeEsatto indice = new IndiceVettorialeEsatto();
+        assertThat(indice.aggiungi(1, 10, vettore(1f, 0f, 0f))).isTrue();
+
+        assertThat(indice.aggiungi(2, 10, vettore(1f, 0f))).isFalse();
+        assertThat(indice.cerca(vettore(1f, 0f), 5)).isEmpty();
+        assertThat(indice.getDimensione()).isEqualTo(3);
+    }
+
+    @Test
+    void sostituisceERimuoveIVettoriDiUnDocumento() {
+        IndiceVettorialeEsatto indice = new IndiceVettorialeEsatto();
+        indice.aggiungi(1, 10, vettore(1f, 0f, 0f));
+        indice.aggiungi(2, 10, vettore(0f, 1f, 0f));
+        indice.aggiungi(3, 20, vettore(0f, 0f, 1f));
+
+        indice.sostituisciDocumento(10, new long[]{5}, List.of(vettore(0f, 1f, 1f)));
+
+        assertThat(indice.getNumeroVettori()).isEqualTo(2);
+        assertThat(indice.cerca(vettore(1f, 0f, 0f), 5)).extracting(RisultatoRicerca::chunkId)
+                .containsExactlyInAnyOrder(5L, 3L);
+
+        assertThat(indice.rimuoviDocumento(20)).isEqualTo(1);
+        assertThat(indice.rimuoviDocumento(20)).isZero();
+        assertThat(indice.cerca(vettore(0f, 0f, 1f), 5)).extracting(RisultatoRicerca::chunkId).containsExactly(5L);
+    }
+
+    private static float[] vettore(float... valori) {
+        EmbeddingUtils.normalizza(valori);
+        return valori;
+    }
+}
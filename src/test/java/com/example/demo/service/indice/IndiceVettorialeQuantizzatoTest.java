@@ -0,0 +1,146 @@
+package com.example.demo.service.indice;
+
+import com.example.demo.util.EmbeddingUtils;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IndiceVettorialeQuantizzatoTest {
+
+    private static final int DIMENSIONE = 256;
+    private static final int NUMERO_CHUNK = 3000;
+    private static final int NUMERO_QUERY = 100;
+    private static final int K = 5;
+    private static final int FATTORE_CANDIDATI_INT8 = 10;
+    private static final int FATTORE_CANDIDATI_BINARIA = 40;
+    // I vettori sono normalizzati: il rumore della query è relativo a una norma unitaria
+    private static final float RUMORE_QUERY = 0.03f;
+
+    @Test
+    void int8ConservaLaRecallAncheSenzaRiordino() {
+        List<float[]> vettori = generaVettori(new Random(7), NUMERO_CHUNK);
+        IndiceVettorialeQuantizzato indice = costruisci(QuantizzazioneEmbedding.TIPO_INT8, vettori);
+
+        assertThat(misuraRecall(indice, vettori, new Random(11), 0)).isGreaterThanOrEqualTo(0.9);
+        assertThat(misuraRecall(indice, vettori, new Random(11), FATTORE_CANDIDATI_INT8)).isGreaterThanOrEqualTo(0.98);
+    }
+
+    @Test
+    void binariaConRiordinoRecuperaLaRecall() {
+        List<float[]> vettori = generaVettori(new Random(3), NUMERO_CHUNK);
+        IndiceVettorialeQuantizzato indice = costruisci(QuantizzazioneEmbedding.TIPO_BINARIA, vettori);
+
+        double senzaRiordino = misuraRecall(indice, vettori, new Random(5), 0);
+        double conRiordino = misuraRecall(indice, vettori, new Random(5), FATTORE_CANDIDATI_BINARIA);
+
+        assertThat(conRiordino).isGreaterThanOrEqualTo(0.9).isGreaterThanOrEqualTo(senzaRiordino);
+    }
+
+    @Test
+    void codiciSalvatiEquivalgonoAiVettori() {
+        List<float[]> vettori = generaVettori(new Random(13), 500);
+        IndiceVettorialeQuantizzato daVettori = costruisci(QuantizzazioneEmbedding.TIPO_INT8, vettori);
+        IndiceVettorialeQuantizzato daCodici = new IndiceVettorialeQuantizzato(QuantizzazioneEmbedding.TIPO_INT8);
+        for (int i = 0; i < vettori.size(); i++) {
+            daCodici.aggiungiCodificato(i, i % 10, DIMENSIONE, QuantizzazioneEmbedding.quantizzaInt8(vettori.get(i)));
+        }
+
+        float[] query = vettori.get(42);
+        assertThat(daCodici.cerca(query, K)).isEqualTo(daVettori.cerca(query, K));
+    }
+
+    @Test
+    void documentiRimossiNonVengonoRestituiti() {
+        List<float[]> vettori = generaVettori(new Random(17), 1000);
+        IndiceVettorialeQuantizzato indice = costruisci(QuantizzazioneEmbedding.TIPO_BINARIA, vettori);
+
+        int rimossi = indice.rimuoviDocumento(0L);
+
+        assertThat(rimossi).isEqualTo(100);
+        assertThat(indice.getNumeroVettori()).isEqualTo(900);
+        for (int i = 0; i < 20; i++) {
+            assertThat(indice.cerca(vettori.get(i * 50), K)).hasSize(K).allMatch(r -> r.documentoId() != 0L);
+        }
+    }
+
+    /**
+     * Confronta i risultati quantizzati con la scansione completa su float.
+     * Con fattoreCandidati > 0 si cercano k * fattoreCandidati candidati e si riordinano sui vettori completi.
+     */
+    private double misuraRecall(IndiceVettorialeQuantizzato indice, List<float[]> vettori, Random random, int fattoreCandidati) {
+        Map<Long, float[]> vettoriCompleti = new HashMap<>();
+        IndiceVettorialeEsatto esatto = new IndiceVettorialeEsatto();
+        for (int i = 0; i < vettori.size(); i++) {
+            vettoriCompleti.put((long) i, vettori.get(i));
+            esatto.aggiungi(i, i % 10, vettori.get(i));
+        }
+
+        int trovati = 0;
+        for (int q = 0; q < NUMERO_QUERY; q++) {
+            float[] query = vettoreVicino(random, vettori.get(random.nextInt(vettori.size())), RUMORE_QUERY);
+            EmbeddingUtils.normalizza(query);
+
+            Set<Long> attesi = esatto.cerca(query, K).stream()
+                    .map(RisultatoRicerca::chunkId)
+                    .collect(Collectors.toSet());
+
+            List<RisultatoRicerca> risultati = fattoreCandidati > 0
+                    ? IndiceVettorialeQuantizzato.riordina(indice.cerca(query, K * fattoreCandidati), vettoriCompleti, query, K)
+                    : indice.cerca(query, K);
+            Set<Long> approssimati = risultati.stream()
+                    .map(RisultatoRicerca::chunkId)
+                    .collect(Collectors.toCollection(HashSet::new));
+
+            approssimati.retainAll(attesi);
+            trovati += approssimati.size();
+        }
+        return (double) trovati / (NUMERO_QUERY * K);
+    }
+
+    private IndiceVettorialeQuantizzato costruisci(String tipo, List<float[]> vettori) {
+        IndiceVettorialeQuantizzato indice = new IndiceVettorialeQuantizzato(tipo);
+        for (int i = 0; i < vettori.size(); i++) {
+            indice.aggiungi(i, i % 10, vettori.get(i));
+        }
+        return indice;
+    }
+
+    /**
+     * Vettori normalizzati raggruppati attorno ad alcuni centroidi, come i chunk di documenti simili
+     */
+    private List<float[]> generaVettori(Random random, int quanti) {
+        List<float[]> centroidi = new ArrayList<>();
+        for (int c = 0; c < 20; c++) {
+            float[] centroide = new float[DIMENSIONE];
+            for (int i = 0; i < DIMENSIONE; i++) {
+                centroide[i] = (float) random.nextGaussian();
+            }
+            centroidi.add(centroide);
+        }
+
+        List<float[]> vettori = new ArrayList<>(quanti);
+        for (int n = 0; n < quanti; n++) {
+            float[] vettore = vettoreVicino(random, centroidi.get(random.nextInt(centroidi.size())), 0.5f);
+            EmbeddingUtils.normalizza(vettore);
+            vettori.add(vettore);
+        }
+        return vettori;
+    }
+
+    private float[] vettoreVicino(Random random, float[] base, float rumore) {
+        float[] vettore = new float[base.length];
+        for (int i = 0; i < base.length; i++) {
+            vettore[i] = base[i] + (float) random.nextGaussian() * rumore;
+        }
+        return vettore;
+    }
+}
@@ -0,0 +1,57 @@
+package com.example.demo.service.indice;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class KernelSimilaritaTest {
+
+    private static final int DIMENSIONE_ADA = 1536;
+
+    @Test
+    void kernelPredefinitoUsaLaVectorApiQuandoIlModuloEAbilitato() {
+        assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent());
+
+        assertThat(KernelSimilarita.predefinito()).isInstanceOf(KernelVettoriale.class);
+    }
+
+    @Test
+    void kernelPredefinitoEScalareCoincidono() {
+        KernelSimilarita predefinito = KernelSimilarita.predefinito();
+        KernelSimilarita scalare = new KernelScalare();
+        Random random = new Random(1);
+
+        // Anche lunghezze non multiple della larghezza SIMD e offset non allineati
+        for (int lunghezza : new int[]{1, 7, 31, 100, DIMENSIONE_ADA}) {
+            float[] a = casuale(random, lunghezza + 3);
+            float[] b = casuale(random, lunghezza * 2);
+
+            float atteso = scalare.prodottoScalare(a, 3, b, lunghezza, lunghezza);
+            float ottenuto = predefinito.prodottoScalare(a, 3, b, lunghezza, lunghezza);
+
+            assertThat(ottenuto).isCloseTo(atteso, within(1e-3f));
+        }
+    }
+
+    @Test
+    void similaritaCosenoConNormePrecalcolate() {
+        KernelSimilarita kernel = KernelSimilarita.predefinito();
+        float[] a = {1, 2, 3};
+        float[] b = {2, 4, 6};
+
+        assertThat(kernel.similaritaCoseno(a, kernel.norma(a), b, kernel.norma(b))).isCloseTo(1.0f, within(1e-6f));
+        assertThat(kernel.similaritaCoseno(a, 0, b, kernel.norma(b))).isZero();
+    }
+
+    private float[] casuale(Random random, int lunghezza) {
+        float[] vettore = new float[lunghezza];
+        for (int i = 0; i < lunghezza; i++) {
+            vettore[i] = (float) random.nextGaussian();
+        }
+        return vettore;
+    }
+}
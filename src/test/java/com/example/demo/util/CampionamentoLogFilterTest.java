@@ -0,0 +1,52 @@
+package com.example.demo.util;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.core.spi.FilterReply;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CampionamentoLogFilterTest {
+
+    private final LoggerContext contesto = new LoggerContext();
+
+    @AfterEach
+    void pulisci() {
+        MDC.clear();
+    }
+
+    @Test
+    void campionaCircaLaPercentualeRichiesta() {
+        int campionati = 0;
+        for (int i = 0; i < 100_000; i++) {
+            if (CampionamentoLogFilter.campionato("SM" + UUID.randomUUID().toString().replace("-", ""), 5)) {
+                campionati++;
+            }
+        }
+        assertThat(campionati).isBetween(4_000, 6_000);
+    }
+
+    @Test
+    void abilitaIlDebugSoloPerIMessaggiCampionatiDellApplicazione() {
+        CampionamentoLogFilter filtro = new CampionamentoLogFilter();
+        filtro.setPercentuale(100);
+        Logger applicazione = contesto.getLogger("com.example.demo.service.WhatsAppService");
+        Logger libreria = contesto.getLogger("org.hibernate.SQL");
+
+        assertThat(filtro.decide(null, applicazione, Level.DEBUG, "x", null, null)).isEqualTo(FilterReply.NEUTRAL);
+
+        MDC.put(CorrelazioneLog.CHIAVE, "SM123");
+        assertThat(filtro.decide(null, applicazione, Level.DEBUG, "x", null, null)).isEqualTo(FilterReply.ACCEPT);
+        assertThat(filtro.decide(null, applicazione, Level.INFO, "x", null, null)).isEqualTo(FilterReply.NEUTRAL);
+        assertThat(filtro.decide(null, libreria, Level.DEBUG, "x", null, null)).isEqualTo(FilterReply.NEUTRAL);
+
+        filtro.setPercentuale(0);
+        assertThat(filtro.decide(null, applicazione, Level.DEBUG, "x", null, null)).isEqualTo(FilterReply.NEUTRAL);
+    }
+}
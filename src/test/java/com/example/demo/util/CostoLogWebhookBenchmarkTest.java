@@ -0,0 +1,183 @@
+package com.example.demo.util;
+
+import ch.qos.logback.classic.AsyncAppender;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.OutputStreamAppender;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.MDC;
+import org.springframework.boot.logging.logback.StructuredLogEncoder;
+import org.springframework.mock.env.MockEnvironment;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+/**
+ * Costo dei log per messaggio sul percorso del webhook, prima e dopo il passaggio a SLF4J.
+ *
+ * Prima: sei println sincronizzati per messaggio su uno stream con flush a ogni riga, come System.out.
+ * Dopo: una riga INFO in JSON tramite AsyncAppender più una riga DEBUG campionata all'1%.
+ * Con neverBlock, come in produzione, a coda piena gli eventi vengono scartati: per questa variante
+ * si riportano anche le righe INFO effettivamente scritte. Il confronto con println usa una seconda
+ * variante senza scarto (neverBlock=false), misurata fino alla scrittura dell'ultima riga.
+ * Escluso dalla build; si esegue con mvn test -Dgruppi.esclusi= -Dgroups=benchmark
+ */
+@Tag("benchmark")
+class CostoLogWebhookBenchmarkTest {
+
+    private static final int THREAD = 16;
+    private static final int MESSAGGI_PER_THREAD = 20_000;
+    private static final String LOGGER_WEBHOOK = "com.example.demo.controller.WhatsAppWebhookController";
+
+    @Test
+    void confrontaPrintlnSincronoConLogAsincronoStrutturato() throws Exception {
+        Path prima = Files.createTempFile("log-prima", ".log");
+        Path dopo = Files.createTempFile("log-dopo", ".log");
+        Path senzaScarto = Files.createTempFile("log-senza-scarto", ".log");
+        try (PrintStream console = new PrintStream(Files.newOutputStream(prima), true);
+             OutputStream uscita = Files.newOutputStream(dopo);
+             OutputStream uscitaSenzaScarto = Files.newOutputStream(senzaScarto)) {
+            // Riscaldamento del JIT per entrambe le varianti, su un contesto separato
+            esegui(indice -> printlnSincrono(console, indice), 2_000);
+            LoggerContext riscaldamento = contestoAsincrono(OutputStream.nullOutputStream(), true);
+            Logger loggerRiscaldamento = riscaldamento.getLogger(LOGGER_WEBHOOK);
+            esegui(indice -> logAsincrono(loggerRiscaldamento, indice), 2_000);
+            riscaldamento.stop();
+
+            long nanosPrima = esegui(indice -> printlnSincrono(console, indice), MESSAGGI_PER_THREAD);
+
+            LoggerContext contesto = contestoAsincrono(uscita, true);
+            Logger logger = contesto.getLogger(LOGGER_WEBHOOK);
+            long nanosDopo = esegui(indice -> logAsincrono(logger, indice), MESSAGGI_PER_THREAD);
+            contesto.stop();
+
+            LoggerContext contestoSenzaScarto = contestoAsincrono(uscitaSenzaScarto, false);
+            Logger loggerSenzaScarto = contestoSenzaScarto.getLogger(LOGGER_WEBHOOK);
+            long inizio = System.nanoTime();
+            esegui(indice -> logAsincrono(loggerSenzaScarto, indice), MESSAGGI_PER_THREAD);
+            // Lo stop attende che il thread dell'appender abbia scritto tutta la coda
+            contestoSenzaScarto.stop();
+            long nanosSenzaScarto = System.nanoTime() - inizio;
+
+            int messaggi = THREAD * MESSAGGI_PER_THREAD;
+            long scritti = righeInfo(dopo);
+            System.out.printf("Log per messaggio con %d thread: println sincrono %d ns, SLF4J asincrono JSON senza scarto "
+                            + "%d ns (%d righe INFO scritte su %d)%n",
+                    THREAD, nanosPrima * THREAD / messaggi, nanosSenzaScarto * THREAD / messaggi,
+                    righeInfo(senzaScarto), messaggi);
+            System.out.printf("Con neverBlock (produzione): %d ns di accodamento, %d righe INFO scritte su %d, %d scartate%n",
+                    nanosDopo * THREAD / messaggi, scritti, messaggi, messaggi - scritti);
+        } finally {
+            Files.deleteIfExists(prima);
+            Files.deleteIfExists(dopo);
+            Files.deleteIfExists(senzaScarto);
+        }
+    }
+
+    private static void printlnSincrono(PrintStream console, int indice) {
+        console.println("Messaggio WhatsApp ricevuto:");
+        console.println("Da: +39333" + indice);
+        console.println("A: +39020000000");
+        console.println("Corpo: Buongiorno, vorrei sapere gli orari di apertura del negozio");
+        console.println("Numero di allegati: 0");
+        console.println("Organizzazione trovata con ID: 1");
+    }
+
+    private static void logAsincrono(Logger logger, int indice) {
+        String precedente = CorrelazioneLog.imposta("SM" + Thread.currentThread().threadId() + "x" + indice);
+        try {
+            logger.info("Messaggio WhatsApp ricevuto da {} per {} ({} allegati)", "+39333" + indice, "+39020000000", 0);
+            logger.debug("Corpo del messaggio: {}", "Buongiorno, vorrei sapere gli orari di apertura del negozio");
+        } finally {
+            CorrelazioneLog.ripristina(precedente);
+        }
+    }
+
+    private static long righeInfo(Path file) throws IOException {
+        try (Stream<String> righe = Files.lines(file)) {
+            return righe.filter(riga -> riga.contains("Messaggio WhatsApp ricevuto")).count();
+        }
+    }
+
+    private static LoggerContext contestoAsincrono(OutputStream uscita, boolean scartaACodaPiena) {
+        LoggerContext contesto = new LoggerContext();
+        contesto.putObject(org.springframework.core.env.Environment.class.getName(), new MockEnvironment());
+        // Senza adattatore MDC l'encoder JSON fallisce su ogni evento e non viene scritto nulla
+        contesto.setMDCAdapter(MDC.getMDCAdapter());
+
+        CampionamentoLogFilter campionamento = new CampionamentoLogFilter();
+        campionamento.setPercentuale(1);
+        campionamento.setContext(contesto);
+        campionamento.start();
+        contesto.addTurboFilter(campionamento);
+
+        StructuredLogEncoder encoder = new StructuredLogEncoder();
+        encoder.setFormat("ecs");
+        encoder.setContext(contesto);
+        encoder.start();
+
+        OutputStreamAppender<ILoggingEvent> file = new OutputStreamAppender<>();
+        file.setContext(contesto);
+        file.setEncoder(encoder);
+        file.setOutputStream(uscita);
+        file.start();
+
+        AsyncAppender asincrono = new AsyncAppender();
+        asincrono.setContext(contesto);
+        asincrono.setQueueSize(8192);
+        asincrono.setDiscardingThreshold(0);
+        asincrono.setNeverBlock(scartaACodaPiena);
+        // 0 = allo stop si attende la scrittura di tutti gli eventi in coda
+        asincrono.setMaxFlushTime(0);
+        asincrono.addAppender(file);
+        asincrono.start();
+
+        Logger root = contesto.getLogger(org.slf4j.Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+        root.addAppender(asincrono);
+        return contesto;
+    }
+
+    private interface Richiesta {
+        void esegui(int indice);
+    }
+
+    /**
+     * Esegue le richieste su THREAD thread e restituisce il tempo totale in nanosecondi
+     */
+    private static long esegui(Richiesta richiesta, int perThread) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(THREAD);
+        CountDownLatch partenza = new CountDownLatch(1);
+        CountDownLatch fine = new CountDownLatch(THREAD);
+        for (int t = 0; t < THREAD; t++) {
+            executor.execute(() -> {
+                try {
+                    partenza.await();
+                    for (int i = 0; i < perThread; i++) {
+                        richiesta.esegui(i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    fine.countDown();
+                }
+            });
+        }
+        long inizio = System.nanoTime();
+        partenza.countDown();
+        fine.await();
+        long durata = System.nanoTime() - inizio;
+        executor.shutdown();
+        return durata;
+    }
+}
@@ -0,0 +1,77 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class EsecutoreSerialePerChiaveTest {
+
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final EsecutoreSerialePerChiave<String> esecutore = new EsecutoreSerialePerChiave<>(executor);
+
+    @AfterEach
+    void chiudi() {
+        executor.close();
+    }
+
+    @Test
+    void stessaChiaveInOrdineESenzaSovrapposizioni() throws Exception {
+        List<Integer> ordine = new CopyOnWriteArrayList<>();
+        AtomicInteger inEsecuzione = new AtomicInteger();
+        AtomicInteger massimoConcorrente = new AtomicInteger();
+
+        CompletableFuture<Void> ultimo = null;
+        for (int i = 0; i < 50; i++) {
+            int numero = i;
+            ultimo = esecutore.esegui("+391234", () -> {
+                massimoConcorrente.accumulateAndGet(inEsecuzione.incrementAndGet(), Math::max);
+                ordine.add(numero);
+                inEsecuzione.decrementAndGet();
+            });
+        }
+        ultimo.get(5, TimeUnit.SECONDS);
+
+        assertThat(ordine).hasSize(50).isSorted();
+        assertThat(massimoConcorrente.get()).isEqualTo(1);
+    }
+
+    @Test
+    void chiaviDiverseInParallelo() throws Exception {
+        CountDownLatch entrambiAvviati = new CountDownLatch(2);
+        Runnable attendiAltro = () -> {
+            entrambiAvviati.countDown();
+            try {
+                entrambiAvviati.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        };
+
+        CompletableFuture<Void> primo = esecutore.esegui("+391111", attendiAltro);
+        CompletableFuture<Void> secondo = esecutore.esegui("+392222", attendiAltro);
+        CompletableFuture.allOf(primo, secondo).get(5, TimeUnit.SECONDS);
+
+        assertThat(entrambiAvviati.getCount()).isZero();
+    }
+
+    @Test
+    void unErroreNonBloccaITaskSuccessivi() throws Exception {
+        esecutore.esegui("+391234", () -> {
+            throw new IllegalStateException("errore di prova");
+        });
+        AtomicInteger eseguiti = new AtomicInteger();
+        esecutore.esegui("+391234", eseguiti::incrementAndGet).get(5, TimeUnit.SECONDS);
+
+        assertThat(eseguiti.get()).isEqualTo(1);
+    }
+}
@@ -0,0 +1,75 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InterruttoreCircuitoTest {
+
+    private static final long SECONDO = 1_000_000_000L;
+
+    private final AtomicLong orologio = new AtomicLong();
+    private final InterruttoreCircuito interruttore = new InterruttoreCircuito(10, 4, 0.5, 30_000, orologio::get);
+
+    @Test
+    void siApreQuandoIFallimentiRaggiungonoLaSoglia() {
+        interruttore.registraSuccesso();
+        interruttore.registraFallimento();
+        interruttore.registraSuccesso();
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+
+        interruttore.registraFallimento();
+
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.APERTO);
+        assertThat(interruttore.permetti()).isFalse();
+    }
+
+    @Test
+    void gliEsitiFuoriDallaFinestraNonContano() {
+        registra(6, 4);
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+
+        // I quattro fallimenti escono dalla finestra: ne restano quattro su dieci, non otto
+        registra(10, 0);
+        registra(0, 4);
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+    }
+
+    @Test
+    void dopoLAperturaLasciaPassareUnaSolaProva() {
+        apri();
+        orologio.addAndGet(30 * SECONDO);
+
+        assertThat(interruttore.permetti()).isTrue();
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.SEMI_APERTO);
+        assertThat(interruttore.permetti()).isFalse();
+
+        interruttore.registraFallimento();
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.APERTO);
+        assertThat(interruttore.permetti()).isFalse();
+
+        orologio.addAndGet(30 * SECONDO);
+        assertThat(interruttore.permetti()).isTrue();
+        interruttore.registraSuccesso();
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.CHIUSO);
+        assertThat(interruttore.permetti()).isTrue();
+    }
+
+    private void registra(int successi, int fallimenti) {
+        for (int i = 0; i < successi; i++) {
+            interruttore.registraSuccesso();
+        }
+        for (int i = 0; i < fallimenti; i++) {
+            interruttore.registraFallimento();
+        }
+    }
+
+    private void apri() {
+        for (int i = 0; i < 4; i++) {
+            interruttore.registraFallimento();
+        }
+        assertThat(interruttore.getStato()).isEqualTo(InterruttoreCircuito.Stato.APERTO);
+    }
+}
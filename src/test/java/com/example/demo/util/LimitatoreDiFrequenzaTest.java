@@ -0,0 +1,39 @@
+package com.example.demo.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LimitatoreDiFrequenzaTest {
+
+    private static final long SECONDO = 1_000_000_000L;
+
+    @Test
+    void concedeLaRafficaPoiRispettaLaFrequenza() {
+        AtomicLong orologio = new AtomicLong();
+        LimitatoreDiFrequenza limitatore = new LimitatoreDiFrequenza(10, 3, orologio::get);
+
+        assertThat(limitatore.riserva()).isZero();
+        assertThat(limitatore.riserva()).isZero();
+        assertThat(limitatore.riserva()).isZero();
+        // Le prenotazioni oltre la raffica si accodano a 100 ms l'una dall'altra
+        assertThat(limitatore.riserva()).isEqualTo(SECONDO / 10);
+        assertThat(limitatore.riserva()).isEqualTo(2 * SECONDO / 10);
+    }
+
+    @Test
+    void iGettoniSiRicaricanoFinoAllaCapacita() {
+        AtomicLong orologio = new AtomicLong();
+        LimitatoreDiFrequenza limitatore = new LimitatoreDiFrequenza(10, 2, orologio::get);
+        limitatore.riserva();
+        limitatore.riserva();
+
+        orologio.addAndGet(10 * SECONDO);
+
+        assertThat(limitatore.riserva()).isZero();
+        assertThat(limitatore.riserva()).isZero();
+        assertThat(limitatore.riserva()).isEqualTo(SECONDO / 10);
+    }
+}